@@ -0,0 +1,84 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk;
+
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.kontalk.util.StartupManager;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Cold start benchmark. The instrumentation starts a fresh application
+ * process, so the trace recorded by {@link Kontalk#onCreate()} is a cold
+ * start. Run it alone to get meaningful numbers; it is disabled by default:
+ * <pre>./gradlew :app:connectedBasicDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.kontalk.benchmark=true</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class StartupBenchmarkTest {
+    private static final String TAG = StartupBenchmarkTest.class.getSimpleName();
+
+    /** Maximum time to wait for background initializers. */
+    private static final long STARTUP_TIMEOUT = 30000;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.parseBoolean(InstrumentationRegistry
+            .getArguments().getString("kontalk.benchmark")));
+    }
+
+    @Test
+    public void testColdStart() throws Exception {
+        Kontalk app = Kontalk.get(InstrumentationRegistry.getTargetContext());
+        StartupManager startup = app.getStartupManager();
+        assertNotNull(startup);
+
+        long deadline = SystemClock.elapsedRealtime() + STARTUP_TIMEOUT;
+        while (startup.getElapsedTime() < 0) {
+            assertTrue("startup did not complete", SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(50);
+        }
+
+        List<StartupManager.TraceEntry> trace = startup.getTrace();
+        assertFalse(trace.isEmpty());
+
+        long mainThread = 0;
+        String mainThreadName = InstrumentationRegistry.getTargetContext()
+            .getMainLooper().getThread().getName();
+        for (StartupManager.TraceEntry entry : trace) {
+            Log.i(TAG, entry.toString());
+            if (mainThreadName.equals(entry.thread))
+                mainThread += entry.duration;
+        }
+        Log.i(TAG, "cold start: " + mainThread + " ms on main thread, " +
+            startup.getElapsedTime() + " ms total");
+    }
+
+}
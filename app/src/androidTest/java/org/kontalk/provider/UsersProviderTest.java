@@ -0,0 +1,81 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.ProviderTestCase2;
+
+import org.kontalk.provider.MyUsers.Users;
+
+
+@RunWith(AndroidJUnit4.class)
+public class UsersProviderTest extends ProviderTestCase2<UsersProvider> {
+
+    private static final String TEST_JID = "alice@prime.kontalk.net";
+
+    public UsersProviderTest() {
+        super(UsersProvider.class, UsersProvider.AUTHORITY);
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        setContext(InstrumentationRegistry.getTargetContext());
+        super.setUp();
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void testKeyCheckedSurvivesResync() {
+        String[] jids = { TEST_JID };
+        ContentValues values = new ContentValues(1);
+        values.put(Users.FINGERPRINT, "AAAA");
+        getMockContentResolver().update(Users.CONTENT_URI, values,
+            Users.JID + "=?", jids);
+        UsersProvider.setKeysChecked(getMockContext(), jids, 12345);
+
+        // contacts sync: resync, sync users into the offline table, commit
+        Uri resync = Users.CONTENT_URI.buildUpon()
+            .appendQueryParameter(Users.RESYNC, "true")
+            .build();
+        getMockContentResolver().update(resync, new ContentValues(), null, null);
+        getMockContentResolver().update(Users.CONTENT_URI_OFFLINE, values,
+            Users.JID + "=?", jids);
+        getMockContentResolver().update(resync.buildUpon()
+            .appendQueryParameter(Users.COMMIT, "true")
+            .build(), new ContentValues(), null, null);
+
+        assertEquals(Long.valueOf(12345),
+            UsersProvider.getKeysChecked(getMockContext(), jids).get(TEST_JID));
+    }
+
+}
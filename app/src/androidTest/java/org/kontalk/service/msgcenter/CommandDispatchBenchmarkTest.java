@@ -0,0 +1,102 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Per-command dispatch latency of the message center, through intents and
+ * in-process. Needs a registered account so the message center can run.
+ * Disabled by default, run it with:
+ * <pre>./gradlew :app:connectedBasicDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.kontalk.benchmark=true</pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class CommandDispatchBenchmarkTest {
+    private static final String TAG = CommandDispatchBenchmarkTest.class.getSimpleName();
+
+    private static final int COMMANDS = 500;
+    private static final long TIMEOUT = 30000;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.parseBoolean(InstrumentationRegistry
+            .getArguments().getString("kontalk.benchmark")));
+    }
+
+    /** Sends hold/release pairs and waits for all of them to be handled. */
+    private static long run(Context context, boolean direct) throws InterruptedException {
+        int target = MessageCenterService.getHandledCommandCount() + COMMANDS;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < COMMANDS / 2; i++) {
+            if (direct) {
+                MessageCenterService.hold(context, false);
+                MessageCenterService.release(context);
+            }
+            else {
+                // what dispatching does when the service is not running
+                context.startService(new Intent(context, MessageCenterService.class)
+                    .setAction(MessageCenterService.ACTION_HOLD));
+                context.startService(new Intent(context, MessageCenterService.class)
+                    .setAction(MessageCenterService.ACTION_RELEASE));
+            }
+        }
+
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT;
+        while (MessageCenterService.getHandledCommandCount() < target) {
+            assertTrue("commands not handled", SystemClock.elapsedRealtime() < deadline);
+            Thread.sleep(1);
+        }
+        return (System.nanoTime() - start) / COMMANDS;
+    }
+
+    @Test
+    public void testDispatchLatency() throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        MessageCenterService.start(context);
+
+        long deadline = SystemClock.elapsedRealtime() + TIMEOUT;
+        while (!MessageCenterService.isRunning() && SystemClock.elapsedRealtime() < deadline)
+            Thread.sleep(50);
+        Assume.assumeTrue(MessageCenterService.isRunning());
+
+        // warm up
+        run(context, false);
+        run(context, true);
+
+        long intents = run(context, false);
+        long direct = run(context, true);
+        Log.i(TAG, "dispatch latency: " + intents / 1000 + " us with intents, " +
+            direct / 1000 + " us in-process");
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.Arrays;
+
+import org.jivesoftware.smack.roster.packet.RosterPacket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.kontalk.util.Preferences;
+
+import static org.junit.Assert.*;
+
+
+@RunWith(AndroidJUnit4.class)
+public class SQLiteRosterStoreTest {
+
+    private static final String TEST_DATABASE = "roster-test.db";
+
+    private Context mContext;
+    private String mRosterVersion;
+    private SQLiteRosterStore mStore;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(TEST_DATABASE);
+        mRosterVersion = Preferences.getRosterVersion(mContext);
+        mStore = new SQLiteRosterStore(mContext, TEST_DATABASE);
+    }
+
+    @After
+    public void tearDown() {
+        mStore.onDestroy();
+        mContext.deleteDatabase(TEST_DATABASE);
+        Preferences.setRosterVersion(mRosterVersion);
+    }
+
+    private static RosterPacket.Item item(String jid, RosterPacket.ItemType type) {
+        RosterPacket.Item item = new RosterPacket.Item(jid, jid);
+        item.setItemType(type);
+        return item;
+    }
+
+    @Test
+    public void testAddEntry() {
+        assertTrue(mStore.addEntry(item("a@example.com", RosterPacket.ItemType.from), "1"));
+        assertFalse(mStore.isSubscribed("a@example.com"));
+
+        // roster push for an existing item
+        assertTrue(mStore.addEntry(item("a@example.com", RosterPacket.ItemType.both), "2"));
+        assertTrue(mStore.isSubscribed("a@example.com"));
+        assertEquals("2", mStore.getRosterVersion());
+
+        // reload from the database
+        mStore.onDestroy();
+        mStore = new SQLiteRosterStore(mContext, TEST_DATABASE);
+        assertEquals(1, mStore.getEntries().size());
+        assertEquals(RosterPacket.ItemType.both, mStore.getEntry("a@example.com").getItemType());
+        assertTrue(mStore.getJids(RosterPacket.ItemType.from).isEmpty());
+    }
+
+    @Test
+    public void testResetEntries() {
+        mStore.addEntry(item("a@example.com", RosterPacket.ItemType.to), "1");
+        mStore.addEntry(item("b@example.com", RosterPacket.ItemType.to), "2");
+
+        assertTrue(mStore.resetEntries(Arrays.asList(
+            item("b@example.com", RosterPacket.ItemType.to),
+            item("c@example.com", RosterPacket.ItemType.none)), "3"));
+
+        assertNull(mStore.getEntry("a@example.com"));
+        assertEquals(Arrays.asList("b@example.com"), mStore.getSubscribedJids());
+        assertEquals(Arrays.asList("c@example.com"), mStore.getJids(RosterPacket.ItemType.none));
+
+        assertTrue(mStore.removeEntry("b@example.com", "4"));
+        assertFalse(mStore.isSubscribed("b@example.com"));
+        assertEquals(1, mStore.getEntries().size());
+    }
+
+}
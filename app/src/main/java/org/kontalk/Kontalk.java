@@ -40,9 +40,11 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.kontalk.authenticator.Authenticator;
+import org.kontalk.client.SSLContextRegistry;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.data.Contact;
+import org.kontalk.provider.CoderRegistry;
 import org.kontalk.provider.MessagesProvider;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.service.DownloadService;
@@ -60,6 +62,7 @@ import org.kontalk.ui.MessagingNotification;
 import org.kontalk.ui.SearchActivity;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.Preferences;
+import org.kontalk.util.StartupManager;
 
 
 /**
@@ -105,31 +108,82 @@ public class Kontalk extends Application {
     /** Messages controller singleton instance. */
     private MessagesController mMessagesController;
 
+    /** Application initializers. */
+    private StartupManager mStartup;
+
     @Override
     public void onCreate() {
         super.onCreate();
-        // register reporting manager
-        ReportingManager.register(this);
-
-        // register security provider
-        SecureConnectionManager.init(this);
-        try {
-            PGP.registerProvider();
-        }
-        catch (PGP.PRNGFixException e) {
-            ReportingManager.logException(e);
-            Log.w(TAG, "Unable to install PRNG fix - ignoring", e);
-        }
-
-        // init preferences
-        Preferences.init(this);
 
-        // init contacts
-        Contact.init(this, new Handler());
+        mStartup = new StartupManager()
+            // register reporting manager
+            .add("reporting", new Runnable() {
+                @Override
+                public void run() {
+                    ReportingManager.register(Kontalk.this);
+                }
+            })
+            // register security providers
+            .addBackground("secureconnection", new Runnable() {
+                @Override
+                public void run() {
+                    SecureConnectionManager.init(Kontalk.this);
+                }
+            }, "reporting")
+            .addBackground("crypto", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PGP.registerProvider();
+                    }
+                    catch (PGP.PRNGFixException e) {
+                        ReportingManager.logException(e);
+                        Log.w(TAG, "Unable to install PRNG fix - ignoring", e);
+                    }
+                }
+            }, "reporting")
+            // init preferences
+            .add("preferences", new Runnable() {
+                @Override
+                public void run() {
+                    Preferences.init(Kontalk.this);
+                }
+            })
+            // init contacts and encryption coders cache
+            .add("observers", new Runnable() {
+                @Override
+                public void run() {
+                    Handler handler = new Handler();
+                    Contact.init(Kontalk.this, handler);
+                    CoderRegistry.init(Kontalk.this, handler);
+                }
+            })
+            // init notification system
+            .add("notifications", new Runnable() {
+                @Override
+                public void run() {
+                    MessagingNotification.init(Kontalk.this);
+                }
+            }, "preferences")
+            .add("listeners", new Runnable() {
+                @Override
+                public void run() {
+                    registerListeners();
+                }
+            }, "preferences")
+            // update notifications from locally unread messages
+            .addBackground("unread", new Runnable() {
+                @Override
+                public void run() {
+                    if (Authenticator.getDefaultAccount(Kontalk.this) != null)
+                        MessagingNotification.updateMessagesNotification(Kontalk.this, false);
+                }
+            }, "notifications");
 
-        // init notification system
-        MessagingNotification.init(this);
+        mStartup.start();
+    }
 
+    private void registerListeners() {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
         final SharedPreferences.OnSharedPreferenceChangeListener prefListener =
             new SharedPreferences.OnSharedPreferenceChangeListener() {
@@ -171,9 +225,6 @@ public class Kontalk extends Application {
             if (!Authenticator.hasPersonalKey(am, account))
                 xmppUpgrade();
 
-            // update notifications from locally unread messages
-            MessagingNotification.updateMessagesNotification(this, false);
-
             // register account change listener
             final OnAccountsUpdateListener listener = new OnAccountsUpdateListener() {
                 @Override
@@ -217,6 +268,11 @@ public class Kontalk extends Application {
         setServicesEnabled(this, account != null);
     }
 
+    /** Returns the application initializers, e.g. for reading the startup trace. */
+    public StartupManager getStartupManager() {
+        return mStartup;
+    }
+
     private void xmppUpgrade() {
         // delete custom server
         Preferences.setServerURI(this, null);
@@ -248,6 +304,8 @@ public class Kontalk extends Application {
     public void invalidatePersonalKey() {
         mDefaultKey = null;
         mKeyPassphrase = null;
+        CoderRegistry.invalidateAll();
+        SSLContextRegistry.invalidateAll();
     }
 
     private void ensureCachedPassphrase() {
@@ -234,6 +234,8 @@ public class Authenticator extends AbstractAccountAuthenticator {
         KeyFingerPrintCalculator fpr = new BcKeyFingerprintCalculator();
         PGPSecretKeyRing oldSecRing = new PGPSecretKeyRing(privateKeyData, fpr);
 
+        PGP.ensureProvider();
+
         // old decryptor
         PGPDigestCalculatorProvider calcProv = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor oldDecryptor = new JcePBESecretKeyDecryptorBuilder(calcProv)
@@ -22,36 +22,22 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
-import java.security.KeyManagementException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import org.apache.http.conn.ssl.AllowAllHostnameVerifier;
 
 import android.content.Context;
 import android.util.Log;
 
-import info.guardianproject.netcipher.client.TlsOnlySocketFactory;
-
 import org.kontalk.message.CompositeMessage;
 import org.kontalk.service.DownloadListener;
 import org.kontalk.util.InternalTrustStore;
@@ -121,10 +107,7 @@ public class ClientHTTPConnection {
     }
 
     private void setupClient(HttpsURLConnection conn, boolean acceptAnyCertificate)
-            throws CertificateException, UnrecoverableKeyException,
-            NoSuchAlgorithmException, KeyStoreException,
-            KeyManagementException, NoSuchProviderException,
-            IOException {
+            throws GeneralSecurityException, IOException {
 
         // bug caused by Lighttpd
         //conn.setRequestProperty("Expect", "100-continue");
@@ -140,61 +123,15 @@ public class ClientHTTPConnection {
     public static SSLSocketFactory setupSSLSocketFactory(Context context,
                 PrivateKey privateKey, X509Certificate certificate,
                 boolean acceptAnyCertificate)
-            throws KeyStoreException, NoSuchAlgorithmException, CertificateException,
-                IOException, KeyManagementException, UnrecoverableKeyException,
-                NoSuchProviderException {
-
-        // in-memory keystore
-        KeyManager[] km = null;
-        if (privateKey != null && certificate != null) {
-            KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-            keystore.load(null, null);
-            keystore.setKeyEntry("private", privateKey, null, new Certificate[]{certificate});
-
-            // key managers
-            KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            kmFactory.init(keystore, null);
-            km = kmFactory.getKeyManagers();
-        }
+            throws GeneralSecurityException, IOException {
 
-        // trust managers
-        TrustManager[] tm;
-
-        if (acceptAnyCertificate) {
-            tm = new TrustManager[] {
-                new X509TrustManager() {
-                    @Override
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return null;
-                    }
-
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] chain, String authType)
-                        throws CertificateException {
-                    }
-
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] chain, String authType)
-                        throws CertificateException {
-                    }
-                }
-            };
-        }
-        else {
-            // load merged truststore (system + internal)
-            KeyStore trustStore = InternalTrustStore.getTrustStore(context);
-
-            // builtin keystore
-            TrustManagerFactory tmFactory = TrustManagerFactory
-                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            tmFactory.init(trustStore);
-
-            tm = tmFactory.getTrustManagers();
-        }
+        // load merged truststore (system + internal)
+        KeyStore trustStore = acceptAnyCertificate ? null :
+            InternalTrustStore.getTrustStore(context);
 
-        SSLContext ctx = SSLContext.getInstance("TLSv1");
-        ctx.init(km, tm, null);
-        return new TlsOnlySocketFactory(ctx.getSocketFactory(), true);
+        // shared context: TLS sessions will be resumed across requests
+        return SSLContextRegistry.getTlsOnlySocketFactory("TLSv1", privateKey,
+            certificate, acceptAnyCertificate, trustStore);
     }
 
     /**
@@ -0,0 +1,209 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+
+/**
+ * Connects to the first responding server among a list of candidates.<br>
+ * Candidates are tried in order; if a connection attempt doesn't complete
+ * within a stagger delay, the next candidate is tried in parallel (in the
+ * same fashion of Happy Eyeballs, RFC 6555). The first attempt to succeed
+ * wins, connections completed later are discarded.
+ * @author Daniele Ricci
+ */
+public class ConnectionRacer<T> {
+    private static final String TAG = ConnectionRacer.class.getSimpleName();
+
+    /** Default delay before starting the next attempt. */
+    public static final long DEFAULT_STAGGER_DELAY = 300;
+    /** Default maximum number of parallel attempts. */
+    public static final int DEFAULT_MAX_PARALLEL = 3;
+
+    /** Creates and disposes connections. */
+    public interface Connector<T> {
+        /** Connects to the given server, blocking until done. */
+        T connect(EndpointServer server) throws Exception;
+        /** Disposes of a connection which lost the race. */
+        void discard(T connection);
+    }
+
+    /** The winning connection. */
+    public static final class Result<T> {
+        public final EndpointServer server;
+        public final T connection;
+        /** Time spent connecting in milliseconds. */
+        public final long time;
+
+        Result(EndpointServer server, T connection, long time) {
+            this.server = server;
+            this.connection = connection;
+            this.time = time;
+        }
+    }
+
+    private static final class Attempt<T> {
+        final EndpointServer server;
+        T connection;
+        Exception error;
+        long time;
+
+        Attempt(EndpointServer server) {
+            this.server = server;
+        }
+    }
+
+    private final Connector<T> mConnector;
+    private final ServerHealth mHealth;
+    private final long mStaggerDelay;
+    private final int mMaxParallel;
+
+    public ConnectionRacer(Connector<T> connector, ServerHealth health) {
+        this(connector, health, DEFAULT_STAGGER_DELAY, DEFAULT_MAX_PARALLEL);
+    }
+
+    /**
+     * Creates a new racer.
+     * @param connector connection factory
+     * @param health statistics to be updated with attempt results (may be null)
+     * @param staggerDelay delay in milliseconds before starting the next attempt
+     * @param maxParallel maximum number of attempts running at the same time
+     */
+    public ConnectionRacer(Connector<T> connector, ServerHealth health, long staggerDelay, int maxParallel) {
+        mConnector = connector;
+        mHealth = health;
+        mStaggerDelay = staggerDelay;
+        mMaxParallel = maxParallel;
+    }
+
+    /**
+     * Races connections to the given candidates, in order of preference.
+     * @return the first connection to succeed
+     * @throws Exception the error of the last failed attempt if all attempts failed
+     */
+    public Result<T> race(List<EndpointServer> candidates) throws Exception {
+        if (candidates.isEmpty())
+            throw new IllegalArgumentException("no candidates");
+
+        final LinkedBlockingQueue<Attempt<T>> completed = new LinkedBlockingQueue<>();
+        final boolean[] finished = new boolean[1];
+
+        int next = 0;
+        int running = 0;
+        Exception lastError = null;
+        Attempt<T> winner = null;
+
+        try {
+            while (true) {
+                if (running == 0) {
+                    if (next >= candidates.size())
+                        break;
+                    start(candidates.get(next++), completed, finished);
+                    running++;
+                }
+
+                // start next candidate if nothing completes within the stagger delay
+                boolean canStart = next < candidates.size() && running < mMaxParallel;
+                Attempt<T> attempt = canStart ?
+                    completed.poll(mStaggerDelay, TimeUnit.MILLISECONDS) :
+                    completed.take();
+                if (attempt == null) {
+                    start(candidates.get(next++), completed, finished);
+                    running++;
+                    continue;
+                }
+
+                running--;
+                if (attempt.error == null) {
+                    winner = attempt;
+                    break;
+                }
+
+                Log.d(TAG, "connection to " + attempt.server + " failed: " + attempt.error);
+                lastError = attempt.error;
+
+                // don't wait for the stagger delay after a failure
+                if (next < candidates.size() && running < mMaxParallel) {
+                    start(candidates.get(next++), completed, finished);
+                    running++;
+                }
+            }
+        }
+        finally {
+            // late connections will be discarded by their own threads
+            List<Attempt<T>> late = new ArrayList<>();
+            synchronized (finished) {
+                finished[0] = true;
+                completed.drainTo(late);
+            }
+            for (Attempt<T> attempt : late) {
+                if (attempt.connection != null)
+                    mConnector.discard(attempt.connection);
+            }
+        }
+
+        if (winner == null)
+            throw lastError;
+
+        Log.d(TAG, "connected to " + winner.server + " in " + winner.time + " ms");
+        return new Result<>(winner.server, winner.connection, winner.time);
+    }
+
+    private void start(final EndpointServer server,
+            final LinkedBlockingQueue<Attempt<T>> completed, final boolean[] finished) {
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Attempt<T> attempt = new Attempt<>(server);
+                long start = System.nanoTime();
+                try {
+                    attempt.connection = mConnector.connect(server);
+                    attempt.time = (System.nanoTime() - start) / 1000000;
+                    if (mHealth != null)
+                        mHealth.recordConnect(server, attempt.time);
+                }
+                catch (Exception e) {
+                    attempt.error = e;
+                    if (mHealth != null)
+                        mHealth.recordFailure(server);
+                }
+
+                synchronized (finished) {
+                    if (!finished[0]) {
+                        completed.add(attempt);
+                        return;
+                    }
+                }
+
+                // race is over
+                if (attempt.connection != null)
+                    mConnector.discard(attempt.connection);
+            }
+        }, "ConnectionRacer-" + server);
+        t.start();
+    }
+
+}
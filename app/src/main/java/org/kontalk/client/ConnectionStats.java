@@ -0,0 +1,408 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.kontalk.BuildConfig;
+
+
+/**
+ * Traffic and latency statistics for the XMPP connection, kept in memory
+ * across connections for the whole process.<br>
+ * The {@link Level#BASIC} level only keeps counters and rare events (pings,
+ * acks, reconnections) and is cheap enough for production builds;
+ * {@link Level#DETAILED} also times every stanza.
+ * @author Daniele Ricci
+ */
+public class ConnectionStats {
+
+    public enum Level {
+        /** Nothing is recorded. */
+        OFF,
+        /** Counters, ack, ping and reconnection times. */
+        BASIC,
+        /** Also stanza parse time and writer queue wait time. */
+        DETAILED,
+    }
+
+    public static final int TYPE_MESSAGE = 0;
+    public static final int TYPE_IQ = 1;
+    public static final int TYPE_PRESENCE = 2;
+    public static final int TYPE_OTHER = 3;
+    private static final String[] TYPE_NAMES = { "message", "iq", "presence", "other" };
+
+    private static final ConnectionStats sInstance = new ConnectionStats(
+        BuildConfig.DEBUG ? Level.DETAILED : Level.BASIC);
+
+    private volatile Level mLevel;
+
+    private final AtomicLong mWireBytesIn = new AtomicLong();
+    private final AtomicLong mWireBytesOut = new AtomicLong();
+    private final AtomicLong mRawBytesIn = new AtomicLong();
+    private final AtomicLong mRawBytesOut = new AtomicLong();
+    private final AtomicLongArray mStanzasIn = new AtomicLongArray(TYPE_NAMES.length);
+    private final AtomicLongArray mStanzasOut = new AtomicLongArray(TYPE_NAMES.length);
+    private final AtomicLong mKeepAliveWakeups = new AtomicLong();
+    private final AtomicLong mKeepAlivePings = new AtomicLong();
+    private volatile long mKeepAliveInterval;
+
+    private final Histogram mParseTime = new Histogram("stanza parse time", "us");
+    private final Histogram mQueueWait = new Histogram("writer queue wait", "us");
+    private final Histogram mAckRtt = new Histogram("SM ack RTT", "ms");
+    private final Histogram mPingRtt = new Histogram("ping RTT", "ms");
+    private final Histogram mReconnectTime = new Histogram("reconnection time", "ms");
+    private final Histogram mFirstMessageTime = new Histogram("connect to first message", "ms");
+
+    private final long mStartTime = System.currentTimeMillis();
+
+    ConnectionStats(Level level) {
+        mLevel = level;
+    }
+
+    public static ConnectionStats getInstance() {
+        return sInstance;
+    }
+
+    public Level getLevel() {
+        return mLevel;
+    }
+
+    public void setLevel(Level level) {
+        mLevel = level;
+    }
+
+    public boolean isEnabled() {
+        return mLevel != Level.OFF;
+    }
+
+    public boolean isDetailed() {
+        return mLevel == Level.DETAILED;
+    }
+
+    /**
+     * Wraps a socket or decompression input stream for counting bytes.
+     * @param wire true for the socket stream, false for the stream the parser reads
+     */
+    public InputStream countInput(InputStream in, final boolean wire) {
+        if (!isEnabled())
+            return in;
+
+        final AtomicLong counter = wire ? mWireBytesIn : mRawBytesIn;
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    counter.incrementAndGet();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0)
+                    counter.addAndGet(read);
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Wraps a socket or compression output stream for counting bytes.
+     * @param wire true for the socket stream, false for the stream the writer writes to
+     */
+    public OutputStream countOutput(OutputStream out, final boolean wire) {
+        if (!isEnabled())
+            return out;
+
+        final AtomicLong counter = wire ? mWireBytesOut : mRawBytesOut;
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                counter.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                counter.addAndGet(len);
+            }
+        };
+    }
+
+    /** Returns the stanza type for the given element name. */
+    public static int getStanzaType(String element) {
+        switch (element) {
+            case "message":
+                return TYPE_MESSAGE;
+            case "iq":
+                return TYPE_IQ;
+            case "presence":
+                return TYPE_PRESENCE;
+            default:
+                return TYPE_OTHER;
+        }
+    }
+
+    /**
+     * Records an incoming stanza.
+     * @param parseTime parsing time in nanoseconds, ignored if negative
+     */
+    public void stanzaReceived(int type, long parseTime) {
+        if (isEnabled()) {
+            mStanzasIn.incrementAndGet(type);
+            if (parseTime >= 0 && isDetailed())
+                mParseTime.record(parseTime / 1000);
+        }
+    }
+
+    /**
+     * Records an outgoing stanza.
+     * @param queueWait time spent in the writer queue in nanoseconds, ignored if negative
+     */
+    public void stanzaSent(int type, long queueWait) {
+        if (isEnabled()) {
+            mStanzasOut.incrementAndGet(type);
+            if (queueWait >= 0 && isDetailed())
+                mQueueWait.record(queueWait / 1000);
+        }
+    }
+
+    /** Records a stream management ack round trip time in milliseconds. */
+    public void ackReceived(long rtt) {
+        if (isEnabled())
+            mAckRtt.record(rtt);
+    }
+
+    /** Records a ping round trip time in milliseconds. */
+    public void pingReceived(long rtt) {
+        if (isEnabled())
+            mPingRtt.record(rtt);
+    }
+
+    /**
+     * Records a keep-alive alarm waking up the device.
+     * @param pinged false if the ping was skipped because of recent traffic
+     */
+    public void keepAliveWakeup(boolean pinged) {
+        if (isEnabled()) {
+            mKeepAliveWakeups.incrementAndGet();
+            if (pinged)
+                mKeepAlivePings.incrementAndGet();
+        }
+    }
+
+    /** Records the current keep-alive interval in milliseconds. */
+    public void keepAliveInterval(long interval) {
+        mKeepAliveInterval = interval;
+    }
+
+    /** Records a reconnection after a failure, taking the given time in milliseconds. */
+    public void reconnected(long time) {
+        if (isEnabled())
+            mReconnectTime.record(time);
+    }
+
+    /** Records the time from the start of a connection to the first message sent on it, in milliseconds. */
+    public void firstMessageSent(long time) {
+        if (isEnabled())
+            mFirstMessageTime.record(time);
+    }
+
+    public Snapshot snapshot() {
+        long[] in = new long[TYPE_NAMES.length];
+        long[] out = new long[TYPE_NAMES.length];
+        for (int i = 0; i < TYPE_NAMES.length; i++) {
+            in[i] = mStanzasIn.get(i);
+            out[i] = mStanzasOut.get(i);
+        }
+        return new Snapshot(mLevel, System.currentTimeMillis() - mStartTime,
+            mWireBytesIn.get(), mWireBytesOut.get(), mRawBytesIn.get(), mRawBytesOut.get(),
+            in, out, mKeepAliveWakeups.get(), mKeepAlivePings.get(), mKeepAliveInterval,
+            new Histogram[] {
+                mParseTime.copy(), mQueueWait.copy(), mAckRtt.copy(),
+                mPingRtt.copy(), mReconnectTime.copy(), mFirstMessageTime.copy(),
+            });
+    }
+
+    /** An immutable copy of the statistics, e.g. for a debug screen. */
+    public static final class Snapshot {
+        public final Level level;
+        /** Time since statistics started, in milliseconds. */
+        public final long uptime;
+        public final long wireBytesIn;
+        public final long wireBytesOut;
+        public final long rawBytesIn;
+        public final long rawBytesOut;
+        /** Stanzas per type, indexed by the TYPE_ constants. */
+        public final long[] stanzasIn;
+        public final long[] stanzasOut;
+        public final long keepAliveWakeups;
+        public final long keepAlivePings;
+        /** Current keep-alive interval in milliseconds, 0 if unknown. */
+        public final long keepAliveInterval;
+        public final Histogram parseTime;
+        public final Histogram queueWait;
+        public final Histogram ackRtt;
+        public final Histogram pingRtt;
+        public final Histogram reconnectTime;
+        public final Histogram firstMessageTime;
+
+        Snapshot(Level level, long uptime, long wireBytesIn, long wireBytesOut,
+                long rawBytesIn, long rawBytesOut, long[] stanzasIn, long[] stanzasOut,
+                long keepAliveWakeups, long keepAlivePings, long keepAliveInterval,
+                Histogram[] histograms) {
+            this.level = level;
+            this.uptime = uptime;
+            this.wireBytesIn = wireBytesIn;
+            this.wireBytesOut = wireBytesOut;
+            this.rawBytesIn = rawBytesIn;
+            this.rawBytesOut = rawBytesOut;
+            this.stanzasIn = stanzasIn;
+            this.stanzasOut = stanzasOut;
+            this.keepAliveWakeups = keepAliveWakeups;
+            this.keepAlivePings = keepAlivePings;
+            this.keepAliveInterval = keepAliveInterval;
+            this.parseTime = histograms[0];
+            this.queueWait = histograms[1];
+            this.ackRtt = histograms[2];
+            this.pingRtt = histograms[3];
+            this.reconnectTime = histograms[4];
+            this.firstMessageTime = histograms[5];
+        }
+
+        /** Bytes before compression over bytes on the wire, 1 if not compressed. */
+        public double getCompressionRatio(boolean in) {
+            long raw = in ? rawBytesIn : rawBytesOut;
+            long wire = in ? wireBytesIn : wireBytesOut;
+            return wire > 0 && raw > 0 ? (double) raw / wire : 1;
+        }
+
+        /** Keep-alive wakeups per hour since statistics started. */
+        public double getKeepAliveWakeupsPerHour() {
+            return uptime > 0 ? keepAliveWakeups * 3600000.0 / uptime : 0;
+        }
+
+        public void dump(PrintWriter out) {
+            out.println("Connection statistics (" + level + ", " + (uptime / 1000) + " s)");
+            out.println(String.format(Locale.US, "  bytes in: %d on the wire, %d raw (ratio %.2f)",
+                wireBytesIn, rawBytesIn, getCompressionRatio(true)));
+            out.println(String.format(Locale.US, "  bytes out: %d on the wire, %d raw (ratio %.2f)",
+                wireBytesOut, rawBytesOut, getCompressionRatio(false)));
+            for (int i = 0; i < TYPE_NAMES.length; i++) {
+                out.println("  " + TYPE_NAMES[i] + " stanzas: " +
+                    stanzasIn[i] + " in, " + stanzasOut[i] + " out");
+            }
+            out.println(String.format(Locale.US, "  keep-alive: %d wakeups (%.2f/hour), %d pings, interval %d s",
+                keepAliveWakeups, getKeepAliveWakeupsPerHour(), keepAlivePings, keepAliveInterval / 1000));
+            parseTime.dump(out);
+            queueWait.dump(out);
+            ackRtt.dump(out);
+            pingRtt.dump(out);
+            reconnectTime.dump(out);
+            firstMessageTime.dump(out);
+        }
+    }
+
+    /**
+     * A histogram with power of two buckets: bucket n counts values up
+     * to 2^n - 1.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 32;
+
+        public final String name;
+        public final String unit;
+
+        private final long[] mBuckets;
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        public Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+            mBuckets = new long[BUCKETS];
+        }
+
+        public synchronized void record(long value) {
+            if (value < 0)
+                value = 0;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            mBuckets[bucket]++;
+            mCount++;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        synchronized Histogram copy() {
+            Histogram copy = new Histogram(name, unit);
+            System.arraycopy(mBuckets, 0, copy.mBuckets, 0, BUCKETS);
+            copy.mCount = mCount;
+            copy.mSum = mSum;
+            copy.mMax = mMax;
+            return copy;
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getMean() {
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        public synchronized long getMax() {
+            return mMax;
+        }
+
+        /** Returns an upper bound of the given percentile (0-100). */
+        public synchronized long getPercentile(double percentile) {
+            if (mCount == 0)
+                return 0;
+            long rank = (long) Math.ceil(mCount * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0)
+                    return Math.min(mMax, (1L << i) - 1);
+            }
+            return mMax;
+        }
+
+        public synchronized void dump(PrintWriter out) {
+            out.println("  " + name + ": " + mCount + " samples" + (mCount > 0 ?
+                ", mean " + getMean() + " " + unit +
+                ", p50 <= " + getPercentile(50) + " " + unit +
+                ", p99 <= " + getPercentile(99) + " " + unit +
+                ", max " + mMax + " " + unit : ""));
+        }
+    }
+
+}
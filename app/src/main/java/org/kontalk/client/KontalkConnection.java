@@ -20,16 +20,9 @@ package org.kontalk.client;
 
 import java.security.KeyStore;
 import java.security.PrivateKey;
-import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
 import org.jivesoftware.smack.SASLAuthentication;
@@ -73,10 +66,12 @@ public class KontalkConnection extends XMPPTCPConnection {
 
         mServer = server;
 
-        // enable SM without resumption
+        // enable SM with resumption (state is persisted by SmStateStore)
         setUseStreamManagement(true);
-        setUseStreamManagementResumption(false);
-        // set custom ack predicate
+        setUseStreamManagementResumption(true);
+        // process-wide traffic and latency statistics
+        setConnectionStats(ConnectionStats.getInstance());
+        // stanzas to be acknowledged as soon as possible (see SmAckPolicy)
         addRequestAckPredicate(AckPredicate.INSTANCE);
         // set custom packet reply timeout
         setPacketReplyTimeout(DEFAULT_PACKET_TIMEOUT);
@@ -119,21 +114,11 @@ public class KontalkConnection extends XMPPTCPConnection {
         boolean direct, PrivateKey privateKey, X509Certificate bridgeCert,
         boolean acceptAnyCertificate, KeyStore trustStore) {
         try {
-            SSLContext ctx = SSLContext.getInstance("TLS");
+            // shared context: TLS sessions will be resumed on reconnection
+            SSLContext ctx = SSLContextRegistry.getContext("TLS", privateKey,
+                bridgeCert, acceptAnyCertificate, trustStore);
 
-            KeyManager[] km = null;
             if (privateKey != null && bridgeCert != null) {
-                // in-memory keystore
-                KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
-                keystore.load(null, null);
-                keystore.setKeyEntry("private", privateKey, null, new Certificate[] { bridgeCert });
-
-                // key managers
-                KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                kmFactory.init(keystore, null);
-
-                km = kmFactory.getKeyManagers();
-
                 // disable PLAIN mechanism if not upgrading from legacy
                 if (!LegacyAuthentication.isUpgrading()) {
                     // blacklist PLAIN mechanism
@@ -141,40 +126,6 @@ public class KontalkConnection extends XMPPTCPConnection {
                 }
             }
 
-            // trust managers
-            TrustManager[] tm;
-
-            if (acceptAnyCertificate) {
-                tm = new TrustManager[] {
-                    new X509TrustManager() {
-                        @Override
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return null;
-                        }
-
-                        @Override
-                        public void checkServerTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-
-                        @Override
-                        public void checkClientTrusted(X509Certificate[] chain, String authType)
-                            throws CertificateException {
-                        }
-                    }
-                };
-            }
-
-            else {
-                // builtin keystore
-                TrustManagerFactory tmFactory = TrustManagerFactory
-                    .getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                tmFactory.init(trustStore);
-
-                tm = tmFactory.getTrustManagers();
-            }
-
-            ctx.init(km, tm, null);
             builder.setCustomSSLContext(ctx);
             if (direct)
                 builder.setSocketFactory(ctx.getSocketFactory());
@@ -0,0 +1,255 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import info.guardianproject.netcipher.client.TlsOnlySocketFactory;
+
+import org.kontalk.crypto.PGP;
+import org.kontalk.util.MessageUtils;
+
+
+/**
+ * A registry of {@link SSLContext}s, keyed by client certificate and trust
+ * settings. Reusing the same context across connections allows TLS sessions
+ * to be resumed, skipping the full handshake on reconnection.
+ * @author Daniele Ricci
+ */
+public final class SSLContextRegistry {
+    private static final String TAG = SSLContextRegistry.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 4;
+
+    /** Maximum number of TLS sessions cached by each context. */
+    private static final int SESSION_CACHE_SIZE = 20;
+    /** TLS sessions lifetime in seconds. */
+    private static final int SESSION_TIMEOUT = 12 * 60 * 60;
+
+    private static final class Entry {
+        final SSLContext context;
+        final X509Certificate certificate;
+        final KeyStore trustStore;
+        SSLSocketFactory tlsOnlyFactory;
+
+        Entry(SSLContext context, X509Certificate certificate, KeyStore trustStore) {
+            this.context = context;
+            this.certificate = certificate;
+            this.trustStore = trustStore;
+        }
+
+        boolean matches(X509Certificate certificate, KeyStore trustStore) {
+            return (this.certificate != null ? this.certificate.equals(certificate) : certificate == null) &&
+                this.trustStore == trustStore;
+        }
+    }
+
+    private static final LruCache<String, Entry> sCache = new LruCache<>(MAX_ENTRIES);
+
+    private static long sCreated;
+    private static long sReused;
+
+    private SSLContextRegistry() {
+    }
+
+    /**
+     * Returns a {@link SSLContext} for the given parameters, reusing a cached
+     * instance if available.
+     * @param protocol the TLS protocol, e.g. "TLS"
+     * @param privateKey client private key (may be null)
+     * @param certificate client certificate (may be null)
+     * @param acceptAnyCertificate true to skip server certificate validation
+     * @param trustStore trust store used for validating server certificates
+     */
+    public static SSLContext getContext(String protocol, PrivateKey privateKey, X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+                throws GeneralSecurityException, IOException {
+        return getEntry(protocol, privateKey, certificate, acceptAnyCertificate, trustStore).context;
+    }
+
+    /**
+     * Returns a TLS-only {@link SSLSocketFactory} backed by a cached
+     * {@link SSLContext}.
+     * @see #getContext(String, PrivateKey, X509Certificate, boolean, KeyStore)
+     */
+    public static SSLSocketFactory getTlsOnlySocketFactory(String protocol, PrivateKey privateKey,
+            X509Certificate certificate, boolean acceptAnyCertificate, KeyStore trustStore)
+                throws GeneralSecurityException, IOException {
+        Entry entry = getEntry(protocol, privateKey, certificate, acceptAnyCertificate, trustStore);
+        synchronized (entry) {
+            if (entry.tlsOnlyFactory == null)
+                entry.tlsOnlyFactory = new TlsOnlySocketFactory(entry.context.getSocketFactory(), true);
+            return entry.tlsOnlyFactory;
+        }
+    }
+
+    private static Entry getEntry(String protocol, PrivateKey privateKey, X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+                throws GeneralSecurityException, IOException {
+
+        // client key is not used without a certificate
+        if (privateKey == null)
+            certificate = null;
+        // trust store is not used when accepting any certificate
+        if (acceptAnyCertificate)
+            trustStore = null;
+
+        String key = buildKey(protocol, certificate, acceptAnyCertificate, trustStore);
+        synchronized (sCache) {
+            Entry entry = sCache.get(key);
+            if (entry != null && entry.matches(certificate, trustStore)) {
+                sReused++;
+                return entry;
+            }
+        }
+
+        SSLContext ctx = createContext(protocol, privateKey, certificate, acceptAnyCertificate, trustStore);
+        Entry entry = new Entry(ctx, certificate, trustStore);
+        synchronized (sCache) {
+            sCache.put(key, entry);
+            sCreated++;
+        }
+
+        Log.v(TAG, "created new " + protocol + " context");
+        return entry;
+    }
+
+    private static String buildKey(String protocol, X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+                throws GeneralSecurityException {
+        StringBuilder key = new StringBuilder(protocol).append('|');
+        if (certificate != null) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            key.append(MessageUtils.bytesToHex(md.digest(certificate.getEncoded())));
+        }
+        key.append('|');
+        if (acceptAnyCertificate)
+            key.append('*');
+        else if (trustStore != null)
+            key.append(System.identityHashCode(trustStore));
+        return key.toString();
+    }
+
+    /** Creates a new {@link SSLContext}, bypassing the cache. */
+    static SSLContext createContext(String protocol, PrivateKey privateKey, X509Certificate certificate,
+            boolean acceptAnyCertificate, KeyStore trustStore)
+                throws GeneralSecurityException, IOException {
+
+        // TLS needs the PRNG fixes applied
+        PGP.ensureProvider();
+
+        KeyManager[] km = null;
+        if (privateKey != null && certificate != null) {
+            // in-memory keystore
+            KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keystore.load(null, null);
+            keystore.setKeyEntry("private", privateKey, null, new Certificate[] { certificate });
+
+            // key managers
+            KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmFactory.init(keystore, null);
+            km = kmFactory.getKeyManagers();
+        }
+
+        // trust managers
+        TrustManager[] tm;
+
+        if (acceptAnyCertificate) {
+            tm = new TrustManager[] {
+                new X509TrustManager() {
+                    @Override
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+
+                    @Override
+                    public void checkServerTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+
+                    @Override
+                    public void checkClientTrusted(X509Certificate[] chain, String authType)
+                        throws CertificateException {
+                    }
+                }
+            };
+        }
+
+        else {
+            // builtin keystore
+            TrustManagerFactory tmFactory = TrustManagerFactory
+                .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmFactory.init(trustStore);
+
+            tm = tmFactory.getTrustManagers();
+        }
+
+        SSLContext ctx = SSLContext.getInstance(protocol);
+        ctx.init(km, tm, null);
+
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SESSION_TIMEOUT);
+        }
+
+        return ctx;
+    }
+
+    /** Drops all cached contexts, e.g. when the personal key changes. */
+    public static void invalidateAll() {
+        synchronized (sCache) {
+            sCache.evictAll();
+        }
+    }
+
+    /** Number of contexts created so far. */
+    public static long getCreatedCount() {
+        synchronized (sCache) {
+            return sCreated;
+        }
+    }
+
+    /** Number of times a cached context was reused. */
+    public static long getReusedCount() {
+        synchronized (sCache) {
+            return sReused;
+        }
+    }
+
+}
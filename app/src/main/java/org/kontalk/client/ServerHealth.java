@@ -0,0 +1,311 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.dns.HostAddress;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Per-endpoint latency and failure statistics, used for picking the fastest
+ * working server. Probe round trip time and full connection time (TCP, TLS
+ * and stream negotiation) are tracked separately, since they differ by
+ * several round trips. Statistics are persisted across restarts.
+ * @author Daniele Ricci
+ */
+public class ServerHealth {
+    private static final String TAG = ServerHealth.class.getSimpleName();
+
+    private static final String PREFS_NAME = "server_health";
+
+    /** Smoothing factor for the averages. */
+    private static final float ALPHA = 0.3f;
+    /** Assumed connection time for servers never contacted. */
+    static final long DEFAULT_CONNECT_TIME = 2000;
+    /** Round trips needed for a connection, used when only probes are available. */
+    static final int CONNECT_ROUND_TRIPS = 4;
+    /** Score penalty for each consecutive failure. */
+    static final long FAILURE_PENALTY = 5000;
+    /** Failures taken into account at most. */
+    private static final int MAX_FAILURES = 6;
+    /** Failures older than this are forgiven. */
+    static final long FAILURE_EXPIRATION = TimeUnit.HOURS.toMillis(6);
+
+    /** Minimum interval between background refreshes. */
+    private static final long REFRESH_INTERVAL = TimeUnit.MINUTES.toMillis(30);
+    /** Connect timeout for background probes. */
+    private static final int PROBE_TIMEOUT = 10000;
+
+    static final class Stats {
+        /** Smoothed probe round trip time, -1 if unknown. */
+        long rtt = -1;
+        /** Smoothed connection time, -1 if unknown. */
+        long connect = -1;
+        /** Consecutive failures. */
+        int failures;
+        long lastFailure;
+
+        static Stats parse(String value) {
+            try {
+                String[] parsed = value.split(",");
+                Stats stats = new Stats();
+                stats.rtt = Long.parseLong(parsed[0]);
+                stats.connect = Long.parseLong(parsed[1]);
+                stats.failures = Integer.parseInt(parsed[2]);
+                stats.lastFailure = Long.parseLong(parsed[3]);
+                return stats;
+            }
+            catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return rtt + "," + connect + "," + failures + "," + lastFailure;
+        }
+    }
+
+    private static long average(long average, long sample) {
+        return average < 0 ? sample :
+            (long) (ALPHA * sample + (1 - ALPHA) * average);
+    }
+
+    private static ServerHealth sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Map<String, Stats> mStats = new HashMap<>();
+
+    private long mLastRefresh;
+    private boolean mRefreshing;
+
+    /**
+     * Creates a new instance.
+     * @param prefs storage for statistics, null to keep them in memory only
+     */
+    ServerHealth(SharedPreferences prefs) {
+        mPrefs = prefs;
+        if (prefs != null) {
+            for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+                if (e.getValue() instanceof String) {
+                    Stats stats = Stats.parse((String) e.getValue());
+                    if (stats != null)
+                        mStats.put(e.getKey(), stats);
+                }
+            }
+        }
+    }
+
+    public static synchronized ServerHealth getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ServerHealth(context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        }
+        return sInstance;
+    }
+
+    /** Records a successful connection which took the given time. */
+    public synchronized void recordConnect(EndpointServer server, long time) {
+        Stats stats = getStats(server);
+        stats.connect = average(stats.connect, time);
+        stats.failures = 0;
+        store(server, stats);
+    }
+
+    /** Records a successful probe with the given round trip time. */
+    public synchronized void recordProbe(EndpointServer server, long rtt) {
+        Stats stats = getStats(server);
+        stats.rtt = average(stats.rtt, rtt);
+        stats.failures = 0;
+        store(server, stats);
+    }
+
+    /** Records a failed connection attempt or probe. */
+    public synchronized void recordFailure(EndpointServer server) {
+        Stats stats = getStats(server);
+        if (stats.failures < MAX_FAILURES)
+            stats.failures++;
+        stats.lastFailure = System.currentTimeMillis();
+        store(server, stats);
+    }
+
+    private Stats getStats(EndpointServer server) {
+        String key = server.toString();
+        Stats stats = mStats.get(key);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    private void store(EndpointServer server, Stats stats) {
+        if (mPrefs != null) {
+            mPrefs.edit()
+                .putString(server.toString(), stats.toString())
+                .apply();
+        }
+    }
+
+    /**
+     * Returns the score of the given server: the lower, the better. The score
+     * is the expected connection time: measured if available, otherwise
+     * estimated from the probe round trip time.
+     */
+    public synchronized long getScore(EndpointServer server) {
+        return getScore(server, System.currentTimeMillis());
+    }
+
+    synchronized long getScore(EndpointServer server, long now) {
+        Stats stats = mStats.get(server.toString());
+        if (stats == null)
+            return DEFAULT_CONNECT_TIME;
+
+        long score;
+        if (stats.connect >= 0)
+            score = stats.connect;
+        else if (stats.rtt >= 0)
+            score = stats.rtt * CONNECT_ROUND_TRIPS;
+        else
+            score = DEFAULT_CONNECT_TIME;
+
+        if (stats.failures > 0 && (now - stats.lastFailure) < FAILURE_EXPIRATION)
+            score += stats.failures * FAILURE_PENALTY;
+        return score;
+    }
+
+    /**
+     * Returns the given servers sorted by score. Servers with the same score
+     * keep their relative order.
+     */
+    public List<EndpointServer> sort(Collection<EndpointServer> servers) {
+        final Map<EndpointServer, Long> scores = new HashMap<>(servers.size());
+        long now = System.currentTimeMillis();
+        for (EndpointServer server : servers)
+            scores.put(server, getScore(server, now));
+
+        List<EndpointServer> sorted = new ArrayList<>(servers);
+        Collections.sort(sorted, new Comparator<EndpointServer>() {
+            @Override
+            public int compare(EndpointServer lhs, EndpointServer rhs) {
+                long l = scores.get(lhs);
+                long r = scores.get(rhs);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Measures the round trip time of the given servers in a background
+     * thread, unless it was done recently. Meant to be called only when a
+     * connection attempt is already planned, so the radio is going to be
+     * woken up anyway.
+     */
+    public void refreshIfNeeded(final Collection<EndpointServer> servers) {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (mRefreshing || (now - mLastRefresh) < REFRESH_INTERVAL)
+                return;
+            mRefreshing = true;
+            mLastRefresh = now;
+        }
+
+        final List<EndpointServer> list = new ArrayList<>(servers);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    for (EndpointServer server : list)
+                        probe(server, PROBE_TIMEOUT);
+                }
+                finally {
+                    synchronized (ServerHealth.this) {
+                        mRefreshing = false;
+                    }
+                }
+            }
+        }, "ServerHealth").start();
+    }
+
+    /**
+     * Measures the TCP connect time to the given server and records it.
+     * Servers without an explicit host are resolved through their SRV
+     * records, like the real connection does.
+     * @return true if the server could be reached
+     */
+    boolean probe(EndpointServer server, int timeout) {
+        String host;
+        int port;
+        if (server.getHost() != null) {
+            host = server.getHost();
+            port = server.getPort();
+        }
+        else {
+            List<HostAddress> addresses = DNSUtil.resolveXMPPDomain(server.getNetwork(), null);
+            if (addresses == null || addresses.isEmpty()) {
+                Log.v(TAG, "no address for " + server);
+                return false;
+            }
+            host = addresses.get(0).getFQDN();
+            port = addresses.get(0).getPort();
+        }
+
+        Socket socket = new Socket();
+        try {
+            // name resolution is not part of the round trip time
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            long start = System.nanoTime();
+            socket.connect(address, timeout);
+            recordProbe(server, (System.nanoTime() - start) / 1000000);
+            return true;
+        }
+        catch (IOException e) {
+            Log.v(TAG, "probe failed for " + server + ": " + e);
+            recordFailure(server);
+            return false;
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+}
@@ -20,6 +20,7 @@ package org.kontalk.client;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
@@ -57,20 +58,38 @@ public class ServerList extends ArrayList<EndpointServer> {
             get(mSeed.nextInt(size())) : null;
     }
 
-    /** A simple server provider backed by a server list. */
+    /**
+     * A simple server provider backed by a server list. If health statistics
+     * are available, servers with the best score are picked first.
+     */
     public static class ServerListProvider implements EndpointServer.EndpointServerProvider {
         private ServerList mList;
         private List<EndpointServer> mUsed;
+        private final ServerHealth mHealth;
 
         public ServerListProvider(ServerList list) {
+            this(list, null);
+        }
+
+        public ServerListProvider(ServerList list, ServerHealth health) {
             mList = new ServerList(list.getDate(), list);
             mUsed = new LinkedList<EndpointServer>();
+            mHealth = health;
         }
 
         @Override
         public EndpointServer next() {
             if (mList.size() > 0) {
-                EndpointServer s = mList.random();
+                EndpointServer s;
+                if (mHealth != null) {
+                    // shuffle first so servers with the same score are picked randomly
+                    List<EndpointServer> candidates = new ArrayList<>(mList);
+                    Collections.shuffle(candidates, mList.mSeed);
+                    s = mHealth.sort(candidates).get(0);
+                }
+                else {
+                    s = mList.random();
+                }
                 mList.remove(s);
                 mUsed.add(s);
                 return s;
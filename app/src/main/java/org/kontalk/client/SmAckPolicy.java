@@ -0,0 +1,236 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Decides when to request a stream management acknowledgement, based on the
+ * number and size of unacknowledged stanzas and on how long they have been
+ * waiting. The round trip time is estimated from the acknowledgement answers,
+ * as TCP does, and used to retry lost requests.<br>
+ * Stanzas marked as urgent (e.g. messages and receipts) are acknowledged as
+ * soon as the writer runs out of stanzas to send, so that a burst is covered
+ * by a single request.<br>
+ * Methods are called by the packet writer and reader threads.
+ * @author Daniele Ricci
+ */
+public class SmAckPolicy {
+
+    /** Default number of unacknowledged stanzas triggering a request. */
+    public static final int DEFAULT_MAX_UNACKED_COUNT = 20;
+    /** Default size in characters of unacknowledged stanzas triggering a request. */
+    public static final int DEFAULT_MAX_UNACKED_BYTES = 16384;
+    /** Default maximum time a stanza can wait before being acknowledged. */
+    public static final long DEFAULT_MAX_ACK_DELAY = TimeUnit.SECONDS.toMillis(5);
+
+    /** Initial retransmission timeout for ack requests. */
+    static final long INITIAL_RTO = TimeUnit.SECONDS.toMillis(3);
+    static final long MIN_RTO = TimeUnit.SECONDS.toMillis(1);
+    static final long MAX_RTO = TimeUnit.SECONDS.toMillis(60);
+
+    private final int mCapacity;
+    private final int mMaxUnackedCount;
+    private final int mMaxUnackedBytes;
+    private final long mMaxAckDelay;
+
+    /** Sizes of the unacknowledged stanzas, in sending order. */
+    private final ArrayDeque<Integer> mUnackedSizes = new ArrayDeque<>();
+    private long mUnackedBytes;
+    /** Time the oldest unacknowledged stanza was sent. */
+    private long mOldestUnackedTime;
+    /** An urgent stanza was sent since the last request. */
+    private boolean mAckWanted;
+
+    /** An ack request is waiting for its answer. */
+    private boolean mRequestPending;
+    /** Time the pending request was sent. */
+    private long mRequestTime;
+    /** The pending request was sent again, its answer can't be timed. */
+    private boolean mRetransmitted;
+
+    /** Smoothed round trip time, -1 if not measured yet. */
+    private long mSrtt = -1;
+    private long mRttVar;
+    private long mLastAckLatency = -1;
+
+    private int mMaxQueueDepth;
+    private long mRequestCount;
+    private long mAnswerCount;
+
+    public SmAckPolicy(int capacity) {
+        this(capacity, DEFAULT_MAX_UNACKED_COUNT, DEFAULT_MAX_UNACKED_BYTES, DEFAULT_MAX_ACK_DELAY);
+    }
+
+    public SmAckPolicy(int capacity, int maxUnackedCount, int maxUnackedBytes, long maxAckDelay) {
+        mCapacity = capacity;
+        mMaxUnackedCount = Math.min(maxUnackedCount, Math.max(1, capacity / 4));
+        mMaxUnackedBytes = maxUnackedBytes;
+        mMaxAckDelay = maxAckDelay;
+    }
+
+    /** Forgets all unacknowledged stanzas, e.g. because a new stream was enabled. */
+    public synchronized void reset() {
+        mUnackedSizes.clear();
+        mUnackedBytes = 0;
+        mAckWanted = false;
+        mRequestPending = false;
+        mRetransmitted = false;
+    }
+
+    /**
+     * Records a stanza written to the stream.
+     * @param size the stanza size in characters
+     * @param urgent true if the stanza should be acknowledged as soon as possible
+     */
+    public synchronized void stanzaSent(int size, boolean urgent, long now) {
+        if (mUnackedSizes.isEmpty())
+            mOldestUnackedTime = now;
+        mUnackedSizes.add(size);
+        mUnackedBytes += size;
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mUnackedSizes.size());
+        if (urgent)
+            mAckWanted = true;
+    }
+
+    /** Records an ack request written to the stream. */
+    public synchronized void ackRequested(long now) {
+        if (mRequestPending)
+            mRetransmitted = true;
+        mRequestPending = true;
+        mRequestTime = now;
+        mAckWanted = false;
+        mRequestCount++;
+    }
+
+    /**
+     * Records an ack answer from the server.
+     * @param count the number of stanzas acknowledged by the answer
+     * @return the measured round trip time, or -1 if it couldn't be measured
+     */
+    public synchronized long ackAnswered(long count, long now) {
+        for (long i = 0; i < count && !mUnackedSizes.isEmpty(); i++)
+            mUnackedBytes -= mUnackedSizes.poll();
+        // we can't know when the remaining stanzas were sent
+        if (count > 0 && !mUnackedSizes.isEmpty())
+            mOldestUnackedTime = now;
+
+        mAnswerCount++;
+        long rtt = -1;
+        if (mRequestPending) {
+            // Karn's algorithm: don't measure ambiguous answers
+            if (!mRetransmitted) {
+                rtt = now - mRequestTime;
+                updateRtt(rtt);
+            }
+            mRequestPending = false;
+            mRetransmitted = false;
+        }
+        return rtt;
+    }
+
+    private void updateRtt(long sample) {
+        mLastAckLatency = sample;
+        if (mSrtt < 0) {
+            mSrtt = sample;
+            mRttVar = sample / 2;
+        }
+        else {
+            mRttVar = (3 * mRttVar + Math.abs(mSrtt - sample)) / 4;
+            mSrtt = (7 * mSrtt + sample) / 8;
+        }
+    }
+
+    /**
+     * Returns true if an ack should be requested now.
+     * @param idle true if there is nothing else to write
+     */
+    public synchronized boolean shouldRequestAck(boolean idle, long now) {
+        int count = mUnackedSizes.size();
+        if (count == 0)
+            return false;
+
+        if (mRequestPending)
+            return now - mRequestTime >= getRto();
+
+        return count >= mMaxUnackedCount ||
+            mUnackedBytes >= mMaxUnackedBytes ||
+            (idle && mAckWanted) ||
+            now - mOldestUnackedTime >= mMaxAckDelay;
+    }
+
+    /**
+     * Returns the time in milliseconds until an ack request might be due
+     * without sending anything else, or -1 if there is nothing to acknowledge.
+     */
+    public synchronized long getTimeUntilAckDue(long now) {
+        if (mUnackedSizes.isEmpty())
+            return -1;
+
+        long due = mRequestPending ? mRequestTime + getRto() : mOldestUnackedTime + mMaxAckDelay;
+        return Math.max(0, due - now);
+    }
+
+    /** Retransmission timeout for ack requests, as in RFC 6298. */
+    synchronized long getRto() {
+        if (mSrtt < 0)
+            return INITIAL_RTO;
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, mSrtt + 4 * mRttVar));
+    }
+
+    /** Current number of unacknowledged stanzas. */
+    public synchronized int getQueueDepth() {
+        return mUnackedSizes.size();
+    }
+
+    /** Highest number of unacknowledged stanzas seen. */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /** Current size of unacknowledged stanzas in characters. */
+    public synchronized long getUnackedBytes() {
+        return mUnackedBytes;
+    }
+
+    /** Smoothed ack round trip time in milliseconds, -1 if not measured yet. */
+    public synchronized long getSmoothedAckLatency() {
+        return mSrtt;
+    }
+
+    /** Last measured ack round trip time in milliseconds, -1 if not measured yet. */
+    public synchronized long getLastAckLatency() {
+        return mLastAckLatency;
+    }
+
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getAnswerCount() {
+        return mAnswerCount;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+}
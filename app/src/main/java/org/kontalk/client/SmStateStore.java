@@ -0,0 +1,253 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.support.v4.util.AtomicFile;
+import android.util.Log;
+
+
+/**
+ * Persists the stream management state of the current connection, so that
+ * the stream can be resumed after the process has been killed instead of
+ * going through a full login.<br>
+ * State is written in the background at ack boundaries, coalescing writes
+ * within a short delay.
+ * @author Daniele Ricci
+ */
+public class SmStateStore {
+    private static final String TAG = SmStateStore.class.getSimpleName();
+
+    private static final String FILENAME = "sm_state";
+    static final int VERSION = 1;
+
+    /** Delay for coalescing writes, in milliseconds. */
+    private static final long SAVE_DELAY = 1000;
+
+    private static SmStateStore sInstance;
+
+    private final AtomicFile mFile;
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor();
+
+    /** Incremented every time a connection is attached. */
+    private int mGeneration;
+
+    /** Owner and state waiting to be written, null owner for deleting. */
+    private String mPendingOwner;
+    private XMPPTCPConnection.SmState mPendingState;
+    private boolean mWriteQueued;
+
+    SmStateStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    public static synchronized SmStateStore getInstance(Context context) {
+        if (sInstance == null)
+            sInstance = new SmStateStore(new File(context.getFilesDir(), FILENAME));
+        return sInstance;
+    }
+
+    /**
+     * Restores the saved state into the given connection if it belongs to the
+     * same owner and it's still resumable, then keeps the state updated with
+     * the connection from now on.
+     * @param owner identifies the stream, e.g. account and resource
+     * @return true if the state was restored
+     */
+    public boolean attach(XMPPTCPConnection conn, final String owner) {
+        final int generation;
+        synchronized (this) {
+            generation = ++mGeneration;
+        }
+
+        boolean restored = false;
+        XMPPTCPConnection.SmState state = load(owner);
+        if (state != null) {
+            restored = conn.restoreSmState(state);
+            Log.d(TAG, restored ? "restored stream " + state.sessionId :
+                "stream " + state.sessionId + " is not resumable");
+        }
+
+        conn.setSmStateListener(new XMPPTCPConnection.SmStateListener() {
+            @Override
+            public void smStateChanged(XMPPTCPConnection.SmState state) {
+                save(generation, owner, state);
+            }
+
+            @Override
+            public void smStateDropped() {
+                save(generation, null, null);
+            }
+        });
+        return restored;
+    }
+
+    private void save(int generation, String owner, XMPPTCPConnection.SmState state) {
+        synchronized (this) {
+            // an older connection is not in charge anymore
+            if (generation != mGeneration)
+                return;
+
+            mPendingOwner = owner;
+            mPendingState = state;
+            // a dropped state is deleted right away
+            if (mWriteQueued && state != null)
+                return;
+            mWriteQueued = true;
+        }
+
+        mWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                String owner;
+                XMPPTCPConnection.SmState state;
+                synchronized (SmStateStore.this) {
+                    owner = mPendingOwner;
+                    state = mPendingState;
+                    mWriteQueued = false;
+                }
+
+                if (state != null)
+                    write(owner, state);
+                else
+                    delete();
+            }
+        }, state != null ? SAVE_DELAY : 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the saved state for the given owner, or null if none. An
+     * invalid file is deleted.
+     */
+    XMPPTCPConnection.SmState load(String owner) {
+        synchronized (mFile) {
+            try {
+                return read(owner);
+            }
+            catch (FileNotFoundException e) {
+                // no saved state
+                return null;
+            }
+            catch (IOException e) {
+                Log.w(TAG, "invalid stream management state", e);
+                mFile.delete();
+                return null;
+            }
+        }
+    }
+
+    private XMPPTCPConnection.SmState read(String owner) throws IOException {
+        // every length read from the file can't exceed the file itself
+        long length = mFile.getBaseFile().length();
+        FileInputStream in = null;
+        try {
+            in = mFile.openRead();
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != VERSION)
+                throw new IOException("unsupported version");
+            if (!owner.equals(data.readUTF()))
+                return null;
+
+            String sessionId = data.readUTF();
+            String location = data.readBoolean() ? data.readUTF() : null;
+            int maxResumptionTime = data.readInt();
+            long clientHandledCount = data.readLong();
+            long serverHandledCount = data.readLong();
+            long timestamp = data.readLong();
+
+            int count = data.readInt();
+            if (count < 0 || count > length / 4)
+                throw new IOException("invalid stanza count " + count);
+            List<String> stanzas = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int size = data.readInt();
+                if (size < 0 || size > length)
+                    throw new IOException("invalid stanza size " + size);
+                byte[] buf = new byte[size];
+                data.readFully(buf);
+                stanzas.add(new String(buf, "UTF-8"));
+            }
+
+            return new XMPPTCPConnection.SmState(sessionId, location, maxResumptionTime,
+                clientHandledCount, serverHandledCount, stanzas, timestamp);
+        }
+        finally {
+            try {
+                if (in != null)
+                    in.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void delete() {
+        synchronized (mFile) {
+            mFile.delete();
+        }
+    }
+
+    void write(String owner, XMPPTCPConnection.SmState state) {
+        synchronized (mFile) {
+            FileOutputStream out = null;
+            try {
+                out = mFile.startWrite();
+                DataOutputStream data = new DataOutputStream(out);
+                data.writeInt(VERSION);
+                data.writeUTF(owner);
+                data.writeUTF(state.sessionId);
+                data.writeBoolean(state.location != null);
+                if (state.location != null)
+                    data.writeUTF(state.location);
+                data.writeInt(state.maxResumptionTime);
+                data.writeLong(state.clientHandledCount);
+                data.writeLong(state.serverHandledCount);
+                data.writeLong(state.timestamp);
+
+                data.writeInt(state.unacknowledgedStanzas.size());
+                for (String stanza : state.unacknowledgedStanzas) {
+                    byte[] buf = stanza.getBytes("UTF-8");
+                    data.writeInt(buf.length);
+                    data.write(buf);
+                }
+                data.flush();
+                mFile.finishWrite(out);
+            }
+            catch (IOException e) {
+                Log.w(TAG, "unable to save stream management state", e);
+                if (out != null)
+                    mFile.failWrite(out);
+            }
+        }
+    }
+
+}
@@ -32,7 +32,7 @@ import org.jivesoftware.smackx.xdata.provider.DataFormProvider;
 import android.content.Context;
 
 import org.kontalk.R;
-import org.kontalk.util.NoCacheMiniDnsResolver;
+import org.kontalk.util.CachingDnsResolver;
 
 
 /**
@@ -46,6 +46,7 @@ public class SmackInitializer {
     public static void initialize(Context context) {
         if (!sInitialized) {
             disableSmackDefault();
+            CachingDnsResolver.getInstance().init(context);
 
             InputStream is = context.getResources().openRawResource(R.raw.service);
             ProviderManager.addLoader(new ProviderFileLoader(is));
@@ -89,11 +90,9 @@ public class SmackInitializer {
         SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.extensions.ExtensionsInitializer");
         SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.experimental.ExperimentalInitializer");
         SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.ReconnectionManager");
-        if (android.os.Build.VERSION.SDK_INT <= android.os.Build.VERSION_CODES.FROYO) {
-            // java.net.IDN, needed by minidns, is not present on API level 8
-            SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.util.dns.minidns.MiniDnsResolver");
-            NoCacheMiniDnsResolver.setup();
-        }
+        // use our own caching resolver
+        SmackConfiguration.addDisabledSmackClass("org.jivesoftware.smack.util.dns.minidns.MiniDnsResolver");
+        CachingDnsResolver.setup();
     }
 
 }
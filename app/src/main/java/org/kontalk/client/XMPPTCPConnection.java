@@ -90,6 +90,7 @@ import javax.net.ssl.SSLSocket;
 import javax.security.auth.callback.Callback;
 import javax.security.auth.callback.PasswordCallback;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
@@ -98,6 +99,7 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.net.InetAddress;
@@ -113,9 +115,12 @@ import java.security.Provider;
 import java.security.Security;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
@@ -140,8 +145,75 @@ import java.util.logging.Logger;
 public class XMPPTCPConnection extends AbstractXMPPConnection {
 
     private static final int QUEUE_SIZE = 500;
+
+    /**
+     * Size of the socket output buffer.
+     */
+    static final int WRITE_BUFFER_SIZE = 16 * 1024;
     private static final Logger LOGGER = Logger.getLogger(XMPPTCPConnection.class.getName());
 
+    /**
+     * Resumption time in seconds assumed if the server doesn't announce one.
+     */
+    private static final int DEFAULT_SM_RESUMPTION_TIME = 300;
+
+    /**
+     * A snapshot of a resumable Stream Management session. It can be used to
+     * resume the stream from a new connection instance, e.g. after the process
+     * has been restarted.
+     */
+    public static final class SmState {
+        public final String sessionId;
+        /** Preferred reconnection location announced by the server (may be null). */
+        public final String location;
+        /** Maximum resumption time in seconds announced by the server, -1 if none. */
+        public final int maxResumptionTime;
+        /** Handled count last acked to the server. */
+        public final long clientHandledCount;
+        public final long serverHandledCount;
+        /** XML of the stanzas not acknowledged by the server yet. */
+        public final List<String> unacknowledgedStanzas;
+        /** When the snapshot was taken. */
+        public final long timestamp;
+
+        public SmState(String sessionId, String location, int maxResumptionTime,
+                        long clientHandledCount, long serverHandledCount,
+                        List<String> unacknowledgedStanzas, long timestamp) {
+            this.sessionId = sessionId;
+            this.location = location;
+            this.maxResumptionTime = maxResumptionTime;
+            this.clientHandledCount = clientHandledCount;
+            this.serverHandledCount = serverHandledCount;
+            this.unacknowledgedStanzas = unacknowledgedStanzas;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Returns true if the stream can still be resumed at the given time.
+         */
+        public boolean isResumable(long now) {
+            int max = maxResumptionTime > 0 ? maxResumptionTime : DEFAULT_SM_RESUMPTION_TIME;
+            return now >= timestamp && now < timestamp + max * 1000L;
+        }
+    }
+
+    /**
+     * Notified of Stream Management state changes, e.g. for persisting them.
+     */
+    public interface SmStateListener {
+        /**
+         * Called at ack boundaries with the current resumable state. This
+         * runs on the reader thread: the unacknowledged stanzas are converted
+         * to XML only when accessed, so that can be done elsewhere.
+         */
+        void smStateChanged(SmState state);
+
+        /**
+         * Called when the stream is no longer resumable.
+         */
+        void smStateDropped();
+    }
+
     /**
      * The socket which is used for this connection.
      */
@@ -197,6 +269,43 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private String smSessionId;
 
+    /**
+     * The preferred reconnection location of the resumable stream.
+     */
+    private String smLocation;
+
+    private volatile SmStateListener smStateListener;
+
+    /**
+     * When data was last received from the server, including nonzas.
+     */
+    private volatile long lastBytesReceived;
+
+    /**
+     * When data was last flushed to the server.
+     */
+    private volatile long lastBytesSent;
+
+    /**
+     * The capacity of the unacknowledged stanzas queue.
+     */
+    private int smQueueCapacity = QUEUE_SIZE;
+
+    /**
+     * Decides when to request acks from the server.
+     */
+    private volatile SmAckPolicy smAckPolicy = new SmAckPolicy(QUEUE_SIZE);
+
+    /**
+     * Traffic and latency statistics, null if disabled.
+     */
+    private volatile ConnectionStats stats;
+
+    /**
+     * True if the Stream Management state was restored by {@link #restoreSmState(SmState)}.
+     */
+    private boolean smStateRestored;
+
     private final SynchronizationPoint<XMPPException> smResumedSyncPoint = new SynchronizationPoint<XMPPException>(
                     this);
 
@@ -236,13 +345,20 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private long clientHandledStanzasCount = 0;
 
+    /**
+     * The handled count last sent to the server in an ack or a resume. Unlike
+     * {@link #clientHandledStanzasCount} it never covers stanzas whose ack is
+     * suspended, so this is the count that is saved for resumption.
+     */
+    private long clientAckedStanzasCount = 0;
+
     /**
      * Whether we have a pending ack request waiting for a reply.
      */
     private boolean ackPending;
 
     /**
-     * Object used to synchronize access to {@link #smAckSuspend} et al.
+     * Object used to synchronize access to {@link #smAckSuspendCount} et al.
      */
     private final Object clientHandledStanzasCountLock = new Object();
 
@@ -280,9 +396,10 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
     private final XMPPTCPConnectionConfiguration config;
 
     /**
-     * If true, ack packets to the server are suspended until further notice.
+     * If greater than zero, ack packets to the server are suspended until
+     * every suspension has been matched by a resume.
      */
-    private volatile boolean smAckSuspend;
+    private int smAckSuspendCount;
 
     /**
      * Creates a new XMPP connection over TCP (optionally using proxies).
@@ -387,6 +504,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         }
 
         if (isSmResumptionPossible()) {
+            clientAckedStanzasCount = clientHandledStanzasCount;
             smResumedSyncPoint.sendAndWaitForResponse(new Resume(clientHandledStanzasCount, smSessionId));
             if (smResumedSyncPoint.wasSuccessful()) {
                 // We successfully resumed the stream, be done here
@@ -481,7 +599,12 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
             try {
                 // Try to send a last SM Acknowledgement. Most servers won't find this information helpful, as the SM
                 // state is dropped after a clean disconnect anyways. OTOH it doesn't hurt much either.
-                sendSmAcknowledgementInternal();
+                // Stanzas whose ack is suspended must not be acked though.
+                synchronized (clientHandledStanzasCountLock) {
+                    if (smAckSuspendCount == 0) {
+                        sendSmAcknowledgementInternal();
+                    }
+                }
             } catch (NotConnectedException e) {
                 LOGGER.log(Level.FINE, "Can not send final SM ack as connection is not connected", e);
             }
@@ -528,7 +651,10 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
             disconnectedButResumeable = false;
             // Reset the stream management session id to null, since if the stream is cleanly closed, i.e. sending a closing
             // stream tag, there is no longer a stream to resume.
-            smSessionId = null;
+            if (smSessionId != null) {
+                smSessionId = null;
+                notifySmStateDropped();
+            }
         }
         authenticated = false;
         connected = false;
@@ -550,15 +676,22 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
 
     @Override
     protected void sendStanzaInternal(Stanza packet) throws NotConnectedException {
+        // acks are requested by the writer, see SmAckPolicy
         packetWriter.sendStreamElement(packet);
-        if (isSmEnabled()) {
+    }
+
+    /**
+     * Returns true if the given stanza matches one of the ack request predicates.
+     */
+    private boolean isAckWanted(Stanza packet) {
+        synchronized (requestAckPredicates) {
             for (StanzaFilter requestAckPredicate : requestAckPredicates) {
                 if (requestAckPredicate.accept(packet)) {
-                    requestSmAcknowledgementInternal();
-                    break;
+                    return true;
                 }
             }
         }
+        return false;
     }
 
     private void connectUsingConfiguration() throws IOException, ConnectionException {
@@ -652,12 +785,24 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
     }
 
     private void initReaderAndWriter() throws IOException {
+        final ConnectionStats stats = this.stats;
         InputStream is = socket.getInputStream();
         OutputStream os = socket.getOutputStream();
+        if (stats != null) {
+            is = stats.countInput(is, true);
+            os = stats.countOutput(os, true);
+        }
+        // The packet writer flushes once for a batch of elements: buffering the socket makes that
+        // a single write (and a single TLS record) even when compression is used.
+        os = new BufferedOutputStream(os, WRITE_BUFFER_SIZE);
         if (compressionHandler != null) {
             is = compressionHandler.getInputStream(is);
             os = compressionHandler.getOutputStream(os);
         }
+        if (stats != null) {
+            is = stats.countInput(is, false);
+            os = stats.countOutput(os, false);
+        }
         // OutputStreamWriter is already buffered, no need to wrap it into a BufferedWriter
         writer = new OutputStreamWriter(os, "UTF-8");
         reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
@@ -892,6 +1037,15 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         this.writer = writer;
     }
 
+    /**
+     * For unit testing purposes
+     *
+     * @param reader
+     */
+    protected void setReader(Reader reader) {
+        this.reader = reader;
+    }
+
     @Override
     protected void afterFeaturesReceived() throws SecurityRequiredException, NotConnectedException {
         StartTls startTlsFeature = getFeature(StartTls.ELEMENT, StartTls.NAMESPACE);
@@ -988,17 +1142,26 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                 while (!done) {
                     switch (eventType) {
                     case XmlPullParser.START_TAG:
+                        lastBytesReceived = System.currentTimeMillis();
                         final String name = parser.getName();
                         switch (name) {
                         case Message.ELEMENT:
                         case IQ.IQ_ELEMENT:
-                        case Presence.ELEMENT:
+                        case Presence.ELEMENT: {
+                            final ConnectionStats stanzaStats = stats;
+                            final long parseStart = stanzaStats != null && stanzaStats.isDetailed() ?
+                                            System.nanoTime() : -1;
                             try {
                                 parseAndProcessStanza(parser);
                             } finally {
                                 clientHandledStanzasCount = SMUtils.incrementHeight(clientHandledStanzasCount);
+                                if (stanzaStats != null) {
+                                    stanzaStats.stanzaReceived(ConnectionStats.getStanzaType(name),
+                                                    parseStart >= 0 ? System.nanoTime() - parseStart : -1);
+                                }
                             }
                             break;
+                        }
                         case "stream":
                             // We found an opening stream.
                             if ("jabber:client".equals(parser.getNamespace(null))) {
@@ -1086,15 +1249,18 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                                     throw xmppException;
                                 }
                                 smServerMaxResumptimTime = enabled.getMaxResumptionTime();
+                                smLocation = enabled.getLocation();
                             } else {
                                 // Mark this a non-resumable stream by setting smSessionId to null
                                 smSessionId = null;
                             }
                             clientHandledStanzasCount = 0;
+                            clientAckedStanzasCount = 0;
                             ackPending = false;
-                            smAckSuspend = false;
+                            smAckSuspendCount = 0;
                             smWasEnabledAtLeastOnce = true;
                             smEnabledSyncPoint.reportSuccess();
+                            notifySmStateChanged();
                             LOGGER.fine("Stream Management (XEP-198): succesfully enabled");
                             break;
                         case Failed.ELEMENT:
@@ -1127,8 +1293,19 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                             // Mark SM as enabled and resumption as successful.
                             smResumedSyncPoint.reportSuccess();
                             smEnabledSyncPoint.reportSuccess();
+                            // A restored state may miss the stanzas sent after it was saved.
+                            // If the server handled them, they were never in the queue.
+                            long handledCount = resumed.getHandledCount();
+                            if (smStateRestored && SMUtils.calculateDelta(handledCount,
+                                            serverHandledStanzasCount) > unacknowledgedStanzas.size()) {
+                                unacknowledgedStanzas.clear();
+                                serverHandledStanzasCount = handledCount;
+                            }
+                            smStateRestored = false;
                             // First, drop the stanzas already handled by the server
-                            processHandledCount(resumed.getHandledCount());
+                            processHandledCount(handledCount);
+                            // The ack policy will see the resent stanzas again
+                            smAckPolicy.reset();
                             // Then re-send what is left in the unacknowledged queue
                             List<Stanza> stanzasToResend = new ArrayList<>(unacknowledgedStanzas.size());
                             unacknowledgedStanzas.drainTo(stanzasToResend);
@@ -1141,17 +1318,26 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                             if (!stanzasToResend.isEmpty()) {
                                 requestSmAcknowledgementInternal();
                             }
+                            notifySmStateChanged();
                             LOGGER.fine("Stream Management (XEP-198): Stream resumed");
                             break;
                         case AckAnswer.ELEMENT:
                             AckAnswer ackAnswer = ParseStreamManagement.ackAnswer(parser);
+                            long ackedCount = SMUtils.calculateDelta(ackAnswer.getHandledCount(),
+                                            serverHandledStanzasCount);
                             processHandledCount(ackAnswer.getHandledCount());
+                            long ackRtt = smAckPolicy.ackAnswered(ackedCount, System.currentTimeMillis());
+                            final ConnectionStats ackStats = stats;
+                            if (ackRtt >= 0 && ackStats != null) {
+                                ackStats.ackReceived(ackRtt);
+                            }
+                            notifySmStateChanged();
                             break;
                         case AckRequest.ELEMENT:
                             ParseStreamManagement.ackRequest(parser);
                             if (smEnabledSyncPoint.wasSuccessful()) {
                                 synchronized (clientHandledStanzasCountLock) {
-                                    if (!smAckSuspend) {
+                                    if (smAckSuspendCount == 0) {
                                         sendSmAcknowledgementInternal();
                                     }
                                     else {
@@ -1198,6 +1384,21 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
     protected class PacketWriter {
         public static final int QUEUE_SIZE = XMPPTCPConnection.QUEUE_SIZE;
 
+        /**
+         * How long to wait for more elements before flushing, in milliseconds.
+         */
+        static final long FLUSH_LINGER = 2;
+
+        /**
+         * Maximum time written data can wait for a flush, in milliseconds.
+         */
+        static final long MAX_FLUSH_LATENCY = 20;
+
+        /**
+         * Written characters forcing a flush.
+         */
+        static final int MAX_BATCH_SIZE = 32 * 1024;
+
         private final ArrayBlockingQueueWithShutdown<Element> queue = new ArrayBlockingQueueWithShutdown<Element>(
                         QUEUE_SIZE, true);
 
@@ -1214,6 +1415,17 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
 
         private volatile boolean instantShutdown;
 
+        /**
+         * An element taken from the queue while waiting to coalesce writes, not written yet.
+         */
+        private volatile Element pendingElement;
+
+        /**
+         * Time stanzas were queued, for statistics.
+         */
+        private final Map<Element, Long> enqueueTimes = Collections.synchronizedMap(
+                        new IdentityHashMap<Element, Long>());
+
         /** 
         * Initializes the writer in order to be used. It is called at the first connection and also 
         * is invoked if the connection is disconnected by an error.
@@ -1221,6 +1433,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         void init() {
             shutdownDone.init();
             shutdownTimestamp = null;
+            enqueueTimes.clear();
 
             if (unacknowledgedStanzas != null) {
                 // It's possible that there are new stanzas in the writer queue that
@@ -1258,6 +1471,11 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         protected void sendStreamElement(Element element) throws NotConnectedException {
             throwNotConnectedExceptionIfDoneAndResumptionNotPossible();
 
+            ConnectionStats stats = XMPPTCPConnection.this.stats;
+            if (stats != null && stats.isDetailed() && element instanceof Stanza) {
+                enqueueTimes.put(element, System.nanoTime());
+            }
+
             boolean enqueued = false;
             while (!enqueued) {
                 try {
@@ -1301,7 +1519,15 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         private Element nextStreamElement() {
             Element packet = null;
             try {
-                packet = queue.take();
+                // wake up when an ack request might be due
+                long timeout = unacknowledgedStanzas != null ?
+                                smAckPolicy.getTimeUntilAckDue(System.currentTimeMillis()) : -1;
+                if (timeout < 0) {
+                    packet = queue.take();
+                }
+                else {
+                    packet = queue.poll(timeout, TimeUnit.MILLISECONDS);
+                }
             }
             catch (InterruptedException e) {
                 if (!queue.isShutdown()) {
@@ -1312,14 +1538,58 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
             return packet;
         }
 
+        private void recordStanzaSent(Stanza packet) {
+            Long queued = enqueueTimes.remove(packet);
+            ConnectionStats stats = XMPPTCPConnection.this.stats;
+            if (stats != null) {
+                int type;
+                if (packet instanceof Message) {
+                    type = ConnectionStats.TYPE_MESSAGE;
+                }
+                else if (packet instanceof IQ) {
+                    type = ConnectionStats.TYPE_IQ;
+                }
+                else if (packet instanceof Presence) {
+                    type = ConnectionStats.TYPE_PRESENCE;
+                }
+                else {
+                    type = ConnectionStats.TYPE_OTHER;
+                }
+                stats.stanzaSent(type, queued != null ? System.nanoTime() - queued : -1);
+            }
+        }
+
+        /**
+         * Return the next element if one is available within the given time, null otherwise.
+         */
+        private Element pollStreamElement(long timeout) {
+            try {
+                return queue.poll(timeout, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                // shutting down
+                return null;
+            }
+        }
+
         private void writePackets() {
             try {
                 openStream();
                 initalOpenStreamSend.reportSuccess();
                 // Write out packets from the queue.
+                // Start time and size of the data written since the last flush
+                long batchStart = 0;
+                int batchSize = 0;
                 while (!done()) {
-                    Element element = nextStreamElement();
+                    Element element = pendingElement;
+                    pendingElement = null;
+                    if (element == null) {
+                        element = nextStreamElement();
+                    }
                     if (element == null) {
+                        if (!done()) {
+                            maybeRequestAck(true);
+                        }
                         continue;
                     }
 
@@ -1331,19 +1601,15 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                         // The client needs to add messages to the unacknowledged stanzas queue
                         // right after it sent 'enabled'. Stanza will be added once
                         // unacknowledgedStanzas is not null.
-                        unacknowledgedStanzas = new ArrayBlockingQueue<>(QUEUE_SIZE);
+                        smAckPolicy.reset();
+                        unacknowledgedStanzas = new ArrayBlockingQueue<>(smQueueCapacity);
                     }
                     // Check if the stream element should be put to the unacknowledgedStanza
                     // queue. Note that we can not do the put() in sendStanzaInternal() and the
                     // packet order is not stable at this point (sendStanzaInternal() can be
                     // called concurrently).
-                    if (unacknowledgedStanzas != null && packet != null) {
-                        // If the unacknowledgedStanza queue is nearly full, request an new ack
-                        // from the server in order to drain it
-                        if (unacknowledgedStanzas.size() == 0.8 * XMPPTCPConnection.QUEUE_SIZE) {
-                            writer.write(AckRequest.INSTANCE.toXML().toString());
-                            writer.flush();
-                        }
+                    boolean managed = unacknowledgedStanzas != null && packet != null;
+                    if (managed) {
                         try {
                             // It is important the we put the stanza in the unacknowledged stanza
                             // queue before we put it on the wire
@@ -1353,17 +1619,53 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                             throw new IllegalStateException(e);
                         }
                     }
-                    writer.write(element.toXML().toString());
-                    if (queue.isEmpty()) {
-                        writer.flush();
+                    String xml = element.toXML().toString();
+                    writer.write(xml);
+                    long now = System.currentTimeMillis();
+                    if (batchSize == 0) {
+                        batchStart = now;
+                    }
+                    batchSize += xml.length();
+                    if (managed) {
+                        smAckPolicy.stanzaSent(xml.length(), isAckWanted(packet), now);
+                    }
+                    else if (element instanceof AckRequest) {
+                        smAckPolicy.ackRequested(now);
                     }
                     if (packet != null) {
                         firePacketSendingListeners(packet);
+                        recordStanzaSent(packet);
+                    }
+
+                    // Coalesce bursts into a single write: wait a little for more elements
+                    // before flushing, but never delay data for more than MAX_FLUSH_LATENCY.
+                    boolean idle = queue.isEmpty();
+                    if (idle) {
+                        long linger = Math.min(FLUSH_LINGER, MAX_FLUSH_LATENCY - (now - batchStart));
+                        if (linger > 0) {
+                            pendingElement = pollStreamElement(linger);
+                        }
+                        idle = pendingElement == null;
+                    }
+                    // requesting an ack flushes on its own
+                    boolean flushed = maybeRequestAck(idle);
+                    if (!flushed && (idle || batchSize >= MAX_BATCH_SIZE ||
+                                    System.currentTimeMillis() - batchStart >= MAX_FLUSH_LATENCY)) {
+                        writer.flush();
+                        flushed = true;
+                    }
+                    if (flushed) {
+                        lastBytesSent = System.currentTimeMillis();
+                        batchSize = 0;
                     }
                 }
                 if (!instantShutdown) {
                     // Flush out the rest of the queue.
                     try {
+                        if (pendingElement != null) {
+                            writer.write(pendingElement.toXML().toString());
+                            pendingElement = null;
+                        }
                         while (!queue.isEmpty()) {
                             Element packet = queue.remove();
                             writer.write(packet.toXML().toString());
@@ -1414,8 +1716,33 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
             }
         }
 
+        /**
+         * Writes an ack request and flushes if the ack policy says so.
+         *
+         * @param idle true if there is nothing else to write.
+         * @return true if an ack was requested.
+         */
+        private boolean maybeRequestAck(boolean idle) throws IOException {
+            if (unacknowledgedStanzas == null) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            if (!smAckPolicy.shouldRequestAck(idle, now)) {
+                return false;
+            }
+            writer.write(AckRequest.INSTANCE.toXML().toString());
+            writer.flush();
+            lastBytesSent = System.currentTimeMillis();
+            smAckPolicy.ackRequested(now);
+            return true;
+        }
+
         private void drainWriterQueueToUnacknowledgedStanzas() {
-            List<Element> elements = new ArrayList<Element>(queue.size());
+            List<Element> elements = new ArrayList<Element>(queue.size() + 1);
+            if (pendingElement != null) {
+                elements.add(pendingElement);
+                pendingElement = null;
+            }
             queue.drainTo(elements);
             for (Element element : elements) {
                 if (element instanceof Stanza) {
@@ -1480,6 +1807,49 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         this.useSmResumption = useSmResumption;
     }
 
+    /**
+     * Set the capacity of the Stream Management unacknowledged stanzas queue. Sending blocks when
+     * the queue is full, until the server acknowledges some stanzas. Must be called before login.
+     *
+     * @param capacity the maximum number of unacknowledged stanzas.
+     */
+    public void setStreamManagementQueueCapacity(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        smQueueCapacity = capacity;
+        smAckPolicy = new SmAckPolicy(capacity);
+    }
+
+    /**
+     * Get the Stream Management ack request policy, also providing queue depth and ack latency
+     * metrics.
+     *
+     * @return the ack request policy.
+     */
+    public SmAckPolicy getStreamManagementAckPolicy() {
+        return smAckPolicy;
+    }
+
+    /**
+     * Set where to record traffic and latency statistics. Byte counters are applied to streams
+     * created after this call.
+     *
+     * @param stats the statistics, null to disable.
+     */
+    public void setConnectionStats(ConnectionStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Get the traffic and latency statistics of this connection.
+     *
+     * @return the statistics or null if disabled.
+     */
+    public ConnectionStats getConnectionStats() {
+        return stats;
+    }
+
     /**
      * Set the preferred resumption time in seconds.
      * @param resumptionTime the preferred resumption time in seconds
@@ -1563,7 +1933,10 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
     }
 
     private void sendSmAcknowledgementInternal() throws NotConnectedException {
-        packetWriter.sendStreamElement(new AckAnswer(clientHandledStanzasCount));
+        long handledCount = clientHandledStanzasCount;
+        packetWriter.sendStreamElement(new AckAnswer(handledCount));
+        clientAckedStanzasCount = handledCount;
+        notifySmStateChanged();
     }
 
     /**
@@ -1714,8 +2087,118 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         // clientHandledCount and serverHandledCount will be reset on <enable/> and <enabled/>
         // respective. No need to reset them here.
         smSessionId = null;
+        smLocation = null;
+        smStateRestored = false;
+        smAckPolicy.reset();
         unacknowledgedStanzas = null;
         ackPending = false;
+        notifySmStateDropped();
+    }
+
+    /**
+     * Returns when data was last received from the server, 0 if never.
+     */
+    public long getLastBytesReceived() {
+        return lastBytesReceived;
+    }
+
+    /**
+     * Returns when data was last sent to the server, 0 if never.
+     */
+    public long getLastBytesSent() {
+        return lastBytesSent;
+    }
+
+    /**
+     * Sets the listener for Stream Management state changes.
+     */
+    public void setSmStateListener(SmStateListener listener) {
+        smStateListener = listener;
+    }
+
+    /**
+     * Restores a Stream Management state saved from a previous connection,
+     * so that the next login will try to resume that stream. Must be called
+     * before logging in.
+     *
+     * @return true if the state was restored, false if it is not resumable
+     *         anymore or it couldn't be restored.
+     */
+    public boolean restoreSmState(SmState state) {
+        if (isAuthenticated() || !useSm || !useSmResumption) {
+            return false;
+        }
+        if (!state.isResumable(System.currentTimeMillis()) ||
+                        state.unacknowledgedStanzas.size() > smQueueCapacity) {
+            return false;
+        }
+
+        BlockingQueue<Stanza> unacked = new ArrayBlockingQueue<>(smQueueCapacity);
+        try {
+            for (String xml : state.unacknowledgedStanzas) {
+                unacked.add(PacketParserUtils.parseStanza(xml));
+            }
+        }
+        catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to restore unacknowledged stanzas", e);
+            return false;
+        }
+
+        smSessionId = state.sessionId;
+        smLocation = state.location;
+        smServerMaxResumptimTime = state.maxResumptionTime;
+        clientHandledStanzasCount = state.clientHandledCount;
+        clientAckedStanzasCount = state.clientHandledCount;
+        serverHandledStanzasCount = state.serverHandledCount;
+        unacknowledgedStanzas = unacked;
+        smWasEnabledAtLeastOnce = true;
+        smStateRestored = true;
+        return true;
+    }
+
+    private void notifySmStateChanged() {
+        final SmStateListener listener = smStateListener;
+        final String sessionId = smSessionId;
+        final BlockingQueue<Stanza> unacked = unacknowledgedStanzas;
+        if (listener == null || sessionId == null || unacked == null) {
+            return;
+        }
+
+        // Only the count acked to the server is saved: stanzas received after
+        // that might not have been stored yet, the server will send them again.
+        // Just copy references here, serialization is left to the listener.
+        listener.smStateChanged(new SmState(sessionId, smLocation, smServerMaxResumptimTime,
+                        clientAckedStanzasCount, serverHandledStanzasCount,
+                        new StanzaXmlList(unacked.toArray(new Stanza[0])),
+                        System.currentTimeMillis()));
+    }
+
+    /**
+     * A list of stanzas converting them to XML on access.
+     */
+    private static final class StanzaXmlList extends AbstractList<String> {
+        private final Stanza[] stanzas;
+
+        StanzaXmlList(Stanza[] stanzas) {
+            this.stanzas = stanzas;
+        }
+
+        @Override
+        public String get(int index) {
+            return stanzas[index].toXML().toString();
+        }
+
+        @Override
+        public int size() {
+            return stanzas.length;
+        }
+    }
+
+    private void notifySmStateDropped() {
+        final SmStateListener listener = smStateListener;
+        if (listener != null) {
+            listener.smStateDropped();
+        }
     }
 
     /**
@@ -1801,18 +2284,23 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         serverHandledStanzasCount = handledCount;
     }
 
-    /** Suspends outgoing ack packets until further notice. */
+    /**
+     * Suspends outgoing ack packets until further notice.
+     * Every call must be matched by a call to {@link #resumeSmAck()}.
+     */
     public void suspendSmAck() {
         synchronized (clientHandledStanzasCountLock) {
-            smAckSuspend = true;
+            smAckSuspendCount++;
         }
     }
 
-    /** Resumes outgoing ack packets and sends one right away. */
+    /**
+     * Resumes outgoing ack packets and sends one right away if there are no
+     * other suspensions pending.
+     */
     public void resumeSmAck() throws NotConnectedException, StreamManagementNotEnabledException {
         synchronized (clientHandledStanzasCountLock) {
-            if (smAckSuspend) {
-                smAckSuspend = false;
+            if (smAckSuspendCount > 0 && --smAckSuspendCount == 0) {
                 if (ackPending) {
                     sendSmAcknowledgement();
                     ackPending = false;
@@ -70,10 +70,12 @@ import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
 
 import android.os.Parcel;
+import android.util.Log;
 
 
 /** Some PGP utility method, mainly for use by {@link PersonalKey}. */
 public class PGP {
+    private static final String TAG = PGP.class.getSimpleName();
 
     /** Security provider: Spongy Castle. */
     public static final String PROVIDER = "SC";
@@ -84,6 +86,9 @@ public class PGP {
     /** Default RSA key length used. */
     private static final int RSA_KEY_LENGTH = 2048;
 
+    /** True if the security provider has been registered. */
+    private static volatile boolean sProviderRegistered;
+
     /** Singleton for converting a PGP key to a JCA key. */
     private static JcaPGPKeyConverter sKeyConverter;
 
@@ -127,7 +132,15 @@ public class PGP {
         }
     }
 
-    public static void registerProvider() {
+    /**
+     * Registers the security provider and applies PRNG fixes. Subsequent
+     * calls will do nothing; concurrent calls will wait for registration to
+     * complete.
+     */
+    public static synchronized void registerProvider() {
+        if (sProviderRegistered)
+            return;
+
         // register spongy castle provider
         Security.insertProviderAt(new BouncyCastleProvider(), 1);
         try {
@@ -137,6 +150,27 @@ public class PGP {
         catch (Exception e) {
             throw new PRNGFixException("Unable to apply PRNG fix", e);
         }
+        finally {
+            // provider is installed: callers not holding the lock can use it
+            sProviderRegistered = true;
+        }
+    }
+
+    /**
+     * Ensures the security provider is registered before using it.
+     * Registration is started in the background during application startup,
+     * so this will usually return immediately; otherwise it will register
+     * the provider or wait for the registration in progress.
+     */
+    public static void ensureProvider() {
+        if (!sProviderRegistered) {
+            try {
+                registerProvider();
+            }
+            catch (PRNGFixException e) {
+                Log.w(TAG, "Unable to install PRNG fix - ignoring", e);
+            }
+        }
     }
 
     public static final class PRNGFixException extends SecurityException {
@@ -148,6 +182,7 @@ public class PGP {
     /** Creates an ECDSA/ECDH key pair. */
     public static PGPDecryptedKeyPairRing create()
             throws NoSuchAlgorithmException, NoSuchProviderException, PGPException, InvalidAlgorithmParameterException {
+        ensureProvider();
 
         KeyPairGenerator gen;
         PGPKeyPair authKp, encryptKp, signKp;
@@ -175,6 +210,7 @@ public class PGP {
             String id,
             String passphrase)
         throws PGPException, IOException {
+        ensureProvider();
 
         PGPSignatureSubpacketGenerator sbpktGen;
 
@@ -220,6 +256,7 @@ public class PGP {
     /** Revokes the given key. */
     public static PGPPublicKey revokeKey(PGPKeyPair secret)
             throws PGPException, IOException, SignatureException {
+        ensureProvider();
 
         PGPPrivateKey pgpPrivKey = secret.getPrivateKey();
         PGPPublicKey pgpPubKey = secret.getPublicKey();
@@ -555,6 +592,8 @@ public class PGP {
     }
 
     private static void ensureKeyConverter() {
+        ensureProvider();
+
         if (sKeyConverter == null)
             sKeyConverter = new JcaPGPKeyConverter().setProvider(PGP.PROVIDER);
     }
@@ -567,6 +606,7 @@ public class PGP {
     @SuppressWarnings("unchecked")
     public static PrivateKey convertPrivateKey(byte[] privateKeyData, String passphrase)
             throws PGPException, IOException {
+        ensureProvider();
 
         PGPDigestCalculatorProvider digestCalc = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(digestCalc)
@@ -606,6 +646,7 @@ public class PGP {
 
     public static PGPSecretKeyRing copySecretKeyRingWithNewPassword(PGPSecretKeyRing secRing,
             String oldPassphrase, String newPassphrase) throws PGPException {
+        ensureProvider();
 
         PGPDigestCalculatorProvider digestCalcProv = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(digestCalcProv)
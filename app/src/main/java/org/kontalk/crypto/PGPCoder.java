@@ -45,6 +45,7 @@ import org.spongycastle.openpgp.PGPObjectFactory;
 import org.spongycastle.openpgp.PGPOnePassSignature;
 import org.spongycastle.openpgp.PGPOnePassSignatureList;
 import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyEncryptedData;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 import org.spongycastle.openpgp.PGPSignature;
@@ -60,6 +61,7 @@ import org.spongycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenera
 
 import org.kontalk.client.EndpointServer;
 import org.kontalk.message.TextComponent;
+import org.kontalk.util.BufferPool;
 import org.kontalk.util.CPIMMessage;
 import org.kontalk.util.XMPPUtils;
 
@@ -84,8 +86,20 @@ public class PGPCoder extends Coder {
     private static final KeyFingerPrintCalculator sFingerprintCalculator =
         PGP.sFingerprintCalculator;
 
-    /** Buffer size. It should always be a power of 2. */
-    private static final int BUFFER_SIZE = 1 << 8;
+    /** Default packet buffer size. It should always be a power of 2. */
+    public static final int DEFAULT_PACKET_BUFFER_SIZE = 1 << 8;
+    /** Default buffer size for reading and writing streams. */
+    public static final int DEFAULT_IO_BUFFER_SIZE = 1 << 12;
+
+    /** Maximum number of idle buffers kept by each pool. */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    /** Buffers for partial packets (encryptor, compressor, literal data). */
+    private static volatile BufferPool sPacketBuffers =
+        new BufferPool(DEFAULT_PACKET_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+    /** Buffers for stream read loops. */
+    private static volatile BufferPool sIOBuffers =
+        new BufferPool(DEFAULT_IO_BUFFER_SIZE, MAX_POOLED_BUFFERS);
 
     private final EndpointServer mServer;
     private final PersonalKey mKey;
@@ -95,11 +109,27 @@ public class PGPCoder extends Coder {
     private final PGPPublicKeyRing[] mRecipients;
     private final PGPPublicKeyRing mSender;
 
+    // precomputed recipients data, reused for every message
+
+    private final String[] mRecipientUids;
+    private final BcPublicKeyKeyEncryptionMethodGenerator[] mEncryptionMethods;
+
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing[] recipients) {
         mServer = server;
         mKey = key;
         mRecipients = recipients;
         mSender = null;
+
+        mRecipientUids = new String[recipients.length];
+        mEncryptionMethods = new BcPublicKeyKeyEncryptionMethodGenerator[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            PGPPublicKey encryptionKey = PGP.getEncryptionKey(recipients[i]);
+            if (encryptionKey == null)
+                throw new IllegalArgumentException("no encryption key found for recipient " + i);
+
+            mRecipientUids[i] = PGP.getUserId(PGP.getMasterKey(recipients[i]), server.getNetwork());
+            mEncryptionMethods[i] = new BcPublicKeyKeyEncryptionMethodGenerator(encryptionKey);
+        }
     }
 
     public PGPCoder(EndpointServer server, PersonalKey key, PGPPublicKeyRing sender) {
@@ -107,6 +137,33 @@ public class PGPCoder extends Coder {
         mKey = key;
         mRecipients = null;
         mSender = sender;
+        mRecipientUids = null;
+        mEncryptionMethods = null;
+    }
+
+    /**
+     * Sets the buffer sizes used by all coders.
+     * @param packetSize partial packet buffer size, must be a power of 2
+     * @param ioSize stream read buffer size
+     */
+    public static void setBufferSizes(int packetSize, int ioSize) {
+        if (packetSize < 2 || (packetSize & (packetSize - 1)) != 0)
+            throw new IllegalArgumentException("packet buffer size must be a power of 2");
+        if (ioSize <= 0)
+            throw new IllegalArgumentException("I/O buffer size must be positive");
+
+        if (sPacketBuffers.getBufferSize() != packetSize)
+            sPacketBuffers = new BufferPool(packetSize, MAX_POOLED_BUFFERS);
+        if (sIOBuffers.getBufferSize() != ioSize)
+            sIOBuffers = new BufferPool(ioSize, MAX_POOLED_BUFFERS);
+    }
+
+    static BufferPool getPacketBufferPool() {
+        return sPacketBuffers;
+    }
+
+    static BufferPool getIOBufferPool() {
+        return sIOBuffers;
     }
 
     @Override
@@ -150,9 +207,7 @@ public class PGPCoder extends Coder {
             throws PGPException, IOException, SignatureException {
 
         String from = mKey.getUserId(mServer.getNetwork());
-        String[] to = new String[mRecipients.length];
-        for (int i = 0; i < to.length; i++)
-            to[i] = PGP.getUserId(PGP.getMasterKey(mRecipients[i]), mServer.getNetwork());
+        String[] to = mRecipientUids;
 
         // secure the message against the most basic attacks using Message/CPIM
         CPIMMessage cpim = new CPIMMessage(from, to, new Date(), mime, data);
@@ -161,64 +216,87 @@ public class PGPCoder extends Coder {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ByteArrayInputStream in = new ByteArrayInputStream(plainText);
 
-        // setup data encryptor & generator
-        BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-        encryptor.setWithIntegrityPacket(true);
-        encryptor.setSecureRandom(new SecureRandom());
-
-        // add public key recipients
-        PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-        for (PGPPublicKeyRing rcpt : mRecipients)
-            encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
-
-        OutputStream encryptedOut = encGen.open(out, new byte[BUFFER_SIZE]);
-
-        // setup compressed data generator
-        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-        OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-        // setup signature generator
-        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
-        sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-        PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-        spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-        sigGen.setUnhashedSubpackets(spGen.generate());
-
-        sigGen.generateOnePassVersion(false)
-            .encode(compressedOut);
-
-        // Initialize literal data generator
-        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-        OutputStream literalOut = literalGen.open(
-            compressedOut,
-            PGPLiteralData.BINARY,
-            "",
-            new Date(),
-            new byte[BUFFER_SIZE]);
-
-        // read the "in" stream, compress, encrypt and write to the "out" stream
-        // this must be done if clear data is bigger than the buffer size
-        // but there are other ways to optimize...
-        byte[] buf = new byte[BUFFER_SIZE];
-        int len;
-        while ((len = in.read(buf)) > 0) {
-            literalOut.write(buf, 0, len);
-            sigGen.update(buf, 0, len);
-        }
+        encryptStream(in, out);
 
         in.close();
-        literalGen.close();
-        // Generate the signature, compress, encrypt and write to the "out" stream
-        sigGen.generate().encode(compressedOut);
-        compGen.close();
-        encGen.close();
-
         return out.toByteArray();
     }
 
+    /** Signs, compresses and encrypts the "in" stream to the "out" stream. */
+    private void encryptStream(InputStream in, OutputStream out)
+            throws PGPException, IOException, SignatureException {
+
+        // keep a reference to the pools in case they are replaced meanwhile
+        final BufferPool packetBuffers = sPacketBuffers;
+        final BufferPool ioBuffers = sIOBuffers;
+
+        byte[] encBuffer = packetBuffers.acquire();
+        byte[] compBuffer = packetBuffers.acquire();
+        byte[] literalBuffer = packetBuffers.acquire();
+        byte[] buf = ioBuffers.acquire();
+
+        try {
+            // setup data encryptor & generator
+            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
+            encryptor.setWithIntegrityPacket(true);
+            encryptor.setSecureRandom(new SecureRandom());
+
+            // add public key recipients
+            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
+            for (BcPublicKeyKeyEncryptionMethodGenerator method : mEncryptionMethods)
+                encGen.addMethod(method);
+
+            OutputStream encryptedOut = encGen.open(out, encBuffer);
+
+            // setup compressed data generator
+            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
+            OutputStream compressedOut = compGen.open(encryptedOut, compBuffer);
+
+            // setup signature generator
+            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
+                    (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
+                        .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
+            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
+
+            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
+            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
+            sigGen.setUnhashedSubpackets(spGen.generate());
+
+            sigGen.generateOnePassVersion(false)
+                .encode(compressedOut);
+
+            // Initialize literal data generator
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            OutputStream literalOut = literalGen.open(
+                compressedOut,
+                PGPLiteralData.BINARY,
+                "",
+                new Date(),
+                literalBuffer);
+
+            // read the "in" stream, compress, encrypt and write to the "out" stream
+            // this must be done if clear data is bigger than the buffer size
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                literalOut.write(buf, 0, len);
+                sigGen.update(buf, 0, len);
+            }
+
+            literalGen.close();
+            // Generate the signature, compress, encrypt and write to the "out" stream
+            sigGen.generate().encode(compressedOut);
+            compGen.close();
+            encGen.close();
+        }
+        finally {
+            // generators are closed (or abandoned): buffers can be reused
+            packetBuffers.release(encBuffer);
+            packetBuffers.release(compBuffer);
+            packetBuffers.release(literalBuffer);
+            ioBuffers.release(buf);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public DecryptOutput decryptText(byte[] encrypted, boolean verify)
@@ -308,14 +386,19 @@ public class PGPCoder extends Coder {
                     InputStream unc = ld.getInputStream();
                     ByteArrayOutputStream bout = new ByteArrayOutputStream();
 
-                    byte[] buf = new byte[4096];
-                    int num;
-
-                    while ((num = unc.read(buf)) >= 0) {
-                        bout.write(buf, 0, num);
+                    final BufferPool ioBuffers = sIOBuffers;
+                    byte[] buf = ioBuffers.acquire();
+                    try {
+                        int num;
+                        while ((num = unc.read(buf)) >= 0) {
+                            bout.write(buf, 0, num);
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            if (ops != null)
+                                ops.update(buf, 0, num);
+                        }
+                    }
+                    finally {
+                        ioBuffers.release(buf);
                     }
 
                     if (verify) {
@@ -497,59 +580,7 @@ public class PGPCoder extends Coder {
     @Override
     public void encryptFile(InputStream input, OutputStream output) throws GeneralSecurityException {
         try {
-            // setup data encryptor & generator
-            BcPGPDataEncryptorBuilder encryptor = new BcPGPDataEncryptorBuilder(PGPEncryptedData.AES_192);
-            encryptor.setWithIntegrityPacket(true);
-            encryptor.setSecureRandom(new SecureRandom());
-
-            // add public key recipients
-            PGPEncryptedDataGenerator encGen = new PGPEncryptedDataGenerator(encryptor);
-            for (PGPPublicKeyRing rcpt : mRecipients)
-                encGen.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(PGP.getEncryptionKey(rcpt)));
-
-            OutputStream encryptedOut = encGen.open(output, new byte[BUFFER_SIZE]);
-
-            // setup compressed data generator
-            PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
-            OutputStream compressedOut = compGen.open(encryptedOut, new byte[BUFFER_SIZE]);
-
-            // setup signature generator
-            PGPSignatureGenerator sigGen = new PGPSignatureGenerator
-                (new BcPGPContentSignerBuilder(mKey.getSignKeyPair()
-                    .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
-            sigGen.init(PGPSignature.BINARY_DOCUMENT, mKey.getSignKeyPair().getPrivateKey());
-
-            PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            spGen.setSignerUserID(false, mKey.getUserId(mServer.getNetwork()));
-            sigGen.setUnhashedSubpackets(spGen.generate());
-
-            sigGen.generateOnePassVersion(false)
-                .encode(compressedOut);
-
-            // Initialize literal data generator
-            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
-            OutputStream literalOut = literalGen.open(
-                compressedOut,
-                PGPLiteralData.BINARY,
-                "",
-                new Date(),
-                new byte[BUFFER_SIZE]);
-
-            // read the "in" stream, compress, encrypt and write to the "out" stream
-            // this must be done if clear data is bigger than the buffer size
-            // but there are other ways to optimize...
-            byte[] buf = new byte[BUFFER_SIZE];
-            int len;
-            while ((len = input.read(buf)) > 0) {
-                literalOut.write(buf, 0, len);
-                sigGen.update(buf, 0, len);
-            }
-
-            literalGen.close();
-            // Generate the signature, compress, encrypt and write to the "out" stream
-            sigGen.generate().encode(compressedOut);
-            compGen.close();
-            encGen.close();
+            encryptStream(input, output);
         }
         catch (PGPException e) {
             throw new GeneralSecurityException(e);
@@ -625,14 +656,20 @@ public class PGPCoder extends Coder {
                     PGPLiteralData ld = (PGPLiteralData) message;
 
                     InputStream unc = ld.getInputStream();
-                    byte[] buf = new byte[8192];
-                    int num;
 
-                    while ((num = unc.read(buf)) >= 0) {
-                        output.write(buf, 0, num);
+                    final BufferPool ioBuffers = sIOBuffers;
+                    byte[] buf = ioBuffers.acquire();
+                    try {
+                        int num;
+                        while ((num = unc.read(buf)) >= 0) {
+                            output.write(buf, 0, num);
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            if (ops != null)
+                                ops.update(buf, 0, num);
+                        }
+                    }
+                    finally {
+                        ioBuffers.release(buf);
                     }
 
                     if (verify) {
@@ -762,14 +799,19 @@ public class PGPCoder extends Coder {
                     InputStream unc = ld.getInputStream();
                     ByteArrayOutputStream bout = new ByteArrayOutputStream();
 
-                    byte[] buf = new byte[4096];
-                    int num;
-
-                    while ((num = unc.read(buf)) >= 0) {
-                        bout.write(buf, 0, num);
+                    final BufferPool ioBuffers = sIOBuffers;
+                    byte[] buf = ioBuffers.acquire();
+                    try {
+                        int num;
+                        while ((num = unc.read(buf)) >= 0) {
+                            bout.write(buf, 0, num);
 
-                        if (ops != null)
-                            ops.update(buf, 0, num);
+                            if (ops != null)
+                                ops.update(buf, 0, num);
+                        }
+                    }
+                    finally {
+                        ioBuffers.release(buf);
                     }
 
                     if (verify) {
@@ -300,6 +300,8 @@ public class PersonalKey implements Parcelable {
     public static PersonalKey load(PGPSecretKeyRing secRing, PGPPublicKeyRing pubRing, String passphrase, X509Certificate bridgeCert)
             throws PGPException, IOException, CertificateException, NoSuchProviderException {
 
+        PGP.ensureProvider();
+
         PGPDigestCalculatorProvider sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(sha1Calc)
             .setProvider(PGP.PROVIDER)
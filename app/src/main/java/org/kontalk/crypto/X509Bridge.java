@@ -117,6 +117,8 @@ public class X509Bridge {
         NoSuchAlgorithmException, SignatureException, CertificateException,
         NoSuchProviderException, IOException, OperatorCreationException {
 
+        PGP.ensureProvider();
+
         // extract the private key
         PGPDigestCalculatorProvider sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(sha1Calc)
@@ -135,6 +137,7 @@ public class X509Bridge {
         PGPSecretKeyRing secRing = new PGPSecretKeyRing(privateKeyData, sFingerprintCalculator);
         PGPPublicKeyRing pubRing = new PGPPublicKeyRing(publicKeyData, sFingerprintCalculator);
 
+        PGP.ensureProvider();
         PGPDigestCalculatorProvider sha1Calc = new JcaPGPDigestCalculatorProviderBuilder().build();
         PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder(sha1Calc)
             .setProvider(PGP.PROVIDER)
@@ -396,6 +399,7 @@ public class X509Bridge {
     public static X509Certificate load(InputStream certData)
             throws CertificateException, NoSuchProviderException {
 
+        PGP.ensureProvider();
         CertificateFactory certFactory = CertificateFactory.getInstance("X.509", PGP.PROVIDER);
         return (X509Certificate) certFactory.generateCertificate(certData);
     }
@@ -403,6 +407,7 @@ public class X509Bridge {
     public static KeyStore exportCertificate(X509Certificate certificate, PrivateKey privateKey)
             throws KeyStoreException, NoSuchProviderException, NoSuchAlgorithmException, CertificateException, IOException {
 
+        PGP.ensureProvider();
         KeyStore store = KeyStore.getInstance("PKCS12", PGP.PROVIDER);
 
         store.load(null, null);
@@ -0,0 +1,233 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.provider;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.Coder;
+import org.kontalk.crypto.PGP;
+import org.kontalk.crypto.PGPCoder;
+import org.kontalk.crypto.PersonalKey;
+import org.kontalk.provider.MyUsers.Keys;
+
+
+/**
+ * A registry of encryption {@link Coder}s, keyed by sender key and recipient
+ * fingerprints. Coders precompute everything that depends only on the
+ * recipient keys, so they can be reused for every message sent to the same
+ * recipients. Entries are invalidated when a trusted key changes.
+ * @author Daniele Ricci
+ */
+public final class CoderRegistry {
+    private static final String TAG = CoderRegistry.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 30;
+
+    /** Cache statistics. */
+    public static final class Stats {
+        public final int size;
+        public final long hits;
+        public final long misses;
+        public final long evictions;
+        public final long invalidations;
+
+        Stats(int size, long hits, long misses, long evictions, long invalidations) {
+            this.size = size;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+        }
+
+        @Override
+        public String toString() {
+            return "size=" + size + ", hits=" + hits + ", misses=" + misses +
+                ", evictions=" + evictions + ", invalidations=" + invalidations;
+        }
+    }
+
+    private static final class Entry {
+        final Coder coder;
+        final String[] recipients;
+
+        Entry(Coder coder, String[] recipients) {
+            this.coder = coder;
+            this.recipients = recipients;
+        }
+
+        boolean hasRecipient(String jid) {
+            for (String rcpt : recipients) {
+                if (rcpt.equalsIgnoreCase(jid))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class CoderCache extends LruCache<String, Entry> {
+        public CoderCache() {
+            super(MAX_ENTRIES);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+            if (evicted)
+                sEvictions++;
+        }
+    }
+
+    private static final CoderCache sCache = new CoderCache();
+
+    private static long sHits;
+    private static long sMisses;
+    private static long sEvictions;
+    private static long sInvalidations;
+
+    private CoderRegistry() {
+    }
+
+    /** Registers for key change notifications from {@link UsersProvider}. */
+    public static void init(Context context, Handler handler) {
+        context.getContentResolver().registerContentObserver(Keys.CONTENT_URI, true,
+            new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    invalidateAll();
+                }
+
+                @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+                @Override
+                public void onChange(boolean selfChange, Uri uri) {
+                    String jid = (uri != null && uri.getPathSegments().size() > 1) ?
+                        uri.getLastPathSegment() : null;
+                    if (jid != null)
+                        invalidate(jid);
+                    else
+                        invalidateAll();
+                }
+            }
+        );
+    }
+
+    /**
+     * Returns an encryption {@link Coder} for the given recipients, reusing
+     * a cached instance if available.
+     * @throws IllegalArgumentException if a recipient trusted key is missing
+     */
+    public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
+        // trusted fingerprints are much cheaper to read than keyrings
+        Map<String, String> fingerprints = UsersProvider.getFingerprints(context, recipients, true);
+
+        String[] keyParts = new String[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            String fpr = fingerprints.get(recipients[i]);
+            if (fpr == null)
+                throw new IllegalArgumentException("public key not found for user " + recipients[i]);
+            keyParts[i] = fpr;
+        }
+        Arrays.sort(keyParts);
+
+        StringBuilder cacheKey = new StringBuilder(key.getFingerprint())
+            .append('|')
+            .append(server.getNetwork());
+        for (String fpr : keyParts)
+            cacheKey.append('|').append(fpr);
+        String cacheKeyString = cacheKey.toString();
+
+        synchronized (sCache) {
+            Entry entry = sCache.get(cacheKeyString);
+            if (entry != null) {
+                sHits++;
+                return entry.coder;
+            }
+            sMisses++;
+        }
+
+        // get recipients public keys from users database
+        PGPPublicKeyRing keys[] = new PGPPublicKeyRing[recipients.length];
+        boolean consistent = true;
+        for (int i = 0; i < recipients.length; i++) {
+            PGPPublicKeyRing ring = UsersProvider.getPublicKey(context, recipients[i], true);
+            if (ring == null)
+                throw new IllegalArgumentException("public key not found for user " + recipients[i]);
+
+            // key might have changed in the meantime
+            if (!PGP.getFingerprint(PGP.getMasterKey(ring)).equalsIgnoreCase(fingerprints.get(recipients[i])))
+                consistent = false;
+
+            keys[i] = ring;
+        }
+
+        Coder coder = new PGPCoder(server, key, keys);
+
+        if (consistent) {
+            synchronized (sCache) {
+                sCache.put(cacheKeyString, new Entry(coder, recipients.clone()));
+            }
+        }
+        else {
+            Log.d(TAG, "key changed while building coder, not caching");
+        }
+
+        return coder;
+    }
+
+    /** Drops all coders involving the given user. */
+    public static void invalidate(String jid) {
+        synchronized (sCache) {
+            for (Map.Entry<String, Entry> e : sCache.snapshot().entrySet()) {
+                if (e.getValue().hasRecipient(jid)) {
+                    sCache.remove(e.getKey());
+                    sInvalidations++;
+                }
+            }
+        }
+    }
+
+    /** Drops all coders. */
+    public static void invalidateAll() {
+        synchronized (sCache) {
+            // remove() doesn't count as an eviction
+            for (String key : sCache.snapshot().keySet()) {
+                sCache.remove(key);
+                sInvalidations++;
+            }
+        }
+    }
+
+    public static Stats getStats() {
+        synchronized (sCache) {
+            return new Stats(sCache.size(), sHits, sMisses, sEvictions, sInvalidations);
+        }
+    }
+
+}
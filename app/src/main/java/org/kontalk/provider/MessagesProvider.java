@@ -103,7 +103,7 @@ public class MessagesProvider extends ContentProvider {
     private static HashMap<String, String> groupsProjectionMap;
 
     private static class DatabaseHelper extends SQLiteOpenHelper {
-        private static final int DATABASE_VERSION = 10;
+        private static final int DATABASE_VERSION = 11;
         private static final String DATABASE_NAME = "messages.db";
 
         private static final String _SCHEMA_MESSAGES = "(" +
@@ -228,6 +228,11 @@ public class MessagesProvider extends ContentProvider {
             "CREATE INDEX IF NOT EXISTS timestamp_message ON " + TABLE_MESSAGES +
             " (timestamp)";
 
+        /** For looking up messages waiting to be sent or confirmed. */
+        private static final String SCHEMA_MESSAGES_STATUS_IDX =
+            "CREATE INDEX IF NOT EXISTS status_message ON " + TABLE_MESSAGES +
+            " (direction, status)";
+
         /** Updates the thread messages count. */
         private static final String UPDATE_MESSAGES_COUNT_NEW =
             "UPDATE " + TABLE_THREADS + " SET count = (" +
@@ -360,6 +365,10 @@ public class MessagesProvider extends ContentProvider {
             SCHEMA_MESSAGES_GROUPS,
         };
 
+        private static final String[] SCHEMA_UPGRADE_V10 = {
+            SCHEMA_MESSAGES_STATUS_IDX,
+        };
+
         private Context mContext;
 
         protected DatabaseHelper(Context context) {
@@ -377,6 +386,7 @@ public class MessagesProvider extends ContentProvider {
             db.execSQL(SCHEMA_FULLTEXT);
             db.execSQL(SCHEMA_MESSAGES_INDEX);
             db.execSQL(SCHEMA_MESSAGES_TIMESTAMP_IDX);
+            db.execSQL(SCHEMA_MESSAGES_STATUS_IDX);
             db.execSQL(TRIGGER_THREADS_INSERT_COUNT);
             db.execSQL(TRIGGER_THREADS_UPDATE_COUNT);
             db.execSQL(TRIGGER_THREADS_DELETE_COUNT);
@@ -422,6 +432,12 @@ public class MessagesProvider extends ContentProvider {
                     db.execSQL(sql);
                 }
             }
+
+            if (oldVersion < 11) {
+                for (String sql : SCHEMA_UPGRADE_V10) {
+                    db.execSQL(sql);
+                }
+            }
         }
     }
 
@@ -440,11 +456,14 @@ public class MessagesProvider extends ContentProvider {
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
         SQLitePagedQueryBuilder qb = new SQLitePagedQueryBuilder();
+        String limit = null;
 
         switch (sUriMatcher.match(uri)) {
             case MESSAGES:
                 qb.setTables(TABLE_MESSAGES_GROUPS);
                 qb.setProjectionMap(messagesProjectionMap);
+                // maximum row count (optional)
+                limit = uri.getQueryParameter("limit");
                 break;
 
             case MESSAGES_ID:
@@ -544,7 +563,7 @@ public class MessagesProvider extends ContentProvider {
         }
 
         SQLiteDatabase db = dbHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder);
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, sortOrder, limit);
 
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
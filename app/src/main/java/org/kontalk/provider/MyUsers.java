@@ -53,6 +53,8 @@ public class MyUsers {
         public static final String STATUS = "status";
         public static final String LAST_SEEN = "last_seen";
         public static final String BLOCKED = "blocked";
+        /** Last time the public key was checked with the server. */
+        public static final String KEY_CHECKED = "key_checked";
 
         // uri parameter for indexed cursor
         public static final String EXTRA_INDEX = "org.kontalk.provider.extra.INDEX";
@@ -19,6 +19,7 @@
 package org.kontalk.provider;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -32,10 +33,13 @@ import org.spongycastle.openpgp.PGPPublicKeyRing;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -79,7 +83,7 @@ import org.kontalk.util.XMPPUtils;
 public class UsersProvider extends ContentProvider {
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + ".users";
 
-    private static final int DATABASE_VERSION = 9;
+    private static final int DATABASE_VERSION = 10;
     private static final String DATABASE_NAME = "users.db";
     private static final String TABLE_USERS = "users";
     private static final String TABLE_USERS_OFFLINE = "users_offline";
@@ -90,6 +94,9 @@ public class UsersProvider extends ContentProvider {
     private static final int KEYS = 3;
     private static final int KEYS_JID = 4;
 
+    /** Maximum number of parameters in a single query. */
+    private static final int MAX_QUERY_PARAMETERS = 500;
+
     private long mLastResync;
 
     private FastScrollingIndexCache mFastScrollingIndexCache;
@@ -113,7 +120,8 @@ public class UsersProvider extends ContentProvider {
             "last_seen INTEGER," +
             "public_key BLOB," +
             "fingerprint TEXT," +
-            "blocked INTEGER NOT NULL DEFAULT 0" +
+            "blocked INTEGER NOT NULL DEFAULT 0," +
+            "key_checked INTEGER" +
             ")";
 
         /** This table will contain all the users in contact list .*/
@@ -141,16 +149,21 @@ public class UsersProvider extends ContentProvider {
         private static final String[] SCHEMA_UPGRADE_V8 = {
             // online table
             "CREATE TABLE users_backup " + CREATE_TABLE_USERS,
-            "INSERT INTO users_backup SELECT _id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, public_key, fingerprint, blocked FROM " + TABLE_USERS,
+            "INSERT INTO users_backup (_id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, public_key, fingerprint, blocked) SELECT _id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, public_key, fingerprint, blocked FROM " + TABLE_USERS,
             "DROP TABLE " + TABLE_USERS,
             "ALTER TABLE users_backup RENAME TO " + TABLE_USERS,
             // offline table
             "CREATE TABLE users_backup " + CREATE_TABLE_USERS,
-            "INSERT INTO users_backup SELECT _id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, public_key, fingerprint, blocked FROM " + TABLE_USERS_OFFLINE,
+            "INSERT INTO users_backup (_id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, public_key, fingerprint, blocked) SELECT _id, jid, number, display_name, lookup_key, contact_id, registered, status, last_seen, public_key, fingerprint, blocked FROM " + TABLE_USERS_OFFLINE,
             "DROP TABLE " + TABLE_USERS_OFFLINE,
             "ALTER TABLE users_backup RENAME TO " + TABLE_USERS_OFFLINE,
         };
 
+        private static final String[] SCHEMA_UPGRADE_V9 = {
+            "ALTER TABLE " + TABLE_USERS + " ADD COLUMN key_checked INTEGER",
+            "ALTER TABLE " + TABLE_USERS_OFFLINE + " ADD COLUMN key_checked INTEGER",
+        };
+
         // any upgrade - just replace the table
         private static final String[] SCHEMA_UPGRADE = {
             "DROP TABLE IF EXISTS " + TABLE_USERS,
@@ -190,9 +203,14 @@ public class UsersProvider extends ContentProvider {
                         db.execSQL(sql);
                     // go on with next version
                 case 8:
+                    // tables are recreated with the current schema
                     for (String sql : SCHEMA_UPGRADE_V8)
                         db.execSQL(sql);
                     break;
+                case 9:
+                    for (String sql : SCHEMA_UPGRADE_V9)
+                        db.execSQL(sql);
+                    break;
                 default:
                     for (String sql : SCHEMA_UPGRADE)
                         db.execSQL(sql);
@@ -504,7 +522,11 @@ public class UsersProvider extends ContentProvider {
                         .getQueryParameter(Users.OFFLINE)), selection, selectionArgs);
 
                 case KEYS:
-                    return updateKey(values, selection, selectionArgs);
+                    return updateKey(values, null, selection, selectionArgs);
+
+                case KEYS_JID:
+                    return updateKey(values, uri.getPathSegments().get(1),
+                        selection, selectionArgs);
 
                 default:
                     throw new IllegalArgumentException("Unknown URI " + uri);
@@ -535,9 +557,35 @@ public class UsersProvider extends ContentProvider {
         return rc;
     }
 
-    private int updateKey(ContentValues values, String selection, String[] selectionArgs) {
+    /**
+     * Updates trusted keys.
+     * @param jid if not null, only the key of this user will be updated
+     */
+    private int updateKey(ContentValues values, String jid, String selection, String[] selectionArgs) {
+        if (jid != null) {
+            selection = Keys.JID + "=?" + (selection != null ? " AND (" + selection + ")" : "");
+            String[] args = new String[(selectionArgs != null ? selectionArgs.length : 0) + 1];
+            args[0] = jid;
+            if (selectionArgs != null)
+                System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+            selectionArgs = args;
+        }
+
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        return db.update(TABLE_KEYS, values, selection, selectionArgs);
+        int rows = db.update(TABLE_KEYS, values, selection, selectionArgs);
+        if (rows > 0) {
+            // without a JID, observers will drop everything
+            notifyKeyChange(jid);
+        }
+        return rows;
+    }
+
+    /** Notifies observers of {@link Keys#CONTENT_URI} that a trusted key has changed. */
+    private void notifyKeyChange(String jid) {
+        Uri uri = jid != null ?
+            Keys.CONTENT_URI.buildUpon().appendPath(jid).build() :
+            Keys.CONTENT_URI;
+        getContext().getContentResolver().notifyChange(uri, null, false);
     }
 
     /** Commits the offline table to the online table. */
@@ -549,6 +597,10 @@ public class UsersProvider extends ContentProvider {
         boolean success = false;
 
         try {
+            // key check times are not synced, keep them from the online table
+            db.execSQL("UPDATE " + TABLE_USERS_OFFLINE + " SET " + Users.KEY_CHECKED +
+                " = (SELECT " + Users.KEY_CHECKED + " FROM " + TABLE_USERS + " WHERE " +
+                TABLE_USERS + "." + Users.JID + " = " + TABLE_USERS_OFFLINE + "." + Users.JID + ")");
             // copy contents from offline
             db.execSQL("DELETE FROM " + TABLE_USERS);
             db.execSQL("INSERT INTO " + TABLE_USERS + " SELECT * FROM " + TABLE_USERS_OFFLINE);
@@ -950,6 +1002,9 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        if (rows > 0)
+            notifyKeyChange(jid);
+
         if (rows >= 0)
             return Keys.CONTENT_URI.buildUpon().appendPath(jid).build();
         return null;
@@ -974,6 +1029,9 @@ public class UsersProvider extends ContentProvider {
             }
         }
 
+        if (rows > 0)
+            notifyKeyChange(null);
+
         return rows;
     }
 
@@ -994,6 +1052,38 @@ public class UsersProvider extends ContentProvider {
         throw new SQLException("manual delete from users table not supported.");
     }
 
+    /**
+     * Applies all operations in a single transaction. Observers of the users
+     * table are notified once at the end.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        beginTransaction(db);
+        boolean success = false;
+
+        ContentProviderResult[] results;
+        try {
+            results = super.applyBatch(operations);
+            success = setTransactionSuccessful(db);
+        }
+        finally {
+            endTransaction(db, success);
+        }
+
+        for (ContentProviderOperation op : operations) {
+            int match = sUriMatcher.match(op.getUri());
+            if (match == USERS || match == USERS_JID) {
+                getContext().getContentResolver().notifyChange(Users.CONTENT_URI, null, false);
+                break;
+            }
+        }
+
+        return results;
+    }
+
     // avoid recreating the same object over and over
     private static ContentValues registeredValues;
 
@@ -1008,19 +1098,12 @@ public class UsersProvider extends ContentProvider {
             registeredValues, Users.JID+"=?", new String[] { jid });
     }
 
-    /** Returns a {@link Coder} instance for encrypting data. */
+    /**
+     * Returns a {@link Coder} instance for encrypting data.
+     * Instances are shared through {@link CoderRegistry}.
+     */
     public static Coder getEncryptCoder(Context context, EndpointServer server, PersonalKey key, String[] recipients) {
-        // get recipients public keys from users database
-        PGPPublicKeyRing keys[] = new PGPPublicKeyRing[recipients.length];
-        for (int i = 0; i < recipients.length; i++) {
-            PGPPublicKeyRing ring = getPublicKey(context, recipients[i], true);
-            if (ring == null)
-                throw new IllegalArgumentException("public key not found for user " + recipients[i]);
-
-            keys[i] = ring;
-        }
-
-        return new PGPCoder(server, key, keys);
+        return CoderRegistry.getEncryptCoder(context, server, key, recipients);
     }
 
     /** Returns a {@link Coder} instance for decrypting data. */
@@ -1059,6 +1142,21 @@ public class UsersProvider extends ContentProvider {
         return null;
     }
 
+    /** Retrieves the untrusted public key data for a user. */
+    public static byte[] getPublicKeyData(Context context, String jid) {
+        byte[] keydata = null;
+        ContentResolver res = context.getContentResolver();
+        Cursor c = res.query(Users.CONTENT_URI.buildUpon()
+            .appendPath(jid).build(), new String[] { Users.PUBLIC_KEY },
+            null, null, null);
+
+        if (c.moveToFirst())
+            keydata = c.getBlob(0);
+
+        c.close();
+        return keydata;
+    }
+
     /** Retrieves a public key directly from the keys table. */
     public static PGPPublicKeyRing getPublicKeyInternal(Context context, String jid) {
         byte[] keydata = null;
@@ -1100,6 +1198,85 @@ public class UsersProvider extends ContentProvider {
         return fingerprint;
     }
 
+    /** Retrieves the (un)trusted fingerprints for the given users in bulk. */
+    public static Map<String, String> getFingerprints(Context context, String[] jids, boolean trusted) {
+        Map<String, String> list = new HashMap<>(jids.length);
+
+        // stay well below SQLite host parameters limit
+        for (int start = 0; start < jids.length; start += MAX_QUERY_PARAMETERS) {
+            int count = Math.min(jids.length - start, MAX_QUERY_PARAMETERS);
+            String[] args = new String[count];
+            System.arraycopy(jids, start, args, 0, count);
+
+            Cursor c = context.getContentResolver().query(Users.CONTENT_URI, new String[] {
+                    Users.JID,
+                    trusted ? Keys.TRUSTED_FINGERPRINT : Users.FINGERPRINT,
+                }, jidSelection(count), args, null);
+
+            while (c.moveToNext()) {
+                String fingerprint = c.getString(1);
+                if (fingerprint != null)
+                    list.put(c.getString(0), fingerprint);
+            }
+
+            c.close();
+        }
+
+        return list;
+    }
+
+    /** Retrieves the last time public keys were checked for the given users in bulk. */
+    public static Map<String, Long> getKeysChecked(Context context, String[] jids) {
+        Map<String, Long> list = new HashMap<>(jids.length);
+
+        // stay well below SQLite host parameters limit
+        for (int start = 0; start < jids.length; start += MAX_QUERY_PARAMETERS) {
+            int count = Math.min(jids.length - start, MAX_QUERY_PARAMETERS);
+            String[] args = new String[count];
+            System.arraycopy(jids, start, args, 0, count);
+
+            Cursor c = context.getContentResolver().query(Users.CONTENT_URI, new String[] {
+                    Users.JID,
+                    Users.KEY_CHECKED,
+                }, jidSelection(count) + " AND " + Users.KEY_CHECKED + " IS NOT NULL",
+                args, null);
+
+            while (c.moveToNext())
+                list.put(c.getString(0), c.getLong(1));
+
+            c.close();
+        }
+
+        return list;
+    }
+
+    /** Sets the time public keys were checked for the given users. */
+    public static void setKeysChecked(Context context, String[] jids, long time) {
+        ContentValues values = new ContentValues(1);
+        values.put(Users.KEY_CHECKED, time);
+
+        for (int start = 0; start < jids.length; start += MAX_QUERY_PARAMETERS) {
+            int count = Math.min(jids.length - start, MAX_QUERY_PARAMETERS);
+            String[] args = new String[count];
+            System.arraycopy(jids, start, args, 0, count);
+
+            context.getContentResolver().update(Users.CONTENT_URI,
+                values, jidSelection(count), args);
+        }
+    }
+
+    /** Builds a selection for the given number of JIDs in the users table. */
+    private static String jidSelection(int count) {
+        StringBuilder selection = new StringBuilder(TABLE_USERS)
+            .append('.').append(Users.JID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                selection.append(',');
+            selection.append('?');
+        }
+        return selection.append(')').toString();
+    }
+
     /** Retrieves the last seen timestamp for a user. */
     public static long getLastSeen(Context context, String jid) {
         long timestamp = -1;
@@ -1160,9 +1337,9 @@ public class UsersProvider extends ContentProvider {
         String fingerprint = PGP.getFingerprint(keydata);
         ContentValues values = new ContentValues(1);
         values.put(Keys.PUBLIC_KEY, keydata);
-        context.getContentResolver().update(Keys.CONTENT_URI,
-            values, Keys.JID + "=? AND " + Keys.FINGERPRINT + "=?",
-            new String[] { jid, fingerprint });
+        context.getContentResolver().update(Keys.CONTENT_URI.buildUpon()
+            .appendPath(jid).build(), values, Keys.FINGERPRINT + "=?",
+            new String[] { fingerprint });
     }
 
     public static void setBlockStatus(Context context, String jid, boolean blocked) {
@@ -1279,6 +1456,7 @@ public class UsersProvider extends ContentProvider {
         usersProjectionMap.put(Users.PUBLIC_KEY, TABLE_USERS + "." + Users.PUBLIC_KEY);
         usersProjectionMap.put(Users.FINGERPRINT, TABLE_USERS + "." + Users.FINGERPRINT);
         usersProjectionMap.put(Users.BLOCKED, Users.BLOCKED);
+        usersProjectionMap.put(Users.KEY_CHECKED, Users.KEY_CHECKED);
         usersProjectionMap.put(Keys.TRUSTED_PUBLIC_KEY, TABLE_KEYS + "." + Keys.PUBLIC_KEY);
         usersProjectionMap.put(Keys.TRUSTED_FINGERPRINT, TABLE_KEYS + "." + Keys.FINGERPRINT);
 
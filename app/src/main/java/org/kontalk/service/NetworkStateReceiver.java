@@ -21,6 +21,7 @@ package org.kontalk.service;
 import org.kontalk.Kontalk;
 import org.kontalk.service.msgcenter.AndroidAdaptiveServerPingManager;
 import org.kontalk.service.msgcenter.MessageCenterService;
+import org.kontalk.util.CachingDnsResolver;
 import org.kontalk.util.Preferences;
 
 import android.content.BroadcastReceiver;
@@ -72,6 +73,9 @@ public class NetworkStateReceiver extends BroadcastReceiver {
         else if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
             // TODO handle FAILOVER_CONNECTION
 
+            // DNS answers might be different on the new network
+            CachingDnsResolver.getInstance().flush();
+
             final NetworkInfo info = cm.getActiveNetworkInfo();
             if (info != null) {
                 Log.w(TAG, "network state changed!");
@@ -84,6 +88,8 @@ public class NetworkStateReceiver extends BroadcastReceiver {
 
                 switch (info.getState()) {
                     case CONNECTED:
+                        // wake up any connection waiting for backoff
+                        ReconnectMonitor.networkConnected(info.getType());
                         // test connection or reconnect
                         serviceAction = ACTION_TEST;
                         // notify ping manager that connection type has changed
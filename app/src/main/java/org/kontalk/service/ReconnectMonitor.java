@@ -0,0 +1,170 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import org.kontalk.client.ConnectionStats;
+
+
+/**
+ * Lets the connection helper wait for its reconnection backoff while being
+ * woken up as soon as connectivity is restored, with protection against
+ * flapping networks. Also collects time-to-reconnect statistics.
+ * @author Daniele Ricci
+ */
+public final class ReconnectMonitor {
+    private static final String TAG = ReconnectMonitor.class.getSimpleName();
+
+    /** Maximum number of immediate reconnections in {@link #FLAP_WINDOW}. */
+    static final int MAX_IMMEDIATE_RECONNECTS = 3;
+    /** Time window for detecting a flapping network. */
+    static final long FLAP_WINDOW = TimeUnit.MINUTES.toNanos(2);
+
+    private static final Object sLock = new Object();
+
+    /** Incremented every time connectivity is restored. */
+    private static long sGeneration;
+    private static int sNetworkType = -1;
+    /** Timestamps of recent immediate reconnections. */
+    private static final LinkedList<Long> sImmediateReconnects = new LinkedList<>();
+
+    private static int sReconnectCount;
+    private static int sNetworkReconnectCount;
+    private static long sTotalReconnectTime;
+    private static long sLastReconnectTime = -1;
+
+    private ReconnectMonitor() {
+    }
+
+    /**
+     * Signals that usable connectivity is available, e.g. after network was
+     * restored or changed type.
+     * @param networkType the new network type as in {@link android.net.ConnectivityManager}
+     */
+    public static void networkConnected(int networkType) {
+        synchronized (sLock) {
+            if (networkType != sNetworkType)
+                Log.v(TAG, "network type changed: " + sNetworkType + " -> " + networkType);
+            sNetworkType = networkType;
+            sGeneration++;
+            sLock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the given time, or until connectivity is restored. Signals
+     * coming too often are ignored, to avoid hammering the server on a
+     * flapping network.
+     * @param timeout maximum time to wait in milliseconds
+     * @return true if the wait was interrupted by connectivity being restored
+     */
+    public static boolean await(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        synchronized (sLock) {
+            long generation = sGeneration;
+            while (true) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+
+                TimeUnit.NANOSECONDS.timedWait(sLock, remaining);
+
+                if (sGeneration != generation) {
+                    generation = sGeneration;
+                    if (allowImmediateReconnect())
+                        return true;
+                    Log.d(TAG, "network is flapping, waiting for backoff");
+                }
+            }
+        }
+    }
+
+    private static boolean allowImmediateReconnect() {
+        long now = System.nanoTime();
+        while (!sImmediateReconnects.isEmpty() &&
+                (now - sImmediateReconnects.getFirst()) > FLAP_WINDOW)
+            sImmediateReconnects.removeFirst();
+
+        if (sImmediateReconnects.size() >= MAX_IMMEDIATE_RECONNECTS)
+            return false;
+
+        sImmediateReconnects.add(now);
+        return true;
+    }
+
+    /**
+     * Records a successful reconnection.
+     * @param time time spent offline in milliseconds
+     * @param network true if the reconnection was triggered by connectivity being restored
+     */
+    public static void reconnected(long time, boolean network) {
+        synchronized (sLock) {
+            sReconnectCount++;
+            if (network)
+                sNetworkReconnectCount++;
+            sTotalReconnectTime += time;
+            sLastReconnectTime = time;
+            ConnectionStats.getInstance().reconnected(time);
+
+            Log.d(TAG, "reconnected in " + time + " ms" + (network ? " after network change" : "") +
+                " (average " + (sTotalReconnectTime / sReconnectCount) + " ms over " +
+                sReconnectCount + " reconnections)");
+        }
+    }
+
+    /** Number of reconnections after a connection failure. */
+    public static int getReconnectCount() {
+        synchronized (sLock) {
+            return sReconnectCount;
+        }
+    }
+
+    /** Number of reconnections triggered by connectivity being restored. */
+    public static int getNetworkReconnectCount() {
+        synchronized (sLock) {
+            return sNetworkReconnectCount;
+        }
+    }
+
+    /** Average time to reconnect in milliseconds, -1 if never reconnected. */
+    public static long getAverageReconnectTime() {
+        synchronized (sLock) {
+            return sReconnectCount > 0 ? sTotalReconnectTime / sReconnectCount : -1;
+        }
+    }
+
+    /** Last time to reconnect in milliseconds, -1 if never reconnected. */
+    public static long getLastReconnectTime() {
+        synchronized (sLock) {
+            return sLastReconnectTime;
+        }
+    }
+
+    /** Resets the flapping protection state. */
+    static void reset() {
+        synchronized (sLock) {
+            sImmediateReconnects.clear();
+        }
+    }
+
+}
@@ -25,6 +25,8 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import com.segment.backo.Backo;
@@ -38,9 +40,14 @@ import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.sasl.SASLError;
 import org.jivesoftware.smack.sasl.SASLErrorException;
 import org.kontalk.Kontalk;
+import org.kontalk.authenticator.Authenticator;
 import org.kontalk.authenticator.LegacyAuthentication;
+import org.kontalk.client.ConnectionRacer;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
+import org.kontalk.client.ServerHealth;
+import org.kontalk.client.ServerList;
+import org.kontalk.client.SmStateStore;
 import org.kontalk.crypto.PGP;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.crypto.X509Bridge;
@@ -51,7 +58,9 @@ import org.kontalk.util.Preferences;
 import org.spongycastle.openpgp.PGPException;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.provider.Settings;
+import android.text.TextUtils;
 import android.util.Log;
 
 
@@ -171,28 +180,33 @@ public class XMPPConnectionHelper extends Thread {
 
             String resource = getResource(mContext);
 
-            if (key == null) {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    acceptAnyCertificate, trustStore, token);
+            List<EndpointServer> candidates = getCandidates();
+            if (candidates.size() > 1) {
+                mConn = raceConnection(candidates, resource, key, token,
+                    acceptAnyCertificate, trustStore);
             }
-
             else {
-                mConn = new KontalkConnection(resource, mServer, !USE_STARTTLS,
-                    key.getBridgePrivateKey(),
-                    key.getBridgeCertificate(),
-                    acceptAnyCertificate,
-                    trustStore, token);
+                mConn = createConnection(mServer, resource, key, token,
+                    acceptAnyCertificate, trustStore);
             }
 
-            // apply packet timeout based on retry count
-            mConn.setPacketReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
-
             if (mListener != null)
                 mListener.created(mConn);
         }
 
         // connect
-        mConn.connect();
+        if (!mConn.isConnected()) {
+            ServerHealth health = ServerHealth.getInstance(mContext);
+            long start = System.nanoTime();
+            try {
+                mConn.connect();
+                health.recordConnect(mServer, (System.nanoTime() - start) / 1000000);
+            }
+            catch (IOException | SmackException | XMPPException e) {
+                health.recordFailure(mServer);
+                throw e;
+            }
+        }
 
         if (mListener != null) {
             mConn.addConnectionListener(mListener);
@@ -200,9 +214,114 @@ public class XMPPConnectionHelper extends Thread {
         }
 
         // login
-        if ((!mLimited || forceLogin) && (key != null || token != null))
+        if ((!mLimited || forceLogin) && (key != null || token != null)) {
+            // resume the previous stream if possible (e.g. process was killed)
+            if (!mLimited) {
+                SmStateStore.getInstance(mContext).attach(mConn,
+                    Authenticator.getDefaultAccountName(mContext) + "@" +
+                        mServer.getNetwork() + "/" + getResource(mContext));
+            }
             mConn.login();
+        }
+
+    }
+
+    private KontalkConnection createConnection(EndpointServer server, String resource,
+            PersonalKey key, String token, boolean acceptAnyCertificate, KeyStore trustStore)
+                throws XMPPException, PGPException {
+
+        KontalkConnection conn;
+        if (key == null) {
+            conn = new KontalkConnection(resource, server, !USE_STARTTLS,
+                acceptAnyCertificate, trustStore, token);
+        }
+
+        else {
+            conn = new KontalkConnection(resource, server, !USE_STARTTLS,
+                key.getBridgePrivateKey(),
+                key.getBridgeCertificate(),
+                acceptAnyCertificate,
+                trustStore, token);
+        }
+
+        // apply packet timeout based on retry count
+        conn.setPacketReplyTimeout((mRetryCount + 1) * KontalkConnection.DEFAULT_PACKET_TIMEOUT);
+        return conn;
+    }
+
+    /**
+     * Returns the servers we can connect to, best first. Only servers of the
+     * same network as the configured one are used, since the account is bound
+     * to it.
+     */
+    private List<EndpointServer> getCandidates() {
+        List<EndpointServer> candidates = new ArrayList<>();
+        candidates.add(mServer);
+
+        // custom server: use only that
+        if (TextUtils.isEmpty(Preferences.getServerURI(mContext))) {
+            ServerList list = ServerListUpdater.getCurrentList(mContext);
+            if (list != null) {
+                for (EndpointServer server : list) {
+                    if (!server.equals(mServer) &&
+                            server.getNetwork().equalsIgnoreCase(mServer.getNetwork()))
+                        candidates.add(server);
+                }
+            }
+        }
 
+        if (candidates.size() > 1)
+            candidates = ServerHealth.getInstance(mContext).sort(candidates);
+        return candidates;
+    }
+
+    /**
+     * Connects to the given servers in parallel, keeping the first which
+     * completes the TLS negotiation.
+     */
+    private KontalkConnection raceConnection(List<EndpointServer> candidates,
+            final String resource, final PersonalKey key, final String token,
+            final boolean acceptAnyCertificate, final KeyStore trustStore)
+                throws XMPPException, SmackException, IOException {
+
+        ConnectionRacer<KontalkConnection> racer = new ConnectionRacer<>(
+            new ConnectionRacer.Connector<KontalkConnection>() {
+                @Override
+                public KontalkConnection connect(EndpointServer server) throws Exception {
+                    KontalkConnection conn = createConnection(server, resource, key, token,
+                        acceptAnyCertificate, trustStore);
+                    try {
+                        conn.connect();
+                    }
+                    catch (Exception e) {
+                        conn.instantShutdown();
+                        throw e;
+                    }
+                    return conn;
+                }
+
+                @Override
+                public void discard(KontalkConnection conn) {
+                    conn.instantShutdown();
+                }
+            }, ServerHealth.getInstance(mContext));
+
+        try {
+            ConnectionRacer.Result<KontalkConnection> result = racer.race(candidates);
+            // stick to the fastest server from now on
+            mServer = result.server;
+            return result.connection;
+        }
+        catch (XMPPException | SmackException | IOException e) {
+            throw e;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+        catch (Exception e) {
+            throw new IOException(e);
+        }
     }
 
     public void connect() {
@@ -249,6 +368,11 @@ public class XMPPConnectionHelper extends Thread {
             return;
         }
 
+        // time of the first failed attempt
+        long failedSince = 0;
+        // last wait was interrupted by connectivity being restored
+        boolean networkWakeup = false;
+
         while (mConnecting) {
             try {
                 connectOnce(key, token, false);
@@ -256,6 +380,11 @@ public class XMPPConnectionHelper extends Thread {
                 // this should be the right moment
                 mRetryCount = 0;
 
+                if (failedSince > 0) {
+                    ReconnectMonitor.reconnected(SystemClock
+                        .elapsedRealtime() - failedSince, networkWakeup);
+                }
+
                 // all done!
                 break;
             }
@@ -264,6 +393,10 @@ public class XMPPConnectionHelper extends Thread {
                 // uncontrolled interrupt - handle errors
                 if (mConnecting) {
                     Log.e(TAG, "connection error", ie);
+                    if (failedSince == 0)
+                        failedSince = SystemClock.elapsedRealtime();
+                    networkWakeup = false;
+
                     if (mConn != null) {
                         // forcibly close connection, no matter what
                         mConn.instantShutdown();
@@ -303,8 +436,18 @@ public class XMPPConnectionHelper extends Thread {
                             if (mListener != null)
                                 mListener.reconnectingIn((int) time);
 
+                            // next attempt is planned: measure servers latency meanwhile
+                            List<EndpointServer> candidates = getCandidates();
+                            if (candidates.size() > 1)
+                                ServerHealth.getInstance(mContext).refreshIfNeeded(candidates);
+
                             mBackoff = true;
-                            Thread.sleep(time);
+                            if (ReconnectMonitor.await(time)) {
+                                Log.d(TAG, "network is back - reconnecting now");
+                                // start over with backoff
+                                mRetryCount = 0;
+                                networkWakeup = true;
+                            }
                             // this is to avoid the exponential backoff counter to be reset
                             continue;
                         }
@@ -23,9 +23,12 @@ import java.util.logging.Logger;
 import org.jivesoftware.smack.Manager;
 import org.jivesoftware.smack.XMPPConnection;
 
+import org.kontalk.client.XMPPTCPConnection;
+
 
 /**
- * An adaptive ping manager.
+ * An adaptive ping manager, learning the idle timeout of the current network
+ * through {@link KeepAliveLearner}.
  * @author Daniele Ricci
  */
 public abstract class AbstractAdaptiveServerPingManager extends Manager {
@@ -41,22 +44,17 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
      */
     protected long mInterval;
     /**
-     * Timestamp of last ping success.
-     */
-    protected long mLastSuccess;
-    /**
-     * Last successful ping interval.
+     * Idle time of the connection when the current ping was started.
      */
-    protected long mLastSuccessInterval;
+    protected long mPingIdleTime = -1;
     /**
-     * Interval for the next increase.
+     * Network the current ping was started on.
      */
-    protected long mNextIncrease;
+    protected String mPingNetwork;
     /**
-     * Successful ping streak. Used for computing when the next increase attempt
-     * will be made.
+     * Keep-alive state of the current network.
      */
-    protected long mPingStreak;
+    protected KeepAliveLearner mLearner = new KeepAliveLearner();
 
     protected AbstractAdaptiveServerPingManager(XMPPConnection connection) {
         super(connection);
@@ -75,74 +73,101 @@ public abstract class AbstractAdaptiveServerPingManager extends Manager {
     public abstract void onConnectivityChanged();
 
     /**
-     * Called by the ping failed listener.
-     * It will half the interval for the next alarm.
+     * Returns how long the connection has been idle, i.e. the time since
+     * data was last sent or received, whichever is later: traffic in both
+     * directions keeps NAT mappings alive.
      */
-    public void pingFailed() {
-        long interval;
-
-        // ping has failed, reset ping streak
-        mPingStreak = 0;
-
-        if (mLastSuccessInterval > 0) {
-            // we were trying an increase, go back to previous value
-            interval = mLastSuccessInterval;
-            // better use the previous value for a longer time :)
-            setNextIncreaseInterval((long) (mNextIncrease * 1.5));
-        }
-        else {
-            // half interval
-            interval = mInterval / 2;
+    public long getIdleTime() {
+        XMPPConnection connection = connection();
+        if (connection != null) {
+            long last;
+            if (connection instanceof XMPPTCPConnection) {
+                XMPPTCPConnection tcp = (XMPPTCPConnection) connection;
+                last = Math.max(tcp.getLastBytesReceived(), tcp.getLastBytesSent());
+            }
+            else {
+                last = connection.getLastStanzaReceived();
+            }
+            if (last > 0)
+                return System.currentTimeMillis() - last;
         }
-        setupPing(interval);
+        return 0;
     }
 
     /**
-     * Called when a ping has succeeded.
-     * In order to avoid a too much optimistic approach, we wait for at least
-     * the supposed ping interval to pass before incrementing back the interval
-     * for the next ping.
+     * Must be called before sending a ping, to measure how long the
+     * connection was idle.
      */
-    public void pingSuccess() {
-        long nextAlarm = mInterval;
-        long now = getElapsedRealtime();
+    public synchronized void pingStarting() {
+        mPingIdleTime = getIdleTime();
+        mPingNetwork = getNetworkName();
+    }
 
-        // we got a successful ping, increase ping streak
-        mPingStreak += mInterval;
+    private long consumePingIdleTime() {
+        long idle = mPingIdleTime >= 0 ? mPingIdleTime : mInterval;
+        mPingIdleTime = -1;
+        return idle;
+    }
 
-        if (mLastSuccessInterval > 0) {
-            // interval increase was successful, reset backoff
-            setNextIncreaseInterval(mInterval);
+    /**
+     * Returns true if we are still on the given network. Results of pings
+     * crossing a network change are not learned.
+     */
+    private boolean isCurrentNetwork(String network) {
+        String current = getNetworkName();
+        return network != null ? network.equals(current) : current == null;
+    }
 
-            // interval increase was successful
+    /**
+     * Called by the ping failed listener.
+     * It will shorten the interval for the next alarm.
+     */
+    public synchronized void pingFailed() {
+        long idle = consumePingIdleTime();
+        String network = mPingNetwork;
+        mPingNetwork = null;
+        if (isCurrentNetwork(network)) {
+            mLearner.failure(idle, System.currentTimeMillis());
+            LOGGER.fine("Ping failed after " + idle + " ms idle, next interval " + mLearner.getInterval() + " ms");
+            learnerUpdated(network);
         }
-        // try an increase only if we previously had a successful ping
-        else if (mLastSuccess > 0) {
-            if (mPingStreak >= mNextIncrease) {
-                // we are trying an increase, store the last successful interval
-                mLastSuccessInterval = mInterval;
-
-                nextAlarm = (long) (mInterval * 1.5);
-            }
+        setupPing(mLearner.getInterval());
+    }
 
-            // do not increase interval for now
+    /**
+     * Called when a ping has succeeded.
+     * The interval for the next ping might be increased to probe for a
+     * longer network idle timeout.
+     */
+    public synchronized void pingSuccess() {
+        long idle = consumePingIdleTime();
+        String network = mPingNetwork;
+        mPingNetwork = null;
+        if (isCurrentNetwork(network)) {
+            mLearner.success(idle, System.currentTimeMillis());
+            LOGGER.fine("Ping succeeded after " + idle + " ms idle, next interval " + mLearner.getInterval() + " ms");
+            learnerUpdated(network);
         }
-
-        // remember last success
-        mLastSuccess = now;
-
-        setupPing(nextAlarm);
+        setupPing(mLearner.getInterval());
     }
 
     protected abstract void setupPing(long intervalMillis);
 
     protected abstract long getElapsedRealtime();
 
-    protected void setNextIncreaseInterval(long interval) {
-        // reset last successful interval
-        mLastSuccessInterval = 0;
-        // set and save next increase
-        mNextIncrease = interval;
+    /**
+     * Returns the name of the current network, the keep-alive state is
+     * learned for.
+     */
+    protected String getNetworkName() {
+        return null;
+    }
+
+    /**
+     * Called when the keep-alive state changed, e.g. for saving it.
+     * @param network the network the ping was started on
+     */
+    protected void learnerUpdated(String network) {
     }
 
 }
@@ -34,13 +34,17 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.SystemClock;
 
+import org.kontalk.client.ConnectionStats;
 import org.kontalk.reporting.ReportingManager;
 import org.kontalk.util.Preferences;
 import org.kontalk.util.SystemUtils;
 
 
 /**
- * An adaptive ping manager using {@link AlarmManager}.
+ * An adaptive ping manager using {@link AlarmManager}.<br>
+ * Keep-alive state is saved per network. Alarms are inexact within a window
+ * ending at the keep-alive deadline, so the system can batch them with other
+ * wakeups; pings are skipped if traffic was received recently.
  * @author Daniele Ricci
  */
 public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPingManager {
@@ -84,32 +88,36 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
         public void onReceive(Context context, Intent intent) {
             LOGGER.fine("Ping Alarm broadcast received");
             if (isEnabled()) {
-                MessageCenterService.ping(context);
+                // the connection has been used recently, no need to ping
+                if (getIdleTime() < mInterval / 2) {
+                    ConnectionStats.getInstance().keepAliveWakeup(false);
+                    setupPing(mInterval);
+                }
+                else {
+                    ConnectionStats.getInstance().keepAliveWakeup(true);
+                    MessageCenterService.ping(context);
+                }
             }
         }
     };
 
-    private static final int MIN_ALARM_INTERVAL = 90 * 1000;
+    /** Alarm window, as a fraction of the interval. */
+    private static final int ALARM_WINDOW_DIVISOR = 4;
 
     private Context mContext;
     private PendingIntent mPendingIntent;
 
     private void setupOnConnectionCompleted() {
         if (mContext != null) {
-            // setup first alarm using last value from preference
-            setupPing(Preferences.getPingAlarmInterval(mContext, AlarmManager.INTERVAL_HALF_HOUR));
-            // next increase can happen at least at next interval
-            mNextIncrease = Preferences.getPingAlarmBackoff(mContext, mInterval);
-            // reset internal variables
-            mLastSuccess = 0;
-            mLastSuccessInterval = 0;
+            // load what we learned about the current network
+            mLearner = KeepAliveLearner.parse(Preferences.getPingKeepAliveState(mContext));
+            setupPing(mLearner.getInterval());
         }
     }
 
     @Override
     public void onConnectionCompleted() {
         setupOnConnectionCompleted();
-        mPingStreak = 0;
     }
 
     @Override
@@ -167,57 +175,42 @@ public class AndroidAdaptiveServerPingManager extends AbstractAdaptiveServerPing
     protected synchronized void setupPing(long intervalMillis) {
         if (mPendingIntent != null) {
             sAlarmManager.cancel(mPendingIntent);
-            mInterval = intervalMillis;
-
-            // do not go beyond 30 minutes...
-            if (mInterval > AlarmManager.INTERVAL_HALF_HOUR) {
-                mInterval = AlarmManager.INTERVAL_HALF_HOUR;
-            }
-            // ...or less than 90 seconds
-            else if (mInterval < MIN_ALARM_INTERVAL) {
-                mInterval = MIN_ALARM_INTERVAL;
-            }
-
-            // save value to preference for later retrieval
-            Preferences.setPingAlarmInterval(mContext, mInterval);
+            mInterval = Math.max(KeepAliveLearner.MIN_INTERVAL,
+                Math.min(KeepAliveLearner.MAX_INTERVAL, intervalMillis));
+            ConnectionStats.getInstance().keepAliveInterval(mInterval);
 
             // remove difference from last received stanza
-            long interval = mInterval;
-            XMPPConnection connection = connection();
-            if (connection != null) {
-                long now = System.currentTimeMillis();
-                long lastStanza = connection.getLastStanzaReceived();
-                if (lastStanza > 0)
-                    interval -= (now - lastStanza);
-            }
+            long interval = Math.max(0, mInterval - getIdleTime());
+            long triggerAt = SystemClock.elapsedRealtime() + interval;
 
-            LOGGER.log(Level.WARNING, "Setting alarm for next ping to " + mInterval + " ms (real " + interval + " ms)");
+            LOGGER.log(Level.FINE, "Setting alarm for next ping to " + mInterval + " ms (real " + interval + " ms)");
 
-            if (SystemUtils.isOnWifi(mContext)) {
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
+                // let the system batch us with other wakeups, but not later than the deadline
+                long window = Math.min(interval, mInterval / ALARM_WINDOW_DIVISOR);
+                sAlarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    triggerAt - window, window, mPendingIntent);
+            }
+            else if (SystemUtils.isOnWifi(mContext)) {
                 // when on WiFi we can afford an inexact ping (carrier will not destroy our connection)
                 sAlarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                    SystemClock.elapsedRealtime() + interval,
-                    interval, mPendingIntent);
+                    triggerAt, interval, mPendingIntent);
             }
             else {
-                // when on mobile network, we need exact ping timings
-                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
-                    sAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                        SystemClock.elapsedRealtime() + interval,
-                        mPendingIntent);
-                } else {
-                    sAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                        SystemClock.elapsedRealtime() + interval,
-                        mPendingIntent);
-                }
+                sAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                    triggerAt, mPendingIntent);
             }
         }
     }
 
     @Override
-    protected void setNextIncreaseInterval(long interval) {
-        super.setNextIncreaseInterval(interval);
-        Preferences.setPingAlarmBackoff(mContext, mNextIncrease);
+    protected String getNetworkName() {
+        return SystemUtils.getCurrentNetworkName(mContext);
+    }
+
+    @Override
+    protected void learnerUpdated(String network) {
+        Preferences.setPingKeepAliveState(network, mLearner.toString());
     }
 
     public static void onConnected() {
@@ -0,0 +1,240 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.kontalk.client.ConnectionStats;
+
+
+/**
+ * Tracks stanzas waiting for an ack from the server: outgoing messages and
+ * delivery receipts of incoming messages. Entries are indexed both by
+ * stanza id and by message database id.<br>
+ * Entries survive reconnections: when a stream is resumed, stanzas will be
+ * acked by the server as usual; otherwise they are forgotten so pending
+ * messages can be sent again. Within a stream a stanza is never sent again:
+ * it is in the unacknowledged queue and will be acked or lost with it, so a
+ * timeout just re-arms tracking.
+ * @author Daniele Ricci
+ */
+class InFlightTracker {
+
+    /** Stanzas not acked after this time are reported as timed out. */
+    static final long TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    static final class Entry {
+        final String stanzaId;
+        /** Message database id. */
+        final long msgId;
+        /** True for delivery receipts of incoming messages. */
+        final boolean receipt;
+        final long sentTime;
+        /** Start of the current timeout period. */
+        long armedTime;
+        /** Session the stanza was sent in. */
+        final int session;
+
+        Entry(String stanzaId, long msgId, boolean receipt, long sentTime, int session) {
+            this.stanzaId = stanzaId;
+            this.msgId = msgId;
+            this.receipt = receipt;
+            this.sentTime = sentTime;
+            this.armedTime = sentTime;
+            this.session = session;
+        }
+    }
+
+    /** Status of the message database rows of tracked stanzas. */
+    interface StatusSource {
+        /**
+         * Returns which of the given messages are still waiting for an ack:
+         * outgoing messages being sent and incoming messages whose delivery
+         * receipt was not confirmed yet.
+         */
+        Set<Long> getWaiting(Set<Long> msgIds);
+    }
+
+    private final Map<String, Entry> mByStanzaId = new HashMap<>();
+    private final Map<Long, Entry> mByMsgId = new HashMap<>();
+
+    private int mSession;
+    private long mAcked;
+    private long mDropped;
+    private final ConnectionStats.Histogram mAckLatency =
+        new ConnectionStats.Histogram("message ack latency", "ms");
+
+    /**
+     * Starts tracking a stanza.
+     * @return false if the message is already in flight
+     */
+    synchronized boolean add(String stanzaId, long msgId, boolean receipt, long now) {
+        if (mByMsgId.containsKey(msgId))
+            return false;
+
+        Entry entry = new Entry(stanzaId, msgId, receipt, now, mSession);
+        Entry replaced = mByStanzaId.put(stanzaId, entry);
+        if (replaced != null)
+            mByMsgId.remove(replaced.msgId);
+        mByMsgId.put(msgId, entry);
+        return true;
+    }
+
+    /**
+     * Stops tracking a stanza because it has been acked.
+     * @return the message database id, 0 if the stanza was not tracked
+     */
+    synchronized long acked(String stanzaId, long now) {
+        Entry entry = mByStanzaId.get(stanzaId);
+        if (entry == null)
+            return 0;
+
+        remove(entry);
+        mAcked++;
+        mAckLatency.record(now - entry.sentTime);
+        return entry.msgId;
+    }
+
+    /**
+     * Stops tracking a stanza, e.g. because it will not be sent or it was rejected.
+     * @return the message database id, 0 if the stanza was not tracked
+     */
+    synchronized long remove(String stanzaId) {
+        Entry entry = mByStanzaId.get(stanzaId);
+        if (entry == null)
+            return 0;
+
+        remove(entry);
+        return entry.msgId;
+    }
+
+    private void remove(Entry entry) {
+        mByStanzaId.remove(entry.stanzaId);
+        mByMsgId.remove(entry.msgId);
+    }
+
+    /**
+     * Returns true if the given message is waiting for an ack. If it timed
+     * out, tracking is re-armed for another timeout period.
+     */
+    synchronized boolean isInFlight(long msgId, long now) {
+        Entry entry = mByMsgId.get(msgId);
+        if (entry == null)
+            return false;
+
+        if (now - entry.armedTime >= TIMEOUT)
+            entry.armedTime = now;
+        return true;
+    }
+
+    /** A new connection is being created. */
+    synchronized void newSession() {
+        mSession++;
+    }
+
+    /**
+     * Forgets stanzas whose message has been updated in the meantime, e.g.
+     * while disconnected. The status source is queried once, without
+     * holding the lock.
+     */
+    void prune(StatusSource source) {
+        List<Entry> entries;
+        synchronized (this) {
+            if (mByStanzaId.isEmpty())
+                return;
+            entries = new ArrayList<>(mByStanzaId.values());
+        }
+
+        Set<Long> ids = new HashSet<>(entries.size());
+        for (Entry entry : entries)
+            ids.add(entry.msgId);
+        Set<Long> waiting = source.getWaiting(ids);
+
+        synchronized (this) {
+            for (Entry entry : entries) {
+                // entries might have been acked or replaced in the meantime
+                if (!waiting.contains(entry.msgId) && mByStanzaId.get(entry.stanzaId) == entry)
+                    remove(entry);
+            }
+        }
+    }
+
+    /**
+     * The connection has been authenticated.
+     * @param resumed if false, stanzas sent in previous sessions are lost
+     */
+    synchronized void authenticated(boolean resumed) {
+        if (resumed)
+            return;
+
+        for (Iterator<Entry> it = mByStanzaId.values().iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.session != mSession) {
+                it.remove();
+                mByMsgId.remove(entry.msgId);
+                mDropped++;
+            }
+        }
+    }
+
+    synchronized int getInFlightCount() {
+        return mByStanzaId.size();
+    }
+
+    /** Number of stanzas waiting for an ack and not timed out. */
+    synchronized int getWaitingCount(long now) {
+        return mByStanzaId.size() - getTimedOutCount(now);
+    }
+
+    synchronized int getTimedOutCount(long now) {
+        int count = 0;
+        for (Entry entry : mByStanzaId.values()) {
+            if (now - entry.armedTime >= TIMEOUT)
+                count++;
+        }
+        return count;
+    }
+
+    synchronized long getAckedCount() {
+        return mAcked;
+    }
+
+    /** Number of stanzas forgotten because the stream could not be resumed. */
+    synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    void dump(PrintWriter out, long now) {
+        synchronized (this) {
+            out.println("In-flight stanzas: " + getInFlightCount() + " (" +
+                getTimedOutCount(now) + " timed out), " + mAcked + " acked, " +
+                mDropped + " lost on reconnection");
+        }
+        mAckLatency.dump(out);
+    }
+
+}
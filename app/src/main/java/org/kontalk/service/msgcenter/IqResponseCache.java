@@ -0,0 +1,271 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Caches responses to informational IQs (e.g. last activity and software
+ * version) by peer and request type, each type with its own time to live.
+ * Concurrent requests for the same peer and type share a single IQ, and
+ * cached responses of a peer are dropped when a presence arrives from it.
+ * @author Daniele Ricci
+ */
+class IqResponseCache<T> {
+
+    /** Maximum number of cached responses. */
+    static final int MAX_ENTRIES = 200;
+    /** Time to wait for a response before sending the request again. */
+    static final long REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    interface Sender<T> {
+        /** Sends a request with the given stanza id. */
+        boolean send(String type, String jid, String stanzaId);
+
+        /**
+         * Answers a request with a cached response.
+         * @param age time elapsed since the response was received in milliseconds
+         */
+        void answer(String type, String requestId, T response, long age);
+    }
+
+    private static final class Entry<T> {
+        final String type;
+        final String jid;
+        final T response;
+        final long time;
+
+        Entry(String type, String jid, T response, long time) {
+            this.type = type;
+            this.jid = jid;
+            this.response = response;
+            this.time = time;
+        }
+    }
+
+    /** A request waiting for a response. */
+    private static final class Pending {
+        final String type;
+        final String jid;
+        final String stanzaId;
+        final long time;
+        /** Requests waiting for this response. */
+        final List<String> requestIds = new ArrayList<>(1);
+        /** True if a presence arrived in the meantime. */
+        boolean stale;
+
+        Pending(String type, String jid, String stanzaId, long time) {
+            this.type = type;
+            this.jid = jid;
+            this.stanzaId = stanzaId;
+            this.time = time;
+        }
+    }
+
+    private final Sender<T> mSender;
+    private final Map<String, Long> mTtl = new HashMap<>();
+
+    private final String mIdPrefix = "iq" + Integer.toHexString(new Random().nextInt()) + "-";
+    private int mSequence;
+
+    /** Cached responses, least recently used first. */
+    private final Map<String, Entry<T>> mEntries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    /** Requests waiting for a response, by key. */
+    private final Map<String, Pending> mPending = new HashMap<>();
+    /** Requests waiting for a response, by stanza id. */
+    private final Map<String, Pending> mPendingById = new HashMap<>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mJoinedCount;
+    private int mInvalidatedCount;
+    private int mTimedOutCount;
+
+    IqResponseCache(Sender<T> sender) {
+        mSender = sender;
+    }
+
+    /** Enables caching for the given request type. */
+    public synchronized void setTtl(String type, long ttl) {
+        mTtl.put(type, ttl);
+    }
+
+    private static String key(String type, String jid) {
+        return type + ' ' + jid;
+    }
+
+    private static String bareJid(String jid) {
+        int slash = jid.indexOf('/');
+        return (slash >= 0) ? jid.substring(0, slash) : jid;
+    }
+
+    /**
+     * Requests information from a peer, answering from cache or joining a
+     * request already waiting for a response if possible.
+     * @param requestId id given back with the response
+     */
+    public void request(String type, String jid, String requestId, long now) {
+        final String key = key(type, jid);
+        final Entry<T> cached;
+        final String stanzaId;
+        synchronized (this) {
+            cached = lookup(key, now);
+            if (cached != null) {
+                mHitCount++;
+                stanzaId = null;
+            }
+            else {
+                Pending pending = mPending.get(key);
+                if (pending != null && now - pending.time >= REQUEST_TIMEOUT) {
+                    // response lost, ask again
+                    discard(pending);
+                    mTimedOutCount++;
+                    pending = null;
+                }
+
+                if (pending != null) {
+                    pending.requestIds.add(requestId);
+                    mJoinedCount++;
+                    return;
+                }
+
+                stanzaId = mIdPrefix + (++mSequence);
+                pending = new Pending(type, jid, stanzaId, now);
+                pending.requestIds.add(requestId);
+                // responses might come before send returns
+                mPending.put(key, pending);
+                mPendingById.put(stanzaId, pending);
+                mMissCount++;
+            }
+        }
+
+        if (cached != null) {
+            mSender.answer(type, requestId, cached.response, now - cached.time);
+        }
+        else if (!mSender.send(type, jid, stanzaId)) {
+            synchronized (this) {
+                Pending pending = mPendingById.get(stanzaId);
+                if (pending != null)
+                    discard(pending);
+            }
+        }
+    }
+
+    private Entry<T> lookup(String key, long now) {
+        Entry<T> entry = mEntries.get(key);
+        if (entry == null)
+            return null;
+
+        Long ttl = mTtl.get(entry.type);
+        if (ttl == null || now - entry.time >= ttl) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    private void discard(Pending pending) {
+        mPending.remove(key(pending.type, pending.jid));
+        mPendingById.remove(pending.stanzaId);
+    }
+
+    /**
+     * A response has been received.
+     * @param cacheable false if the response must not be cached, e.g. an error
+     * @return ids of the requests waiting for this response, or null if not requested by us
+     */
+    public synchronized List<String> completed(String stanzaId, T response, boolean cacheable, long now) {
+        Pending pending = (stanzaId != null) ? mPendingById.get(stanzaId) : null;
+        if (pending == null)
+            return null;
+
+        discard(pending);
+        if (cacheable && !pending.stale && mTtl.containsKey(pending.type)) {
+            mEntries.put(key(pending.type, pending.jid),
+                new Entry<>(pending.type, pending.jid, response, now));
+        }
+        return pending.requestIds;
+    }
+
+    /** Drops cached responses from the given peer, e.g. because it sent a presence. */
+    public synchronized void invalidate(String jid) {
+        String bareJid = bareJid(jid);
+        Iterator<Entry<T>> entries = mEntries.values().iterator();
+        while (entries.hasNext()) {
+            Entry<T> entry = entries.next();
+            if (bareJid.equals(bareJid(entry.jid))) {
+                entries.remove();
+                mInvalidatedCount++;
+            }
+        }
+
+        for (Pending pending : mPending.values()) {
+            if (bareJid.equals(bareJid(pending.jid)))
+                pending.stale = true;
+        }
+    }
+
+    /** Forgets requests sent on a previous connection. */
+    public synchronized void newSession() {
+        mPending.clear();
+        mPendingById.clear();
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /** Round trips avoided by answering from cache or sharing a request. */
+    synchronized int getAvoidedCount() {
+        return mHitCount + mJoinedCount;
+    }
+
+    synchronized int getCachedCount() {
+        return mEntries.size();
+    }
+
+    synchronized void dump(PrintWriter out) {
+        int total = mHitCount + mJoinedCount + mMissCount;
+        out.println("  IQ cache: " + mEntries.size() + " responses, " + mHitCount + " hits, " +
+            mJoinedCount + " shared, " + mMissCount + " sent (" +
+            (total > 0 ? (mHitCount * 100 / total) : 0) + "% hit ratio, " +
+            getAvoidedCount() + " round trips avoided), " + mInvalidatedCount + " invalidated, " +
+            mTimedOutCount + " timed out, " + mPending.size() + " waiting");
+    }
+
+}
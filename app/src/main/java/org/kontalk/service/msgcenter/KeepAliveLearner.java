@@ -0,0 +1,159 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Learns how long a network keeps idle TCP connections open (e.g. carrier
+ * NAT mapping timeouts), to ping as rarely as possible.<br>
+ * The keep-alive interval grows while pings succeed; once a ping fails, the
+ * timeout is searched between the longest idle time known to work and the
+ * shortest one known to fail. Failures fall back to the known good interval
+ * and then halve it.<br>
+ * Idle times are measured from the last traffic in either direction before
+ * a ping, since the NAT mapping is refreshed by both.
+ * @author Daniele Ricci
+ */
+class KeepAliveLearner {
+
+    static final long MIN_INTERVAL = TimeUnit.SECONDS.toMillis(90);
+    static final long MAX_INTERVAL = TimeUnit.MINUTES.toMillis(30);
+    static final long DEFAULT_INTERVAL = TimeUnit.MINUTES.toMillis(5);
+
+    /** Growth factor while no failure is known. */
+    static final double GROWTH = 1.5;
+    /** The search stops when the bounds are this close. */
+    static final long RESOLUTION = TimeUnit.SECONDS.toMillis(30);
+    /** Failures are forgotten after this time, in case the network changed. */
+    static final long FAILURE_EXPIRATION = TimeUnit.DAYS.toMillis(1);
+
+    /** Longest idle time known to work, 0 if unknown. */
+    private long mGood;
+    /** Shortest idle time known to fail, 0 if unknown. */
+    private long mBad;
+    /** Time of the last failure that set {@link #mBad}. */
+    private long mBadTime;
+    /** Current keep-alive interval. */
+    private long mInterval;
+    /** Consecutive failures. */
+    private int mFailures;
+
+    KeepAliveLearner() {
+        this(0, 0, 0, DEFAULT_INTERVAL);
+    }
+
+    KeepAliveLearner(long good, long bad, long badTime, long interval) {
+        mGood = good;
+        mBad = bad;
+        mBadTime = badTime;
+        mInterval = clamp(interval);
+    }
+
+    /** Parses a state created by {@link #toString()}, returns a new learner if invalid. */
+    static KeepAliveLearner parse(String state) {
+        if (state != null) {
+            try {
+                String[] parsed = state.split(",");
+                return new KeepAliveLearner(Long.parseLong(parsed[0]), Long.parseLong(parsed[1]),
+                    Long.parseLong(parsed[2]), Long.parseLong(parsed[3]));
+            }
+            catch (RuntimeException ignored) {
+            }
+        }
+        return new KeepAliveLearner();
+    }
+
+    /** The interval to use for the next ping. */
+    synchronized long getInterval() {
+        return mInterval;
+    }
+
+    /**
+     * A ping succeeded after the connection was idle for the given time.
+     * @param now current time, for expiring old failures
+     */
+    synchronized void success(long idle, long now) {
+        mFailures = 0;
+        expireFailure(now);
+
+        if (idle > mGood)
+            mGood = Math.min(idle, MAX_INTERVAL);
+        // the network got better
+        if (mBad > 0 && mBad <= mGood)
+            mBad = 0;
+
+        long next;
+        if (mBad > 0) {
+            // search between known good and bad
+            next = (mBad - mGood) > RESOLUTION ?
+                (mGood + mBad) / 2 : mGood;
+        }
+        else {
+            // grow only if the ping actually tested the current interval
+            next = Math.max(mInterval, (long) (mGood * GROWTH));
+        }
+        // keep probing from the known good
+        mInterval = clamp(Math.max(next, mGood));
+    }
+
+    /**
+     * A ping failed after the connection was idle for the given time.
+     * @param now current time, for expiring old failures
+     */
+    synchronized void failure(long idle, long now) {
+        // a short idle time doesn't tell anything about the network timeout
+        if (idle < MIN_INTERVAL / 2)
+            return;
+
+        mFailures++;
+        if (mBad == 0 || idle < mBad) {
+            mBad = idle;
+            mBadTime = now;
+        }
+        // what we knew is not true anymore
+        if (mGood >= mBad || mFailures > 1)
+            mGood = 0;
+
+        if (mGood > 0 && mGood < mInterval) {
+            // go back to what worked
+            mInterval = clamp(mGood);
+        }
+        else {
+            // back off
+            mInterval = clamp(Math.min(mInterval, mBad) / 2);
+        }
+    }
+
+    private void expireFailure(long now) {
+        if (mBad > 0 && (now - mBadTime) > FAILURE_EXPIRATION)
+            mBad = 0;
+    }
+
+    private static long clamp(long interval) {
+        return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mGood + "," + mBad + "," + mBadTime + "," + mInterval;
+    }
+
+}
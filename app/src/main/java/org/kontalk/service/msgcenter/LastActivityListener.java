@@ -26,6 +26,7 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SECONDS;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_TYPE;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_ERROR_CONDITION;
 
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.packet.XMPPError;
 import org.jivesoftware.smackx.iqlast.packet.LastActivity;
@@ -60,6 +61,9 @@ class LastActivityListener extends MessageCenterPacketListener {
         if (errCondition != null)
             i.putExtra(EXTRA_ERROR_CONDITION, errCondition.toString());
 
-        sendBroadcast(i);
+        // error responses might be temporary, and an online peer might
+        // not be online anymore when answered from cache
+        sendIqResponse(p.getStanzaId(), i, p.getType() == IQ.Type.result &&
+            p.getIdleTime() > 0);
     }
 }
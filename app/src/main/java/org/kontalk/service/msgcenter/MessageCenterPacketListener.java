@@ -19,7 +19,7 @@
 package org.kontalk.service.msgcenter;
 
 import java.lang.ref.WeakReference;
-import java.util.Map;
+import java.util.List;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.StanzaListener;
@@ -84,10 +84,10 @@ abstract class MessageCenterPacketListener implements StanzaListener {
         return (instance != null) ? instance.getRosterEntry(jid) : null;
     }
 
-    protected void queueTask(Runnable task) {
+    protected void queueTask(int lane, String key, Runnable task) {
         MessageCenterService instance = mInstance.get();
         if (instance != null)
-            instance.queueTask(task);
+            instance.queueTask(lane, key, task);
     }
 
     protected void sendBroadcast(Intent intent) {
@@ -133,16 +133,26 @@ abstract class MessageCenterPacketListener implements StanzaListener {
     }
 
     protected void resendPendingMessages(boolean retrying, boolean forcePending) {
-        MessageCenterService instance = mInstance.get();
-        if (instance != null)
-            instance.resendPendingMessages(retrying, forcePending);
+        resendPending(retrying, forcePending, null, false);
     }
 
     protected void resendPending(boolean retrying, boolean forcePending, String to) {
-        MessageCenterService instance = mInstance.get();
+        resendPending(retrying, forcePending, to, true);
+    }
+
+    /** Resends on the command thread, in order with other outgoing messages. */
+    private void resendPending(final boolean retrying, final boolean forcePending,
+            final String to, final boolean receipts) {
+        final MessageCenterService instance = mInstance.get();
         if (instance != null) {
-            instance.resendPendingMessages(retrying, forcePending, to);
-            instance.resendPendingReceipts();
+            instance.postCommand(MessageCenterService.ACTION_RETRY, new Runnable() {
+                @Override
+                public void run() {
+                    instance.resendPendingMessages(retrying, forcePending, to);
+                    if (receipts)
+                        instance.resendPendingReceipts();
+                }
+            });
         }
     }
 
@@ -171,9 +181,72 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             instance.pushRegister();
     }
 
-    protected Map<String, Long> getWaitingReceiptList() {
+    /** An outgoing message has been acked by the server. */
+    protected void messageAcked() {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null)
+            instance.mResender.acked();
+    }
+
+    /** Queues a delivery receipt for the next burst. */
+    protected void queueReceipt(ReceiptBatcher.Receipt receipt) {
         MessageCenterService instance = mInstance.get();
-        return (instance != null) ? instance.mWaitingReceipt : null;
+        if (instance != null)
+            instance.mReceipts.queue(receipt);
+    }
+
+    /** Sends all queued delivery receipts. */
+    protected void flushReceipts() {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null)
+            instance.mReceipts.flush();
+    }
+
+    /** An outgoing delivery receipt has been acked by the server. */
+    protected void receiptAcked(long msgId) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null)
+            instance.mReceipts.acked(msgId);
+    }
+
+    /**
+     * Broadcasts a response to an informational IQ to all requests waiting
+     * for it, caching it if possible.
+     * @param cacheable false if the response must not be cached, e.g. an error
+     */
+    protected void sendIqResponse(String stanzaId, Intent response, boolean cacheable) {
+        MessageCenterService instance = mInstance.get();
+        List<String> requestIds = (instance != null) ? instance.mIqCache
+            .completed(stanzaId, response, cacheable, System.currentTimeMillis()) : null;
+
+        if (requestIds == null) {
+            // not requested through the cache
+            sendBroadcast(response);
+        }
+        else {
+            for (String requestId : requestIds) {
+                Intent i = new Intent(response);
+                i.putExtra(MessageCenterService.EXTRA_PACKET_ID, requestId);
+                sendBroadcast(i);
+            }
+        }
+    }
+
+    /** Drops cached IQ responses from the given peer. */
+    protected void invalidateIqResponses(String jid) {
+        MessageCenterService instance = mInstance.get();
+        if (instance != null && jid != null)
+            instance.mIqCache.invalidate(jid);
+    }
+
+    protected PublicKeyRefresher getKeyRefresher() {
+        MessageCenterService instance = mInstance.get();
+        return (instance != null) ? instance.mKeyRefresher : null;
+    }
+
+    protected InFlightTracker getInFlightTracker() {
+        MessageCenterService instance = mInstance.get();
+        return (instance != null) ? instance.mInFlight : null;
     }
 
     protected Uri incoming(CompositeMessage msg) {
@@ -217,11 +290,14 @@ abstract class MessageCenterPacketListener implements StanzaListener {
             instance.endKeyPairImport();
     }
 
-    protected void resumeSmAck() {
-        MessageCenterService instance = mInstance.get();
-        if (instance != null && instance.mConnection != null) {
+    /**
+     * Resumes SM ack on the connection it was suspended on, which might not
+     * be the current one anymore.
+     */
+    protected void resumeSmAck(KontalkConnection connection) {
+        if (connection != null) {
             try {
-                instance.mConnection.resumeSmAck();
+                connection.resumeSmAck();
             }
             catch (SmackException ignored) {
                 // we don't really care
@@ -19,27 +19,33 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.ref.WeakReference;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.zip.ZipInputStream;
 
 import org.jivesoftware.smack.AbstractXMPPConnection;
 import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
+import org.jivesoftware.smack.SmackException.NotLoggedInException;
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.filter.StanzaFilter;
@@ -104,6 +110,7 @@ import org.kontalk.authenticator.Authenticator;
 import org.kontalk.authenticator.LegacyAuthentication;
 import org.kontalk.client.BitsOfBinary;
 import org.kontalk.client.BlockingCommand;
+import org.kontalk.client.ConnectionStats;
 import org.kontalk.client.E2EEncryption;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.KontalkConnection;
@@ -112,6 +119,7 @@ import org.kontalk.client.PublicKeyPublish;
 import org.kontalk.client.PushRegistration;
 import org.kontalk.client.RosterMatch;
 import org.kontalk.client.ServerlistCommand;
+import org.kontalk.client.SmAckPolicy;
 import org.kontalk.client.SmackInitializer;
 import org.kontalk.client.VCard4;
 import org.kontalk.crypto.Coder;
@@ -128,6 +136,7 @@ import org.kontalk.provider.MyMessages.Threads;
 import org.kontalk.provider.MyMessages.Threads.Requests;
 import org.kontalk.provider.UsersProvider;
 import org.kontalk.service.KeyPairGeneratorService;
+import org.kontalk.service.ReconnectMonitor;
 import org.kontalk.service.UploadService;
 import org.kontalk.service.XMPPConnectionHelper;
 import org.kontalk.service.XMPPConnectionHelper.ConnectionHelperListener;
@@ -139,6 +148,7 @@ import org.kontalk.service.msgcenter.group.GroupControllerFactory;
 import org.kontalk.service.msgcenter.group.KontalkGroupController;
 import org.kontalk.service.msgcenter.group.PartCommand;
 import org.kontalk.service.msgcenter.group.SetSubjectCommand;
+import org.kontalk.sync.SyncAdapter;
 import org.kontalk.ui.MessagingNotification;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
@@ -195,6 +205,13 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      */
     public static final String ACTION_PRESENCE = "org.kontalk.action.PRESENCE";
 
+    /**
+     * Broadcasted when a batch of presence stanzas has been processed.
+     * Carries the list of senders and a {@link #ACTION_PRESENCE} broadcast
+     * for each of them.
+     */
+    public static final String ACTION_PRESENCES = "org.kontalk.action.PRESENCES";
+
     /**
      * Broadcasted when a last activity iq is received.
      * Send this intent to request a last activity.
@@ -278,6 +295,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     public static final String EXTRA_SUBSCRIBED_TO = "org.kontalk.presence.subscribed.to";
     public static final String EXTRA_STAMP = "org.kontalk.packet.delay";
 
+    // use with org.kontalk.action.PRESENCES
+    public static final String EXTRA_PRESENCES = "org.kontalk.presence.list";
+
     // use with org.kontalk.action.ROSTER(_MATCH)
     public static final String EXTRA_JIDLIST = "org.kontalk.roster.JIDList";
     public static final String EXTRA_ROSTER_NAME = "org.kontalk.roster.name";
@@ -331,6 +351,17 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Minimal interval between connection tests (5 mins). */
     private static final int MIN_TEST_INTERVAL = 5*60*1000;
 
+    /** Cached last activity responses expire after this time (1 min). */
+    private static final long LAST_ACTIVITY_TTL = 60*1000;
+    /** Cached software version responses expire after this time (1 hour). */
+    private static final long VERSION_TTL = 60*60*1000;
+
+    /** Commands taking longer than this will be logged. */
+    private static final long SLOW_COMMAND_TIME = 16;
+
+    /** Maximum queued tasks per executor lane, see {@link PriorityTaskExecutor}. */
+    private static final int[] MAX_QUEUED_TASKS = { 100, 100, 50, 200, 20 };
+
     static final IPushListener sPushListener = PushServiceManager.getDefaultListener();
 
     /** Push service instance. */
@@ -367,10 +398,27 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     /** Roster store. */
     private SQLiteRosterStore mRosterStore;
 
+    /** Maximum number of messages waiting for the roster. */
+    private static final int MAX_HELD_MESSAGES = 100;
+    /**
+     * Messages waiting for authentication or for the roster to be loaded,
+     * in sending order. Cleared when a new connection is created.
+     * Accessed only from the command thread.
+     */
+    private final ArrayDeque<Bundle> mHeldMessages = new ArrayDeque<>();
+    /** Time the current connection was started, 0 after the first message was sent. */
+    private volatile long mConnectStartTime;
+
     /** Service handler. */
     Handler mHandler;
+    /** Command handler, for running heavy commands off the main thread. */
+    private Handler mCommandHandler;
+    /** Command run times by action, main thread and command thread. */
+    private final Map<String, ConnectionStats.Histogram> mCommandTimes = new HashMap<>();
     /** Task execution pool. Generally used by packet listeners. */
-    private ExecutorService mThreadPool;
+    private PriorityTaskExecutor mThreadPool;
+    /** Encrypts outgoing messages on the task execution pool. */
+    private OrderedTaskExecutor mOutgoingExecutor;
 
     /** Idle handler. */
     IdleConnectionHandler mIdleHandler;
@@ -382,9 +430,197 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private PendingIntent mIdleIntent;
 
     private boolean mFirstStart = true;
+    /** True once the service has been told to stop. */
+    private boolean mStopping;
+
+    /** The running instance, for commands dispatched without intents. */
+    private static volatile MessageCenterService sInstance;
+
+    /** Messages and delivery receipts waiting for server ack. */
+    final InFlightTracker mInFlight = new InFlightTracker();
 
-    /** Messages waiting for server receipt (packetId: internalStorageId). */
-    Map<String, Long> mWaitingReceipt = new HashMap<>();
+    /** Resends pending messages a page at a time on the command thread. */
+    final PendingMessageResender mResender = new PendingMessageResender(
+        new PendingMessageResender.Source() {
+            private PendingMessageResender.Request mRequest;
+            private final Map<String, String[]> mGroupMembers = new HashMap<>();
+
+            @Override
+            public List<PendingMessage> query(PendingMessageResender.Request request,
+                    long after, int count) {
+                if (request != mRequest || after == 0) {
+                    mRequest = request;
+                    mGroupMembers.clear();
+                }
+                return queryPendingMessages(request, after, count, mGroupMembers);
+            }
+        },
+        new PendingMessageResender.Sender() {
+            @Override
+            public boolean isConnected() {
+                return MessageCenterService.this.isConnected();
+            }
+
+            @Override
+            public void send(PendingMessageResender.Pending msg) {
+                Bundle data = ((PendingMessage) msg).data;
+                if (data != null) {
+                    Log.v(TAG, "resending pending message " + msg.id);
+                    sendMessage(data);
+                }
+            }
+
+            @Override
+            public int getInFlightCount() {
+                // without stream management there won't be any ack
+                KontalkConnection conn = mConnection;
+                return (conn != null && conn.isSmEnabled()) ?
+                    mInFlight.getWaitingCount(System.currentTimeMillis()) : 0;
+            }
+
+            @Override
+            public void post(Runnable step, long delay) {
+                postCommand(ACTION_RETRY, step, delay);
+            }
+        });
+
+    /** Sends delivery receipts in bursts. */
+    final ReceiptBatcher mReceipts = new ReceiptBatcher(new ReceiptBatcher.Sender() {
+        @Override
+        public void send(ReceiptBatcher.Receipt receipt) {
+            org.jivesoftware.smack.packet.Message ack =
+                new org.jivesoftware.smack.packet.Message(receipt.to,
+                    org.jivesoftware.smack.packet.Message.Type.chat);
+            ack.addExtension(new DeliveryReceipt(receipt.msgId));
+
+            // will mark this message as confirmed
+            mInFlight.add(ack.getStanzaId(), receipt.id, true, System.currentTimeMillis());
+            // the whole burst is holding the message center
+            sendPacket(ack, false);
+        }
+
+        @Override
+        public void confirmed(List<Long> ids) {
+            confirmReceipts(ids);
+        }
+
+        @Override
+        public void hold() {
+            IdleConnectionHandler handler = mIdleHandler;
+            if (handler != null)
+                handler.hold(false);
+        }
+
+        @Override
+        public void release() {
+            IdleConnectionHandler handler = mIdleHandler;
+            if (handler != null)
+                handler.release();
+        }
+
+        @Override
+        public void post(Runnable command, long delay) {
+            postCommand(ACTION_MESSAGE, command, delay);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            // receipts go before the incoming backlog they are for
+            PriorityTaskExecutor executor = mThreadPool;
+            if (executor == null || !executor.execute(PriorityTaskExecutor.LANE_RECEIPTS, command))
+                command.run();
+        }
+    });
+
+    /** Caches responses to last activity and version requests. */
+    final IqResponseCache<Intent> mIqCache = new IqResponseCache<>(new IqResponseCache.Sender<Intent>() {
+        @Override
+        public boolean send(String type, String jid, String stanzaId) {
+            if (!isConnected())
+                return false;
+
+            IQ p;
+            if (ACTION_LAST_ACTIVITY.equals(type)) {
+                p = new LastActivity();
+                p.setTo(jid);
+            }
+            else {
+                p = new Version(jid);
+            }
+            p.setStanzaId(stanzaId);
+            sendPacket(p);
+            return true;
+        }
+
+        @Override
+        public void answer(String type, String requestId, Intent response, long age) {
+            Intent i = new Intent(response);
+            i.putExtra(EXTRA_PACKET_ID, requestId);
+            if (ACTION_LAST_ACTIVITY.equals(type)) {
+                // only idle peers are cached, they have been idle for longer now
+                long seconds = response.getLongExtra(EXTRA_SECONDS, -1);
+                if (seconds >= 0)
+                    i.putExtra(EXTRA_SECONDS, seconds + age / 1000);
+            }
+            mLocalBroadcastManager.sendBroadcast(i);
+        }
+    });
+
+    /** Requests public keys that might have changed. */
+    final PublicKeyRefresher mKeyRefresher = new PublicKeyRefresher(
+        new PublicKeyRefresher.Source() {
+            @Override
+            public Map<String, String> getFingerprints(Collection<String> jids) {
+                return UsersProvider.getFingerprints(MessageCenterService.this,
+                    jids.toArray(new String[jids.size()]), false);
+            }
+
+            @Override
+            public Map<String, Long> getCheckedTimes(Collection<String> jids) {
+                return UsersProvider.getKeysChecked(MessageCenterService.this,
+                    jids.toArray(new String[jids.size()]));
+            }
+
+            @Override
+            public void setChecked(Collection<String> jids, long time) {
+                UsersProvider.setKeysChecked(MessageCenterService.this,
+                    jids.toArray(new String[jids.size()]), time);
+            }
+        },
+        new PublicKeyRefresher.Sender() {
+            @Override
+            public boolean send(String jid, String stanzaId) {
+                if (!isConnected())
+                    return false;
+
+                PublicKeyPublish p = new PublicKeyPublish();
+                p.setStanzaId(stanzaId);
+                p.setTo(jid);
+                sendPacket(p);
+                return true;
+            }
+
+            @Override
+            public void skipped(String jid, String requestId) {
+                // the sync adapter is waiting for every key
+                if (SyncAdapter.getIQPacketId().equals(requestId) &&
+                        SyncAdapter.isActive(MessageCenterService.this)) {
+                    byte[] keydata = UsersProvider.getPublicKeyData(MessageCenterService.this, jid);
+                    if (keydata != null) {
+                        Intent i = new Intent(ACTION_PUBLICKEY);
+                        i.putExtra(EXTRA_PACKET_ID, requestId);
+                        i.putExtra(EXTRA_FROM, jid);
+                        i.putExtra(EXTRA_PUBLIC_KEY, keydata);
+                        mLocalBroadcastManager.sendBroadcast(i);
+                    }
+                }
+            }
+
+            @Override
+            public void post(Runnable command, long delay) {
+                postCommand(ACTION_PUBLICKEY, command, delay);
+            }
+        });
 
     private RegenerateKeyPairListener mKeyPairRegenerator;
     private ImportKeyPairListener mKeyPairImporter;
@@ -442,9 +678,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     service.setWakeupAlarm();
                 }
 
-                Log.d(TAG, "shutting down message center due to inactivity");
-                service.stopSelf();
-
+                service.stopForInactivity();
                 return true;
             }
 
@@ -456,23 +690,20 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             else if (msg.what == MSG_TEST) {
                 long now = System.currentTimeMillis();
                 if ((now - service.getLastReceivedStanza()) >= FAST_PING_TIMEOUT) {
+                    XMPPConnection conn = service.mConnection;
+                    AndroidAdaptiveServerPingManager pingManager = conn != null ?
+                        AndroidAdaptiveServerPingManager.getInstanceFor(conn, service) : null;
+                    if (pingManager != null)
+                        pingManager.pingStarting();
+
                     if (!service.fastReply()) {
                         Log.v(TAG, "test ping failed");
-                        XMPPConnection conn = service.mConnection;
-                        if (conn != null) {
-                            AndroidAdaptiveServerPingManager
-                                .getInstanceFor(conn, service)
-                                .pingFailed();
-                        }
+                        if (pingManager != null)
+                            pingManager.pingFailed();
                         restart(service.getApplicationContext());
                     }
-                    else {
-                        XMPPConnection conn = service.mConnection;
-                        if (conn != null) {
-                            AndroidAdaptiveServerPingManager
-                                .getInstanceFor(conn, service)
-                                .pingSuccess();
-                        }
+                    else if (pingManager != null) {
+                        pingManager.pingSuccess();
                     }
                 }
                 return true;
@@ -603,7 +834,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 }
                 if (mHelper != null && mHelper.isStruggling()) {
                     Log.d(TAG, "connection is not going well, shutting down message center");
-                    stopSelf();
+                    stopMessageCenter();
                 }
             }
         }
@@ -630,22 +861,42 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         mLocalBroadcastManager = LocalBroadcastManager.getInstance(this);
         mPushService = PushServiceManager.getInstance(this);
 
+        mIqCache.setTtl(ACTION_LAST_ACTIVITY, LAST_ACTIVITY_TTL);
+        mIqCache.setTtl(ACTION_VERSION, VERSION_TTL);
+
         // create idle handler
         createIdleHandler();
+        // create command handler
+        createCommandHandler();
 
         // create main thread handler
         mHandler = new Handler();
 
         // register screen off listener for manual inactivation
         registerInactivity();
+
+        sInstance = this;
     }
 
-    void queueTask(Runnable task) {
-        if (mThreadPool != null) {
-            mThreadPool.execute(task);
+    void queueTask(int lane, Runnable task) {
+        queueTask(lane, null, task);
+    }
+
+    /**
+     * Queues a task in the given lane of the task executor.
+     * @param key if not null, replaces a queued task with the same key
+     */
+    void queueTask(int lane, String key, Runnable task) {
+        PriorityTaskExecutor executor = mThreadPool;
+        if (executor != null) {
+            executor.execute(lane, key, task);
         }
     }
 
+    PriorityTaskExecutor getTaskExecutor() {
+        return mThreadPool;
+    }
+
     private void createIdleHandler() {
         HandlerThread thread = new HandlerThread("IdleThread", Process.THREAD_PRIORITY_BACKGROUND);
         thread.start();
@@ -653,6 +904,70 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         mIdleHandler = new IdleConnectionHandler(this, refCount, thread.getLooper());
     }
 
+    private void createCommandHandler() {
+        HandlerThread thread = new HandlerThread("CommandThread", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mCommandHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Runs a command on the command thread. Commands are executed one at a
+     * time in the order they were posted, so messages to the same
+     * conversation are sent in order.
+     */
+    void postCommand(String action, Runnable command) {
+        postCommand(action, command, 0);
+    }
+
+    /** Runs a command on the command thread after the given delay in milliseconds. */
+    void postCommand(final String action, final Runnable command, long delay) {
+        Handler handler = mCommandHandler;
+        if (handler != null) {
+            handler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    long start = SystemClock.elapsedRealtime();
+                    try {
+                        command.run();
+                    }
+                    finally {
+                        traceCommand(action + " (worker)", start);
+                    }
+                }
+            }, delay);
+        }
+    }
+
+    private void traceCommand(String action, long start) {
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        if (elapsed >= SLOW_COMMAND_TIME)
+            Log.v(TAG, action + " took " + elapsed + " ms");
+
+        ConnectionStats.Histogram times;
+        synchronized (mCommandTimes) {
+            times = mCommandTimes.get(action);
+            if (times == null) {
+                times = new ConnectionStats.Histogram(action, "ms");
+                mCommandTimes.put(action, times);
+            }
+        }
+        times.record(elapsed);
+    }
+
+    /** Shows a toast from any thread. */
+    private void showToast(final int textId) {
+        Handler handler = mHandler;
+        if (handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(MessageCenterService.this, textId,
+                        Toast.LENGTH_LONG).show();
+                }
+            });
+        }
+    }
+
     private void registerInactivity() {
         IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
@@ -703,9 +1018,41 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return null;
     }
 
+    /** Connection statistics, through <code>adb shell dumpsys activity service MessageCenterService</code>. */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        ConnectionStats.getInstance().snapshot().dump(writer);
+        PriorityTaskExecutor executor = mThreadPool;
+        if (executor != null)
+            executor.dump(writer);
+
+        KontalkConnection conn = mConnection;
+        if (conn != null) {
+            SmAckPolicy ackPolicy = conn.getStreamManagementAckPolicy();
+            writer.println("  SM queue: " + ackPolicy.getQueueDepth() + " stanzas (max " +
+                ackPolicy.getMaxQueueDepth() + ", capacity " + ackPolicy.getCapacity() + "), " +
+                ackPolicy.getUnackedBytes() + " bytes, " + ackPolicy.getRequestCount() + " ack requests");
+        }
+        writer.println("  reconnections: " + ReconnectMonitor.getReconnectCount() +
+            " (" + ReconnectMonitor.getNetworkReconnectCount() + " after network change)");
+        mInFlight.dump(writer, System.currentTimeMillis());
+        mResender.dump(writer);
+        mReceipts.dump(writer);
+        mKeyRefresher.dump(writer);
+        mIqCache.dump(writer);
+
+        writer.println("Command run times");
+        synchronized (mCommandTimes) {
+            for (ConnectionStats.Histogram times : mCommandTimes.values())
+                times.dump(writer);
+        }
+    }
+
     @Override
     public void onDestroy() {
         Log.d(TAG, "destroying message center");
+        if (sInstance == this)
+            sInstance = null;
         quit(false);
         // deactivate ping manager
         AndroidAdaptiveServerPingManager.onDestroy();
@@ -737,6 +1084,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // quit the idle handler
             mIdleHandler.quit();
             mIdleHandler = null;
+            // quit the command handler
+            mCommandHandler.getLooper().quit();
+            mCommandHandler = null;
             // destroy the service handler
             // (can't stop it because it's the main thread)
             mHandler = null;
@@ -751,6 +1101,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         if (mThreadPool != null) {
             mThreadPool.shutdownNow();
             mThreadPool = null;
+            mOutgoingExecutor = null;
         }
 
         // disable listeners
@@ -826,13 +1177,40 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
+    /** Stops the service. Commands will be dispatched through intents from now on. */
+    private void stopMessageCenter() {
+        mStopping = true;
+        stopSelf();
+    }
+
+    /** Called by the idle handler, stops the service if nobody is holding it. */
+    void stopForInactivity() {
+        final Handler handler = mHandler;
+        if (handler != null) {
+            // decide on the main thread, where direct commands are executed
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (Kontalk.get(MessageCenterService.this).getReferenceCounter() > 0) {
+                        Log.v(TAG, "message center is being held, not stopping");
+                    }
+                    else if (!mStopping) {
+                        Log.d(TAG, "shutting down message center due to inactivity");
+                        stopMessageCenter();
+                    }
+                }
+            });
+        }
+    }
+
     private void handleIntent(Intent intent) {
         // stop immediately
         if (isOfflineMode(this))
-            stopSelf();
+            stopMessageCenter();
 
         if (intent != null) {
             String action = intent.getAction();
+            long start = SystemClock.elapsedRealtime();
 
             // proceed to start only if network is available
             boolean canConnect = canConnect();
@@ -840,7 +1218,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
             switch (action != null ? action : "") {
                 case ACTION_HOLD:
-                    doConnect = handleHold(intent);
+                    doConnect = handleHold(intent.getBooleanExtra("org.kontalk.activate", false));
                     break;
 
                 case ACTION_RELEASE:
@@ -888,7 +1266,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     break;
 
                 case ACTION_MESSAGE:
-                    doConnect = handleMessage(intent, canConnect);
+                    doConnect = handleMessage(intent.getExtras(), canConnect);
                     break;
 
                 case ACTION_ROSTER:
@@ -942,13 +1320,8 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     break;
             }
 
-            if (canConnect && doConnect)
-                createConnection();
-
-            // no reason to exist
-            if (!canConnect && !doConnect && !isConnected() && !isConnecting())
-                stopSelf();
 
+            commandHandled(action, start, canConnect, doConnect);
             mFirstStart = false;
         }
         else {
@@ -957,6 +1330,97 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
     }
 
+    /** Common handling after a command has been executed. */
+    private void commandHandled(String action, long start, boolean canConnect, boolean doConnect) {
+        if (action != null)
+            traceCommand(action, start);
+        sHandledCommands++;
+
+        if (canConnect && doConnect)
+            createConnection();
+
+        // no reason to exist
+        if (!canConnect && !doConnect && !isConnected() && !isConnecting())
+            stopMessageCenter();
+    }
+
+    /**
+     * A command executed in-process on the running service, avoiding the
+     * overhead of {@link #startService}. Used for frequent commands coming
+     * from the UI.
+     */
+    private static abstract class Command {
+        final String action;
+
+        Command(String action) {
+            this.action = action;
+        }
+
+        /**
+         * Executes the command on the main thread.
+         * @return true if a connection is needed, as the command handlers
+         */
+        abstract boolean execute(MessageCenterService service, boolean canConnect);
+
+        /** Builds the equivalent intent, used when the service is not running. */
+        abstract Intent toIntent(Context context);
+    }
+
+    /** Number of commands handled, written only by the main thread. */
+    private static volatile int sHandledCommands;
+
+    static int getHandledCommandCount() {
+        return sHandledCommands;
+    }
+
+    static boolean isRunning() {
+        return sInstance != null;
+    }
+
+    /**
+     * Executes a command on the running instance, or starts the service
+     * with the equivalent intent.
+     */
+    private static void dispatch(final Context context, final Command command) {
+        final MessageCenterService service = sInstance;
+        if (service != null) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                if (service.handleCommand(command))
+                    return;
+            }
+            else {
+                Handler handler = service.mHandler;
+                if (handler != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!service.handleCommand(command))
+                                context.startService(command.toIntent(context));
+                        }
+                    });
+                    return;
+                }
+            }
+        }
+
+        context.startService(command.toIntent(context));
+    }
+
+    /**
+     * Executes an in-process command.
+     * @return false if this instance can't execute commands anymore
+     */
+    private boolean handleCommand(Command command) {
+        if (sInstance != this || mStopping || mFirstStart || isOfflineMode(this))
+            return false;
+
+        long start = SystemClock.elapsedRealtime();
+        boolean canConnect = canConnect();
+        boolean doConnect = command.execute(this, canConnect);
+        commandHandled(command.action, start, canConnect, doConnect);
+        return true;
+    }
+
     // methods below handle single intent commands
     // the returned value is assigned to doConnect in onStartCommand()
 
@@ -971,9 +1435,9 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     @CommandHandler(name = ACTION_HOLD)
-    private boolean handleHold(Intent intent) {
+    private boolean handleHold(boolean activate) {
         if (!mFirstStart)
-            mIdleHandler.hold(intent.getBooleanExtra("org.kontalk.activate", false));
+            mIdleHandler.hold(activate);
         return true;
     }
 
@@ -1053,10 +1517,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             return false;
         }
         else {
-            if (mHelper != null && mHelper.isBackingOff()) {
-                // helper is waiting for backoff - restart immediately
-                quit(true);
-            }
+            // a helper waiting for backoff is woken up by ReconnectMonitor
             return canConnect;
         }
     }
@@ -1069,11 +1530,17 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             final XMPPConnection connection = mConnection;
             final PingManager pingManager = PingManager.getInstanceFor(connection);
             final WakeLock pingLock = mPingLock;
+            AndroidAdaptiveServerPingManager
+                .getInstanceFor(connection, this)
+                .pingStarting();
             Async.go(new Runnable() {
                 @Override
                 public void run() {
                     try {
+                        long start = SystemClock.elapsedRealtime();
                         if (pingManager.pingMyServer(true, SLOW_PING_TIMEOUT)) {
+                            ConnectionStats.getInstance()
+                                .pingReceived(SystemClock.elapsedRealtime() - start);
                             AndroidAdaptiveServerPingManager
                                 .getInstanceFor(connection, MessageCenterService.this)
                                 .pingSuccess();
@@ -1102,39 +1569,56 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     @CommandHandler(name = ACTION_MESSAGE)
-    private boolean handleMessage(Intent intent, boolean canConnect) {
-        if (canConnect && isConnected())
-            sendMessage(intent.getExtras());
+    private boolean handleMessage(final Bundle data, boolean canConnect) {
+        if (canConnect && isConnected()) {
+            postCommand(ACTION_MESSAGE, new Runnable() {
+                @Override
+                public void run() {
+                    if (isConnected())
+                        sendMessage(data);
+                }
+            });
+        }
         return false;
     }
 
     @CommandHandler(name = { ACTION_ROSTER, ACTION_ROSTER_MATCH })
-    private boolean handleRoster(Intent intent, boolean canConnect) {
+    private boolean handleRoster(final Intent intent, boolean canConnect) {
         if (canConnect && isConnected()) {
-            Stanza iq;
+            postCommand(intent.getAction(), new Runnable() {
+                @Override
+                public void run() {
+                    if (isConnected())
+                        sendRosterRequest(intent);
+                }
+            });
+        }
+        return false;
+    }
 
-            if (ACTION_ROSTER_MATCH.equals(intent.getAction())) {
-                iq = new RosterMatch();
-                String[] list = intent.getStringArrayExtra(EXTRA_JIDLIST);
+    private void sendRosterRequest(Intent intent) {
+        Stanza iq;
 
-                for (String item : list) {
-                    ((RosterMatch) iq).addItem(item);
-                }
+        if (ACTION_ROSTER_MATCH.equals(intent.getAction())) {
+            iq = new RosterMatch();
+            String[] list = intent.getStringArrayExtra(EXTRA_JIDLIST);
 
-                // directed to the probe component
-                iq.setTo(XmppStringUtils.completeJidFrom("probe", mServer.getNetwork()));
+            for (String item : list) {
+                ((RosterMatch) iq).addItem(item);
             }
-            else {
-                iq = new RosterPacket();
-            }
-
-            String id = intent.getStringExtra(EXTRA_PACKET_ID);
-            iq.setStanzaId(id);
-            // iq default type is get
 
-            sendPacket(iq);
+            // directed to the probe component
+            iq.setTo(XmppStringUtils.completeJidFrom("probe", mServer.getNetwork()));
         }
-        return false;
+        else {
+            iq = new RosterPacket();
+        }
+
+        String id = intent.getStringExtra(EXTRA_PACKET_ID);
+        iq.setStanzaId(id);
+        // iq default type is get
+
+        sendPacket(iq);
     }
 
     @CommandHandler(name = ACTION_ROSTER_LOADED)
@@ -1147,30 +1631,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @CommandHandler(name = ACTION_PRESENCE)
     private boolean handlePresence(Intent intent, boolean canConnect) {
         if (canConnect && isConnected()) {
-            final String id = intent.getStringExtra(EXTRA_PACKET_ID);
+            String id = intent.getStringExtra(EXTRA_PACKET_ID);
             String type = intent.getStringExtra(EXTRA_TYPE);
-            final String to = intent.getStringExtra(EXTRA_TO);
+            String to = intent.getStringExtra(EXTRA_TO);
 
             if ("probe".equals(type)) {
-                // probing is actually looking into the roster
-                final Roster roster = getRoster();
-
-                if (to == null) {
-                    for (RosterEntry entry : roster.getEntries()) {
-                        broadcastPresence(roster, entry, id);
-                    }
-
-                    // broadcast our own presence
-                    broadcastMyPresence(id);
-                }
-                else {
-                    queueTask(new Runnable() {
-                        @Override
-                        public void run() {
-                            broadcastPresence(roster, to, id);
-                        }
-                    });
-                }
+                probePresence(to, id);
             }
             else {
                 String show = intent.getStringExtra(EXTRA_SHOW);
@@ -1190,15 +1656,34 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return false;
     }
 
+    /** Broadcasts the presence of the given user, or of the whole roster if null. */
+    private void probePresence(final String to, final String id) {
+        // probing is actually looking into the roster
+        final Roster roster = getRoster();
+
+        if (to == null) {
+            for (RosterEntry entry : roster.getEntries()) {
+                broadcastPresence(roster, entry, id);
+            }
+
+            // broadcast our own presence
+            broadcastMyPresence(id);
+        }
+        else {
+            queueTask(PriorityTaskExecutor.LANE_PRESENCE, new Runnable() {
+                @Override
+                public void run() {
+                    broadcastPresence(roster, to, id);
+                }
+            });
+        }
+    }
+
     @CommandHandler(name = ACTION_LAST_ACTIVITY)
     private boolean handleLastActivity(Intent intent, boolean canConnect) {
         if (canConnect && isConnected()) {
-            LastActivity p = new LastActivity();
-
-            p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-            p.setTo(intent.getStringExtra(EXTRA_TO));
-
-            sendPacket(p);
+            mIqCache.request(ACTION_LAST_ACTIVITY, intent.getStringExtra(EXTRA_TO),
+                intent.getStringExtra(EXTRA_PACKET_ID), System.currentTimeMillis());
         }
         return false;
     }
@@ -1218,32 +1703,20 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     private boolean handlePublicKey(Intent intent, boolean canConnect) {
         if (canConnect && isConnected()) {
             String to = intent.getStringExtra(EXTRA_TO);
+            String requestId = intent.getStringExtra(EXTRA_PACKET_ID);
             if (to != null) {
                 // request public key for a specific user
-                PublicKeyPublish p = new PublicKeyPublish();
-                p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                p.setTo(to);
-
-                sendPacket(p);
+                mKeyRefresher.refresh(Collections.singletonList(to), requestId,
+                    true, System.currentTimeMillis());
             }
             else {
                 // request public keys for the whole roster
-                Collection<RosterEntry> buddies = getRoster().getEntries();
-                for (RosterEntry buddy : buddies) {
-                    if (isRosterEntrySubscribed(buddy)) {
-                        PublicKeyPublish p = new PublicKeyPublish();
-                        p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                        p.setTo(buddy.getUser());
-
-                        sendPacket(p);
-                    }
-                }
-
+                List<String> jids = new ArrayList<>(mRosterStore.getSubscribedJids());
                 // request our own public key (odd eh?)
-                PublicKeyPublish p = new PublicKeyPublish();
-                p.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-                p.setTo(XmppStringUtils.parseBareJid(mConnection.getUser()));
-                sendPacket(p);
+                jids.add(XmppStringUtils.parseBareJid(mConnection.getUser()));
+
+                // only keys that might have changed will be requested
+                mKeyRefresher.refresh(jids, requestId, false, System.currentTimeMillis());
             }
         }
         return false;
@@ -1290,8 +1763,17 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     @CommandHandler(name = ACTION_RETRY)
     private boolean handleRetry(Intent intent) {
-        Uri msgUri = intent.getParcelableExtra(EXTRA_MESSAGE);
+        final Uri msgUri = intent.getParcelableExtra(EXTRA_MESSAGE);
+        postCommand(ACTION_RETRY, new Runnable() {
+            @Override
+            public void run() {
+                retryMessage(msgUri);
+            }
+        });
+        return false;
+    }
 
+    private void retryMessage(Uri msgUri) {
         boolean encrypted = Preferences.getEncryptionEnabled(this);
 
         ContentValues values = new ContentValues(2);
@@ -1304,7 +1786,6 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // already connected: resend pending messages
         if (isConnected())
             resendPendingMessages(false, false);
-        return false;
     }
 
     @CommandHandler(name = ACTION_BLOCKLIST)
@@ -1317,13 +1798,31 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @CommandHandler(name = ACTION_VERSION)
     private boolean handleVersion(Intent intent) {
         if (isConnected()) {
-            Version version = new Version(intent.getStringExtra(EXTRA_TO));
-            version.setStanzaId(intent.getStringExtra(EXTRA_PACKET_ID));
-            sendPacket(version);
+            mIqCache.request(ACTION_VERSION, intent.getStringExtra(EXTRA_TO),
+                intent.getStringExtra(EXTRA_PACKET_ID), System.currentTimeMillis());
         }
         return false;
     }
 
+    /**
+     * Returns which of the given messages are still being sent or waiting
+     * for their delivery receipt to be confirmed, in a single query.
+     */
+    private Set<Long> getWaitingMessages(Set<Long> ids) {
+        Set<Long> waiting = new HashSet<>(ids.size());
+        Cursor c = getContentResolver().query(Messages.CONTENT_URI,
+            new String[] { Messages._ID },
+            Messages._ID + " IN (" + TextUtils.join(",", ids) + ") AND " +
+            Messages.STATUS + " IN (" + Messages.STATUS_SENDING + "," +
+            Messages.STATUS_INCOMING + ")", null, null);
+        if (c != null) {
+            while (c.moveToNext())
+                waiting.add(c.getLong(0));
+            c.close();
+        }
+        return waiting;
+    }
+
     /** Creates a connection to server if needed. */
     private synchronized void createConnection() {
         if (mConnection == null && mHelper == null) {
@@ -1335,11 +1834,41 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // reset push notification variable
             mPushNotifications = Preferences.getPushNotificationsEnabled(this) &&
                 mPushService.isServiceAvailable();
-            // reset waiting messages
-            mWaitingReceipt.clear();
+            mConnectStartTime = SystemClock.elapsedRealtime();
+
+            mInFlight.newSession();
+
+            // held messages might have been updated in the meantime:
+            // they will be sent by the pending messages resend
+            postCommand(ACTION_MESSAGE, new Runnable() {
+                @Override
+                public void run() {
+                    mHeldMessages.clear();
+                }
+            });
+
+            // responses to requests sent before won't come anymore
+            mIqCache.newSession();
+            mKeyRefresher.newSession();
 
             // setup task execution pool
-            mThreadPool = Executors.newCachedThreadPool();
+            mThreadPool = new PriorityTaskExecutor(Runtime.getRuntime().availableProcessors() + 1,
+                MAX_QUEUED_TASKS, "MessageCenterTask");
+            mOutgoingExecutor = new OrderedTaskExecutor(mThreadPool
+                .getLaneExecutor(PriorityTaskExecutor.LANE_OUTGOING));
+
+            // forget waiting messages updated in the meantime
+            queueTask(PriorityTaskExecutor.LANE_HOUSEKEEPING, new Runnable() {
+                @Override
+                public void run() {
+                    mInFlight.prune(new InFlightTracker.StatusSource() {
+                        @Override
+                        public Set<Long> getWaiting(Set<Long> msgIds) {
+                            return getWaitingMessages(msgIds);
+                        }
+                    });
+                }
+            });
 
             mInactive = false;
 
@@ -1391,7 +1920,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     @Override
     public void aborted(Exception e) {
         // unrecoverable error - exit
-        stopSelf();
+        stopMessageCenter();
     }
 
     @Override
@@ -1408,22 +1937,21 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         roster.addRosterLoadedListener(new RosterLoadedListener() {
             @Override
             public void onRosterLoaded(Roster roster) {
-                final Handler handler = mHandler;
-                if (handler != null) {
-                    handler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            // send pending subscription replies
-                            sendPendingSubscriptionReplies();
-                            // resend failed and pending messages
-                            resendPendingMessages(false, false);
-                            // resend failed and pending received receipts
-                            resendPendingReceipts();
-                            // roster has been loaded
-                            broadcast(ACTION_ROSTER_LOADED);
-                        }
-                    });
-                }
+                postCommand(ACTION_ROSTER_LOADED, new Runnable() {
+                    @Override
+                    public void run() {
+                        // send pending subscription replies
+                        sendPendingSubscriptionReplies();
+                        // messages waiting for the roster go first
+                        sendHeldMessages();
+                        // resend failed and pending messages
+                        resendPendingMessages(false, false);
+                        // resend failed and pending received receipts
+                        resendPendingReceipts();
+                        // roster has been loaded
+                        broadcast(ACTION_ROSTER_LOADED);
+                    }
+                });
             }
         });
         roster.setRosterStore(mRosterStore);
@@ -1455,7 +1983,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         connection.addAsyncStanzaListener(new RosterMatchListener(this), filter);
 
         filter = new StanzaTypeFilter(org.jivesoftware.smack.packet.Message.class);
-        connection.addSyncStanzaListener(new MessageListener(this), filter);
+        connection.addSyncStanzaListener(new MessageListener(this, (KontalkConnection) connection), filter);
 
         filter = new StanzaTypeFilter(LastActivity.class);
         connection.addAsyncStanzaListener(new LastActivityListener(this), filter);
@@ -1484,6 +2012,39 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             Log.w(TAG, "stream management not available - disabling delivery receipts");
         }
 
+        // stanzas sent on the previous stream are lost if it was not resumed
+        mInFlight.authenticated(resumed);
+
+        // send messages authorized by the last known roster
+        postCommand(ACTION_MESSAGE, new Runnable() {
+            @Override
+            public void run() {
+                sendHeldMessages();
+            }
+        });
+
+        // send key requests queued while disconnected
+        postCommand(ACTION_PUBLICKEY, new Runnable() {
+            @Override
+            public void run() {
+                mKeyRefresher.resume();
+            }
+        });
+
+        if (resumed) {
+            Log.v(TAG, "stream resumed");
+            // roster is not loaded on resumed streams, but we need its side effects
+            Roster roster = getRoster();
+            if (!roster.isLoaded()) {
+                try {
+                    roster.reload();
+                }
+                catch (NotLoggedInException | NotConnectedException e) {
+                    Log.w(TAG, "unable to reload roster", e);
+                }
+            }
+        }
+
         // send presence
         sendPresence(mIdleHandler.isHeld() ? Presence.Mode.available : Presence.Mode.away);
         // clear upload service
@@ -1509,7 +2070,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             .onConnectionCompleted();
 
         // request server key if needed
-        Async.go(new Runnable() {
+        queueTask(PriorityTaskExecutor.LANE_HOUSEKEEPING, new Runnable() {
             @Override
             public void run() {
                 final XMPPConnection conn = mConnection;
@@ -1613,8 +2174,12 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         if (!isConnected()) return false;
 
         try {
-            return PingManager.getInstanceFor(mConnection)
+            long start = SystemClock.elapsedRealtime();
+            boolean success = PingManager.getInstanceFor(mConnection)
                 .pingMyServer(false, FAST_PING_TIMEOUT);
+            if (success)
+                ConnectionStats.getInstance().pingReceived(SystemClock.elapsedRealtime() - start);
+            return success;
         }
         catch (NotConnectedException e) {
             return false;
@@ -1649,184 +2214,216 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
     }
 
     /**
-     * Queries for pending messages and send them through.
+     * Queues a resend of pending messages. Messages are sent through in
+     * pages by {@link #mResender}.
      * @param retrying if true, we are retrying to send media messages after
      * receiving upload info (non-media messages will be filtered out)
      * @param forcePending true to include pending user review messages
      * @param to filter by recipient (optional)
      */
     void resendPendingMessages(boolean retrying, boolean forcePending, String to) {
-        String[] filterArgs = null;
+        mResender.resend(new PendingMessageResender.Request(retrying, forcePending, to));
+    }
+
+    /** A pending message ready to be sent, with a null bundle if it must be delayed. */
+    private static final class PendingMessage extends PendingMessageResender.Pending {
+        final Bundle data;
+
+        PendingMessage(long id, String peer, boolean media, Bundle data) {
+            super(id, peer, media);
+            this.data = data;
+        }
+    }
+
+    private static final String[] PENDING_MESSAGES_PROJECTION = {
+        Messages._ID,
+        Messages.MESSAGE_ID,
+        Messages.PEER,
+        Messages.BODY_CONTENT,
+        Messages.BODY_MIME,
+        Messages.SECURITY_FLAGS,
+        Messages.ATTACHMENT_MIME,
+        Messages.ATTACHMENT_LOCAL_URI,
+        Messages.ATTACHMENT_FETCH_URL,
+        Messages.ATTACHMENT_PREVIEW_PATH,
+        Messages.ATTACHMENT_LENGTH,
+        Messages.ATTACHMENT_COMPRESS,
+        // TODO Messages.ATTACHMENT_SECURITY_FLAGS,
+        Groups.GROUP_JID,
+        Groups.SUBJECT,
+    };
 
+    /**
+     * Queries a page of pending messages, ordered by id.
+     * @param after only messages with a greater id
+     * @param groupMembersCache members of groups already resolved
+     */
+    List<PendingMessage> queryPendingMessages(PendingMessageResender.Request request,
+            long after, int count, Map<String, String[]> groupMembersCache) {
+        // using the (direction, status) index
         StringBuilder filter = new StringBuilder()
             .append(Messages.DIRECTION)
             .append('=')
             .append(Messages.DIRECTION_OUT)
             .append(" AND ")
             .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_SENT)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_RECEIVED)
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
-            .append(Messages.STATUS_NOTDELIVERED);
-
-        // filter out pending messages
-        if (!forcePending) filter
-            .append(" AND ")
-            .append(Messages.STATUS)
-            .append("<>")
+            .append(" IN (")
+            .append(Messages.STATUS_SENDING)
+            .append(',')
+            .append(Messages.STATUS_ERROR)
+            .append(',')
+            .append(Messages.STATUS_NOTACCEPTED);
+
+        // include pending messages
+        if (request.forcePending) filter
+            .append(',')
             .append(Messages.STATUS_PENDING);
 
+        filter
+            .append(") AND ")
+            .append(Messages._ID)
+            .append('>')
+            .append(after);
+
         // filter out non-media non-uploaded messages
-        if (retrying) filter
+        if (request.retrying) filter
             .append(" AND ")
             .append(Messages.ATTACHMENT_FETCH_URL)
             .append(" IS NULL AND ")
             .append(Messages.ATTACHMENT_LOCAL_URI)
             .append(" IS NOT NULL");
 
-        if (to != null) {
+        String[] filterArgs = null;
+        if (request.to != null) {
             filter
                 .append(" AND ")
                 .append(Messages.PEER)
                 .append("=?");
-            filterArgs = new String[] { to };
+            filterArgs = new String[] { request.to };
         }
 
-        Cursor c = getContentResolver().query(Messages.CONTENT_URI,
-            new String[]{
-                Messages._ID,
-                Messages.MESSAGE_ID,
-                Messages.PEER,
-                Messages.BODY_CONTENT,
-                Messages.BODY_MIME,
-                Messages.SECURITY_FLAGS,
-                Messages.ATTACHMENT_MIME,
-                Messages.ATTACHMENT_LOCAL_URI,
-                Messages.ATTACHMENT_FETCH_URL,
-                Messages.ATTACHMENT_PREVIEW_PATH,
-                Messages.ATTACHMENT_LENGTH,
-                Messages.ATTACHMENT_COMPRESS,
-                // TODO Messages.ATTACHMENT_SECURITY_FLAGS,
-                Groups.GROUP_JID,
-                Groups.SUBJECT,
-            },
-            filter.toString(), filterArgs,
+        Cursor c = getContentResolver().query(Messages.CONTENT_URI.buildUpon()
+                .appendQueryParameter("limit", String.valueOf(count)).build(),
+            PENDING_MESSAGES_PROJECTION, filter.toString(), filterArgs,
             Messages._ID);
 
-        while (c.moveToNext()) {
-            long id = c.getLong(0);
-            String msgId = c.getString(1);
-            String peer = c.getString(2);
-            byte[] textContent = c.getBlob(3);
-            String bodyMime = c.getString(4);
-            int securityFlags = c.getInt(5);
-            String attMime = c.getString(6);
-            String attFileUri = c.getString(7);
-            String attFetchUrl = c.getString(8);
-            String attPreviewPath = c.getString(9);
-            long attLength = c.getLong(10);
-            int compress = c.getInt(11);
-            // TODO int attSecurityFlags = c.getInt(12);
-
-            String groupJid = c.getString(12); // 13
-            String groupSubject = c.getString(13); // 14
-
-            // orphan group command waiting to be sent
-            if (groupJid == null && GroupCommandComponent.supportsMimeType(bodyMime)) {
-                groupJid = peer;
-            }
-
-            String[] groupMembers = null;
-            if (groupJid != null) {
-                groupMembers = MessagesProviderUtils.getGroupMembers(this, groupJid, 0);
-            }
+        List<PendingMessage> page = new ArrayList<>(c.getCount());
+        while (c.moveToNext())
+            page.add(pendingMessage(c, request.retrying, groupMembersCache));
 
-            // media message encountered and no upload service available - delay message
-            if (attFileUri != null && attFetchUrl == null && getUploadService() == null && !retrying) {
-                Log.w(TAG, "no upload info received yet, delaying media message");
-                continue;
+        c.close();
+        return page;
+    }
+
+    private PendingMessage pendingMessage(Cursor c, boolean retrying, Map<String, String[]> groupMembersCache) {
+        long id = c.getLong(0);
+        String msgId = c.getString(1);
+        String peer = c.getString(2);
+        byte[] textContent = c.getBlob(3);
+        String bodyMime = c.getString(4);
+        int securityFlags = c.getInt(5);
+        String attMime = c.getString(6);
+        String attFileUri = c.getString(7);
+        String attFetchUrl = c.getString(8);
+        String attPreviewPath = c.getString(9);
+        long attLength = c.getLong(10);
+        int compress = c.getInt(11);
+        // TODO int attSecurityFlags = c.getInt(12);
+
+        String groupJid = c.getString(12); // 13
+        String groupSubject = c.getString(13); // 14
+
+        // orphan group command waiting to be sent
+        if (groupJid == null && GroupCommandComponent.supportsMimeType(bodyMime)) {
+            groupJid = peer;
+        }
+
+        // media message encountered and no upload service available - delay message
+        if (attFileUri != null && attFetchUrl == null && getUploadService() == null && !retrying) {
+            Log.w(TAG, "no upload info received yet, delaying media message");
+            return new PendingMessage(id, peer, true, null);
+        }
+
+        String[] groupMembers = null;
+        if (groupJid != null) {
+            // group members are resolved once for all messages to the group
+            groupMembers = groupMembersCache.get(groupJid);
+            if (groupMembers == null) {
+                groupMembers = MessagesProviderUtils.getGroupMembers(this, groupJid, 0);
+                groupMembersCache.put(groupJid, groupMembers);
             }
+        }
 
-            Bundle b = new Bundle();
-            // mark as retrying
-            b.putBoolean("org.kontalk.message.retrying", true);
-
-            b.putLong("org.kontalk.message.msgId", id);
-            b.putString("org.kontalk.message.packetId", msgId);
+        Bundle b = new Bundle();
+        // mark as retrying
+        b.putBoolean("org.kontalk.message.retrying", true);
 
-            if (groupJid != null) {
-                b.putString("org.kontalk.message.group.jid", groupJid);
-                b.putString("org.kontalk.message.group.subject", groupSubject);
-                // will be replaced by the group command (if any)
-                b.putStringArray("org.kontalk.message.to", groupMembers);
-            }
-            else {
-                b.putString("org.kontalk.message.to", peer);
-            }
+        b.putLong("org.kontalk.message.msgId", id);
+        b.putString("org.kontalk.message.packetId", msgId);
 
-            // TODO shouldn't we pass security flags directly here??
-            b.putBoolean("org.kontalk.message.encrypt", securityFlags != Coder.SECURITY_CLEARTEXT);
+        if (groupJid != null) {
+            b.putString("org.kontalk.message.group.jid", groupJid);
+            b.putString("org.kontalk.message.group.subject", groupSubject);
+            // will be replaced by the group command (if any)
+            b.putStringArray("org.kontalk.message.to", groupMembers);
+        }
+        else {
+            b.putString("org.kontalk.message.to", peer);
+        }
 
-            if (GroupCommandComponent.MIME_TYPE.equals(bodyMime)) {
-                int cmd = 0;
-                byte[] _command = c.getBlob(3);
-                String command = new String(_command);
+        // TODO shouldn't we pass security flags directly here??
+        b.putBoolean("org.kontalk.message.encrypt", securityFlags != Coder.SECURITY_CLEARTEXT);
 
-                String[] createMembers;
-                String[] addMembers;
-                String[] removeMembers = null;
-                String subject;
-                if ((createMembers = GroupCommandComponent.getCreateCommandMembers(command)) != null) {
-                    cmd = GROUP_COMMAND_CREATE;
-                    b.putStringArray("org.kontalk.message.to", createMembers);
-                }
-                else if (command.equals(GroupCommandComponent.COMMAND_PART)) {
-                    cmd = GROUP_COMMAND_PART;
-                }
-                else if ((addMembers = GroupCommandComponent.getAddCommandMembers(command)) != null ||
-                        (removeMembers = GroupCommandComponent.getRemoveCommandMembers(command)) != null) {
-                    cmd = GROUP_COMMAND_MEMBERS;
-                    b.putStringArray("org.kontalk.message.group.add", addMembers);
-                    b.putStringArray("org.kontalk.message.group.remove", removeMembers);
-                }
-                else if ((subject = GroupCommandComponent.getSubjectCommand(command)) != null) {
-                    cmd = GROUP_COMMAND_SUBJECT;
-                    b.putString("org.kontalk.message.group.subject", subject);
-                }
+        if (GroupCommandComponent.MIME_TYPE.equals(bodyMime)) {
+            int cmd = 0;
+            byte[] _command = c.getBlob(3);
+            String command = new String(_command);
 
-                b.putInt("org.kontalk.message.group.command", cmd);
+            String[] createMembers;
+            String[] addMembers;
+            String[] removeMembers = null;
+            String subject;
+            if ((createMembers = GroupCommandComponent.getCreateCommandMembers(command)) != null) {
+                cmd = GROUP_COMMAND_CREATE;
+                b.putStringArray("org.kontalk.message.to", createMembers);
             }
-            else if (textContent != null) {
-                b.putString("org.kontalk.message.body", MessageUtils.toString(textContent));
+            else if (command.equals(GroupCommandComponent.COMMAND_PART)) {
+                cmd = GROUP_COMMAND_PART;
             }
-
-            // message has already been uploaded - just send media
-            if (attFetchUrl != null) {
-                b.putString("org.kontalk.message.mime", attMime);
-                b.putString("org.kontalk.message.fetch.url", attFetchUrl);
-                b.putString("org.kontalk.message.preview.uri", attFileUri);
-                b.putString("org.kontalk.message.preview.path", attPreviewPath);
+            else if ((addMembers = GroupCommandComponent.getAddCommandMembers(command)) != null ||
+                    (removeMembers = GroupCommandComponent.getRemoveCommandMembers(command)) != null) {
+                cmd = GROUP_COMMAND_MEMBERS;
+                b.putStringArray("org.kontalk.message.group.add", addMembers);
+                b.putStringArray("org.kontalk.message.group.remove", removeMembers);
             }
-            // check if the message contains some large file to be sent
-            else if (attFileUri != null) {
-                b.putString("org.kontalk.message.mime", attMime);
-                b.putString("org.kontalk.message.media.uri", attFileUri);
-                b.putString("org.kontalk.message.preview.path", attPreviewPath);
-                b.putLong("org.kontalk.message.length", attLength);
-                b.putInt("org.kontalk.message.compress", compress);
+            else if ((subject = GroupCommandComponent.getSubjectCommand(command)) != null) {
+                cmd = GROUP_COMMAND_SUBJECT;
+                b.putString("org.kontalk.message.group.subject", subject);
             }
 
-            Log.v(TAG, "resending pending message " + id);
-            sendMessage(b);
+            b.putInt("org.kontalk.message.group.command", cmd);
+        }
+        else if (textContent != null) {
+            b.putString("org.kontalk.message.body", MessageUtils.toString(textContent));
         }
 
-        c.close();
+        // message has already been uploaded - just send media
+        if (attFetchUrl != null) {
+            b.putString("org.kontalk.message.mime", attMime);
+            b.putString("org.kontalk.message.fetch.url", attFetchUrl);
+            b.putString("org.kontalk.message.preview.uri", attFileUri);
+            b.putString("org.kontalk.message.preview.path", attPreviewPath);
+        }
+        // check if the message contains some large file to be sent
+        else if (attFileUri != null) {
+            b.putString("org.kontalk.message.mime", attMime);
+            b.putString("org.kontalk.message.media.uri", attFileUri);
+            b.putString("org.kontalk.message.preview.path", attPreviewPath);
+            b.putLong("org.kontalk.message.length", attLength);
+            b.putInt("org.kontalk.message.compress", compress);
+        }
+
+        return new PendingMessage(id, peer, attFileUri != null, b);
     }
 
     void resendPendingReceipts() {
@@ -1840,23 +2437,31 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             Messages.STATUS + " = " + Messages.STATUS_INCOMING,
             null, Messages._ID);
 
+        int count = 0;
         while (c.moveToNext()) {
             long id = c.getLong(0);
             String msgId = c.getString(1);
             String peer = c.getString(2);
 
-            Bundle b = new Bundle();
+            mReceipts.queue(new ReceiptBatcher.Receipt(id, msgId, peer));
+            count++;
+        }
 
-            b.putLong("org.kontalk.message.msgId", id);
-            b.putString("org.kontalk.message.packetId", msgId);
-            b.putString("org.kontalk.message.to", peer);
-            b.putString("org.kontalk.message.ack", msgId);
+        c.close();
 
-            Log.v(TAG, "resending pending receipt for message " + id);
-            sendMessage(b);
+        if (count > 0) {
+            Log.v(TAG, "resending " + count + " pending receipts");
+            mReceipts.flush();
         }
+    }
 
-        c.close();
+    /** Marks the given incoming messages as confirmed, in a single update. */
+    private void confirmReceipts(List<Long> ids) {
+        ContentValues values = new ContentValues(1);
+        values.put(Messages.STATUS, Messages.STATUS_CONFIRMED);
+        getContentResolver().update(Messages.CONTENT_URI, values,
+            Messages._ID + " IN (" + TextUtils.join(",", ids) + ") AND " +
+            Messages.DIRECTION + " = " + Messages.DIRECTION_IN, null);
     }
 
     private void sendPendingSubscriptionReplies() {
@@ -1913,9 +2518,17 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         return (roster != null) ? roster.getEntry(jid) : null;
     }
 
+    /**
+     * Returns true if we can send messages to the given user. If the roster
+     * is not loaded yet, the last known roster is used.
+     */
     private boolean isAuthorized(String jid) {
-        RosterEntry entry = getRosterEntry(jid);
-        return (isRosterEntrySubscribed(entry) || Authenticator.isSelfJID(this, jid));
+        if (Authenticator.isSelfJID(this, jid))
+            return true;
+        if (isRosterLoaded())
+            return isRosterEntrySubscribed(getRosterEntry(jid));
+
+        return mRosterStore.isSubscribed(XmppStringUtils.parseBareJid(jid));
     }
 
     private boolean isRosterEntrySubscribed(RosterEntry entry) {
@@ -2087,9 +2700,45 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         sendPacket(p);
     }
 
+    /**
+     * Holds a message until the roster is loaded. Media messages are not
+     * held, they will be sent by the pending messages resend after upload
+     * info has been received.
+     */
+    private void holdMessage(Bundle data) {
+        if (data.getString("org.kontalk.message.media.uri") != null) {
+            Log.d(TAG, "roster not loaded yet, not sending media message");
+        }
+        else if (mHeldMessages.size() >= MAX_HELD_MESSAGES) {
+            Log.d(TAG, "too many messages waiting for roster, not sending message");
+        }
+        else {
+            mHeldMessages.add(data);
+        }
+    }
+
+    /** Sends messages held while waiting for authentication or roster. */
+    void sendHeldMessages() {
+        if (mHeldMessages.isEmpty())
+            return;
+
+        // messages still not allowed will be held again, in the same order
+        List<Bundle> held = new ArrayList<>(mHeldMessages);
+        mHeldMessages.clear();
+        for (Bundle data : held)
+            sendMessage(data);
+    }
+
     private void sendMessage(Bundle data) {
-        if (!isRosterLoaded()) {
-            Log.d(TAG, "roster not loaded yet, not sending message");
+        // we are on the command thread, connection might go away any time
+        KontalkConnection connection = mConnection;
+        if (connection == null)
+            return;
+
+        boolean rosterLoaded = isRosterLoaded();
+        if (!rosterLoaded && !connection.isAuthenticated()) {
+            // will be sent after authentication
+            holdMessage(data);
             return;
         }
 
@@ -2103,7 +2752,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         if (isGroupMsg) {
             toGroup = data.getStringArray("org.kontalk.message.to");
             // TODO this should be discovered first
-            to = mConnection.getServiceName();
+            to = connection.getServiceName();
         }
         else {
             to = data.getString("org.kontalk.message.to");
@@ -2111,11 +2760,16 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         }
 
         if (!isGroupMsg && !isAuthorized(to)) {
+            if (!rosterLoaded) {
+                // not in the last known roster, check again with the live roster
+                holdMessage(data);
+                return;
+            }
+
             Log.i(TAG, "not subscribed to " + to + ", not sending message");
             // warn user: message will not be sent
             if (!retrying && MessagingNotification.isPaused(to)) {
-                Toast.makeText(this, R.string.warn_not_subscribed,
-                    Toast.LENGTH_LONG).show();
+                showToast(R.string.warn_not_subscribed);
             }
             return;
         }
@@ -2128,15 +2782,14 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             Log.w(TAG, "no personal key available - not allowed to send messages");
             // warn user: message will not be sent
             if (MessagingNotification.isPaused(to)) {
-                Toast.makeText(this, R.string.warn_no_personal_key,
-                    Toast.LENGTH_LONG).show();
+                showToast(R.string.warn_no_personal_key);
             }
             return;
         }
 
         // check if message is already pending
         final long msgId = data.getLong("org.kontalk.message.msgId");
-        if (mWaitingReceipt.containsValue(msgId)) {
+        if (mInFlight.isInFlight(msgId, System.currentTimeMillis())) {
             Log.v(TAG, "message already queued and waiting - dropping");
             return;
         }
@@ -2217,7 +2870,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // hold on to message center while we send the message
             mIdleHandler.hold(false);
 
-            Stanza m, originalStanza;
+            Stanza m;
 
             // pre-process message for group delivery
             GroupController group = null;
@@ -2225,7 +2878,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             if (isGroupMsg) {
                 // TODO take type from data
                 group = GroupControllerFactory
-                    .createController(KontalkGroupController.GROUP_TYPE, mConnection, this);
+                    .createController(KontalkGroupController.GROUP_TYPE, connection, this);
 
                 int groupCommandId = data.getInt("org.kontalk.message.group.command", 0);
                 switch (groupCommandId) {
@@ -2279,7 +2932,6 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                 m = new org.jivesoftware.smack.packet.Message();
             }
 
-            originalStanza = m;
             boolean isMessage = (m instanceof org.jivesoftware.smack.packet.Message);
 
             if (to != null) m.setTo(to);
@@ -2287,11 +2939,7 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
             // set message id
             m.setStanzaId(id);
             if (msgId > 0)
-                mWaitingReceipt.put(id, msgId);
-
-            // message server id
-            String serverId = isMessage ? data.getString("org.kontalk.message.ack") : null;
-            boolean ackRequest = isMessage && !data.getBoolean("org.kontalk.message.standalone", false);
+                mInFlight.add(id, msgId, false, System.currentTimeMillis());
 
             if (isMessage) {
                 org.jivesoftware.smack.packet.Message msg = (org.jivesoftware.smack.packet.Message) m;
@@ -2326,86 +2974,147 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     long length = data.getLong("org.kontalk.message.length");
                     m.addExtension(new OutOfBandData(fetchUrl, mime, length, encrypt));
                 }
+            }
 
-                if (encrypt) {
-                    byte[] toMessage = null;
-                    try {
-                        Coder coder = UsersProvider.getEncryptCoder(this, mServer, key, toGroup);
-                        if (coder != null) {
-
-                            // no extensions, create a simple text version to save space
-                            if (m.getExtensions().size() == 0) {
-                                toMessage = coder.encryptText(body);
-                            }
-
-                            // some extension, encrypt whole stanza just to be sure
-                            else {
-                                toMessage = coder.encryptStanza(m.toXML());
-                            }
-
-                            org.jivesoftware.smack.packet.Message encMsg =
-                                new org.jivesoftware.smack.packet.Message(m.getTo(),
-                                    ((org.jivesoftware.smack.packet.Message) m).getType());
-
-                            encMsg.setBody(getString(R.string.text_encrypted));
-                            encMsg.setStanzaId(m.getStanzaId());
-                            encMsg.addExtension(new E2EEncryption(toMessage));
-
-                            // save the unencrypted stanza for later
-                            originalStanza = m;
-                            m = encMsg;
-                        }
-                    }
+            // encrypted in parallel, sent in order for each recipient
+            OutgoingMessageTask task = new OutgoingMessageTask(isGroupMsg ? groupJid : to,
+                to, toGroup, data, m, key, group, groupCommand);
+            OrderedTaskExecutor executor = mOutgoingExecutor;
+            if (executor != null) {
+                try {
+                    executor.submit(task);
+                    return;
+                }
+                catch (RejectedExecutionException e) {
+                    // message center is shutting down
+                }
+            }
+
+            // will be sent again on the next connection
+            if (msgId > 0)
+                mInFlight.remove(id);
+            mIdleHandler.release();
+        }
+    }
+
+    /**
+     * Encrypts an outgoing message and sends it, in order with the other
+     * messages to the same recipient or group.
+     */
+    private final class OutgoingMessageTask extends OrderedTaskExecutor.Task {
+        private final String mKey;
+        private final String mTo;
+        private final String[] mToGroup;
+        private final Bundle mData;
+        private final PersonalKey mPersonalKey;
+        private final EndpointServer mEndpointServer;
+        private final GroupController mGroup;
+        private final GroupCommand mGroupCommand;
+        private final boolean mAckRequest;
+
+        /** The message stanza, replaced by the stanza to send after processing. */
+        private Stanza mStanza;
+        /** True if the message could not be encrypted and must not be sent. */
+        private boolean mDiscarded;
+
+        OutgoingMessageTask(String key, String to, String[] toGroup, Bundle data, Stanza m,
+                PersonalKey personalKey, GroupController group, GroupCommand groupCommand) {
+            mKey = key;
+            mTo = to;
+            mToGroup = toGroup;
+            mData = data;
+            mStanza = m;
+            mPersonalKey = personalKey;
+            mEndpointServer = mServer;
+            mGroup = group;
+            mGroupCommand = groupCommand;
+            mAckRequest = (m instanceof org.jivesoftware.smack.packet.Message) &&
+                !data.getBoolean("org.kontalk.message.standalone", false);
+        }
 
-                    // FIXME there is some very ugly code here
-                    // FIXME notify just once per session (store in Kontalk instance?)
+        @Override
+        protected void process() {
+            Stanza m = mStanza;
+            Stanza originalStanza = m;
+            boolean isMessage = (m instanceof org.jivesoftware.smack.packet.Message);
+            String to = mTo;
+
+            if (isMessage && mData.getBoolean("org.kontalk.message.encrypt")) {
+                byte[] toMessage = null;
+                try {
+                    Coder coder = UsersProvider.getEncryptCoder(MessageCenterService.this,
+                        mEndpointServer, mPersonalKey, mToGroup);
+                    if (coder != null) {
 
-                    catch (IllegalArgumentException noPublicKey) {
-                        // warn user: message will be not sent
-                        if (MessagingNotification.isPaused(to)) {
-                            Toast.makeText(this, R.string.warn_no_public_key,
-                                Toast.LENGTH_LONG).show();
+                        // no extensions, create a simple text version to save space
+                        if (m.getExtensions().size() == 0) {
+                            toMessage = coder.encryptText(mData.getString("org.kontalk.message.body"));
                         }
-                    }
 
-                    catch (GeneralSecurityException e) {
-                        // warn user: message will not be sent
-                        if (MessagingNotification.isPaused(to)) {
-                            Toast.makeText(this, R.string.warn_encryption_failed,
-                                Toast.LENGTH_LONG).show();
+                        // some extension, encrypt whole stanza just to be sure
+                        else {
+                            toMessage = coder.encryptStanza(m.toXML());
                         }
+
+                        org.jivesoftware.smack.packet.Message encMsg =
+                            new org.jivesoftware.smack.packet.Message(m.getTo(),
+                                ((org.jivesoftware.smack.packet.Message) m).getType());
+
+                        encMsg.setBody(getString(R.string.text_encrypted));
+                        encMsg.setStanzaId(m.getStanzaId());
+                        encMsg.addExtension(new E2EEncryption(toMessage));
+
+                        // save the unencrypted stanza for later
+                        originalStanza = m;
+                        m = encMsg;
                     }
+                }
 
-                    if (toMessage == null) {
-                        // message was not encrypted for some reason, mark it pending user review
-                        ContentValues values = new ContentValues(1);
-                        values.put(Messages.STATUS, Messages.STATUS_PENDING);
-                        getContentResolver().update(ContentUris.withAppendedId
-                            (Messages.CONTENT_URI, msgId), values, null, null);
-
-                        // do not send the message
-                        if (msgId > 0)
-                            mWaitingReceipt.remove(id);
-                        mIdleHandler.release();
-                        return;
+                // FIXME there is some very ugly code here
+                // FIXME notify just once per session (store in Kontalk instance?)
+
+                catch (IllegalArgumentException noPublicKey) {
+                    // warn user: message will be not sent
+                    if (MessagingNotification.isPaused(to)) {
+                        showToast(R.string.warn_no_public_key);
+                    }
+                }
+
+                catch (GeneralSecurityException e) {
+                    // warn user: message will not be sent
+                    if (MessagingNotification.isPaused(to)) {
+                        showToast(R.string.warn_encryption_failed);
                     }
                 }
+
+                if (toMessage == null) {
+                    // message was not encrypted for some reason, mark it pending user review
+                    ContentValues values = new ContentValues(1);
+                    values.put(Messages.STATUS, Messages.STATUS_PENDING);
+                    getContentResolver().update(ContentUris.withAppendedId
+                        (Messages.CONTENT_URI, mData.getLong("org.kontalk.message.msgId")), values, null, null);
+
+                    // do not send the message
+                    mDiscarded = true;
+                    return;
+                }
             }
 
             // post-process for group delivery
-            if (isGroupMsg && groupCommand != null) {
-                m = group.afterEncryption(groupCommand, m, originalStanza);
+            if (mGroupCommand != null) {
+                m = mGroup.afterEncryption(mGroupCommand, m, originalStanza);
             }
 
             if (isMessage) {
                 // received receipt
+                String serverId = mData.getString("org.kontalk.message.ack");
                 if (serverId != null) {
                     m.addExtension(new DeliveryReceipt(serverId));
                 }
                 else {
                     ChatState chatState;
                     try {
-                        chatState = ChatState.valueOf(data.getString("org.kontalk.message.chatState"));
+                        chatState = ChatState.valueOf(mData.getString("org.kontalk.message.chatState"));
                         // add chat state if message is not a received receipt
                         if (chatState != null)
                             m.addExtension(new ChatStateExtension(chatState));
@@ -2414,16 +3123,43 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
                     }
 
                     // standalone message: no receipt
-                    if (ackRequest)
+                    if (mAckRequest)
                         DeliveryReceiptRequest.addTo((org.jivesoftware.smack.packet.Message) m);
                 }
             }
 
-            sendPacket(m);
+            mStanza = m;
+        }
+
+        @Override
+        protected String getKey() {
+            return mKey;
+        }
+
+        @Override
+        protected void complete() {
+            IdleConnectionHandler idleHandler = mIdleHandler;
+
+            if (isFailed() || mDiscarded) {
+                if (mData.getLong("org.kontalk.message.msgId") > 0)
+                    mInFlight.remove(mData.getString("org.kontalk.message.packetId"));
+                if (idleHandler != null)
+                    idleHandler.release();
+                return;
+            }
+
+            sendPacket(mStanza);
+
+            long connectStart = mConnectStartTime;
+            if (connectStart > 0) {
+                mConnectStartTime = 0;
+                ConnectionStats.getInstance().firstMessageSent(SystemClock
+                    .elapsedRealtime() - connectStart);
+            }
 
             // no ack request, release message center immediately
-            if (!ackRequest)
-                mIdleHandler.release();
+            if (!mAckRequest && idleHandler != null)
+                idleHandler.release();
         }
     }
 
@@ -2583,14 +3319,24 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
      * inactivity.
      * @param activate true to wake up from CSI and send become available.
      */
-    public static void hold(final Context context, boolean activate) {
+    public static void hold(final Context context, final boolean activate) {
         // increment the application counter
         ((Kontalk) context.getApplicationContext()).hold();
 
-        Intent i = new Intent(context, MessageCenterService.class);
-        i.setAction(ACTION_HOLD);
-        i.putExtra("org.kontalk.activate", activate);
-        context.startService(i);
+        dispatch(context, new Command(ACTION_HOLD) {
+            @Override
+            boolean execute(MessageCenterService service, boolean canConnect) {
+                return service.handleHold(activate);
+            }
+
+            @Override
+            Intent toIntent(Context context) {
+                Intent i = new Intent(context, MessageCenterService.class);
+                i.setAction(ACTION_HOLD);
+                i.putExtra("org.kontalk.activate", activate);
+                return i;
+            }
+        });
     }
 
     /**
@@ -2601,9 +3347,58 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
         // decrement the application counter
         ((Kontalk) context.getApplicationContext()).release();
 
-        Intent i = new Intent(context, MessageCenterService.class);
-        i.setAction(ACTION_RELEASE);
-        context.startService(i);
+        dispatch(context, new Command(ACTION_RELEASE) {
+            @Override
+            boolean execute(MessageCenterService service, boolean canConnect) {
+                return service.handleRelease();
+            }
+
+            @Override
+            Intent toIntent(Context context) {
+                Intent i = new Intent(context, MessageCenterService.class);
+                i.setAction(ACTION_RELEASE);
+                return i;
+            }
+        });
+    }
+
+    /** Requests the last presence of a user, broadcasted as {@link #ACTION_PRESENCE}. */
+    public static void requestPresence(final Context context, final String to) {
+        dispatch(context, new Command(ACTION_PRESENCE) {
+            @Override
+            boolean execute(MessageCenterService service, boolean canConnect) {
+                if (canConnect && service.isConnected())
+                    service.probePresence(to, null);
+                return false;
+            }
+
+            @Override
+            Intent toIntent(Context context) {
+                Intent i = new Intent(context, MessageCenterService.class);
+                i.setAction(ACTION_PRESENCE);
+                i.putExtra(EXTRA_TO, to);
+                i.putExtra(EXTRA_TYPE, Presence.Type.probe.name());
+                return i;
+            }
+        });
+    }
+
+    /** Sends a message, data is in the format of {@link #ACTION_MESSAGE} extras. */
+    private static void dispatchMessage(final Context context, final Bundle data) {
+        dispatch(context, new Command(ACTION_MESSAGE) {
+            @Override
+            boolean execute(MessageCenterService service, boolean canConnect) {
+                return service.handleMessage(data, canConnect);
+            }
+
+            @Override
+            Intent toIntent(Context context) {
+                Intent i = new Intent(context, MessageCenterService.class);
+                i.setAction(ACTION_MESSAGE);
+                i.putExtras(data);
+                return i;
+            }
+        });
     }
 
     /** Broadcasts our presence to the server. */
@@ -2617,26 +3412,24 @@ public class MessageCenterService extends Service implements ConnectionHelperLis
 
     /** Sends a chat state message. */
     public static void sendChatState(final Context context, String to, ChatState state) {
-        Intent i = new Intent(context, MessageCenterService.class);
-        i.setAction(MessageCenterService.ACTION_MESSAGE);
-        i.putExtra("org.kontalk.message.to", to);
-        i.putExtra("org.kontalk.message.chatState", state.name());
-        i.putExtra("org.kontalk.message.standalone", true);
-        context.startService(i);
+        Bundle data = new Bundle();
+        data.putString("org.kontalk.message.to", to);
+        data.putString("org.kontalk.message.chatState", state.name());
+        data.putBoolean("org.kontalk.message.standalone", true);
+        dispatchMessage(context, data);
     }
 
     /** Sends a text message. */
     public static void sendTextMessage(final Context context, String to, String text, boolean encrypt, long msgId, String packetId) {
-        Intent i = new Intent(context, MessageCenterService.class);
-        i.setAction(MessageCenterService.ACTION_MESSAGE);
-        i.putExtra("org.kontalk.message.msgId", msgId);
-        i.putExtra("org.kontalk.message.packetId", packetId);
-        i.putExtra("org.kontalk.message.mime", TextComponent.MIME_TYPE);
-        i.putExtra("org.kontalk.message.to", to);
-        i.putExtra("org.kontalk.message.body", text);
-        i.putExtra("org.kontalk.message.encrypt", encrypt);
-        i.putExtra("org.kontalk.message.chatState", ChatState.active.name());
-        context.startService(i);
+        Bundle data = new Bundle();
+        data.putLong("org.kontalk.message.msgId", msgId);
+        data.putString("org.kontalk.message.packetId", packetId);
+        data.putString("org.kontalk.message.mime", TextComponent.MIME_TYPE);
+        data.putString("org.kontalk.message.to", to);
+        data.putString("org.kontalk.message.body", text);
+        data.putBoolean("org.kontalk.message.encrypt", encrypt);
+        data.putString("org.kontalk.message.chatState", ChatState.active.name());
+        dispatchMessage(context, data);
     }
 
     public static void sendGroupTextMessage(final Context context, String groupJid,
@@ -21,7 +21,7 @@ package org.kontalk.service.msgcenter;
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
-import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -47,6 +47,7 @@ import org.kontalk.client.BitsOfBinary;
 import org.kontalk.client.E2EEncryption;
 import org.kontalk.client.EndpointServer;
 import org.kontalk.client.GroupExtension;
+import org.kontalk.client.KontalkConnection;
 import org.kontalk.client.KontalkGroupManager;
 import org.kontalk.client.OpenPGPSignedMessage;
 import org.kontalk.client.OutOfBandData;
@@ -90,8 +91,30 @@ class MessageListener extends MessageCenterPacketListener {
     private static final String selectionOutgoing = Messages.DIRECTION + "=" + Messages.DIRECTION_OUT;
     private static final String selectionIngoing = Messages.DIRECTION + "=" + Messages.DIRECTION_IN;
 
-    public MessageListener(MessageCenterService instance) {
+    /** Maximum number of incoming messages waiting for a decryption worker. */
+    private static final int MAX_QUEUED_INCOMING = 50;
+
+    /** The connection messages come from. */
+    private final KontalkConnection mConnection;
+    private final OrderedTaskExecutor mIncomingExecutor;
+
+    public MessageListener(MessageCenterService instance, KontalkConnection connection) {
         super(instance);
+        mConnection = connection;
+        PriorityTaskExecutor executor = instance.getTaskExecutor();
+        mIncomingExecutor = executor != null ?
+            new OrderedTaskExecutor(executor.getLaneExecutor(PriorityTaskExecutor.LANE_INCOMING)) :
+            new OrderedTaskExecutor(Runtime.getRuntime().availableProcessors(),
+                MAX_QUEUED_INCOMING, "MessageListener");
+        mIncomingExecutor.setOnDrainedListener(new OrderedTaskExecutor.OnDrainedListener() {
+            @Override
+            public void onDrained(int count, long elapsedMillis) {
+                if (count > 1)
+                    Log.d(TAG, "processed " + count + " incoming messages in " + elapsedMillis + " ms");
+                // backlog drained, send receipts all together
+                flushReceipts();
+            }
+        });
     }
 
     public boolean processGroupMessage(KontalkGroupManager.KontalkGroup group, Stanza packet, CompositeMessage msg)
@@ -150,9 +173,27 @@ class MessageListener extends MessageCenterPacketListener {
 
     @Override
     public void processPacket(Stanza packet) throws SmackException.NotConnectedException {
-        Map<String, Long> waitingReceipt = getWaitingReceiptList();
+        // SM ack was suspended by the connection for this message
+        boolean deferred = false;
+        try {
+            deferred = processMessage((org.jivesoftware.smack.packet.Message) packet);
+        }
+        finally {
+            // we saved the message, restore SM ack
+            // deferred messages will do it when they are stored
+            if (!deferred)
+                resumeSmAck(mConnection);
+        }
+    }
 
-        org.jivesoftware.smack.packet.Message m = (org.jivesoftware.smack.packet.Message) packet;
+    /**
+     * Processes a message stanza.
+     * @return true if the message was handed to the incoming pipeline
+     */
+    private boolean processMessage(org.jivesoftware.smack.packet.Message m) {
+        InFlightTracker inFlight = getInFlightTracker();
+        if (inFlight == null)
+            return false;
 
         if (m.getType() == org.jivesoftware.smack.packet.Message.Type.chat) {
             Intent i = new Intent(ACTION_MESSAGE);
@@ -189,287 +230,335 @@ class MessageListener extends MessageCenterPacketListener {
 
                 // delivery receipt
                 if (deliveryReceipt != null) {
-                    synchronized (waitingReceipt) {
-                        String id = m.getStanzaId();
-                        Long _msgId = waitingReceipt.get(id);
-                        long msgId = (_msgId != null) ? _msgId : 0;
-                        ContentResolver cr = getContext().getContentResolver();
-
-                        // message has been delivered: check if we have previously stored the server id
-                        if (msgId > 0) {
-                            ContentValues values = new ContentValues(3);
-                            values.put(Messages.MESSAGE_ID, deliveryReceipt.getId());
-                            values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                            values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                            cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                                values, selectionOutgoing, null);
-
-                            waitingReceipt.remove(id);
-                        }
-                        else {
-                            // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                            Uri msg = Messages.getUri(deliveryReceipt.getId());
-                            ContentValues values = new ContentValues(2);
-                            values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
-                            values.put(Messages.STATUS_CHANGED, serverTimestamp);
-                            cr.update(msg, values, selectionOutgoing, null);
-                        }
+                    String id = m.getStanzaId();
+                    long msgId = (id != null) ? inFlight.remove(id) : 0;
+                    ContentResolver cr = getContext().getContentResolver();
+
+                    // message has been delivered: check if we have previously stored the server id
+                    if (msgId > 0) {
+                        ContentValues values = new ContentValues(3);
+                        values.put(Messages.MESSAGE_ID, deliveryReceipt.getId());
+                        values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
+                        values.put(Messages.STATUS_CHANGED, serverTimestamp);
+                        cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                            values, selectionOutgoing, null);
+                    }
+                    else {
+                        // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                        Uri msg = Messages.getUri(deliveryReceipt.getId());
+                        ContentValues values = new ContentValues(2);
+                        values.put(Messages.STATUS, Messages.STATUS_RECEIVED);
+                        values.put(Messages.STATUS_CHANGED, serverTimestamp);
+                        cr.update(msg, values, selectionOutgoing, null);
                     }
                 }
 
                 // incoming message
                 else {
-                    String msgId = m.getStanzaId();
-                    if (msgId == null)
-                        msgId = MessageUtils.messageId();
-
-                    String body = m.getBody();
-
-                    // create message
-                    CompositeMessage msg = new CompositeMessage(
-                        getContext(),
-                        msgId,
-                        serverTimestamp,
-                        from,
-                        false,
-                        Coder.SECURITY_CLEARTEXT
-                    );
-
-                    ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
-
-                    if (_encrypted != null && _encrypted instanceof E2EEncryption) {
-                        E2EEncryption mEnc = (E2EEncryption) _encrypted;
-                        byte[] encryptedData = mEnc.getData();
-
-                        // encrypted message
-                        msg.setEncrypted(true);
-                        msg.setSecurityFlags(Coder.SECURITY_BASIC);
-
-                        if (encryptedData != null) {
-
-                            // decrypt message
-                            try {
-                                Message innerStanza = decryptMessage(msg, encryptedData);
-                                if (innerStanza != null) {
-                                    // copy some attributes over
-                                    innerStanza.setTo(m.getTo());
-                                    innerStanza.setFrom(m.getFrom());
-                                    innerStanza.setType(m.getType());
-                                    m = innerStanza;
-                                }
-                            }
-
-                            catch (Exception exc) {
-                                Log.e(MessageCenterService.TAG, "decryption failed", exc);
-
-                                // raw component for encrypted data
-                                // reuse security flags
-                                msg.clearComponents();
-                                msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
-                            }
-
-                        }
+                    // decryption is done in parallel, storage in order for each conversation
+                    try {
+                        mIncomingExecutor.submit(new IncomingMessageTask(m, serverTimestamp));
+                        return true;
+                    }
+                    catch (RejectedExecutionException e) {
+                        // message center is shutting down
+                        Log.w(TAG, "incoming message discarded", e);
                     }
+                }
+            }
+        }
 
-                    else {
+        // error message
+        else if (m.getType() == org.jivesoftware.smack.packet.Message.Type.error) {
+            DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
+
+            // delivery receipt error
+            if (deliveryReceipt != null) {
+                // mark indicated message as incoming and try again
+                Uri msg = Messages.getUri(deliveryReceipt.getId());
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.STATUS, Messages.STATUS_INCOMING);
+                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+                getContext().getContentResolver()
+                    .update(msg, values, selectionIngoing, null);
+
+                // send receipt again
+                sendReceipt(deliveryReceipt.getId(), m.getFrom());
+            }
+
+            String id = m.getStanzaId();
+            long msgId = (id != null) ? inFlight.remove(id) : 0;
+            ContentResolver cr = getContext().getContentResolver();
+
+            // message has been rejected: mark as error
+            if (msgId > 0) {
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
+                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+                cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
+                    values, selectionOutgoing, null);
+
+                // we can now release the message center. Hopefully
+                // there will be one hold and one matching release.
+                release();
+            }
+            else if (id != null) {
+                // FIXME this could lead to fake delivery receipts because message IDs are client-generated
+                Uri msg = Messages.getUri(id);
+                ContentValues values = new ContentValues(2);
+                values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
+                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
+                cr.update(msg, values, selectionOutgoing, null);
+            }
+        }
+
+        return false;
+    }
+
+    /** Decrypts, stores and acknowledges an incoming message. */
+    private final class IncomingMessageTask extends OrderedTaskExecutor.Task {
+        private final String mFrom;
+        private final String mMsgId;
+        private final CompositeMessage mMessage;
+
+        /** The message stanza, replaced by the inner stanza after decryption. */
+        private Message mStanza;
+
+        IncomingMessageTask(Message m, long serverTimestamp) {
+            mStanza = m;
+            mFrom = m.getFrom();
+
+            String msgId = m.getStanzaId();
+            if (msgId == null)
+                msgId = MessageUtils.messageId();
+            mMsgId = msgId;
+
+            // create message
+            mMessage = new CompositeMessage(
+                getContext(),
+                msgId,
+                serverTimestamp,
+                mFrom,
+                false,
+                Coder.SECURITY_CLEARTEXT
+            );
+        }
 
-                        // use message body
-                        if (body != null)
-                            msg.addComponent(new TextComponent(body));
-
-                        // old PGP signature
-                        ExtensionElement _pgpSigned = m.getExtension(OpenPGPSignedMessage.ELEMENT_NAME, OpenPGPSignedMessage.NAMESPACE);
-                        if (_pgpSigned instanceof OpenPGPSignedMessage) {
-                            OpenPGPSignedMessage pgpSigned = (OpenPGPSignedMessage) _pgpSigned;
-                            byte[] signedData = pgpSigned.getData();
-
-                            // signed message
-                            msg.setSecurityFlags(Coder.SECURITY_BASIC_SIGNED);
-
-                            if (signedData != null) {
-                                // check signature
-                                try {
-                                    checkSignedMessage(msg, pgpSigned.getData());
-                                    // at this point our message should be filled with the verified body
-                                }
-
-                                catch (Exception exc) {
-                                    Log.e(MessageCenterService.TAG, "signature check failed", exc);
-                                    // TODO what to do here?
-                                    msg.setSecurityFlags(msg.getSecurityFlags() |
-                                        Coder.SECURITY_ERROR_INVALID_SIGNATURE);
-                                }
-                            }
+        @Override
+        protected void process() {
+            Message m = mStanza;
+            CompositeMessage msg = mMessage;
+            String msgId = mMsgId;
+            String body = m.getBody();
+
+            ExtensionElement _encrypted = m.getExtension(E2EEncryption.ELEMENT_NAME, E2EEncryption.NAMESPACE);
+
+            if (_encrypted != null && _encrypted instanceof E2EEncryption) {
+                E2EEncryption mEnc = (E2EEncryption) _encrypted;
+                byte[] encryptedData = mEnc.getData();
+
+                // encrypted message
+                msg.setEncrypted(true);
+                msg.setSecurityFlags(Coder.SECURITY_BASIC);
+
+                if (encryptedData != null) {
+
+                    // decrypt message
+                    try {
+                        Message innerStanza = decryptMessage(msg, encryptedData);
+                        if (innerStanza != null) {
+                            // copy some attributes over
+                            innerStanza.setTo(m.getTo());
+                            innerStanza.setFrom(m.getFrom());
+                            innerStanza.setType(m.getType());
+                            mStanza = m = innerStanza;
                         }
+                    }
+
+                    catch (Exception exc) {
+                        Log.e(MessageCenterService.TAG, "decryption failed", exc);
 
+                        // raw component for encrypted data
+                        // reuse security flags
+                        msg.clearComponents();
+                        msg.addComponent(new RawComponent(encryptedData, true, msg.getSecurityFlags()));
                     }
 
-                    // out of band data
-                    ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
-                    if (_media instanceof OutOfBandData) {
-                        File previewFile = null;
-
-                        OutOfBandData media = (OutOfBandData) _media;
-                        String mime = media.getMime();
-                        String fetchUrl = media.getUrl();
-                        long length = media.getLength();
-                        boolean encrypted = media.isEncrypted();
-
-                        // bits-of-binary for preview
-                        ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
-                        if (_preview != null && _preview instanceof BitsOfBinary) {
-                            BitsOfBinary preview = (BitsOfBinary) _preview;
-                            String previewMime = preview.getType();
-                            if (previewMime == null)
-                                previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
-
-                            String filename = null;
-
-                            if (ImageComponent.supportsMimeType(mime)) {
-                                filename = ImageComponent.buildMediaFilename(msgId, previewMime);
-                            }
-
-                            else if (VCardComponent.supportsMimeType(mime)) {
-                                filename = VCardComponent.buildMediaFilename(msgId, previewMime);
-                            }
-
-                            try {
-                                if (filename != null) previewFile =
-                                    MediaStorage.writeInternalMedia(getContext(),
-                                        filename, preview.getContents());
-                            }
-                            catch (IOException e) {
-                                Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
-                            }
-                        }
+                }
+            }
 
-                        MessageComponent<?> attachment = null;
+            else {
 
-                        if (ImageComponent.supportsMimeType(mime)) {
-                            msg.clearComponents();
-                            // cleartext only for now
-                            attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
-                                encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
-                        }
+                // use message body
+                if (body != null)
+                    msg.addComponent(new TextComponent(body));
+
+                // old PGP signature
+                ExtensionElement _pgpSigned = m.getExtension(OpenPGPSignedMessage.ELEMENT_NAME, OpenPGPSignedMessage.NAMESPACE);
+                if (_pgpSigned instanceof OpenPGPSignedMessage) {
+                    OpenPGPSignedMessage pgpSigned = (OpenPGPSignedMessage) _pgpSigned;
+                    byte[] signedData = pgpSigned.getData();
 
-                        else if (VCardComponent.supportsMimeType(mime)) {
-                            msg.clearComponents();
-                            // cleartext only for now
-                            attachment = new VCardComponent(previewFile, null, fetchUrl, length,
-                                encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+                    // signed message
+                    msg.setSecurityFlags(Coder.SECURITY_BASIC_SIGNED);
+
+                    if (signedData != null) {
+                        // check signature
+                        try {
+                            checkSignedMessage(msg, pgpSigned.getData());
+                            // at this point our message should be filled with the verified body
                         }
 
-                        else if (AudioComponent.supportsMimeType(mime)) {
-                            msg.clearComponents();
-                            attachment = new AudioComponent(mime, null, fetchUrl, length,
-                                encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+                        catch (Exception exc) {
+                            Log.e(MessageCenterService.TAG, "signature check failed", exc);
+                            // TODO what to do here?
+                            msg.setSecurityFlags(msg.getSecurityFlags() |
+                                Coder.SECURITY_ERROR_INVALID_SIGNATURE);
                         }
+                    }
+                }
 
-                        // TODO other types
+            }
 
-                        if (attachment != null)
-                            msg.addComponent(attachment);
+            // out of band data
+            ExtensionElement _media = m.getExtension(OutOfBandData.ELEMENT_NAME, OutOfBandData.NAMESPACE);
+            if (_media instanceof OutOfBandData) {
+                File previewFile = null;
+
+                OutOfBandData media = (OutOfBandData) _media;
+                String mime = media.getMime();
+                String fetchUrl = media.getUrl();
+                long length = media.getLength();
+                boolean encrypted = media.isEncrypted();
+
+                // bits-of-binary for preview
+                ExtensionElement _preview = m.getExtension(BitsOfBinary.ELEMENT_NAME, BitsOfBinary.NAMESPACE);
+                if (_preview != null && _preview instanceof BitsOfBinary) {
+                    BitsOfBinary preview = (BitsOfBinary) _preview;
+                    String previewMime = preview.getType();
+                    if (previewMime == null)
+                        previewMime = MediaStorage.THUMBNAIL_MIME_NETWORK;
+
+                    String filename = null;
+
+                    if (ImageComponent.supportsMimeType(mime)) {
+                        filename = ImageComponent.buildMediaFilename(msgId, previewMime);
+                    }
 
-                        // add a dummy body if none was found
-                        /*
-                        if (body == null) {
-                            msg.addComponent(new TextComponent(CompositeMessage
-                                .getSampleTextContent((Class<? extends MessageComponent<?>>)
-                                    attachment.getClass(), mime)));
-                        }
-                        */
+                    else if (VCardComponent.supportsMimeType(mime)) {
+                        filename = VCardComponent.buildMediaFilename(msgId, previewMime);
                     }
 
-                    // group chat
-                    KontalkGroupManager.KontalkGroup group = KontalkGroupManager
-                        .getInstanceFor(getConnection()).getGroup(m);
-                    if (group != null && !processGroupMessage(group, m, msg)) {
-                        // invalid group command
-                        Log.w(TAG, "invalid or unauthorized group command");
-                        return;
+                    try {
+                        if (filename != null) previewFile =
+                            MediaStorage.writeInternalMedia(getContext(),
+                                filename, preview.getContents());
                     }
+                    catch (IOException e) {
+                        Log.w(MessageCenterService.TAG, "error storing thumbnail", e);
+                    }
+                }
+
+                MessageComponent<?> attachment = null;
 
-                    boolean needAck = m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
-                    msg.setStatus(needAck ? Messages.STATUS_INCOMING : Messages.STATUS_CONFIRMED);
+                if (ImageComponent.supportsMimeType(mime)) {
+                    msg.clearComponents();
+                    // cleartext only for now
+                    attachment = new ImageComponent(mime, previewFile, null, fetchUrl, length,
+                        encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+                }
 
-                    Uri msgUri = incoming(msg);
+                else if (VCardComponent.supportsMimeType(mime)) {
+                    msg.clearComponents();
+                    // cleartext only for now
+                    attachment = new VCardComponent(previewFile, null, fetchUrl, length,
+                        encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+                }
 
-                    if (needAck) {
-                        // send ack :)
-                        sendReceipt(msgUri, msgId, from, waitingReceipt);
-                    }
+                else if (AudioComponent.supportsMimeType(mime)) {
+                    msg.clearComponents();
+                    attachment = new AudioComponent(mime, null, fetchUrl, length,
+                        encrypted, encrypted ? Coder.SECURITY_BASIC : Coder.SECURITY_CLEARTEXT);
+                }
+
+                // TODO other types
+
+                if (attachment != null)
+                    msg.addComponent(attachment);
 
+                // add a dummy body if none was found
+                /*
+                if (body == null) {
+                    msg.addComponent(new TextComponent(CompositeMessage
+                        .getSampleTextContent((Class<? extends MessageComponent<?>>)
+                            attachment.getClass(), mime)));
                 }
+                */
             }
         }
 
-        // error message
-        else if (m.getType() == org.jivesoftware.smack.packet.Message.Type.error) {
-            DeliveryReceipt deliveryReceipt = DeliveryReceipt.from(m);
-
-            // delivery receipt error
-            if (deliveryReceipt != null) {
-                // mark indicated message as incoming and try again
-                Uri msg = Messages.getUri(deliveryReceipt.getId());
-                ContentValues values = new ContentValues(2);
-                values.put(Messages.STATUS, Messages.STATUS_INCOMING);
-                values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                getContext().getContentResolver()
-                    .update(msg, values, selectionIngoing, null);
+        /**
+         * Group messages are stored in order with the group commands of other
+         * members (e.g. after the group has been created), all other messages
+         * in order for each sender.
+         */
+        @Override
+        protected String getKey() {
+            GroupExtension ext = GroupExtension.from(mStanza);
+            return (ext != null) ? ext.getJID() : XmppStringUtils.parseBareJid(mFrom);
+        }
 
-                // send receipt again
-                sendReceipt(null, deliveryReceipt.getId(), m.getFrom(), waitingReceipt);
+        @Override
+        protected void complete() {
+            if (isFailed()) {
+                // processing failed, nothing to store: just restore SM ack
+                resumeSmAck(mConnection);
+                return;
             }
 
-            synchronized (waitingReceipt) {
-                String id = m.getStanzaId();
-                Long _msgId = waitingReceipt.get(id);
-                long msgId = (_msgId != null) ? _msgId : 0;
-                ContentResolver cr = getContext().getContentResolver();
-
-                // message has been rejected: mark as error
-                if (msgId > 0) {
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(ContentUris.withAppendedId(Messages.CONTENT_URI, msgId),
-                        values, selectionOutgoing, null);
-
-                    waitingReceipt.remove(id);
-
-                    // we can now release the message center. Hopefully
-                    // there will be one hold and one matching release.
-                    release();
+            try {
+                Message m = mStanza;
+                CompositeMessage msg = mMessage;
+
+                // group chat
+                KontalkGroupManager.KontalkGroup group = KontalkGroupManager
+                    .getInstanceFor(mConnection).getGroup(m);
+                if (group != null && !processGroupMessage(group, m, msg)) {
+                    // invalid group command
+                    Log.w(TAG, "invalid or unauthorized group command");
+                    return;
                 }
-                else if (id != null) {
-                    // FIXME this could lead to fake delivery receipts because message IDs are client-generated
-                    Uri msg = Messages.getUri(id);
-                    ContentValues values = new ContentValues(2);
-                    values.put(Messages.STATUS, Messages.STATUS_NOTDELIVERED);
-                    values.put(Messages.STATUS_CHANGED, System.currentTimeMillis());
-                    cr.update(msg, values, selectionOutgoing, null);
+
+                boolean needAck = m.hasExtension(DeliveryReceiptRequest.ELEMENT, DeliveryReceipt.NAMESPACE);
+                msg.setStatus(needAck ? Messages.STATUS_INCOMING : Messages.STATUS_CONFIRMED);
+
+                Uri msgUri = incoming(msg);
+
+                if (needAck && msgUri != null) {
+                    // send ack :)
+                    queueReceipt(new ReceiptBatcher.Receipt(ContentUris.parseId(msgUri), mMsgId, mFrom));
                 }
             }
+            catch (SmackException.NotConnectedException e) {
+                Log.w(TAG, "not connected, group command not processed", e);
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "unable to store incoming message", e);
+            }
+            finally {
+                // we saved the message, restore SM ack
+                resumeSmAck(mConnection);
+            }
         }
-
-        // we saved the message, restore SM ack
-        resumeSmAck();
     }
 
-    private void sendReceipt(Uri msgUri, String msgId, String from, Map<String, Long> waitingReceipt) {
+    /** Sends a delivery receipt right away, without waiting for its ack. */
+    private void sendReceipt(String msgId, String from) {
         DeliveryReceipt receipt = new DeliveryReceipt(msgId);
         org.jivesoftware.smack.packet.Message ack =
             new org.jivesoftware.smack.packet.Message(from,
                 org.jivesoftware.smack.packet.Message.Type.chat);
         ack.addExtension(receipt);
-
-        if (msgUri != null) {
-            // hold on to message center
-            hold(false);
-            // will mark this message as confirmed
-            long storageId = ContentUris.parseId(msgUri);
-            waitingReceipt.put(ack.getStanzaId(), storageId);
-        }
         sendPacket(ack);
     }
 
@@ -0,0 +1,252 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+
+/**
+ * Executes tasks in two stages: a processing stage which runs in parallel on
+ * a bounded worker pool, and a completion stage which runs in submission
+ * order for tasks sharing the same key.<br>
+ * The key of a task is known only after processing (e.g. the group an
+ * encrypted message belongs to), so a task is completed only when all tasks
+ * submitted before it have been processed.<br>
+ * Used for decrypting incoming messages on all cores while keeping database
+ * inserts and receipts in per-conversation order.
+ * @author Daniele Ricci
+ */
+class OrderedTaskExecutor {
+    private static final String TAG = MessageCenterService.TAG;
+
+    /** Workers will be stopped after this idle time. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** A two-stage task. */
+    static abstract class Task {
+        /** Ordering key, set once {@link #process()} has returned. */
+        String mKey;
+        boolean mProcessed;
+        boolean mCompleting;
+        /** True if processing threw an exception. */
+        boolean mFailed;
+
+        /** Processing stage, executed in parallel with other tasks. */
+        protected abstract void process();
+
+        /**
+         * Returns the key this task will be completed in order with. Called
+         * after {@link #process()}.
+         */
+        protected abstract String getKey();
+
+        /**
+         * Completion stage, executed in order with tasks with the same key.
+         * Called also if processing failed, see {@link #isFailed()}.
+         */
+        protected abstract void complete();
+
+        /**
+         * Returns true if {@link #process()} or {@link #getKey()} threw an
+         * exception. Failed tasks are completed in order with tasks without
+         * a key.
+         */
+        protected boolean isFailed() {
+            return mFailed;
+        }
+    }
+
+    /** Notified when all submitted tasks have been completed. */
+    interface OnDrainedListener {
+        void onDrained(int count, long elapsedMillis);
+    }
+
+    private final Executor mExecutor;
+    /** Tasks not completed yet, in submission order. */
+    private final ArrayDeque<Task> mTasks = new ArrayDeque<>();
+
+    private OnDrainedListener mDrainedListener;
+
+    /** Tasks completed since the executor was last idle. */
+    private int mDrainCount;
+    /** Timestamp the executor was last busy from. */
+    private long mDrainStart;
+
+    /**
+     * Creates a new executor.
+     * @param threads number of worker threads
+     * @param maxQueued maximum number of tasks waiting for a worker; when
+     *                  exceeded the submitting thread will process the task
+     *                  itself, slowing down the producer
+     */
+    OrderedTaskExecutor(int threads, int maxQueued, final String name) {
+        this(createExecutor(threads, maxQueued, name));
+    }
+
+    /**
+     * Creates a new executor processing tasks on the given executor.
+     */
+    OrderedTaskExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    private static Executor createExecutor(int threads, int maxQueued, final String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(maxQueued),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, name + "-" + mCount.incrementAndGet());
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    void setOnDrainedListener(OnDrainedListener listener) {
+        mDrainedListener = listener;
+    }
+
+    /**
+     * Submits a task. Exceptions thrown by the task are logged and never
+     * reach the caller, even if the task is processed by the calling thread.
+     * @throws RejectedExecutionException if the task can't be executed; it
+     * will never be processed nor completed
+     */
+    void submit(final Task task) {
+        synchronized (mTasks) {
+            if (mTasks.isEmpty()) {
+                mDrainStart = System.currentTimeMillis();
+                mDrainCount = 0;
+            }
+            mTasks.add(task);
+        }
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    String key = null;
+                    boolean failed = false;
+                    try {
+                        task.process();
+                        key = task.getKey();
+                    }
+                    catch (RuntimeException e) {
+                        Log.e(TAG, "task processing failed", e);
+                        key = null;
+                        failed = true;
+                    }
+
+                    synchronized (mTasks) {
+                        task.mKey = key;
+                        task.mFailed = failed;
+                        task.mProcessed = true;
+                    }
+                    completeReady();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (mTasks) {
+                mTasks.remove(task);
+            }
+            // tasks submitted after this one might be waiting for it
+            completeReady();
+            throw e;
+        }
+    }
+
+    /** Runs the completion stage of all tasks that can be completed. */
+    private void completeReady() {
+        while (true) {
+            Task task = null;
+            synchronized (mTasks) {
+                // keys of tasks not completed yet
+                Set<String> busy = new HashSet<>();
+                for (Task t : mTasks) {
+                    // any key could come out of this one
+                    if (!t.mProcessed)
+                        break;
+
+                    if (t.mCompleting || busy.contains(t.mKey)) {
+                        busy.add(t.mKey);
+                    }
+                    else {
+                        task = t;
+                        task.mCompleting = true;
+                        break;
+                    }
+                }
+            }
+
+            if (task == null)
+                return;
+
+            try {
+                task.complete();
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "task completion failed", e);
+            }
+            finally {
+                int drainCount = 0;
+                long drainStart = 0;
+
+                synchronized (mTasks) {
+                    mTasks.remove(task);
+                    mDrainCount++;
+                    if (mTasks.isEmpty()) {
+                        drainCount = mDrainCount;
+                        drainStart = mDrainStart;
+                    }
+                }
+
+                OnDrainedListener listener = mDrainedListener;
+                if (drainCount > 0 && listener != null)
+                    listener.onDrained(drainCount, System.currentTimeMillis() - drainStart);
+            }
+        }
+    }
+
+    /** Returns the number of tasks submitted but not completed yet. */
+    int getPendingCount() {
+        synchronized (mTasks) {
+            return mTasks.size();
+        }
+    }
+
+}
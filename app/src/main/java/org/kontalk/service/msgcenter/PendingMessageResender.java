@@ -0,0 +1,326 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.kontalk.client.ConnectionStats;
+
+
+/**
+ * Resends pending outgoing messages in pages, so a large backlog doesn't
+ * stall the command thread. Messages are loaded in the order they were
+ * written; in each page they are interleaved by recipient, so a long queue
+ * for one conversation doesn't delay the others, and conversations waiting
+ * on a text message go before those waiting on media. Messages to the same
+ * recipient are always sent in order.<br>
+ * The number of messages waiting for a server ack is bounded: when the
+ * window is full, sending is resumed by stream management acks.<br>
+ * All methods except {@link #acked()} must be called from the thread
+ * steps are posted to.
+ * @author Daniele Ricci
+ */
+class PendingMessageResender {
+
+    /** Messages loaded from the database at a time. */
+    static final int PAGE_SIZE = 50;
+    /** Maximum number of messages waiting for a server ack. */
+    static final int MAX_IN_FLIGHT = 250;
+    /** Check the window again if no ack is received in this time. */
+    static final long ACK_WAIT = TimeUnit.SECONDS.toMillis(30);
+
+    /** A pending message. */
+    static class Pending {
+        final long id;
+        /** Recipient or group JID. */
+        final String peer;
+        final boolean media;
+
+        Pending(long id, String peer, boolean media) {
+            this.id = id;
+            this.peer = peer;
+            this.media = media;
+        }
+    }
+
+    /** Which pending messages should be resent. */
+    static final class Request {
+        /** Only media messages waiting for upload. */
+        final boolean retrying;
+        /** Include messages pending user review. */
+        final boolean forcePending;
+        /** Only messages to this recipient, null for all. */
+        final String to;
+
+        Request(boolean retrying, boolean forcePending, String to) {
+            this.retrying = retrying;
+            this.forcePending = forcePending;
+            this.to = to;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Request))
+                return false;
+            Request other = (Request) o;
+            return retrying == other.retrying && forcePending == other.forcePending &&
+                (to != null ? to.equals(other.to) : other.to == null);
+        }
+
+        @Override
+        public int hashCode() {
+            return (retrying ? 1 : 0) + (forcePending ? 2 : 0) + (to != null ? to.hashCode() * 31 : 0);
+        }
+    }
+
+    interface Source {
+        /**
+         * Returns at most <code>count</code> pending messages with id greater
+         * than <code>after</code>, ordered by id.
+         */
+        List<? extends Pending> query(Request request, long after, int count);
+    }
+
+    interface Sender {
+        boolean isConnected();
+
+        void send(Pending msg);
+
+        /** Number of sent messages still waiting for a server ack. */
+        int getInFlightCount();
+
+        /** Runs the given step later, optionally after a delay in milliseconds. */
+        void post(Runnable step, long delay);
+    }
+
+    private final Source mSource;
+    private final Sender mSender;
+    private final int mPageSize;
+    private final int mMaxInFlight;
+
+    private final LinkedList<Request> mRequests = new LinkedList<>();
+
+    private Request mCurrent;
+    private long mLastId;
+    private final ArrayDeque<Pending> mPage = new ArrayDeque<>();
+    private boolean mPageLoaded;
+    private long mStartTime;
+    private int mSentCount;
+
+    /** Guarded by this. */
+    private boolean mScheduled;
+    private boolean mWaitingAck;
+
+    private long mWaitCount;
+    private final ConnectionStats.Histogram mDrainTime =
+        new ConnectionStats.Histogram("pending messages drain time", "ms");
+
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PendingMessageResender.this) {
+                mScheduled = false;
+            }
+            step();
+        }
+    };
+
+    private final Runnable mAckTimeout = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PendingMessageResender.this) {
+                if (!mWaitingAck)
+                    return;
+                mWaitingAck = false;
+            }
+            step();
+        }
+    };
+
+    PendingMessageResender(Source source, Sender sender) {
+        this(source, sender, PAGE_SIZE, MAX_IN_FLIGHT);
+    }
+
+    PendingMessageResender(Source source, Sender sender, int pageSize, int maxInFlight) {
+        mSource = source;
+        mSender = sender;
+        mPageSize = pageSize;
+        mMaxInFlight = maxInFlight;
+    }
+
+    /**
+     * Queues a resend. If the same resend is already running, it will start
+     * over, since messages sent on a lost connection must be sent again.
+     */
+    void resend(Request request) {
+        if (request.equals(mCurrent)) {
+            restart();
+        }
+        else if (!mRequests.contains(request)) {
+            mRequests.add(request);
+        }
+        schedule();
+    }
+
+    /** Forgets all queued resends. */
+    void cancel() {
+        mRequests.clear();
+        mCurrent = null;
+        mPage.clear();
+        mPageLoaded = false;
+    }
+
+    /** A sent message has been acked by the server. */
+    void acked() {
+        synchronized (this) {
+            if (!mWaitingAck || mSender.getInFlightCount() >= mMaxInFlight)
+                return;
+            mWaitingAck = false;
+        }
+        schedule();
+    }
+
+    boolean isRunning() {
+        return mCurrent != null || !mRequests.isEmpty();
+    }
+
+    private void restart() {
+        mLastId = 0;
+        mPage.clear();
+        mPageLoaded = false;
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (mScheduled)
+                return;
+            mScheduled = true;
+        }
+        mSender.post(mStep, 0);
+    }
+
+    void step() {
+        while (true) {
+            if (mCurrent == null) {
+                mCurrent = mRequests.poll();
+                if (mCurrent == null)
+                    return;
+
+                restart();
+                mStartTime = System.nanoTime();
+                mSentCount = 0;
+            }
+
+            if (!mSender.isConnected()) {
+                cancel();
+                return;
+            }
+
+            if (mPage.isEmpty()) {
+                if (mPageLoaded) {
+                    // page done: give way to other commands
+                    mPageLoaded = false;
+                    schedule();
+                    return;
+                }
+
+                List<? extends Pending> page = mSource.query(mCurrent, mLastId, mPageSize);
+                if (page.isEmpty()) {
+                    finished();
+                    continue;
+                }
+
+                mLastId = page.get(page.size() - 1).id;
+                interleave(page, mPage);
+                mPageLoaded = true;
+            }
+
+            synchronized (this) {
+                if (mSender.getInFlightCount() >= mMaxInFlight) {
+                    // will be resumed by acks
+                    mWaitingAck = true;
+                    mWaitCount++;
+                    mSender.post(mAckTimeout, ACK_WAIT);
+                    return;
+                }
+            }
+
+            mSender.send(mPage.poll());
+            mSentCount++;
+        }
+    }
+
+    private void finished() {
+        mDrainTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStartTime));
+        mCurrent = null;
+    }
+
+    int getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * Round-robins messages by recipient, keeping the order for each recipient.
+     * In each round, recipients whose next message is text go first.
+     */
+    static void interleave(List<? extends Pending> page, ArrayDeque<Pending> out) {
+        Map<String, ArrayDeque<Pending>> byPeer = new LinkedHashMap<>();
+        for (Pending msg : page) {
+            ArrayDeque<Pending> queue = byPeer.get(msg.peer);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                byPeer.put(msg.peer, queue);
+            }
+            queue.add(msg);
+        }
+
+        List<Pending> media = new ArrayList<>();
+        while (!byPeer.isEmpty()) {
+            for (Iterator<ArrayDeque<Pending>> it = byPeer.values().iterator(); it.hasNext(); ) {
+                ArrayDeque<Pending> queue = it.next();
+                Pending msg = queue.poll();
+                if (msg.media)
+                    media.add(msg);
+                else
+                    out.add(msg);
+                if (queue.isEmpty())
+                    it.remove();
+            }
+            out.addAll(media);
+            media.clear();
+        }
+    }
+
+    void dump(PrintWriter out) {
+        synchronized (this) {
+            out.println("Pending messages resend: " + (isRunning() ? "running" : "idle") +
+                ", " + mWaitCount + " waits for acks");
+        }
+        mDrainTime.dump(out);
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Collects presence stanzas for a short time window, keeping only the
+ * latest one for each sender, and hands them over in a single batch.
+ * Used to absorb the presence flood coming from the roster at login.
+ * @author Daniele Ricci
+ */
+class PresenceCoalescer<T> {
+
+    /** Time window for collecting presences, in milliseconds. */
+    static final long WINDOW = 500;
+    /** A batch is flushed immediately when reaching this size. */
+    static final int MAX_BATCH = 250;
+
+    /** Receives batches of presences. */
+    interface Sink<T> {
+        /** Runs the given flush command after the given delay in milliseconds. */
+        void post(Runnable flush, long delay);
+
+        /** Processes a batch of presences, in the order they were last received. */
+        void flush(List<T> presences);
+    }
+
+    private final Sink<T> mSink;
+    private final long mWindow;
+    private final int mMaxBatch;
+
+    /** Latest presence by sender. Guarded by this. */
+    private Map<String, T> mPending = new LinkedHashMap<>();
+    private boolean mScheduled;
+
+    private int mReceivedCount;
+    private int mFlushedCount;
+    private int mBatchCount;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    PresenceCoalescer(Sink<T> sink) {
+        this(sink, WINDOW, MAX_BATCH);
+    }
+
+    PresenceCoalescer(Sink<T> sink, long window, int maxBatch) {
+        mSink = sink;
+        mWindow = window;
+        mMaxBatch = maxBatch;
+    }
+
+    /**
+     * Queues a presence, superseding any presence still waiting from the
+     * same sender.
+     * @param from sender full JID
+     */
+    public void submit(String from, T presence) {
+        boolean schedule, full;
+        synchronized (this) {
+            // move the sender to the end of the queue
+            mPending.remove(from);
+            mPending.put(from, presence);
+            mReceivedCount++;
+
+            full = mPending.size() == mMaxBatch;
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+
+        if (full)
+            mSink.post(mFlush, 0);
+        else if (schedule)
+            mSink.post(mFlush, mWindow);
+    }
+
+    /** Hands over all waiting presences to the sink. */
+    public void flush() {
+        List<T> batch;
+        synchronized (this) {
+            mScheduled = false;
+            if (mPending.isEmpty())
+                return;
+
+            batch = new ArrayList<>(mPending.values());
+            mPending = new LinkedHashMap<>();
+            mFlushedCount += batch.size();
+            mBatchCount++;
+        }
+
+        mSink.flush(batch);
+    }
+
+    /** Number of presences received so far. */
+    public synchronized int getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /** Number of presences actually processed, after coalescing. */
+    public synchronized int getFlushedCount() {
+        return mFlushedCount;
+    }
+
+    /** Number of batches processed so far. */
+    public synchronized int getBatchCount() {
+        return mBatchCount;
+    }
+
+}
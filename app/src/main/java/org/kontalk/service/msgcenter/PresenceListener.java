@@ -19,6 +19,10 @@
 package org.kontalk.service.msgcenter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.packet.ExtensionElement;
@@ -32,10 +36,14 @@ import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPublicKey;
 import org.spongycastle.openpgp.PGPPublicKeyRing;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.RemoteException;
 import android.util.Log;
 
 import org.kontalk.client.PublicKeyPresence;
@@ -51,9 +59,12 @@ import org.kontalk.ui.MessagingNotification;
 import org.kontalk.util.Preferences;
 
 import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PRESENCE;
+import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_PRESENCES;
 import static org.kontalk.service.msgcenter.MessageCenterService.ACTION_SUBSCRIBED;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_FROM;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PACKET_ID;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_JIDLIST;
+import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PRESENCES;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_PRIORITY;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_ROSTER_NAME;
 import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SHOW;
@@ -72,6 +83,39 @@ import static org.kontalk.service.msgcenter.MessageCenterService.EXTRA_SUBSCRIBE
  */
 class PresenceListener extends MessageCenterPacketListener {
 
+    /** Delay before checking fingerprints advertised in presence stanzas. */
+    private static final long KEY_CHECK_DELAY = 1000;
+
+    /** Fingerprints waiting to be checked, by bare JID. */
+    private final Map<String, String> mPendingKeyChecks = new HashMap<>();
+
+    private final Runnable mKeyChecks = new Runnable() {
+        @Override
+        public void run() {
+            checkKeys();
+        }
+    };
+
+    private final Runnable mScheduleKeyChecks = new Runnable() {
+        @Override
+        public void run() {
+            queueKeyChecks();
+        }
+    };
+
+    private final PresenceCoalescer<Presence> mPresences = new PresenceCoalescer<>(
+        new PresenceCoalescer.Sink<Presence>() {
+            @Override
+            public void post(Runnable flush, long delay) {
+                postPresences(flush, delay);
+            }
+
+            @Override
+            public void flush(List<Presence> presences) {
+                processPresences(presences);
+            }
+        });
+
     public PresenceListener(MessageCenterService instance) {
         super(instance);
     }
@@ -269,33 +313,146 @@ class PresenceListener extends MessageCenterPacketListener {
         resendPending(false, true, from);
     }
 
-    private void handlePresence(final Presence p) {
-        queueTask(new Runnable() {
+    private void handlePresence(Presence p) {
+        // peer state changed, cached information might be outdated
+        invalidateIqResponses(p.getFrom());
+        // a newer presence from the same resource supersedes this one
+        mPresences.submit(p.getFrom(), p);
+    }
+
+    /** Schedules a coalesced presence batch on the presence lane. */
+    private void postPresences(final Runnable flush, long delay) {
+        final Runnable task = new Runnable() {
             @Override
             public void run() {
-                updateUsersDatabase(p);
-
-                // request the new key if fingerprint changed
-                String newFingerprint = PublicKeyPresence.getFingerprint(p);
-                if (newFingerprint != null) {
-                    String jid = XmppStringUtils.parseBareJid(p.getFrom());
-                    PGPPublicKeyRing pubRing = UsersProvider.getPublicKey(getContext(),
-                        jid, false);
-                    if (pubRing != null) {
-                        String oldFingerprint = PGP.getFingerprint(PGP.getMasterKey(pubRing));
-                        if (!newFingerprint.equalsIgnoreCase(oldFingerprint)) {
-                            MessageCenterService.requestPublicKey(getContext(), jid);
-                        }
-                    }
-                }
+                queueTask(PriorityTaskExecutor.LANE_PRESENCE, "presences", flush);
+            }
+        };
 
-                Intent i = createIntent(getContext(), p, getRosterEntry(p.getFrom()));
-                sendBroadcast(i);
+        MessageCenterService instance = getInstance();
+        Handler handler = (instance != null) ? instance.mHandler : null;
+        if (handler != null && delay > 0)
+            handler.postDelayed(task, delay);
+        else
+            task.run();
+    }
+
+    /**
+     * Processes a batch of presences: users database is updated in a single
+     * transaction and presences are broadcasted as a single event.
+     */
+    private void processPresences(List<Presence> presences) {
+        Context ctx = getContext();
+        if (ctx == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>(presences.size());
+        for (Presence p : presences) {
+            ops.add(ContentProviderOperation.newUpdate(Users.CONTENT_URI)
+                .withValues(createUsersValues(p, now))
+                .withSelection(Users.JID + "=?", new String[] { XmppStringUtils.parseBareJid(p.getFrom()) })
+                .build());
+        }
+
+        try {
+            ctx.getContentResolver().applyBatch(UsersProvider.AUTHORITY, ops);
+        }
+        catch (RemoteException | OperationApplicationException e) {
+            Log.w(MessageCenterService.TAG, "unable to update users database", e);
+        }
+
+        ArrayList<Intent> intents = new ArrayList<>(presences.size());
+        String[] jids = new String[presences.size()];
+        for (int i = 0; i < jids.length; i++) {
+            Presence p = presences.get(i);
+            jids[i] = p.getFrom();
+
+            // request the new key if fingerprint changed
+            String newFingerprint = PublicKeyPresence.getFingerprint(p);
+            if (newFingerprint != null) {
+                queueKeyCheck(XmppStringUtils.parseBareJid(p.getFrom()), newFingerprint);
             }
-        });
+
+            intents.add(createIntent(ctx, p, getRosterEntry(p.getFrom()),
+                getLastSeen(p, now)));
+        }
+
+        Intent i = new Intent(ACTION_PRESENCES);
+        i.putExtra(EXTRA_JIDLIST, jids);
+        i.putParcelableArrayListExtra(EXTRA_PRESENCES, intents);
+        sendBroadcast(i);
+    }
+
+    /**
+     * Queues a check of the stored key fingerprint against the advertised one.
+     * Checks are batched so a presence flood results in a single query.
+     */
+    private void queueKeyCheck(String jid, String fingerprint) {
+        boolean schedule;
+        synchronized (mPendingKeyChecks) {
+            schedule = mPendingKeyChecks.isEmpty();
+            mPendingKeyChecks.put(jid, fingerprint);
+        }
+
+        if (schedule) {
+            MessageCenterService instance = getInstance();
+            Handler handler = (instance != null) ? instance.mHandler : null;
+            if (handler != null)
+                handler.postDelayed(mScheduleKeyChecks, KEY_CHECK_DELAY);
+            else
+                queueKeyChecks();
+        }
+    }
+
+    private void queueKeyChecks() {
+        queueTask(PriorityTaskExecutor.LANE_HOUSEKEEPING, "keyChecks", mKeyChecks);
+    }
+
+    /** Requests public keys of users whose stored fingerprint differs from the advertised one. */
+    private void checkKeys() {
+        Map<String, String> advertised;
+        synchronized (mPendingKeyChecks) {
+            if (mPendingKeyChecks.isEmpty())
+                return;
+            advertised = new HashMap<>(mPendingKeyChecks);
+            mPendingKeyChecks.clear();
+        }
+
+        Context ctx = getContext();
+        if (ctx == null)
+            return;
+
+        Map<String, String> stored = UsersProvider.getFingerprints(ctx,
+            advertised.keySet().toArray(new String[advertised.size()]), false);
+
+        PublicKeyRefresher refresher = getKeyRefresher();
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> e : advertised.entrySet()) {
+            if (refresher != null)
+                refresher.advertised(e.getKey(), e.getValue());
+
+            String oldFingerprint = stored.get(e.getKey());
+            // we never received a key from this user: don't ask for it
+            if (oldFingerprint != null && !oldFingerprint.equalsIgnoreCase(e.getValue()))
+                changed.add(e.getKey());
+        }
+
+        if (changed.size() > 0 && refresher != null) {
+            refresher.refresh(changed, null, true, System.currentTimeMillis());
+            Log.v(MessageCenterService.TAG, "requested " + changed.size() + " changed public keys");
+        }
     }
 
     public static Intent createIntent(Context ctx, Presence p, RosterEntry entry) {
+        return createIntent(ctx, p, entry, 0);
+    }
+
+    /**
+     * Creates a presence broadcast.
+     * @param lastSeen the last seen time if already known, 0 to look it up
+     */
+    static Intent createIntent(Context ctx, Presence p, RosterEntry entry, long lastSeen) {
         Intent i = new Intent(ACTION_PRESENCE);
         Presence.Type type = p.getType();
         i.putExtra(EXTRA_TYPE, type != null ? type.name() : Presence.Type.available.name());
@@ -315,6 +472,9 @@ class PresenceListener extends MessageCenterPacketListener {
         if (delay != null) {
             timestamp = delay.getStamp().getTime();
         }
+        else if (lastSeen > 0) {
+            timestamp = lastSeen;
+        }
         else {
             // try last seen from database
             timestamp = UsersProvider.getLastSeen(ctx, jid);
@@ -346,10 +506,22 @@ class PresenceListener extends MessageCenterPacketListener {
         return i;
     }
 
-    private int updateUsersDatabase(Presence p) {
-        String jid = XmppStringUtils.parseBareJid(p.getFrom());
+    /** Returns the last seen time we just stored for the given presence, 0 if none. */
+    private static long getLastSeen(Presence p, long now) {
+        DelayInformation delay = p.getExtension(DelayInformation.ELEMENT, DelayInformation.NAMESPACE);
+        if (delay != null) {
+            // delay from presence (rare)
+            return delay.getStamp().getTime();
+        }
+        else if (p.isAvailable()) {
+            // logged in now
+            return now;
+        }
+        return 0;
+    }
 
-        ContentValues values = new ContentValues(4);
+    private static ContentValues createUsersValues(Presence p, long now) {
+        ContentValues values = new ContentValues(3);
         values.put(Users.REGISTERED, 1);
 
         // status
@@ -359,31 +531,13 @@ class PresenceListener extends MessageCenterPacketListener {
         else
             values.putNull(Users.STATUS);
 
-        // delay
-        long timestamp = 0;
-        DelayInformation delay = p.getExtension(DelayInformation.ELEMENT, DelayInformation.NAMESPACE);
-        if (delay != null) {
-            // delay from presence (rare)
-            timestamp = delay.getStamp().getTime();
-        }
-        else if (p.isAvailable()) {
-            // logged in now
-            timestamp = System.currentTimeMillis();
-        }
-
+        long timestamp = getLastSeen(p, now);
         if (timestamp > 0)
             values.put(Users.LAST_SEEN, timestamp);
 
-        // public key extension (for fingerprint)
-        PublicKeyPresence pkey = p.getExtension(PublicKeyPresence.ELEMENT_NAME, PublicKeyPresence.NAMESPACE);
-        if (pkey != null) {
-            String fingerprint = pkey.getFingerprint();
-            if (fingerprint != null)
-                values.put(Users.FINGERPRINT, fingerprint);
-        }
+        // fingerprint is not stored here: it must always match the stored public key
 
-        return getContext().getContentResolver().update(Users.CONTENT_URI,
-            values, Users.JID + "=?", new String[] { jid });
+        return values;
     }
 
 }
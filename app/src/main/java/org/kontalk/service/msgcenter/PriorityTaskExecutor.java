@@ -0,0 +1,298 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.kontalk.client.ConnectionStats;
+
+
+/**
+ * A bounded executor with priority lanes. Workers always pick the task from
+ * the most important lane, unless a task in a less important lane has been
+ * waiting for too long.<br>
+ * Each lane has a maximum queue depth; when exceeded the submitting thread
+ * will run the task itself, slowing down the producer. Tasks submitted with
+ * a key replace a task with the same key still waiting in the same lane
+ * (e.g. presence updates from the same user).
+ * @author Daniele Ricci
+ */
+class PriorityTaskExecutor {
+
+    static final int LANE_OUTGOING = 0;
+    static final int LANE_RECEIPTS = 1;
+    static final int LANE_INCOMING = 2;
+    static final int LANE_PRESENCE = 3;
+    static final int LANE_HOUSEKEEPING = 4;
+
+    static final String[] LANE_NAMES = {
+        "outgoing", "receipts", "incoming", "presence", "housekeeping",
+    };
+
+    /** Workers will be stopped after this idle time. */
+    private static final long KEEP_ALIVE = TimeUnit.SECONDS.toNanos(30);
+    /** Tasks waiting longer than this are run regardless of their lane. */
+    static final long STARVATION_TIME = TimeUnit.SECONDS.toNanos(2);
+
+    private static final class Entry {
+        final String key;
+        Runnable task;
+        final long enqueued;
+
+        Entry(String key, Runnable task, long enqueued) {
+            this.key = key;
+            this.task = task;
+            this.enqueued = enqueued;
+        }
+    }
+
+    private static final class Lane {
+        final int maxQueued;
+        final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        final Map<String, Entry> keys = new HashMap<>();
+
+        final ConnectionStats.Histogram queueWait;
+        final ConnectionStats.Histogram runTime;
+        long coalesced;
+        long callerRuns;
+        int maxDepth;
+
+        Lane(String name, int maxQueued) {
+            this.maxQueued = maxQueued;
+            queueWait = new ConnectionStats.Histogram(name + " queue wait", "ms");
+            runTime = new ConnectionStats.Histogram(name + " run time", "ms");
+        }
+    }
+
+    private final String mName;
+    private final int mMaxThreads;
+    private final Lane[] mLanes;
+
+    private int mThreads;
+    private int mIdleThreads;
+    private int mThreadCount;
+    private boolean mShutdown;
+
+    /**
+     * Creates a new executor.
+     * @param threads maximum number of worker threads
+     * @param maxQueued maximum number of tasks waiting in each lane
+     */
+    PriorityTaskExecutor(int threads, int[] maxQueued, String name) {
+        mName = name;
+        mMaxThreads = threads;
+        mLanes = new Lane[LANE_NAMES.length];
+        for (int i = 0; i < mLanes.length; i++)
+            mLanes[i] = new Lane(LANE_NAMES[i], maxQueued[i]);
+    }
+
+    boolean execute(int lane, Runnable task) {
+        return execute(lane, null, task);
+    }
+
+    /**
+     * Queues a task in the given lane.
+     * @param key if not null, a task with the same key waiting in the lane
+     *            will be replaced by this one
+     * @return false if the executor has been shut down
+     */
+    boolean execute(int lane, String key, Runnable task) {
+        Lane l = mLanes[lane];
+        synchronized (this) {
+            if (mShutdown)
+                return false;
+
+            if (key != null) {
+                Entry queued = l.keys.get(key);
+                if (queued != null) {
+                    queued.task = task;
+                    l.coalesced++;
+                    return true;
+                }
+            }
+
+            if (l.queue.size() < l.maxQueued) {
+                Entry entry = new Entry(key, task, System.nanoTime());
+                l.queue.add(entry);
+                if (key != null)
+                    l.keys.put(key, entry);
+                l.maxDepth = Math.max(l.maxDepth, l.queue.size());
+
+                if (mIdleThreads > 0)
+                    notify();
+                else if (mThreads < mMaxThreads)
+                    startWorker();
+                return true;
+            }
+
+            l.callerRuns++;
+        }
+
+        // lane is full: run it ourselves
+        l.queueWait.record(0);
+        run(l, task);
+        return true;
+    }
+
+    /**
+     * Returns an executor queueing tasks in the given lane. Tasks are
+     * rejected with {@link RejectedExecutionException} after shutdown.
+     */
+    Executor getLaneExecutor(final int lane) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (!PriorityTaskExecutor.this.execute(lane, command))
+                    throw new RejectedExecutionException(mName + " has been shut down");
+            }
+        };
+    }
+
+    /** Discards all queued tasks and interrupts the workers. */
+    synchronized void shutdownNow() {
+        mShutdown = true;
+        for (Lane l : mLanes) {
+            l.queue.clear();
+            l.keys.clear();
+        }
+        notifyAll();
+    }
+
+    synchronized int getQueueDepth(int lane) {
+        return mLanes[lane].queue.size();
+    }
+
+    private void startWorker() {
+        mThreads++;
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, mName + "-" + (++mThreadCount));
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        t.start();
+    }
+
+    private void work() {
+        try {
+            while (true) {
+                Lane lane;
+                Entry entry;
+                synchronized (this) {
+                    entry = null;
+                    lane = null;
+                    long idleSince = System.nanoTime();
+                    while (!mShutdown) {
+                        lane = nextLane(System.nanoTime());
+                        if (lane != null)
+                            break;
+
+                        long remaining = KEEP_ALIVE - (System.nanoTime() - idleSince);
+                        if (remaining <= 0)
+                            break;
+                        mIdleThreads++;
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        }
+                        catch (InterruptedException e) {
+                            break;
+                        }
+                        finally {
+                            mIdleThreads--;
+                        }
+                    }
+
+                    if (lane == null || mShutdown)
+                        return;
+
+                    entry = lane.queue.poll();
+                    if (entry.key != null)
+                        lane.keys.remove(entry.key);
+                }
+
+                lane.queueWait.record(TimeUnit.NANOSECONDS
+                    .toMillis(System.nanoTime() - entry.enqueued));
+                run(lane, entry.task);
+            }
+        }
+        finally {
+            synchronized (this) {
+                mThreads--;
+                // tasks might have been queued while we were leaving
+                if (!mShutdown && mThreads == 0 && hasQueuedTasks())
+                    startWorker();
+            }
+        }
+    }
+
+    /** Returns the lane to take the next task from, null if all lanes are empty. */
+    private Lane nextLane(long now) {
+        Lane first = null;
+        for (Lane l : mLanes) {
+            Entry head = l.queue.peek();
+            if (head != null) {
+                if (now - head.enqueued > STARVATION_TIME)
+                    return l;
+                if (first == null)
+                    first = l;
+            }
+        }
+        return first;
+    }
+
+    private boolean hasQueuedTasks() {
+        for (Lane l : mLanes) {
+            if (!l.queue.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    private static void run(Lane lane, Runnable task) {
+        long start = System.nanoTime();
+        try {
+            task.run();
+        }
+        finally {
+            lane.runTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    void dump(PrintWriter out) {
+        out.println("Task executor");
+        for (int i = 0; i < mLanes.length; i++) {
+            Lane l = mLanes[i];
+            synchronized (this) {
+                out.println("  " + LANE_NAMES[i] + ": " + l.queue.size() + " queued (max " +
+                    l.maxDepth + "/" + l.maxQueued + "), " + l.coalesced + " coalesced, " +
+                    l.callerRuns + " run by caller");
+            }
+            l.queueWait.dump(out);
+            l.runTime.dump(out);
+        }
+    }
+
+}
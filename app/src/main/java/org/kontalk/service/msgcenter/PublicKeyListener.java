@@ -18,6 +18,8 @@
 
 package org.kontalk.service.msgcenter;
 
+import java.util.Arrays;
+
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jxmpp.util.XmppStringUtils;
@@ -85,12 +87,19 @@ class PublicKeyListener extends MessageCenterPacketListener {
                     }
                 }
 
+                // match the response with its request
                 String id = p.getStanzaId();
+                PublicKeyRefresher refresher = getKeyRefresher();
+                PublicKeyRefresher.Request request = (refresher != null) ?
+                    refresher.completed(id, System.currentTimeMillis()) : null;
+                if (request != null)
+                    id = request.requestId;
+
                 // we are syncing and this is a response for the Syncer
                 if (SyncAdapter.getIQPacketId().equals(id) && SyncAdapter.isActive(getContext())) {
                     // sync currently active, broadcast the key
                     Intent i = new Intent(ACTION_PUBLICKEY);
-                    i.putExtra(EXTRA_PACKET_ID, p.getStanzaId());
+                    i.putExtra(EXTRA_PACKET_ID, id);
 
                     i.putExtra(EXTRA_FROM, p.getFrom());
                     i.putExtra(EXTRA_TO, p.getTo());
@@ -112,6 +121,12 @@ class PublicKeyListener extends MessageCenterPacketListener {
                         }
                     }
 
+                    else if (Arrays.equals(_publicKey, UsersProvider.getPublicKeyData(getContext(), from))) {
+                        // same key we already have
+                        if (refresher != null)
+                            refresher.unchanged();
+                    }
+
                     else {
                         try {
                             Log.v("pubkey", "Updating key for " + from);
@@ -0,0 +1,280 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Requests public keys of other users, only when needed.<br>
+ * A key is requested if we don't have it, if its fingerprint differs from
+ * the one advertised in presence, or if it hasn't been checked for
+ * {@link #KEY_TTL}. The last check time is stored with the key, so it
+ * survives restarts. Requests are paced with a bounded number of them
+ * waiting for a response, each one with its own stanza id; requests that
+ * can't be sent are kept until the connection is back.
+ * @author Daniele Ricci
+ */
+class PublicKeyRefresher {
+
+    /** Maximum number of requests waiting for a response. */
+    static final int MAX_IN_FLIGHT = 8;
+    /** Keys are requested again after this time. */
+    static final long KEY_TTL = TimeUnit.DAYS.toMillis(1);
+    /** Time to wait for a response before giving up. */
+    static final long REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /** A key request. */
+    static final class Request {
+        final String jid;
+        /** Id of the refresh this request is part of, may be null. */
+        String requestId;
+
+        Request(String jid, String requestId) {
+            this.jid = jid;
+            this.requestId = requestId;
+        }
+    }
+
+    interface Source {
+        /** Returns the stored fingerprints of the given users, by JID. */
+        Map<String, String> getFingerprints(Collection<String> jids);
+
+        /** Returns the last time keys of the given users were checked, by JID. */
+        Map<String, Long> getCheckedTimes(Collection<String> jids);
+
+        /** Stores the time keys of the given users were checked. */
+        void setChecked(Collection<String> jids, long time);
+    }
+
+    interface Sender {
+        /** Sends a public key request with the given stanza id. */
+        boolean send(String jid, String stanzaId);
+
+        /** A key was not requested because the stored one is still good. */
+        void skipped(String jid, String requestId);
+
+        /** Runs the given command after the given delay in milliseconds. */
+        void post(Runnable command, long delay);
+    }
+
+    private final Source mSource;
+    private final Sender mSender;
+    private final int mMaxInFlight;
+
+    private final String mIdPrefix = "pk" + Integer.toHexString(new Random().nextInt()) + "-";
+    private int mSequence;
+
+    /** Requests waiting to be sent, by JID. */
+    private final Map<String, Request> mQueue = new LinkedHashMap<>();
+    /** Requests waiting for a response, by stanza id. */
+    private final Map<String, Request> mInFlight = new HashMap<>();
+    /** Fingerprints advertised in presence, by JID. */
+    private final Map<String, String> mAdvertised = new HashMap<>();
+
+    private int mRequestedCount;
+    private int mSkippedCount;
+    private int mUnchangedCount;
+    private int mTimedOutCount;
+
+    PublicKeyRefresher(Source source, Sender sender) {
+        this(source, sender, MAX_IN_FLIGHT);
+    }
+
+    PublicKeyRefresher(Source source, Sender sender, int maxInFlight) {
+        mSource = source;
+        mSender = sender;
+        mMaxInFlight = maxInFlight;
+    }
+
+    /** Records the key fingerprint a user advertised in presence. */
+    public synchronized void advertised(String jid, String fingerprint) {
+        mAdvertised.put(jid, fingerprint);
+    }
+
+    /**
+     * Requests the keys of the given users that need to be refreshed.
+     * @param requestId id of this refresh, given back on responses
+     * @param force true to request all keys anyway
+     */
+    public void refresh(Collection<String> jids, String requestId, boolean force, long now) {
+        Map<String, String> stored = force ? null : mSource.getFingerprints(jids);
+        Map<String, Long> checked = force ? null : mSource.getCheckedTimes(jids);
+
+        List<String> skipped = new ArrayList<>();
+        List<String> firstSeen = new ArrayList<>();
+        synchronized (this) {
+            for (String jid : jids) {
+                if (force || needsRefresh(jid, stored.get(jid), checked.get(jid), now, firstSeen)) {
+                    Request queued = mQueue.get(jid);
+                    if (queued == null)
+                        mQueue.put(jid, new Request(jid, requestId));
+                    else if (queued.requestId == null)
+                        queued.requestId = requestId;
+                }
+                else {
+                    skipped.add(jid);
+                }
+            }
+            mSkippedCount += skipped.size();
+        }
+
+        if (!firstSeen.isEmpty())
+            mSource.setChecked(firstSeen, now);
+
+        for (String jid : skipped)
+            mSender.skipped(jid, requestId);
+
+        pump();
+    }
+
+    private boolean needsRefresh(String jid, String storedFingerprint, Long checked,
+            long now, List<String> firstSeen) {
+        if (storedFingerprint == null)
+            return true;
+
+        String advertised = mAdvertised.get(jid);
+        if (advertised != null && !advertised.equalsIgnoreCase(storedFingerprint))
+            return true;
+
+        if (checked == null) {
+            // first time we see this key, start counting from now
+            firstSeen.add(jid);
+            return false;
+        }
+        return now - checked >= KEY_TTL;
+    }
+
+    /**
+     * A new connection is being created: responses to requests sent before
+     * won't come anymore. Queued requests are kept for {@link #resume()}.
+     */
+    public synchronized void newSession() {
+        mInFlight.clear();
+    }
+
+    /** The connection is back: sends queued requests. */
+    public void resume() {
+        pump();
+    }
+
+    /** Sends queued requests until the window is full. */
+    private void pump() {
+        while (true) {
+            final String stanzaId;
+            Request request;
+            synchronized (this) {
+                if (mQueue.isEmpty() || mInFlight.size() >= mMaxInFlight)
+                    return;
+
+                String jid = mQueue.keySet().iterator().next();
+                request = mQueue.remove(jid);
+                stanzaId = mIdPrefix + (++mSequence);
+                // responses might come before send returns
+                mInFlight.put(stanzaId, request);
+                mRequestedCount++;
+            }
+
+            if (!mSender.send(request.jid, stanzaId)) {
+                // not connected, request will be sent first on resume
+                synchronized (this) {
+                    mInFlight.remove(stanzaId);
+                    mRequestedCount--;
+
+                    Map<String, Request> queued = new LinkedHashMap<>(mQueue);
+                    mQueue.clear();
+                    mQueue.put(request.jid, request);
+                    // a request queued again in the meantime wins
+                    mQueue.putAll(queued);
+                }
+                return;
+            }
+
+            mSender.post(new Runnable() {
+                @Override
+                public void run() {
+                    timeout(stanzaId);
+                }
+            }, REQUEST_TIMEOUT);
+        }
+    }
+
+    /**
+     * A response has been received.
+     * @return the matching request, or null if not requested by us
+     */
+    public Request completed(String stanzaId, long now) {
+        Request request;
+        synchronized (this) {
+            request = (stanzaId != null) ? mInFlight.remove(stanzaId) : null;
+        }
+
+        if (request != null) {
+            mSource.setChecked(Collections.singletonList(request.jid), now);
+            pump();
+        }
+        return request;
+    }
+
+    /** A response carried the same key we already had. */
+    public synchronized void unchanged() {
+        mUnchangedCount++;
+    }
+
+    void timeout(String stanzaId) {
+        synchronized (this) {
+            if (mInFlight.remove(stanzaId) == null)
+                return;
+            mTimedOutCount++;
+        }
+        pump();
+    }
+
+    synchronized int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    synchronized int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    synchronized int getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    synchronized int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    synchronized void dump(PrintWriter out) {
+        out.println("  public keys: " + mRequestedCount + " requested, " + mSkippedCount +
+            " skipped, " + mUnchangedCount + " unchanged, " + mTimedOutCount + " timed out, " +
+            mInFlight.size() + " waiting, " + mQueue.size() + " queued");
+    }
+
+}
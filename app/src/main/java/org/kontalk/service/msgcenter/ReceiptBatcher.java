@@ -0,0 +1,271 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Sends delivery receipts for incoming messages in bursts.<br>
+ * Receipts are queued while a backlog of incoming messages is being
+ * processed and sent all together, grouped by peer, when the backlog has
+ * been drained, or at most {@link #MAX_DELAY} after the first one was
+ * queued. The message center is held once for each burst; messages
+ * are marked as confirmed in batches as their receipts get acked by the
+ * server.
+ * @author Daniele Ricci
+ */
+class ReceiptBatcher {
+
+    /** Queued receipts are sent immediately when reaching this number. */
+    static final int MAX_BATCH = 100;
+    /** Queued receipts are sent at most after this time, in milliseconds. */
+    static final long MAX_DELAY = 300;
+    /** Time to wait for the server to ack all receipts in a burst. */
+    static final long ACK_TIMEOUT = InFlightTracker.TIMEOUT;
+
+    /** A delivery receipt waiting to be sent. */
+    static final class Receipt {
+        /** Database id of the incoming message. */
+        final long id;
+        /** Stanza id of the incoming message. */
+        final String msgId;
+        /** Who sent us the message. */
+        final String to;
+
+        Receipt(long id, String msgId, String to) {
+            this.id = id;
+            this.msgId = msgId;
+            this.to = to;
+        }
+    }
+
+    interface Sender {
+        /** Sends a delivery receipt, tracking it for server ack. */
+        void send(Receipt receipt);
+
+        /** Marks the given incoming messages as confirmed. */
+        void confirmed(List<Long> ids);
+
+        /** Holds on to the message center. */
+        void hold();
+
+        /** Releases the message center. */
+        void release();
+
+        /** Runs the given command after the given delay in milliseconds. */
+        void post(Runnable command, long delay);
+
+        /** Runs the given command in the background, used for sending bursts. */
+        void execute(Runnable command);
+    }
+
+    private final Sender mSender;
+    private final int mMaxBatch;
+
+    /** Receipts waiting to be sent. Guarded by this. */
+    private List<Receipt> mQueued = new ArrayList<>();
+    /** Messages whose receipt is waiting for server ack. */
+    private final Set<Long> mUnacked = new HashSet<>();
+    /** Messages whose receipt has been acked, waiting to be marked as confirmed. */
+    private List<Long> mConfirmed = new ArrayList<>();
+    /** True if we are holding the message center. */
+    private boolean mHeld;
+    /** Incremented for each burst, to recognize stale timeouts. */
+    private int mBurst;
+    /** Incremented for each flush timer, to recognize stale ones. */
+    private int mFlushTimer;
+
+    private int mBurstCount;
+    private int mSentCount;
+    private int mConfirmedCount;
+    private int mTimedOutCount;
+
+    ReceiptBatcher(Sender sender) {
+        this(sender, MAX_BATCH);
+    }
+
+    ReceiptBatcher(Sender sender, int maxBatch) {
+        mSender = sender;
+        mMaxBatch = maxBatch;
+    }
+
+    /** Queues a receipt, to be sent on the next {@link #flush()}. */
+    public void queue(Receipt receipt) {
+        boolean flush;
+        final int timer;
+        synchronized (this) {
+            mQueued.add(receipt);
+            flush = mQueued.size() >= mMaxBatch;
+            // first receipt of the batch: start the flush timer
+            timer = (!flush && mQueued.size() == 1) ? ++mFlushTimer : 0;
+        }
+
+        if (flush) {
+            flush();
+        }
+        else if (timer > 0) {
+            mSender.post(new Runnable() {
+                @Override
+                public void run() {
+                    flushTimer(timer);
+                }
+            }, MAX_DELAY);
+        }
+    }
+
+    /** Flushes the batch the given timer was started for, if still queued. */
+    void flushTimer(int timer) {
+        synchronized (this) {
+            if (timer != mFlushTimer)
+                return;
+        }
+        flush();
+    }
+
+    /** Sends all queued receipts in the background, grouped by peer. */
+    public void flush() {
+        List<Receipt> queued;
+        boolean hold;
+        final int burst;
+        synchronized (this) {
+            if (mQueued.isEmpty())
+                return;
+
+            queued = mQueued;
+            mQueued = new ArrayList<>();
+            // pending flush timer is stale now
+            mFlushTimer++;
+            for (Receipt r : queued)
+                mUnacked.add(r.id);
+
+            hold = !mHeld;
+            mHeld = true;
+            burst = ++mBurst;
+            mBurstCount++;
+            mSentCount += queued.size();
+        }
+
+        if (hold)
+            mSender.hold();
+
+        final List<Receipt> burstReceipts = queued;
+        mSender.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (List<Receipt> peer : groupByPeer(burstReceipts).values()) {
+                    for (Receipt r : peer)
+                        mSender.send(r);
+                }
+
+                mSender.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeout(burst);
+                    }
+                }, ACK_TIMEOUT);
+            }
+        });
+    }
+
+    /** Groups receipts by peer, keeping their order within each peer. */
+    static Map<String, List<Receipt>> groupByPeer(List<Receipt> receipts) {
+        Map<String, List<Receipt>> peers = new LinkedHashMap<>();
+        for (Receipt r : receipts) {
+            List<Receipt> list = peers.get(r.to);
+            if (list == null) {
+                list = new ArrayList<>();
+                peers.put(r.to, list);
+            }
+            list.add(r);
+        }
+        return peers;
+    }
+
+    /** The receipt for the given message has been acked by the server. */
+    public void acked(long id) {
+        List<Long> confirmed = null;
+        boolean release = false;
+        synchronized (this) {
+            mConfirmed.add(id);
+            mUnacked.remove(id);
+
+            // burst completed or enough confirmations to write
+            if (mUnacked.isEmpty() || mConfirmed.size() >= mMaxBatch) {
+                confirmed = mConfirmed;
+                mConfirmed = new ArrayList<>();
+                mConfirmedCount += confirmed.size();
+            }
+            if (mUnacked.isEmpty() && mHeld) {
+                mHeld = false;
+                release = true;
+            }
+        }
+
+        if (confirmed != null)
+            mSender.confirmed(confirmed);
+        if (release)
+            mSender.release();
+    }
+
+    /** Gives up waiting for acks of the given burst. */
+    void timeout(int burst) {
+        List<Long> confirmed = null;
+        boolean release = false;
+        synchronized (this) {
+            // a newer burst is still waiting
+            if (burst != mBurst || !mHeld)
+                return;
+
+            // receipts will be sent again on the next login
+            mTimedOutCount += mUnacked.size();
+            mUnacked.clear();
+            if (!mConfirmed.isEmpty()) {
+                confirmed = mConfirmed;
+                mConfirmed = new ArrayList<>();
+                mConfirmedCount += confirmed.size();
+            }
+            mHeld = false;
+            release = true;
+        }
+
+        if (confirmed != null)
+            mSender.confirmed(confirmed);
+        if (release)
+            mSender.release();
+    }
+
+    /** Returns true if the message center is being held for a burst. */
+    synchronized boolean isHeld() {
+        return mHeld;
+    }
+
+    synchronized void dump(PrintWriter out) {
+        out.println("  delivery receipts: " + mSentCount + " sent in " + mBurstCount +
+            " bursts, " + mConfirmedCount + " confirmed, " + mUnacked.size() +
+            " waiting for ack, " + mTimedOutCount + " timed out");
+    }
+
+}
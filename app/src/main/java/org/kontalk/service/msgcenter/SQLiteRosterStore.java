@@ -20,7 +20,12 @@ package org.kontalk.service.msgcenter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 
@@ -40,12 +45,15 @@ import org.kontalk.util.Preferences;
 
 
 /**
- * A roster store backed by a SQLite database.
+ * A roster store backed by a SQLite database.<br>
+ * The whole roster is loaded in memory on first use, with indexes by
+ * subscription type; the database is written through one item at a time,
+ * each row stamped with the roster version it was last changed in.
  * @author Daniele Ricci
  */
 public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
     private static final String DATABASE_NAME = "roster.db";
 
     private static final String TABLE_ROSTER = "roster";
@@ -54,19 +62,41 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         "name TEXT NOT NULL," +
         "type TEXT NOT NULL," +
         "status TEXT,"+
-        "groups TEXT"+
+        "groups TEXT,"+
+        "version TEXT"+
         ")";
 
     private static final String SCHEMA_ROSTER =
         "CREATE TABLE " + TABLE_ROSTER + " " + CREATE_TABLE_ROSTER;
 
+    private static final String[] SCHEMA_UPGRADE_V1 = {
+        "ALTER TABLE " + TABLE_ROSTER + " ADD COLUMN version TEXT",
+    };
+
+    private static final String[] PROJECTION = {
+        "jid", "name", "type", "status", "groups",
+    };
+
     private final Context mContext;
 
     private SQLiteStatement mInsertStatement;
+    /** Serializes database writes, so they are applied in order. */
     private final Object mInsertLock = new Object();
 
+    /** Roster items by bare JID, null until loaded. Guarded by this. */
+    private Map<String, RosterPacket.Item> mEntries;
+    /** JIDs by subscription type. */
+    private final Map<RosterPacket.ItemType, Set<String>> mByType =
+        new EnumMap<>(RosterPacket.ItemType.class);
+    /** JIDs we are subscribed to, i.e. we can send messages to. */
+    private final Set<String> mSubscribed = new HashSet<>();
+
     public SQLiteRosterStore(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    SQLiteRosterStore(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
         mContext = context;
     }
 
@@ -77,17 +107,21 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // this is the first version
+        if (oldVersion == 1) {
+            for (String sql : SCHEMA_UPGRADE_V1) {
+                db.execSQL(sql);
+            }
+        }
     }
 
     public void onDestroy() {
         close();
     }
 
-    private SQLiteStatement prepareInsert(SQLiteDatabase db, RosterPacket.Item item) {
+    private SQLiteStatement prepareInsert(SQLiteDatabase db, RosterPacket.Item item, String version) {
         if (mInsertStatement == null) {
-            mInsertStatement = db.compileStatement("INSERT INTO " + TABLE_ROSTER +
-                " VALUES(?, ?, ?, ?, ?)");
+            mInsertStatement = db.compileStatement("INSERT OR REPLACE INTO " + TABLE_ROSTER +
+                " VALUES(?, ?, ?, ?, ?, ?)");
         }
         else {
             mInsertStatement.clearBindings();
@@ -115,34 +149,103 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
             mInsertStatement.bindNull(++i);
         }
 
+        if (version != null) {
+            mInsertStatement.bindString(++i, version);
+        }
+        else {
+            mInsertStatement.bindNull(++i);
+        }
+
         return mInsertStatement;
     }
 
-    @Override
-    public Collection<RosterPacket.Item> getEntries() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
-        try {
-            c = db.query(TABLE_ROSTER, null, null, null, null, null, null);
-            if (c != null) {
-                List<RosterPacket.Item> items = new ArrayList<>(c.getCount());
+    /** Loads the roster from the database if not done yet. */
+    private synchronized Map<String, RosterPacket.Item> getIndex() {
+        if (mEntries == null) {
+            Map<String, RosterPacket.Item> entries = new HashMap<>();
+            Cursor c = null;
+            try {
+                c = getReadableDatabase().query(TABLE_ROSTER, PROJECTION,
+                    null, null, null, null, null);
                 while (c.moveToNext()) {
-                    items.add(fromCursor(c));
+                    RosterPacket.Item item = fromCursor(c);
+                    entries.put(item.getUser(), item);
+                }
+            }
+            catch (SQLiteException e) {
+                // try again next time
+                return null;
+            }
+            finally {
+                if (c != null) {
+                    c.close();
                 }
-
-                return items;
             }
 
-            return null;
+            mEntries = entries;
+            for (RosterPacket.Item item : entries.values())
+                index(item);
         }
-        catch (SQLiteException e) {
-            return null;
-        }
-        finally {
-            if (c != null) {
-                c.close();
-            }
+        return mEntries;
+    }
+
+    private void index(RosterPacket.Item item) {
+        RosterPacket.ItemType type = item.getItemType() != null ?
+            item.getItemType() : RosterPacket.ItemType.none;
+        Set<String> jids = mByType.get(type);
+        if (jids == null) {
+            jids = new HashSet<>();
+            mByType.put(type, jids);
         }
+        jids.add(item.getUser());
+
+        if (isSubscribed(item))
+            mSubscribed.add(item.getUser());
+    }
+
+    private void unindex(RosterPacket.Item item) {
+        for (Set<String> jids : mByType.values())
+            jids.remove(item.getUser());
+        mSubscribed.remove(item.getUser());
+    }
+
+    /** Updates the in-memory roster after a successful write. */
+    private synchronized void put(RosterPacket.Item item) {
+        if (mEntries == null)
+            return;
+
+        RosterPacket.Item old = mEntries.put(item.getUser(), item);
+        if (old != null)
+            unindex(old);
+        index(item);
+    }
+
+    private synchronized void remove(String bareJid) {
+        if (mEntries == null)
+            return;
+
+        RosterPacket.Item old = mEntries.remove(bareJid);
+        if (old != null)
+            unindex(old);
+    }
+
+    private static boolean isSubscribed(RosterPacket.Item item) {
+        return (item.getItemType() == RosterPacket.ItemType.to ||
+                item.getItemType() == RosterPacket.ItemType.both) &&
+            item.getItemStatus() != RosterPacket.ItemStatus.SUBSCRIPTION_PENDING;
+    }
+
+    private static boolean isSameItem(RosterPacket.Item a, RosterPacket.Item b) {
+        return TextUtils.equals(a.getName(), b.getName()) &&
+            a.getItemType() == b.getItemType() &&
+            a.getItemStatus() == b.getItemStatus() &&
+            a.getGroupNames().equals(b.getGroupNames());
+    }
+
+    @Override
+    public synchronized Collection<RosterPacket.Item> getEntries() {
+        Map<String, RosterPacket.Item> entries = getIndex();
+        return (entries != null) ? new ArrayList<>(entries.values()) : null;
     }
 
     private RosterPacket.Item fromCursor(Cursor c) {
@@ -170,26 +273,29 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
     }
 
     @Override
-    public RosterPacket.Item getEntry(String bareJid) {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor c = null;
-        try {
-            c = db.query(TABLE_ROSTER, null,
-                "user = ?", new String[] { bareJid },
-                null, null, null);
-            if (c != null && c.moveToFirst()) {
-                return fromCursor(c);
-            }
-        }
-        catch (SQLiteException e) {
-            return null;
-        }
-        finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-        return null;
+    public synchronized RosterPacket.Item getEntry(String bareJid) {
+        Map<String, RosterPacket.Item> entries = getIndex();
+        return (entries != null) ? entries.get(bareJid) : null;
+    }
+
+    /**
+     * Returns true if we are subscribed to the given user and we can send
+     * messages to it.
+     */
+    public synchronized boolean isSubscribed(String bareJid) {
+        return getIndex() != null && mSubscribed.contains(bareJid);
+    }
+
+    /** Returns the JIDs of the users we are subscribed to. */
+    public synchronized Collection<String> getSubscribedJids() {
+        return getIndex() != null ? new ArrayList<>(mSubscribed) :
+            Collections.<String>emptyList();
+    }
+
+    /** Returns the JIDs of the users with the given subscription type. */
+    public synchronized Collection<String> getJids(RosterPacket.ItemType type) {
+        Set<String> jids = getIndex() != null ? mByType.get(type) : null;
+        return jids != null ? new ArrayList<>(jids) : Collections.<String>emptyList();
     }
 
     @Override
@@ -197,65 +303,108 @@ public class SQLiteRosterStore extends SQLiteOpenHelper implements RosterStore {
         return Preferences.getRosterVersion(mContext);
     }
 
-    private boolean addEntry(SQLiteDatabase db, RosterPacket.Item item) {
-        synchronized (mInsertLock) {
-            try {
-                SQLiteStatement stm = prepareInsert(db, item);
-                stm.executeInsert();
-            }
-            catch (SQLiteException e) {
-                return false;
-            }
-
-            // insert was successful
-            return true;
+    private boolean addEntry(SQLiteDatabase db, RosterPacket.Item item, String version) {
+        try {
+            SQLiteStatement stm = prepareInsert(db, item, version);
+            stm.executeInsert();
+        }
+        catch (SQLiteException e) {
+            return false;
         }
+
+        // insert was successful
+        return true;
     }
 
     @Override
     public boolean addEntry(RosterPacket.Item item, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-        return addEntry(db, item) && setRosterVersion(version);
+        synchronized (mInsertLock) {
+            // make sure the index is loaded before changing it
+            getIndex();
+
+            SQLiteDatabase db = getWritableDatabase();
+            if (!addEntry(db, item, version))
+                return false;
+
+            put(item);
+            return setRosterVersion(version);
+        }
     }
 
     @Override
     public boolean resetEntries(Collection<RosterPacket.Item> items, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-
-        beginTransaction(db);
-        boolean success = false;
+        synchronized (mInsertLock) {
+            Map<String, RosterPacket.Item> current;
+            synchronized (this) {
+                Map<String, RosterPacket.Item> index = getIndex();
+                current = (index != null) ? new HashMap<>(index) : null;
+            }
+            // index could not be loaded, fallback to a full rewrite
+            boolean rewrite = (current == null);
+            if (rewrite)
+                current = new HashMap<>();
 
-        try {
-            db.execSQL("DELETE FROM " + TABLE_ROSTER);
+            // write only what changed
+            List<RosterPacket.Item> changed = new ArrayList<>();
             for (RosterPacket.Item item : items) {
-                addEntry(db, item);
+                RosterPacket.Item old = current.remove(item.getUser());
+                if (old == null || !isSameItem(old, item))
+                    changed.add(item);
             }
+            // what's left has been removed
+            Set<String> removed = current.keySet();
+
+            SQLiteDatabase db = getWritableDatabase();
 
-            success = setTransactionSuccessful(db);
-            if (success) {
-                setRosterVersion(version);
+            beginTransaction(db);
+            boolean success = false;
+
+            try {
+                if (rewrite)
+                    db.execSQL("DELETE FROM " + TABLE_ROSTER);
+                for (String jid : removed) {
+                    db.delete(TABLE_ROSTER, "jid = ?", new String[] { jid });
+                }
+                for (RosterPacket.Item item : changed) {
+                    if (!addEntry(db, item, version))
+                        return false;
+                }
+
+                success = setTransactionSuccessful(db);
+            }
+            catch (SQLiteException e) {
+                return false;
+            }
+            finally {
+                endTransaction(db, success);
+            }
+
+            synchronized (this) {
+                // no-op if the index was not loaded, it will be next time
+                for (String jid : removed)
+                    remove(jid);
+                for (RosterPacket.Item item : changed)
+                    put(item);
             }
-        }
-        catch (SQLiteException e) {
-            return false;
-        }
-        finally {
-            endTransaction(db, success);
-        }
 
-        return false;
+            return setRosterVersion(version);
+        }
     }
 
     @Override
     public boolean removeEntry(String bareJid, String version) {
-        SQLiteDatabase db = getWritableDatabase();
-        try {
-            db.delete(TABLE_ROSTER, "user = ?", new String[]{bareJid});
+        synchronized (mInsertLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            try {
+                db.delete(TABLE_ROSTER, "jid = ?", new String[]{bareJid});
+            }
+            catch (SQLiteException e) {
+                return false;
+            }
+
+            remove(bareJid);
             return setRosterVersion(version);
         }
-        catch (SQLiteException e) {
-            return false;
-        }
     }
 
     private boolean setRosterVersion(String version) {
@@ -18,6 +18,7 @@
 
 package org.kontalk.service.msgcenter;
 
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.iqversion.packet.Version;
 
@@ -53,7 +54,7 @@ class VersionListener extends MessageCenterPacketListener {
         i.putExtra(EXTRA_VERSION_NAME, p.getName());
         i.putExtra(EXTRA_VERSION_NUMBER, p.getVersion());
 
-        sendBroadcast(i);
+        sendIqResponse(p.getStanzaId(), i, p.getType() == IQ.Type.result);
     }
 
 }
@@ -1502,6 +1502,35 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
 
     protected abstract boolean isUserId(String jid);
 
+    /** Handles a presence broadcast, if it's from our peer. */
+    private void handlePresence(Intent intent) {
+        String from = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
+        String bareFrom = from != null ? XmppStringUtils.parseBareJid(from) : null;
+
+        // we are receiving a presence from our peer
+        if (from != null && isUserId(bareFrom)) {
+
+            // we handle only (un)available presence stanzas
+            String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
+            Presence.Type presenceType = (type != null) ? Presence.Type.fromString(type) : null;
+
+            String mode = intent.getStringExtra(MessageCenterService.EXTRA_SHOW);
+            Presence.Mode presenceMode = (mode != null) ? Presence.Mode.fromString(mode) : null;
+
+            String fingerprint = intent.getStringExtra(MessageCenterService.EXTRA_FINGERPRINT);
+
+            boolean removed = false;
+            if (presenceType == Presence.Type.available) {
+                mAvailableResources.add(from);
+            }
+            else if (presenceType == Presence.Type.unavailable) {
+                removed = mAvailableResources.remove(from);
+            }
+
+            onPresence(from, presenceType, removed, presenceMode, fingerprint);
+        }
+    }
+
     private void subscribePresence() {
         // TODO this needs serious refactoring
         if (mPresenceReceiver == null) {
@@ -1510,30 +1539,15 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
                     String action = intent.getAction();
 
                     if (MessageCenterService.ACTION_PRESENCE.equals(action)) {
-                        String from = intent.getStringExtra(MessageCenterService.EXTRA_FROM);
-                        String bareFrom = from != null ? XmppStringUtils.parseBareJid(from) : null;
-
-                        // we are receiving a presence from our peer
-                        if (from != null && isUserId(bareFrom)) {
-
-                            // we handle only (un)available presence stanzas
-                            String type = intent.getStringExtra(MessageCenterService.EXTRA_TYPE);
-                            Presence.Type presenceType = (type != null) ? Presence.Type.fromString(type) : null;
-
-                            String mode = intent.getStringExtra(MessageCenterService.EXTRA_SHOW);
-                            Presence.Mode presenceMode = (mode != null) ? Presence.Mode.fromString(mode) : null;
-
-                            String fingerprint = intent.getStringExtra(MessageCenterService.EXTRA_FINGERPRINT);
-
-                            boolean removed = false;
-                            if (presenceType == Presence.Type.available) {
-                                mAvailableResources.add(from);
-                            }
-                            else if (presenceType == Presence.Type.unavailable) {
-                                removed = mAvailableResources.remove(from);
-                            }
+                        handlePresence(intent);
+                    }
 
-                            onPresence(from, presenceType, removed, presenceMode, fingerprint);
+                    else if (MessageCenterService.ACTION_PRESENCES.equals(action)) {
+                        List<Intent> presences = intent
+                            .getParcelableArrayListExtra(MessageCenterService.EXTRA_PRESENCES);
+                        if (presences != null) {
+                            for (Intent presence : presences)
+                                handlePresence(presence);
                         }
                     }
 
@@ -1571,6 +1585,7 @@ public abstract class AbstractComposeFragment extends ActionModeListFragment imp
             // listen for user presence, connection and incoming messages
             IntentFilter filter = new IntentFilter();
             filter.addAction(MessageCenterService.ACTION_PRESENCE);
+            filter.addAction(MessageCenterService.ACTION_PRESENCES);
             filter.addAction(MessageCenterService.ACTION_CONNECTED);
             filter.addAction(MessageCenterService.ACTION_ROSTER_LOADED);
             filter.addAction(MessageCenterService.ACTION_MESSAGE);
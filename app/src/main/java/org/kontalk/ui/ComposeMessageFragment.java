@@ -517,11 +517,7 @@ public class ComposeMessageFragment extends AbstractComposeFragment {
                 // all of this shall be done only if there isn't a request from the other contact
                 if (mConversation.getRequestStatus() != Threads.REQUEST_WAITING) {
                     // request last presence
-                    Intent i = new Intent(context, MessageCenterService.class);
-                    i.setAction(MessageCenterService.ACTION_PRESENCE);
-                    i.putExtra(MessageCenterService.EXTRA_TO, mUserJID);
-                    i.putExtra(MessageCenterService.EXTRA_TYPE, Presence.Type.probe.name());
-                    context.startService(i);
+                    MessageCenterService.requestPresence(context, mUserJID);
                 }
             }
         }
@@ -45,6 +45,7 @@ import org.kontalk.ui.LockedDialog;
 import org.kontalk.ui.PasswordInputDialog;
 import org.kontalk.util.MediaStorage;
 import org.kontalk.util.MessageUtils;
+import org.kontalk.util.StartupManager;
 
 import java.io.FileNotFoundException;
 import java.io.OutputStream;
@@ -85,6 +86,30 @@ public class MaintenanceFragment extends RootPreferenceFragment {
             }
         });
 
+        // startup trace
+        final Preference startupTrace = findPreference("pref_startup_trace");
+        startupTrace.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                StartupManager startup = Kontalk.get(getActivity()).getStartupManager();
+
+                StringBuilder trace = new StringBuilder();
+                for (StartupManager.TraceEntry entry : startup.getTrace())
+                    trace.append(entry).append('\n');
+                long elapsed = startup.getElapsedTime();
+                trace.append('\n').append(elapsed >= 0 ?
+                    getString(R.string.startup_trace_total, elapsed) :
+                    getString(R.string.startup_trace_running));
+
+                new AlertDialogWrapper.Builder(getActivity())
+                        .setTitle(R.string.pref_startup_trace)
+                        .setMessage(trace)
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+                return true;
+            }
+        });
+
         // change passphrase
         final Preference changePassphrase = findPreference("pref_change_passphrase");
         changePassphrase.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
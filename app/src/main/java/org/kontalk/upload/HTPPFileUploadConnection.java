@@ -21,12 +21,7 @@ package org.kontalk.upload;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.security.GeneralSecurityException;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -112,10 +107,7 @@ public class HTPPFileUploadConnection implements UploadConnection {
     }
 
     private void setupClient(HttpsURLConnection conn, long length, String mime, boolean encrypted, boolean acceptAnyCertificate)
-        throws CertificateException, UnrecoverableKeyException,
-        NoSuchAlgorithmException, KeyStoreException,
-        KeyManagementException, NoSuchProviderException,
-        IOException {
+        throws GeneralSecurityException, IOException {
 
         conn.setSSLSocketFactory(ClientHTTPConnection.setupSSLSocketFactory(mContext,
             null, null, acceptAnyCertificate));
@@ -0,0 +1,107 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A simple pool of fixed-size byte buffers.<br>
+ * Buffers are zeroed when released, so that sensitive data (e.g. decrypted
+ * plaintext) doesn't linger in memory. Thread-safe.
+ * @author Daniele Ricci
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final int mMaxPooled;
+
+    private final ConcurrentLinkedQueue<byte[]> mPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPooled = new AtomicInteger();
+
+    private final AtomicLong mAllocated = new AtomicLong();
+    private final AtomicLong mReused = new AtomicLong();
+
+    /**
+     * Creates a new buffer pool.
+     * @param bufferSize size of each buffer
+     * @param maxPooled maximum number of idle buffers to retain
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("buffer size must be positive");
+        mBufferSize = bufferSize;
+        mMaxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /** Returns a buffer from the pool, allocating a new one if none is available. */
+    public byte[] acquire() {
+        byte[] buf = mPool.poll();
+        if (buf != null) {
+            mPooled.decrementAndGet();
+            mReused.incrementAndGet();
+            return buf;
+        }
+
+        mAllocated.incrementAndGet();
+        return new byte[mBufferSize];
+    }
+
+    /**
+     * Gives a buffer back to the pool, clearing it. Buffers of the wrong size
+     * are discarded.
+     */
+    public void release(byte[] buf) {
+        if (buf == null || buf.length != mBufferSize)
+            return;
+
+        Arrays.fill(buf, (byte) 0);
+
+        if (mPooled.incrementAndGet() <= mMaxPooled) {
+            mPool.offer(buf);
+        }
+        else {
+            mPooled.decrementAndGet();
+        }
+    }
+
+    /** Number of buffers allocated so far. */
+    public long getAllocatedCount() {
+        return mAllocated.get();
+    }
+
+    /** Number of buffers served from the pool so far. */
+    public long getReusedCount() {
+        return mReused.get();
+    }
+
+    /** Drops all idle buffers. */
+    public void clear() {
+        while (mPool.poll() != null)
+            mPooled.decrementAndGet();
+    }
+
+}
@@ -0,0 +1,388 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.initializer.SmackInitializer;
+import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.dns.DNSResolver;
+import org.jivesoftware.smack.util.dns.SRVRecord;
+
+import de.measite.minidns.Client;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.record.SRV;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+
+/**
+ * A SRV resolver using <a href="https://github.com/rtreffer/minidns/">minidns</a>,
+ * with a cache honoring record TTLs.<br>
+ * Expired records are still returned for a while, refreshing them in the
+ * background (stale-while-revalidate); they are also used if the DNS server
+ * can't be reached. Non-existing names are cached for a short time.
+ * The cache is persisted so the first connection after a restart doesn't
+ * need to wait for DNS. The persisted cache is loaded by the first lookup,
+ * on the connection thread, not when Smack is initialized.<br>
+ * Only SRV records are cached: Smack resolves the host names they point to
+ * through {@link java.net.InetAddress}, i.e. the system resolver, which has
+ * its own TTL-based cache.
+ * @author Daniele Ricci
+ */
+public class CachingDnsResolver implements SmackInitializer, DNSResolver {
+    private static final String TAG = CachingDnsResolver.class.getSimpleName();
+
+    private static final String PREFS_NAME = "dns_cache";
+
+    /** Minimum time to live for positive answers. */
+    static final long MIN_TTL = TimeUnit.MINUTES.toMillis(1);
+    /** Maximum time to live for positive answers. */
+    static final long MAX_TTL = TimeUnit.DAYS.toMillis(1);
+    /** Time to live for non-existing names and empty answers. */
+    static final long NEGATIVE_TTL = TimeUnit.MINUTES.toMillis(5);
+    /** How long expired records can still be used. */
+    static final long STALE_TTL = TimeUnit.DAYS.toMillis(2);
+
+    /** The result of a DNS query. */
+    static final class Answer {
+        final List<SRVRecord> records;
+        /** Time to live in milliseconds, ignored for negative answers. */
+        final long ttl;
+
+        Answer(List<SRVRecord> records, long ttl) {
+            this.records = records;
+            this.ttl = ttl;
+        }
+    }
+
+    /** A source of DNS answers. */
+    interface Source {
+        /** Returns the SRV records for the given name, or null if the query failed. */
+        Answer query(String name);
+    }
+
+    private static final class Entry {
+        final List<SRVRecord> records;
+        long expires;
+
+        Entry(List<SRVRecord> records, long expires) {
+            this.records = records;
+            this.expires = expires;
+        }
+
+        boolean isNegative() {
+            return records.isEmpty();
+        }
+
+        static Entry parse(String value) {
+            try {
+                String[] parsed = value.split("\\|", -1);
+                long expires = Long.parseLong(parsed[0]);
+                List<SRVRecord> records = new ArrayList<>();
+                if (parsed[1].length() > 0) {
+                    for (String rec : parsed[1].split(",")) {
+                        String[] fields = rec.split(":");
+                        records.add(new SRVRecord(fields[0], Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2]), Integer.parseInt(fields[3])));
+                    }
+                }
+                return new Entry(records, expires);
+            }
+            catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder()
+                .append(expires).append('|');
+            for (int i = 0; i < records.size(); i++) {
+                SRVRecord rec = records.get(i);
+                if (i > 0)
+                    out.append(',');
+                out.append(rec.getFQDN()).append(':')
+                    .append(rec.getPort()).append(':')
+                    .append(rec.getPriority()).append(':')
+                    .append(rec.getWeight());
+            }
+            return out.toString();
+        }
+    }
+
+    /** Queries the system DNS servers through minidns. */
+    private static final class MiniDnsSource implements Source {
+        private final Client mClient = new Client();
+
+        @Override
+        public Answer query(String name) {
+            DNSMessage message = mClient.query(name, TYPE.SRV, CLASS.IN);
+            if (message == null)
+                return null;
+
+            List<SRVRecord> res = new ArrayList<>();
+            if (message.getResponseCode() == DNSMessage.RESPONSE_CODE.NX_DOMAIN)
+                return new Answer(res, 0);
+
+            long ttl = MAX_TTL;
+            for (Record record : message.getAnswers()) {
+                if (record.getPayload() instanceof SRV) {
+                    SRV srv = (SRV) record.getPayload();
+                    res.add(new SRVRecord(srv.getName(), srv.getPort(), srv.getPriority(), srv.getWeight()));
+                    ttl = Math.min(ttl, TimeUnit.SECONDS.toMillis(record.getTtl()));
+                }
+            }
+            return new Answer(res, ttl);
+        }
+    }
+
+    private static final CachingDnsResolver instance = new CachingDnsResolver(new MiniDnsSource(),
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DnsRevalidator");
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        }));
+
+    private final Source mSource;
+    private final Executor mRevalidator;
+    private final Map<String, Entry> mCache = new HashMap<>();
+    /** Names being refreshed in the background. */
+    private final Set<String> mRevalidating = new HashSet<>();
+
+    private Context mContext;
+    private SharedPreferences mPrefs;
+    /** A flush was requested before the persisted cache was loaded. */
+    private boolean mFlushPending;
+
+    CachingDnsResolver(Source source, Executor revalidator) {
+        mSource = source;
+        mRevalidator = revalidator;
+    }
+
+    public static CachingDnsResolver getInstance() {
+        return instance;
+    }
+
+    /**
+     * Enables persistence. The persisted cache will be loaded on the first
+     * lookup, so this can be safely called from the main thread.
+     */
+    public synchronized void init(Context context) {
+        if (mContext == null)
+            mContext = context.getApplicationContext();
+    }
+
+    private synchronized void ensureLoaded() {
+        if (mPrefs == null && mContext != null)
+            load(mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+    }
+
+    /** Loads the persisted cache and keeps it updated from now on. */
+    synchronized void load(SharedPreferences prefs) {
+        if (mPrefs != null)
+            return;
+
+        mPrefs = prefs;
+        long now = currentTimeMillis();
+        SharedPreferences.Editor editor = null;
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            Entry entry = e.getValue() instanceof String ?
+                Entry.parse((String) e.getValue()) : null;
+            if (entry != null && !isTooOld(entry, now)) {
+                if (!mCache.containsKey(e.getKey()))
+                    mCache.put(e.getKey(), entry);
+            }
+            else {
+                if (editor == null)
+                    editor = prefs.edit();
+                editor.remove(e.getKey());
+            }
+        }
+        if (editor != null)
+            editor.apply();
+
+        if (mFlushPending) {
+            mFlushPending = false;
+            flush();
+        }
+    }
+
+    @Override
+    public List<SRVRecord> lookupSRVRecords(String name) {
+        ensureLoaded();
+
+        long now = currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = mCache.get(name);
+            if (entry != null && isTooOld(entry, now)) {
+                mCache.remove(name);
+                entry = null;
+            }
+        }
+
+        if (entry != null) {
+            if (entry.expires > now)
+                return copy(entry.records);
+
+            // expired: use it while refreshing in the background
+            if (!entry.isNegative()) {
+                revalidate(name);
+                return copy(entry.records);
+            }
+        }
+
+        Entry updated = refresh(name);
+        if (updated != null)
+            return copy(updated.records);
+
+        // DNS failure: last resort
+        return entry != null ? copy(entry.records) : new ArrayList<SRVRecord>();
+    }
+
+    private void revalidate(final String name) {
+        synchronized (mRevalidating) {
+            if (!mRevalidating.add(name))
+                return;
+        }
+
+        mRevalidator.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh(name);
+                }
+                finally {
+                    synchronized (mRevalidating) {
+                        mRevalidating.remove(name);
+                    }
+                }
+            }
+        });
+    }
+
+    /** Queries the given name and updates the cache. Returns null if the query failed. */
+    private Entry refresh(String name) {
+        Answer answer;
+        try {
+            answer = mSource.query(name);
+        }
+        catch (RuntimeException e) {
+            Log.w(TAG, "DNS query failed for " + name, e);
+            answer = null;
+        }
+
+        if (answer == null)
+            return null;
+
+        long ttl;
+        if (answer.records.isEmpty())
+            ttl = NEGATIVE_TTL;
+        else
+            ttl = Math.max(MIN_TTL, Math.min(MAX_TTL, answer.ttl));
+
+        Entry entry = new Entry(Collections.unmodifiableList(
+            new ArrayList<>(answer.records)), currentTimeMillis() + ttl);
+        synchronized (this) {
+            mCache.put(name, entry);
+            if (mPrefs != null) {
+                mPrefs.edit()
+                    .putString(name, entry.toString())
+                    .apply();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Marks all cached records as expired, e.g. because the network changed.
+     * Records will still be used while they are refreshed. This doesn't load
+     * the persisted cache: the flush will be applied when it is loaded.
+     */
+    public synchronized void flush() {
+        if (mPrefs == null && mContext != null)
+            mFlushPending = true;
+
+        long now = currentTimeMillis();
+        SharedPreferences.Editor editor = mPrefs != null ? mPrefs.edit() : null;
+
+        for (Map.Entry<String, Entry> e : new ArrayList<>(mCache.entrySet())) {
+            Entry entry = e.getValue();
+            if (entry.isNegative()) {
+                mCache.remove(e.getKey());
+                if (editor != null)
+                    editor.remove(e.getKey());
+            }
+            else if (entry.expires > now) {
+                entry.expires = now;
+                if (editor != null)
+                    editor.putString(e.getKey(), entry.toString());
+            }
+        }
+
+        if (editor != null)
+            editor.apply();
+    }
+
+    private static boolean isTooOld(Entry entry, long now) {
+        return (now - entry.expires) > (entry.isNegative() ? 0 : STALE_TTL);
+    }
+
+    private static List<SRVRecord> copy(List<SRVRecord> records) {
+        // Smack stores connection errors in the records
+        List<SRVRecord> res = new ArrayList<>(records.size());
+        for (SRVRecord rec : records)
+            res.add(new SRVRecord(rec.getFQDN(), rec.getPort(), rec.getPriority(), rec.getWeight()));
+        return res;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public static void setup() {
+        DNSUtil.setDNSResolver(getInstance());
+    }
+
+    @Override
+    public List<Exception> initialize() {
+        setup();
+        return null;
+    }
+
+}
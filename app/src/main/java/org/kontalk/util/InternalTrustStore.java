@@ -54,6 +54,7 @@ public class InternalTrustStore {
             IOException {
 
         if (sTrustStore == null) {
+            PGP.ensureProvider();
             // load internal truststore from file
             sTrustStore = KeyStore.getInstance("BKS", PGP.PROVIDER);
             InputStream in = context.getResources()
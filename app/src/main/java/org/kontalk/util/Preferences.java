@@ -32,6 +32,7 @@ import java.util.Properties;
 import org.kontalk.R;
 import org.kontalk.authenticator.Authenticator;
 import org.kontalk.client.EndpointServer;
+import org.kontalk.client.ServerHealth;
 import org.kontalk.client.ServerList;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.service.ServerListUpdater;
@@ -176,7 +177,7 @@ public final class Preferences {
         }
         else {
             ServerList list = ServerListUpdater.getCurrentList(context);
-            return new ServerList.ServerListProvider(list);
+            return new ServerList.ServerListProvider(list, ServerHealth.getInstance(context));
         }
     }
 
@@ -525,31 +526,21 @@ public final class Preferences {
             .commit();
     }
 
-    public static long getPingAlarmInterval(Context context, long defaultValue) {
+    /** Returns the saved keep-alive state for the current network, or null. */
+    public static String getPingKeepAliveState(Context context) {
         String networkType = SystemUtils.getCurrentNetworkName(context);
         return (networkType != null) ?
-            getLong(context, "ping_alarm_interval_" + networkType, defaultValue) :
-            defaultValue;
+            getString(context, "ping_keepalive_" + networkType, null) :
+            null;
     }
 
-    public static boolean setPingAlarmInterval(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_interval_" + networkType, intervalMillis)
-            .commit();
-    }
-
-    public static long getPingAlarmBackoff(Context context, long defaultValue) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
-        return (networkType != null) ?
-            getLong(context, "ping_alarm_backoff_" + networkType, defaultValue) :
-            defaultValue;
-    }
-
-    public static boolean setPingAlarmBackoff(Context context, long intervalMillis) {
-        String networkType = SystemUtils.getCurrentNetworkName(context);
+    /**
+     * Saves the keep-alive state for the given network. The network must be
+     * the one the state was learned on, which might not be the current one.
+     */
+    public static boolean setPingKeepAliveState(String networkType, String state) {
         return networkType != null && sPreferences.edit()
-            .putLong("ping_alarm_backoff_" + networkType, intervalMillis)
+            .putString("ping_keepalive_" + networkType, state)
             .commit();
     }
 
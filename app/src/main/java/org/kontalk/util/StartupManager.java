@@ -0,0 +1,211 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+
+/**
+ * Runs application initializers honoring their dependencies.<br>
+ * Initializers can run on the calling thread, in declaration order, or on a
+ * background thread as soon as their dependencies have completed. The time
+ * spent by each initializer is recorded in a trace.
+ * @author Daniele Ricci
+ */
+public class StartupManager {
+    private static final String TAG = StartupManager.class.getSimpleName();
+
+    /** Trace record of a single initializer. */
+    public static final class TraceEntry {
+        public final String name;
+        public final String thread;
+        /** Start time in milliseconds, relative to startup. */
+        public final long start;
+        /** Running time in milliseconds. */
+        public final long duration;
+
+        TraceEntry(String name, String thread, long start, long duration) {
+            this.name = name;
+            this.thread = thread;
+            this.start = start;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + duration + " ms (at " + start + " ms, " + thread + ")";
+        }
+    }
+
+    private static final class Task {
+        final String name;
+        final Runnable runnable;
+        final boolean background;
+        final Task[] dependencies;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Task(String name, Runnable runnable, boolean background, Task[] dependencies) {
+            this.name = name;
+            this.runnable = runnable;
+            this.background = background;
+            this.dependencies = dependencies;
+        }
+    }
+
+    private final Map<String, Task> mTasks = new LinkedHashMap<>();
+    private final List<TraceEntry> mTrace = Collections.synchronizedList(new ArrayList<TraceEntry>());
+    private final AtomicInteger mRemaining = new AtomicInteger();
+
+    private long mStartTime;
+    private volatile long mElapsedTime = -1;
+
+    /** Adds an initializer to be run on the thread calling {@link #start()}. */
+    public StartupManager add(String name, Runnable task, String... dependencies) {
+        return add(name, task, false, dependencies);
+    }
+
+    /** Adds an initializer to be run on a background thread. */
+    public StartupManager addBackground(String name, Runnable task, String... dependencies) {
+        return add(name, task, true, dependencies);
+    }
+
+    private StartupManager add(String name, Runnable task, boolean background, String... dependencies) {
+        if (mTasks.containsKey(name))
+            throw new IllegalArgumentException("duplicate initializer: " + name);
+
+        // dependencies must be declared first, so there can't be any cycle
+        Task[] deps = new Task[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            deps[i] = mTasks.get(dependencies[i]);
+            if (deps[i] == null)
+                throw new IllegalArgumentException("unknown dependency " +
+                    dependencies[i] + " for " + name);
+        }
+
+        mTasks.put(name, new Task(name, task, background, deps));
+        return this;
+    }
+
+    /**
+     * Starts all background initializers and runs the others on the calling
+     * thread. Returns when all foreground initializers have completed.
+     */
+    public void start() {
+        mStartTime = System.nanoTime();
+        mRemaining.set(mTasks.size());
+
+        for (final Task task : mTasks.values()) {
+            if (task.background) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        execute(task);
+                    }
+                }, "Startup-" + task.name);
+                t.start();
+            }
+        }
+
+        for (Task task : mTasks.values()) {
+            if (!task.background)
+                execute(task);
+        }
+    }
+
+    private void execute(Task task) {
+        try {
+            for (Task dep : task.dependencies)
+                awaitUninterruptibly(dep.done);
+
+            long start = System.nanoTime();
+            try {
+                task.runnable.run();
+            }
+            catch (RuntimeException e) {
+                Log.e(TAG, "initializer " + task.name + " failed", e);
+            }
+            long end = System.nanoTime();
+
+            mTrace.add(new TraceEntry(task.name, Thread.currentThread().getName(),
+                (start - mStartTime) / 1000000, (end - start) / 1000000));
+        }
+        finally {
+            task.done.countDown();
+            if (mRemaining.decrementAndGet() == 0) {
+                mElapsedTime = (System.nanoTime() - mStartTime) / 1000000;
+                Log.v(TAG, "startup completed in " + mElapsedTime + " ms");
+            }
+        }
+    }
+
+    /** Waits for the given initializer to complete. */
+    public void await(String name) {
+        Task task = mTasks.get(name);
+        if (task == null)
+            throw new IllegalArgumentException("unknown initializer: " + name);
+        awaitUninterruptibly(task.done);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Returns the trace of the completed initializers, sorted by start time. */
+    public List<TraceEntry> getTrace() {
+        List<TraceEntry> trace;
+        synchronized (mTrace) {
+            trace = new ArrayList<>(mTrace);
+        }
+        Collections.sort(trace, new Comparator<TraceEntry>() {
+            @Override
+            public int compare(TraceEntry lhs, TraceEntry rhs) {
+                return lhs.start < rhs.start ? -1 : (lhs.start == rhs.start ? 0 : 1);
+            }
+        });
+        return trace;
+    }
+
+    /** Returns the total startup time, or -1 if some initializer is still running. */
+    public long getElapsedTime() {
+        return mElapsedTime;
+    }
+
+}
@@ -68,6 +68,9 @@ public final class SystemUtils {
 
     private static Uri sProfileUri;
 
+    /** Buffers for {@link #copy(InputStream, OutputStream)}. */
+    private static final BufferPool sCopyBuffers = new BufferPool(4096, 4);
+
     private SystemUtils() {
     }
 
@@ -315,7 +318,17 @@ public final class SystemUtils {
 
     /** Instead of importing the whole commons-io :) */
     public static long copy(final InputStream input, final OutputStream output) throws IOException {
-        byte[] buffer = new byte[4096];
+        byte[] buffer = sCopyBuffers.acquire();
+        try {
+            return copy(input, output, buffer);
+        }
+        finally {
+            sCopyBuffers.release(buffer);
+        }
+    }
+
+    /** Copies a stream using the given buffer. */
+    public static long copy(final InputStream input, final OutputStream output, byte[] buffer) throws IOException {
         long count = 0;
         int n;
         while (-1 != (n = input.read(buffer))) {
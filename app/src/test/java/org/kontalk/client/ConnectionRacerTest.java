@@ -0,0 +1,218 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ConnectionRacerTest {
+
+    private static final String NETWORK = "test.kontalk.net";
+
+    private static final long SLOW_DELAY = 1500;
+    private static final long FAST_DELAY = 50;
+    private static final long STAGGER_DELAY = 200;
+
+    /** A local endpoint answering after a delay, simulating a slow handshake. */
+    private static final class StandIn implements Runnable {
+        final ServerSocket socket;
+        final long delay;
+
+        StandIn(long delay) throws IOException {
+            this.socket = new ServerSocket(0);
+            this.delay = delay;
+            new Thread(this, "StandIn-" + delay).start();
+        }
+
+        EndpointServer getServer() {
+            return new EndpointServer(NETWORK, "127.0.0.1", socket.getLocalPort());
+        }
+
+        @Override
+        public void run() {
+            while (!socket.isClosed()) {
+                try {
+                    final Socket client = socket.accept();
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                Thread.sleep(delay);
+                                client.getOutputStream().write(1);
+                            }
+                            catch (Exception ignored) {
+                            }
+                        }
+                    }).start();
+                }
+                catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /** Connects and waits for the stand-in greeting. */
+    private static final class SocketConnector implements ConnectionRacer.Connector<Socket> {
+        final CountDownLatch discarded;
+
+        SocketConnector(int expectedDiscards) {
+            discarded = new CountDownLatch(expectedDiscards);
+        }
+
+        @Override
+        public Socket connect(EndpointServer server) throws Exception {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(server.getHost(), server.getPort()), 5000);
+                if (socket.getInputStream().read() != 1)
+                    throw new IOException("bad greeting");
+                return socket;
+            }
+            catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void discard(Socket connection) {
+            try {
+                connection.close();
+            }
+            catch (IOException ignored) {
+            }
+            discarded.countDown();
+        }
+    }
+
+    private StandIn mSlow;
+    private StandIn mFast;
+    private EndpointServer mDead;
+
+    @Before
+    public void setUp() throws Exception {
+        mSlow = new StandIn(SLOW_DELAY);
+        mFast = new StandIn(FAST_DELAY);
+
+        // a closed port refuses connections
+        ServerSocket dead = new ServerSocket(0);
+        mDead = new EndpointServer(NETWORK, "127.0.0.1", dead.getLocalPort());
+        dead.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSlow.socket.close();
+        mFast.socket.close();
+    }
+
+    @Test
+    public void testSlowServerFirst() throws Exception {
+        ServerHealth health = new ServerHealth(null);
+        SocketConnector connector = new SocketConnector(1);
+        ConnectionRacer<Socket> racer = new ConnectionRacer<>(connector, health, STAGGER_DELAY, 3);
+
+        long start = System.currentTimeMillis();
+        ConnectionRacer.Result<Socket> result = racer.race(
+            Arrays.asList(mSlow.getServer(), mFast.getServer()));
+        long elapsed = System.currentTimeMillis() - start;
+        result.connection.close();
+
+        // serial attempts would have waited for the slow server
+        assertEquals(mFast.getServer(), result.server);
+        assertTrue("took " + elapsed + " ms", elapsed < SLOW_DELAY);
+
+        // the slow connection is discarded once completed
+        assertTrue(connector.discarded.await(SLOW_DELAY * 2, TimeUnit.MILLISECONDS));
+        assertTrue(health.getScore(mFast.getServer()) < health.getScore(mSlow.getServer()));
+    }
+
+    @Test
+    public void testDeadServerFirst() throws Exception {
+        ServerHealth health = new ServerHealth(null);
+        // long stagger: the next attempt must start right after the failure
+        ConnectionRacer<Socket> racer = new ConnectionRacer<>(new SocketConnector(0),
+            health, SLOW_DELAY * 10, 3);
+
+        long start = System.currentTimeMillis();
+        ConnectionRacer.Result<Socket> result = racer.race(
+            Arrays.asList(mDead, mFast.getServer()));
+        long elapsed = System.currentTimeMillis() - start;
+        result.connection.close();
+
+        assertEquals(mFast.getServer(), result.server);
+        assertTrue("took " + elapsed + " ms", elapsed < SLOW_DELAY);
+
+        List<EndpointServer> sorted = health.sort(Arrays.asList(mDead, mSlow.getServer(), mFast.getServer()));
+        assertEquals(mFast.getServer(), sorted.get(0));
+        // never contacted
+        assertEquals(mSlow.getServer(), sorted.get(1));
+        assertEquals(mDead, sorted.get(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void testAllFailed() throws Exception {
+        ConnectionRacer<Socket> racer = new ConnectionRacer<>(new SocketConnector(0),
+            null, STAGGER_DELAY, 3);
+        racer.race(Arrays.asList(mDead, mDead));
+    }
+
+    @Test
+    public void testProbe() throws Exception {
+        ServerHealth health = new ServerHealth(null);
+        assertTrue(health.probe(mSlow.getServer(), 5000));
+        assertFalse(health.probe(mDead, 5000));
+
+        long now = System.currentTimeMillis();
+        assertTrue(health.getScore(mSlow.getServer(), now) < ServerHealth.FAILURE_PENALTY);
+        assertTrue(health.getScore(mDead, now) >= ServerHealth.FAILURE_PENALTY);
+        // failures are eventually forgiven
+        assertTrue(health.getScore(mDead, now + ServerHealth.FAILURE_EXPIRATION) < ServerHealth.FAILURE_PENALTY);
+    }
+
+    @Test
+    public void testProbeKeepsConnectTime() throws Exception {
+        ServerHealth health = new ServerHealth(null);
+        EndpointServer server = mFast.getServer();
+
+        // probes only are scaled to a connection estimate
+        assertTrue(health.probe(server, 5000));
+        long estimate = health.getScore(server);
+        assertTrue(estimate < ServerHealth.DEFAULT_CONNECT_TIME);
+
+        // a measured connection time is used as is and not mixed with probes
+        health.recordConnect(server, 800);
+        assertTrue(health.probe(server, 5000));
+        assertEquals(800, health.getScore(server));
+    }
+
+}
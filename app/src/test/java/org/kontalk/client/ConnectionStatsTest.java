@@ -0,0 +1,93 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ConnectionStatsTest {
+
+    @Test
+    public void testBytes() throws Exception {
+        ConnectionStats stats = new ConnectionStats(ConnectionStats.Level.BASIC);
+
+        OutputStream out = stats.countOutput(new ByteArrayOutputStream(), true);
+        out.write(new byte[100]);
+        out.write(1);
+        InputStream in = stats.countInput(new ByteArrayInputStream(new byte[50]), false);
+        while (in.read(new byte[16]) >= 0);
+
+        ConnectionStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(101, snapshot.wireBytesOut);
+        assertEquals(50, snapshot.rawBytesIn);
+        assertEquals(0, snapshot.wireBytesIn);
+    }
+
+    @Test
+    public void testLevels() {
+        ConnectionStats stats = new ConnectionStats(ConnectionStats.Level.BASIC);
+        stats.stanzaReceived(ConnectionStats.TYPE_MESSAGE, 5000);
+        stats.stanzaSent(ConnectionStats.getStanzaType("iq"), 5000);
+        stats.pingReceived(120);
+
+        ConnectionStats.Snapshot snapshot = stats.snapshot();
+        assertEquals(1, snapshot.stanzasIn[ConnectionStats.TYPE_MESSAGE]);
+        assertEquals(1, snapshot.stanzasOut[ConnectionStats.TYPE_IQ]);
+        assertEquals(1, snapshot.pingRtt.getCount());
+        // no stanza timing in production
+        assertEquals(0, snapshot.parseTime.getCount());
+        assertEquals(0, snapshot.queueWait.getCount());
+
+        stats.setLevel(ConnectionStats.Level.DETAILED);
+        stats.stanzaReceived(ConnectionStats.TYPE_MESSAGE, 5000);
+        assertEquals(5, stats.snapshot().parseTime.getMax());
+
+        stats.setLevel(ConnectionStats.Level.OFF);
+        stats.stanzaReceived(ConnectionStats.TYPE_MESSAGE, 5000);
+        assertEquals(2, stats.snapshot().stanzasIn[ConnectionStats.TYPE_MESSAGE]);
+    }
+
+    @Test
+    public void testHistogram() {
+        ConnectionStats stats = new ConnectionStats(ConnectionStats.Level.BASIC);
+        for (int i = 1; i <= 100; i++)
+            stats.ackReceived(i);
+
+        ConnectionStats.Histogram ackRtt = stats.snapshot().ackRtt;
+        assertEquals(100, ackRtt.getCount());
+        assertEquals(50, ackRtt.getMean());
+        assertEquals(100, ackRtt.getMax());
+        assertEquals(63, ackRtt.getPercentile(50));
+        assertEquals(100, ackRtt.getPercentile(99));
+
+        StringWriter dump = new StringWriter();
+        stats.snapshot().dump(new PrintWriter(dump));
+        assertTrue(dump.toString().contains("SM ack RTT: 100 samples"));
+    }
+
+}
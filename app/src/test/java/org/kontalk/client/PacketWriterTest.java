@@ -0,0 +1,196 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.jivesoftware.smack.packet.Message;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Flush policy of the coalescing packet writer, driving a real
+ * {@link XMPPTCPConnection.PacketWriter} into a recording writer.
+ * @author Daniele Ricci
+ */
+public class PacketWriterTest {
+
+    /** Allowance for thread scheduling, in milliseconds. */
+    private static final long TOLERANCE = 20;
+
+    /** How long to wait for the writer thread, in milliseconds. */
+    private static final long TIMEOUT = 5000;
+
+    /** Records flushes and how long written data waited for them. */
+    private static final class RecordingWriter extends Writer {
+        int messages;
+        int flushes;
+        /** Time of the first write not flushed yet, 0 if none. */
+        long pendingSince;
+        int pendingSize;
+        long maxLatency;
+        int maxBatchSize;
+
+        @Override
+        public synchronized void write(char[] cbuf, int off, int len) {
+            write(new String(cbuf, off, len));
+        }
+
+        @Override
+        public synchronized void write(String str) {
+            if (pendingSince == 0)
+                pendingSince = System.nanoTime();
+            pendingSize += str.length();
+            if (str.startsWith("<message"))
+                messages++;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void flush() {
+            if (pendingSince > 0) {
+                maxLatency = Math.max(maxLatency, (System.nanoTime() - pendingSince) / 1000000);
+                maxBatchSize = Math.max(maxBatchSize, pendingSize);
+            }
+            pendingSince = 0;
+            pendingSize = 0;
+            flushes++;
+            notifyAll();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        synchronized void reset() {
+            messages = flushes = 0;
+            pendingSince = pendingSize = 0;
+            maxLatency = maxBatchSize = 0;
+        }
+
+        /** Waits for the given messages to be written and flushed. */
+        synchronized void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while ((messages < count || pendingSince > 0) && System.currentTimeMillis() < deadline)
+                wait(TIMEOUT);
+            assertEquals(count, messages);
+            assertEquals(0, pendingSince);
+        }
+
+        /** Waits for the first flush, e.g. the stream opening. */
+        synchronized void awaitFlush() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (flushes == 0 && System.currentTimeMillis() < deadline)
+                wait(TIMEOUT);
+            assertTrue(flushes > 0);
+        }
+    }
+
+    private XMPPTCPConnection.PacketWriter mPacketWriter;
+    private RecordingWriter mWriter;
+
+    @Before
+    public void setUp() throws Exception {
+        XMPPTCPConnection connection = new XMPPTCPConnection("user", "password", "beta.kontalk.net");
+        mPacketWriter = connection.new PacketWriter();
+        connection.packetWriter = mPacketWriter;
+        connection.packetReader = connection.new PacketReader();
+        mWriter = new RecordingWriter();
+        connection.setWriter(mWriter);
+        mPacketWriter.init();
+
+        // stream opening
+        mWriter.awaitFlush();
+        mWriter.reset();
+    }
+
+    @After
+    public void tearDown() {
+        mPacketWriter.shutdown(true);
+    }
+
+    private static Message createMessage(int index, String body) {
+        Message msg = new Message("alice@beta.kontalk.net", body);
+        msg.setStanzaId("msg" + index);
+        return msg;
+    }
+
+    @Test
+    public void testSingleStanza() throws Exception {
+        mPacketWriter.sendStreamElement(createMessage(0, "hello"));
+        mWriter.await(1);
+
+        assertEquals(1, mWriter.flushes);
+        // only the linger time waiting for more data
+        assertTrue("waited " + mWriter.maxLatency + " ms",
+            mWriter.maxLatency <= XMPPTCPConnection.PacketWriter.FLUSH_LINGER + TOLERANCE);
+    }
+
+    @Test
+    public void testBurst() throws Exception {
+        final int count = 100;
+        for (int i = 0; i < count; i++)
+            mPacketWriter.sendStreamElement(createMessage(i, "receipt"));
+        mWriter.await(count);
+
+        // flushing per stanza would give one flush each
+        assertTrue("flushed " + mWriter.flushes + " times", mWriter.flushes < 10);
+    }
+
+    @Test
+    public void testSteadyStream() throws Exception {
+        // elements arrive faster than the linger time: writer is never idle
+        final int count = 300;
+        for (int i = 0; i < count; i++) {
+            mPacketWriter.sendStreamElement(createMessage(i, "typing"));
+            Thread.sleep(1);
+        }
+        mWriter.await(count);
+
+        assertTrue("waited " + mWriter.maxLatency + " ms",
+            mWriter.maxLatency <= XMPPTCPConnection.PacketWriter.MAX_FLUSH_LATENCY + TOLERANCE);
+        assertTrue("flushed " + mWriter.flushes + " times", mWriter.flushes < count / 2);
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 4000; i++)
+            body.append('x');
+        Message large = createMessage(0, body.toString());
+        int size = large.toXML().length();
+
+        final int count = 40;
+        for (int i = 0; i < count; i++)
+            mPacketWriter.sendStreamElement(createMessage(i, body.toString()));
+        mWriter.await(count);
+
+        // flushed as soon as the batch limit is reached
+        assertTrue("batch of " + mWriter.maxBatchSize + " characters",
+            mWriter.maxBatchSize < XMPPTCPConnection.PacketWriter.MAX_BATCH_SIZE + size);
+        assertTrue("flushed " + mWriter.flushes + " times",
+            mWriter.flushes >= (count * size) / (XMPPTCPConnection.PacketWriter.MAX_BATCH_SIZE + size));
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class SmAckPolicyTest {
+
+    private static final long MAX_DELAY = 5000;
+
+    @Test
+    public void testBurst() {
+        SmAckPolicy policy = new SmAckPolicy(500, 20, 16384, MAX_DELAY);
+        long now = 1000;
+
+        // a burst of 450 stanzas is acked every 20 stanzas
+        int requests = 0;
+        for (int i = 0; i < 450; i++) {
+            policy.stanzaSent(100, false, now);
+            if (policy.shouldRequestAck(false, now)) {
+                policy.ackRequested(now);
+                requests++;
+                // answer comes back immediately
+                policy.ackAnswered(policy.getQueueDepth(), now);
+            }
+        }
+        assertEquals(22, requests);
+        assertEquals(20, policy.getMaxQueueDepth());
+    }
+
+    @Test
+    public void testBytes() {
+        SmAckPolicy policy = new SmAckPolicy(500, 20, 16384, MAX_DELAY);
+        policy.stanzaSent(10000, false, 0);
+        assertFalse(policy.shouldRequestAck(false, 0));
+        policy.stanzaSent(10000, false, 0);
+        assertTrue(policy.shouldRequestAck(false, 0));
+        assertEquals(20000, policy.getUnackedBytes());
+    }
+
+    @Test
+    public void testCoalescing() {
+        SmAckPolicy policy = new SmAckPolicy(500, 20, 16384, MAX_DELAY);
+        // urgent stanzas are acked only when the writer is idle
+        for (int i = 0; i < 5; i++) {
+            policy.stanzaSent(200, true, 0);
+            assertFalse(policy.shouldRequestAck(false, 0));
+        }
+        assertTrue(policy.shouldRequestAck(true, 0));
+        policy.ackRequested(0);
+
+        // one request at a time
+        policy.stanzaSent(200, true, 10);
+        assertFalse(policy.shouldRequestAck(true, 10));
+
+        policy.ackAnswered(5, 100);
+        assertEquals(1, policy.getQueueDepth());
+        assertEquals(200, policy.getUnackedBytes());
+        assertEquals(100, policy.getSmoothedAckLatency());
+    }
+
+    @Test
+    public void testDelay() {
+        SmAckPolicy policy = new SmAckPolicy(500, 20, 16384, MAX_DELAY);
+        assertEquals(-1, policy.getTimeUntilAckDue(0));
+
+        policy.stanzaSent(100, false, 0);
+        assertEquals(MAX_DELAY, policy.getTimeUntilAckDue(0));
+        assertFalse(policy.shouldRequestAck(true, MAX_DELAY - 1));
+        assertTrue(policy.shouldRequestAck(true, MAX_DELAY));
+    }
+
+    @Test
+    public void testRetransmission() {
+        SmAckPolicy policy = new SmAckPolicy(500, 20, 16384, MAX_DELAY);
+        policy.stanzaSent(100, true, 0);
+        policy.ackRequested(0);
+
+        long rto = policy.getRto();
+        assertEquals(SmAckPolicy.INITIAL_RTO, rto);
+        assertEquals(rto, policy.getTimeUntilAckDue(0));
+        assertFalse(policy.shouldRequestAck(true, rto - 1));
+        assertTrue(policy.shouldRequestAck(true, rto));
+        policy.ackRequested(rto);
+
+        // answer to a retransmitted request is not measured
+        policy.ackAnswered(1, rto + 50);
+        assertEquals(-1, policy.getSmoothedAckLatency());
+        assertEquals(2, policy.getRequestCount());
+    }
+
+}
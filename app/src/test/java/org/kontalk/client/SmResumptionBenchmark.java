@@ -0,0 +1,306 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
+import org.jivesoftware.smack.SASLAuthentication;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.filter.StanzaTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.roster.Roster;
+import org.jivesoftware.smack.tcp.XMPPTCPConnectionConfiguration;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Wakeup-to-first-message latency benchmark for {@link SmStateStore},
+ * comparing a full login with the resumption of a persisted stream after a
+ * process restart, against a local XMPP server stand-in.<br>
+ * Disabled by default, run it with:
+ * <pre>./gradlew :app:testBasicDebugUnitTest -Dkontalk.benchmark=true --tests '*SmResumptionBenchmark'</pre>
+ * Optional system properties:
+ * <ul>
+ * <li><code>kontalk.benchmark.rtt</code>: simulated round trip time in milliseconds</li>
+ * </ul>
+ * @author Daniele Ricci
+ */
+public class SmResumptionBenchmark {
+
+    private static final String DOMAIN = "localhost";
+    private static final String USER = "user";
+    private static final String RESOURCE = "benchmark";
+    private static final String OWNER = USER + "@" + DOMAIN + "/" + RESOURCE;
+
+    private static final int DEFAULT_RTT = 100;
+    private static final int ROSTER_SIZE = 200;
+    private static final int OFFLINE_MESSAGES = 50;
+    private static final String WAKEUP_BODY = "wakeup";
+
+    private static final Pattern ID_PATTERN = Pattern.compile("id=['\"]([^'\"]*)['\"]");
+
+    private static ServerSocket sServer;
+    private static Thread sServerThread;
+    private static int sRtt;
+
+    /** Stanzas handled by the stand-in in the last stream management session. */
+    private static volatile int sHandled;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("kontalk.benchmark"));
+        sRtt = Integer.getInteger("kontalk.benchmark.rtt", DEFAULT_RTT);
+
+        // the stand-in doesn't do TLS
+        SASLAuthentication.unBlacklistSASLMechanism("PLAIN");
+
+        sServer = new ServerSocket(0);
+        sServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!sServer.isClosed()) {
+                    try {
+                        final Socket socket = sServer.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    serve(socket);
+                                }
+                                catch (Exception ignored) {
+                                }
+                                finally {
+                                    try {
+                                        socket.close();
+                                    }
+                                    catch (IOException ignored) {
+                                    }
+                                }
+                            }
+                        }, "XMPPStandInSession").start();
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+            }
+        }, "XMPPStandIn");
+        sServerThread.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (sServer != null) {
+            sServer.close();
+            sServerThread.join();
+        }
+    }
+
+    @Test
+    public void testResumption() throws Exception {
+        File file = File.createTempFile("sm_state", null);
+        file.delete();
+        try {
+            SmStateStore store = new SmStateStore(file);
+            XMPPTCPConnection conn = createConnection();
+            long full = connect(conn, store, false);
+
+            // wait for the state to hit the disk, then kill the "process"
+            long deadline = System.currentTimeMillis() + 5000;
+            while (store.load(OWNER) == null && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            conn.instantShutdown();
+
+            conn = createConnection();
+            long resumed = connect(conn, new SmStateStore(file), true);
+            assertTrue(conn.streamWasResumed());
+            conn.instantShutdown();
+
+            System.out.println(String.format("RTT %d ms: full login %.2f ms, resumption %.2f ms " +
+                    "(%d roster items, %d offline messages)",
+                sRtt, full / 1e6, resumed / 1e6, ROSTER_SIZE, OFFLINE_MESSAGES));
+
+            assertTrue(resumed < full);
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private static XMPPTCPConnection createConnection() {
+        XMPPTCPConnection conn = new XMPPTCPConnection(XMPPTCPConnectionConfiguration.builder()
+            .setHost(DOMAIN)
+            .setPort(sServer.getLocalPort())
+            .setServiceName(DOMAIN)
+            .setUsernameAndPassword(USER, "password")
+            .setResource(RESOURCE)
+            .setSecurityMode(SecurityMode.disabled)
+            .setSendPresence(false)
+            .setLegacySessionDisabled(true)
+            .build());
+        conn.setUseStreamManagement(true);
+        conn.setUseStreamManagementResumption(true);
+        return conn;
+    }
+
+    /** Connects and returns the time until the wakeup message arrived in nanoseconds. */
+    private static long connect(XMPPTCPConnection conn, SmStateStore store, boolean expectRestore) throws Exception {
+        final CountDownLatch wakeup = new CountDownLatch(1);
+        conn.addAsyncStanzaListener(new StanzaListener() {
+            @Override
+            public void processPacket(Stanza packet) {
+                if (WAKEUP_BODY.equals(((Message) packet).getBody()))
+                    wakeup.countDown();
+            }
+        }, StanzaTypeFilter.MESSAGE);
+        // roster is loaded at login like the real client does
+        Roster.getInstanceFor(conn);
+
+        long start = System.nanoTime();
+        conn.connect();
+        assertEquals(expectRestore, store.attach(conn, OWNER));
+        conn.login();
+        assertTrue(wakeup.await(30, TimeUnit.SECONDS));
+        return System.nanoTime() - start;
+    }
+
+    /** A minimal XMPP server session: SASL PLAIN, bind, roster and XEP-0198. */
+    private static void serve(Socket socket) throws Exception {
+        Reader in = new InputStreamReader(socket.getInputStream(), "UTF-8");
+        Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+        StringBuilder buf = new StringBuilder();
+        char[] chunk = new char[4096];
+        boolean authenticated = false;
+        boolean smEnabled = false;
+
+        int read;
+        while ((read = in.read(chunk)) >= 0) {
+            buf.append(chunk, 0, read);
+
+            while (true) {
+                int start = buf.indexOf("<");
+                int tagEnd = start >= 0 ? buf.indexOf(">", start) : -1;
+                if (tagEnd < 0)
+                    break;
+
+                String startTag = buf.substring(start, tagEnd + 1);
+                String name = startTag.substring(1).split("[\\s/>]", 2)[0];
+                int end;
+                if (name.startsWith("?") || name.equals("stream:stream") ||
+                        name.startsWith("/") || startTag.endsWith("/>")) {
+                    end = tagEnd + 1;
+                }
+                else {
+                    int close = buf.indexOf("</" + name + ">", tagEnd);
+                    if (close < 0)
+                        break;
+                    end = close + name.length() + 3;
+                }
+                String element = buf.substring(start, end);
+                buf.delete(0, end);
+
+                if (name.equals("/stream:stream"))
+                    return;
+
+                if (smEnabled && (name.equals("iq") || name.equals("message") || name.equals("presence")))
+                    sHandled++;
+
+                if (name.equals("stream:stream")) {
+                    reply(out, "<?xml version='1.0'?><stream:stream xmlns='jabber:client' " +
+                        "xmlns:stream='http://etherx.jabber.org/streams' id='stream' " +
+                        "from='" + DOMAIN + "' version='1.0'><stream:features>" +
+                        (authenticated ?
+                            "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/><sm xmlns='urn:xmpp:sm:3'/>" :
+                            "<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>" +
+                                "<mechanism>PLAIN</mechanism></mechanisms>") +
+                        "</stream:features>");
+                }
+                else if (name.equals("auth")) {
+                    authenticated = true;
+                    reply(out, "<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+                }
+                else if (name.equals("iq") && element.contains("urn:ietf:params:xml:ns:xmpp-bind")) {
+                    reply(out, "<iq type='result' id='" + getId(element) + "'>" +
+                        "<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'><jid>" + OWNER + "</jid></bind></iq>");
+                }
+                else if (name.equals("iq") && element.contains("jabber:iq:roster")) {
+                    StringBuilder roster = new StringBuilder("<iq type='result' id='")
+                        .append(getId(element)).append("' to='").append(OWNER)
+                        .append("'><query xmlns='jabber:iq:roster'>");
+                    for (int i = 0; i < ROSTER_SIZE; i++)
+                        roster.append("<item jid='contact").append(i).append('@').append(DOMAIN)
+                            .append("' subscription='both'/>");
+                    roster.append("</query></iq>");
+
+                    // offline storage is flushed after the roster
+                    for (int i = 0; i < OFFLINE_MESSAGES; i++)
+                        roster.append(message("offline" + i, "offline message " + i));
+                    roster.append(message("wakeup", WAKEUP_BODY));
+                    reply(out, roster.toString());
+                }
+                else if (name.equals("enable")) {
+                    smEnabled = true;
+                    sHandled = 0;
+                    reply(out, "<enabled xmlns='urn:xmpp:sm:3' id='session' resume='true' max='300'/>");
+                }
+                else if (name.equals("resume")) {
+                    smEnabled = true;
+                    // only stanzas that arrived while offline are delivered
+                    reply(out, "<resumed xmlns='urn:xmpp:sm:3' previd='session' h='" + sHandled + "'/>" +
+                        message("wakeup", WAKEUP_BODY));
+                }
+            }
+        }
+    }
+
+    private static void reply(Writer out, String data) throws Exception {
+        // one round trip for every server response
+        Thread.sleep(sRtt);
+        out.write(data);
+        out.flush();
+    }
+
+    private static String message(String id, String body) {
+        return "<message type='chat' id='" + id + "' from='contact0@" + DOMAIN + "/phone' to='" +
+            OWNER + "'><body>" + body + "</body></message>";
+    }
+
+    private static String getId(String element) {
+        Matcher m = ID_PATTERN.matcher(element);
+        return m.find() ? m.group(1) : "";
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class SmStateStoreTest {
+
+    private static final String OWNER = "user@beta.kontalk.net/resource";
+
+    @Test
+    public void testPersistence() throws Exception {
+        File file = File.createTempFile("sm_state", null);
+        try {
+            long now = System.currentTimeMillis();
+            XMPPTCPConnection.SmState state = new XMPPTCPConnection.SmState("session", null, 300,
+                42, 12, Arrays.asList("<message id='1'><body>àèìòù</body></message>",
+                    "<iq id='2' type='get'/>"), now);
+            new SmStateStore(file).write(OWNER, state);
+
+            // process restart
+            SmStateStore store = new SmStateStore(file);
+            assertNull(store.load("other@beta.kontalk.net/resource"));
+
+            XMPPTCPConnection.SmState loaded = store.load(OWNER);
+            assertNotNull(loaded);
+            assertEquals("session", loaded.sessionId);
+            assertNull(loaded.location);
+            assertEquals(300, loaded.maxResumptionTime);
+            assertEquals(42, loaded.clientHandledCount);
+            assertEquals(12, loaded.serverHandledCount);
+            assertEquals(state.unacknowledgedStanzas, loaded.unacknowledgedStanzas);
+            assertEquals(now, loaded.timestamp);
+
+            assertTrue(loaded.isResumable(now + 299 * 1000));
+            assertFalse(loaded.isResumable(now + 300 * 1000));
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testInvalidFile() throws Exception {
+        File file = File.createTempFile("sm_state", null);
+        try {
+            DataOutputStream data = new DataOutputStream(new FileOutputStream(file));
+            data.writeInt(SmStateStore.VERSION);
+            data.writeUTF(OWNER);
+            data.writeUTF("session");
+            data.writeBoolean(false);
+            data.writeInt(300);
+            data.writeLong(42);
+            data.writeLong(12);
+            data.writeLong(System.currentTimeMillis());
+            // bogus stanza count
+            data.writeInt(Integer.MAX_VALUE);
+            data.close();
+
+            assertNull(new SmStateStore(file).load(OWNER));
+            assertFalse(file.exists());
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Stanza;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Stream Management state saved for resumption, driving a real
+ * {@link XMPPTCPConnection.PacketReader} with a scripted server stream.
+ * @author Daniele Ricci
+ */
+public class SmStateTest {
+
+    /** How long to wait for the reader thread, in milliseconds. */
+    private static final long TIMEOUT = 5000;
+
+    private static final String SM = " xmlns='urn:xmpp:sm:3'";
+
+    /** Suspends acks of messages not stored yet, like {@link KontalkConnection}. */
+    private static final class TestConnection extends XMPPTCPConnection {
+        TestConnection() {
+            super("user", "password", "beta.kontalk.net");
+        }
+
+        @Override
+        protected void processPacket(Stanza packet) throws InterruptedException {
+            // the listener storing this message will never run
+            if ("unstored".equals(packet.getStanzaId()))
+                suspendSmAck();
+            super.processPacket(packet);
+        }
+    }
+
+    private final List<XMPPTCPConnection.SmState> mStates = new ArrayList<>();
+    private TestConnection mConnection;
+
+    @After
+    public void tearDown() {
+        if (mConnection != null) {
+            mConnection.packetReader.shutdown();
+            mConnection.packetWriter.shutdown(true);
+        }
+    }
+
+    private synchronized void awaitStates(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mStates.size() < count && System.currentTimeMillis() < deadline)
+            wait(TIMEOUT);
+        assertEquals(count, mStates.size());
+    }
+
+    @Test
+    public void testReceivedNotStored() throws Exception {
+        String stream = "<stream:stream xmlns='jabber:client' " +
+            "xmlns:stream='http://etherx.jabber.org/streams' " +
+            "from='beta.kontalk.net' id='stream1'>" +
+            "<enabled" + SM + " id='session' resume='true'/>" +
+            "<message from='alice@beta.kontalk.net' id='stored'><body>one</body></message>" +
+            "<r" + SM + "/>" +
+            // process is killed before this one is stored
+            "<message from='alice@beta.kontalk.net' id='unstored'><body>two</body></message>" +
+            "<r" + SM + "/>" +
+            "<a" + SM + " h='0'/>";
+
+        mConnection = new TestConnection();
+        mConnection.setSmStateListener(new XMPPTCPConnection.SmStateListener() {
+            @Override
+            public void smStateChanged(XMPPTCPConnection.SmState state) {
+                synchronized (SmStateTest.this) {
+                    mStates.add(state);
+                    SmStateTest.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void smStateDropped() {
+            }
+        });
+        StringWriter writer = new StringWriter();
+        mConnection.setWriter(writer);
+        mConnection.setReader(new StringReader(stream));
+        mConnection.packetWriter = mConnection.new PacketWriter();
+        mConnection.packetReader = mConnection.new PacketReader();
+        mConnection.packetWriter.init();
+        mConnection.packetReader.init();
+
+        // enabled, ack of the first message, server ack
+        awaitStates(3);
+        XMPPTCPConnection.SmState saved = mStates.get(2);
+        assertEquals("session", saved.sessionId);
+        // the server will send the unstored message again on resumption
+        assertEquals(1, saved.clientHandledCount);
+
+        mConnection.packetWriter.shutdown(true);
+        String sent = writer.toString();
+        assertTrue(sent, sent.contains("h='1'") || sent.contains("h=\"1\""));
+        assertFalse(sent, sent.contains("h='2'") || sent.contains("h=\"2\""));
+    }
+
+}
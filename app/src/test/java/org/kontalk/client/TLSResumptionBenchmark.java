@@ -0,0 +1,191 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongycastle.asn1.x500.X500Name;
+import org.spongycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.spongycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.spongycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Handshake count and latency benchmark for {@link SSLContextRegistry},
+ * against a local TLS server standing in for the XMPP and HTTP servers.<br>
+ * Disabled by default, run it with:
+ * <pre>./gradlew :app:testBasicDebugUnitTest -Dkontalk.benchmark=true --tests '*TLSResumptionBenchmark'</pre>
+ * Optional system properties:
+ * <ul>
+ * <li><code>kontalk.benchmark.connections</code>: number of connections for each run</li>
+ * </ul>
+ * @author Daniele Ricci
+ */
+public class TLSResumptionBenchmark {
+
+    private static final String PROTOCOL = "TLSv1.2";
+    private static final int DEFAULT_CONNECTIONS = 50;
+
+    private static SSLServerSocket sServer;
+    private static Thread sServerThread;
+
+    private interface ContextFactory {
+        SSLContext get() throws Exception;
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("kontalk.benchmark"));
+
+        // self-signed server certificate
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(2048);
+        KeyPair pair = gen.generateKeyPair();
+
+        X500Name name = new X500Name("CN=localhost");
+        long now = System.currentTimeMillis();
+        X509Certificate cert = new JcaX509CertificateConverter().getCertificate(
+            new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+                new Date(now - 60000), new Date(now + 3600000), name, pair.getPublic())
+            .build(new JcaContentSignerBuilder("SHA256withRSA").build(pair.getPrivate())));
+
+        KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keystore.load(null, null);
+        keystore.setKeyEntry("server", pair.getPrivate(), new char[0], new Certificate[] { cert });
+        KeyManagerFactory kmFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmFactory.init(keystore, new char[0]);
+
+        SSLContext serverContext = SSLContext.getInstance(PROTOCOL);
+        serverContext.init(kmFactory.getKeyManagers(), null, null);
+
+        sServer = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0);
+        sServer.setEnabledProtocols(new String[] { PROTOCOL });
+
+        sServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!sServer.isClosed()) {
+                    try {
+                        SSLSocket socket = (SSLSocket) sServer.accept();
+                        try {
+                            socket.startHandshake();
+                            OutputStream out = socket.getOutputStream();
+                            out.write(1);
+                            out.flush();
+                        }
+                        finally {
+                            socket.close();
+                        }
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+            }
+        }, "TLSStandIn");
+        sServerThread.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (sServer != null) {
+            sServer.close();
+            sServerThread.join();
+        }
+    }
+
+    @Test
+    public void testResumption() throws Exception {
+        int connections = Integer.getInteger("kontalk.benchmark.connections", DEFAULT_CONNECTIONS);
+
+        // old behaviour: a new context for every connection
+        long[] fresh = run(connections, new ContextFactory() {
+            @Override
+            public SSLContext get() throws Exception {
+                return SSLContextRegistry.createContext(PROTOCOL, null, null, true, null);
+            }
+        });
+
+        long[] shared = run(connections, new ContextFactory() {
+            @Override
+            public SSLContext get() throws Exception {
+                return SSLContextRegistry.getContext(PROTOCOL, null, null, true, null);
+            }
+        });
+
+        System.out.println(String.format("%d connections: fresh context %d full handshakes, %.2f ms/connection; " +
+                "shared context %d full handshakes, %.2f ms/connection",
+            connections, fresh[0], fresh[1] / 1e6 / connections,
+            shared[0], shared[1] / 1e6 / connections));
+
+        assertEquals(connections, fresh[0]);
+        assertTrue(shared[0] < fresh[0]);
+    }
+
+    /** Returns the number of full handshakes and the total time in nanoseconds. */
+    private long[] run(int connections, ContextFactory factory) throws Exception {
+        long fullHandshakes = 0;
+        long total = 0;
+
+        for (int i = 0; i < connections; i++) {
+            long start = System.nanoTime();
+            long wallStart = System.currentTimeMillis();
+
+            SSLSocket socket = (SSLSocket) factory.get().getSocketFactory()
+                .createSocket("localhost", sServer.getLocalPort());
+            try {
+                socket.setEnabledProtocols(new String[] { PROTOCOL });
+                socket.startHandshake();
+                InputStream in = socket.getInputStream();
+                assertEquals(1, in.read());
+
+                // resumed sessions were created by an earlier handshake
+                if (socket.getSession().getCreationTime() >= wallStart)
+                    fullHandshakes++;
+            }
+            finally {
+                socket.close();
+            }
+
+            total += System.nanoTime() - start;
+        }
+
+        return new long[] { fullHandshakes, total };
+    }
+
+}
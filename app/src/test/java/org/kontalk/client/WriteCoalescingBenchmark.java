@@ -0,0 +1,198 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Bytes on the wire, write calls and compression ratio of the packet writer
+ * output stack, flushing after every stanza or once for a burst as the
+ * coalescing writer does, over a loopback socket.<br>
+ * Compression is done with a sync-flushing deflater, like the zlib stream
+ * compression handler.<br>
+ * Disabled by default, run it with:
+ * <pre>./gradlew :app:testBasicDebugUnitTest -Dkontalk.benchmark=true --tests '*WriteCoalescingBenchmark'</pre>
+ * @author Daniele Ricci
+ */
+public class WriteCoalescingBenchmark {
+
+    private static final int GROUP_MEMBERS = 30;
+    private static final int RECEIPTS = 100;
+
+    private static ServerSocket sServer;
+    private static Thread sServerThread;
+
+    /** Counts bytes and write calls reaching the socket. */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long bytes;
+        long writes;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            bytes++;
+            writes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            bytes += len;
+            writes++;
+        }
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("kontalk.benchmark"));
+
+        sServer = new ServerSocket(0);
+        sServerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!sServer.isClosed()) {
+                    try {
+                        Socket socket = sServer.accept();
+                        try {
+                            InputStream in = socket.getInputStream();
+                            byte[] buf = new byte[8192];
+                            while (in.read(buf) >= 0);
+                        }
+                        finally {
+                            socket.close();
+                        }
+                    }
+                    catch (IOException ignored) {
+                    }
+                }
+            }
+        }, "LoopbackSink");
+        sServerThread.start();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (sServer != null) {
+            sServer.close();
+            sServerThread.join();
+        }
+    }
+
+    @Test
+    public void testGroupMessage() throws Exception {
+        // same encrypted content for every member
+        String content = randomBase64(new Random(1), 800);
+        List<String> stanzas = new ArrayList<>(GROUP_MEMBERS);
+        for (int i = 0; i < GROUP_MEMBERS; i++) {
+            stanzas.add("<message type='chat' id='group" + i + "' to='member" + i +
+                "@beta.kontalk.net'><request xmlns='urn:xmpp:receipts'/>" +
+                "<e2e xmlns='urn:ietf:params:xml:ns:xmpp-e2e'>" + content + "</e2e></message>");
+        }
+        compare("group message to " + GROUP_MEMBERS + " members", stanzas);
+    }
+
+    @Test
+    public void testReceipts() throws Exception {
+        Random random = new Random(2);
+        List<String> stanzas = new ArrayList<>(RECEIPTS);
+        for (int i = 0; i < RECEIPTS; i++) {
+            stanzas.add("<message type='chat' id='receipt" + i + "' to='contact" + (i % 10) +
+                "@beta.kontalk.net'><received xmlns='urn:xmpp:receipts' id='" +
+                randomBase64(random, 16) + "'/></message>");
+        }
+        compare(RECEIPTS + " receipts", stanzas);
+    }
+
+    private void compare(String name, List<String> stanzas) throws Exception {
+        long chars = 0;
+        for (String stanza : stanzas)
+            chars += stanza.length();
+
+        for (boolean compress : new boolean[] { false, true }) {
+            CountingOutputStream single = send(stanzas, compress, false);
+            CountingOutputStream coalesced = send(stanzas, compress, true);
+
+            System.out.println(String.format("%s%s: flush per stanza %d bytes, %d writes, ratio %.2f; " +
+                    "coalesced %d bytes, %d writes, ratio %.2f", name, compress ? " (zlib)" : "",
+                single.bytes, single.writes, (double) chars / single.bytes,
+                coalesced.bytes, coalesced.writes, (double) chars / coalesced.bytes));
+
+            assertTrue(coalesced.writes < single.writes);
+            assertTrue(coalesced.bytes <= single.bytes);
+        }
+    }
+
+    private CountingOutputStream send(List<String> stanzas, boolean compress, boolean coalesce) throws Exception {
+        Socket socket = new Socket("localhost", sServer.getLocalPort());
+        try {
+            CountingOutputStream counter = new CountingOutputStream(socket.getOutputStream());
+            OutputStream os = counter;
+            if (coalesce)
+                os = new BufferedOutputStream(os, XMPPTCPConnection.WRITE_BUFFER_SIZE);
+            if (compress)
+                os = new DeflaterOutputStream(os, new Deflater(), true);
+            Writer writer = new OutputStreamWriter(os, "UTF-8");
+
+            for (String stanza : stanzas) {
+                writer.write(stanza);
+                if (!coalesce)
+                    writer.flush();
+            }
+            writer.flush();
+            return counter;
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private static String randomBase64(Random random, int length) {
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder out = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+            out.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return out.toString();
+    }
+
+}
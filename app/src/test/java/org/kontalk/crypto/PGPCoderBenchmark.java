@@ -0,0 +1,311 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPCompressedData;
+import org.spongycastle.openpgp.PGPCompressedDataGenerator;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPLiteralDataGenerator;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+
+import org.kontalk.client.EndpointServer;
+import org.kontalk.crypto.PGP.PGPKeyPairRing;
+import org.kontalk.util.BufferPool;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Throughput benchmark for {@link PGPCoder}.<br>
+ * Disabled by default, run it with:
+ * <pre>./gradlew :app:testBasicDebugUnitTest -Dkontalk.benchmark=true --tests '*PGPCoderBenchmark'</pre>
+ * Optional system properties:
+ * <ul>
+ * <li><code>kontalk.benchmark.sizes</code>: comma-separated message sizes in bytes</li>
+ * <li><code>kontalk.benchmark.recipients</code>: comma-separated recipient counts</li>
+ * <li><code>kontalk.benchmark.buffers</code>: comma-separated packet:io buffer size pairs</li>
+ * <li><code>kontalk.benchmark.output</code>: CSV file to write results to</li>
+ * </ul>
+ * @author Daniele Ricci
+ */
+public class PGPCoderBenchmark {
+
+    private static final String NETWORK = "beta.kontalk.net";
+    private static final String PASSPHRASE = "benchmark";
+
+    private static final int[] DEFAULT_SIZES = {
+        100, 10 * 1024, 1024 * 1024, 10 * 1024 * 1024, 50 * 1024 * 1024 };
+    private static final int[] DEFAULT_RECIPIENTS = { 1, 5, 50 };
+    private static final String DEFAULT_BUFFERS =
+        PGPCoder.DEFAULT_PACKET_BUFFER_SIZE + ":" + PGPCoder.DEFAULT_IO_BUFFER_SIZE +
+        ",4096:8192,65536:65536";
+
+    /** Minimum total bytes processed for each measurement. */
+    private static final long MIN_BYTES_PER_RUN = 20 * 1024 * 1024;
+    private static final int MIN_ITERATIONS = 3;
+    private static final int WARMUP_ITERATIONS = 2;
+
+    private static EndpointServer sServer;
+    private static PersonalKey sKey;
+    private static PGPPublicKeyRing sPublicKey;
+    private static List<PGPPublicKeyRing> sRecipients;
+
+    private static final List<String> sResults = new ArrayList<>();
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("kontalk.benchmark"));
+
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        sServer = new EndpointServer(NETWORK);
+
+        PGPKeyPairRing ring = PersonalKey.create()
+            .storeNetwork("sender", NETWORK, "Sender", PASSPHRASE);
+        sKey = PersonalKey.load(ring.secretKey, ring.publicKey, PASSPHRASE, null);
+        sPublicKey = ring.publicKey;
+
+        // our own key is always the first recipient so we can decrypt
+        int max = 0;
+        for (int count : intList("kontalk.benchmark.recipients", DEFAULT_RECIPIENTS))
+            max = Math.max(max, count);
+
+        sRecipients = new ArrayList<>(max);
+        sRecipients.add(sPublicKey);
+        for (int i = 1; i < max; i++) {
+            sRecipients.add(PersonalKey.create()
+                .storeNetwork("rcpt" + i, NETWORK, "Recipient " + i, PASSPHRASE)
+                .publicKey);
+        }
+
+        sResults.add("operation,size,recipients,packet_buffer,io_buffer,mb_per_sec,alloc_bytes_per_op,pool_allocs_per_op");
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        PGPCoder.setBufferSizes(PGPCoder.DEFAULT_PACKET_BUFFER_SIZE,
+            PGPCoder.DEFAULT_IO_BUFFER_SIZE);
+
+        String output = System.getProperty("kontalk.benchmark.output");
+        if (output != null && sResults.size() > 0) {
+            PrintWriter writer = new PrintWriter(new FileWriter(output));
+            try {
+                for (String line : sResults)
+                    writer.println(line);
+            }
+            finally {
+                writer.close();
+            }
+        }
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        int[] sizes = intList("kontalk.benchmark.sizes", DEFAULT_SIZES);
+        int[] recipients = intList("kontalk.benchmark.recipients", DEFAULT_RECIPIENTS);
+        String[] buffers = System.getProperty("kontalk.benchmark.buffers", DEFAULT_BUFFERS).split(",");
+
+        for (String bufferSpec : buffers) {
+            String[] parts = bufferSpec.trim().split(":");
+            int packetSize = Integer.parseInt(parts[0]);
+            int ioSize = Integer.parseInt(parts[1]);
+            PGPCoder.setBufferSizes(packetSize, ioSize);
+
+            for (int count : recipients) {
+                PGPPublicKeyRing[] rcpts = sRecipients.subList(0, count)
+                    .toArray(new PGPPublicKeyRing[count]);
+                final PGPCoder encoder = new PGPCoder(sServer, sKey, rcpts);
+                final PGPCoder decoder = new PGPCoder(sServer, sKey, sPublicKey);
+
+                for (int size : sizes) {
+                    final String text = randomText(size);
+                    final byte[] data = text.getBytes();
+                    final byte[] encryptedText = encoder.encryptText(text);
+
+                    ByteArrayOutputStream encryptedFileOut = new ByteArrayOutputStream(size + 4096);
+                    encoder.encryptFile(new ByteArrayInputStream(data), encryptedFileOut);
+                    final byte[] encryptedFile = encryptedFileOut.toByteArray();
+
+                    // sanity checks before measuring anything
+                    Coder.DecryptOutput result = decoder.decryptText(encryptedText, true);
+                    assertEquals(text, result.cleartext);
+
+                    measure("encryptText", size, count, new Operation() {
+                        public void run() throws Exception {
+                            encoder.encryptText(text);
+                        }
+                    });
+                    measure("decryptText", size, count, new Operation() {
+                        public void run() throws Exception {
+                            decoder.decryptText(encryptedText, true);
+                        }
+                    });
+                    measure("encryptFile", size, count, new Operation() {
+                        public void run() throws Exception {
+                            encoder.encryptFile(new ByteArrayInputStream(data), NullOutputStream.INSTANCE);
+                        }
+                    });
+                    measure("decryptFile", size, count, new Operation() {
+                        public void run() throws Exception {
+                            decoder.decryptFile(new ByteArrayInputStream(encryptedFile), true,
+                                NullOutputStream.INSTANCE, null);
+                        }
+                    });
+
+                    // verification doesn't depend on recipients
+                    if (count == recipients[0]) {
+                        final byte[] signed = sign(data);
+                        assertTrue(decoder.verifyText(signed, true).errors.isEmpty());
+                        measure("verifyText", size, 0, new Operation() {
+                            public void run() throws Exception {
+                                decoder.verifyText(signed, true);
+                            }
+                        });
+                    }
+                }
+            }
+        }
+    }
+
+    private void measure(String name, int size, int recipients, Operation op) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            op.run();
+
+        int iterations = (int) Math.max(MIN_ITERATIONS, MIN_BYTES_PER_RUN / size);
+
+        BufferPool packetPool = PGPCoder.getPacketBufferPool();
+        BufferPool ioPool = PGPCoder.getIOBufferPool();
+        long poolAllocs = packetPool.getAllocatedCount() + ioPool.getAllocatedCount();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++)
+            op.run();
+
+        long elapsed = System.nanoTime() - start;
+        long allocPerOp = allocated >= 0 ? (allocatedBytes() - allocated) / iterations : -1;
+        double poolAllocsPerOp = (double) (packetPool.getAllocatedCount() +
+            ioPool.getAllocatedCount() - poolAllocs) / iterations;
+        double mbs = ((double) size * iterations / (1024 * 1024)) / (elapsed / 1e9);
+
+        String line = String.format(Locale.US, "%s,%d,%d,%d,%d,%.3f,%d,%.2f",
+            name, size, recipients, packetPool.getBufferSize(), ioPool.getBufferSize(),
+            mbs, allocPerOp, poolAllocsPerOp);
+        sResults.add(line);
+        System.out.println(line);
+    }
+
+    /** Returns the bytes allocated by the current thread, or -1 if not supported. */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /** Produces a signed-only message as accepted by {@link PGPCoder#verifyText}. */
+    private static byte[] sign(byte[] data) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 1024);
+
+        PGPCompressedDataGenerator compGen = new PGPCompressedDataGenerator(PGPCompressedData.ZIP);
+        OutputStream compressedOut = compGen.open(out);
+
+        PGPSignatureGenerator sigGen = new PGPSignatureGenerator
+            (new BcPGPContentSignerBuilder(sKey.getSignKeyPair()
+                .getPublicKey().getAlgorithm(), HashAlgorithmTags.SHA256));
+        sigGen.init(PGPSignature.BINARY_DOCUMENT, sKey.getSignKeyPair().getPrivateKey());
+        sigGen.generateOnePassVersion(false).encode(compressedOut);
+
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGen.open(compressedOut,
+            PGPLiteralData.BINARY, "", data.length, new Date());
+        literalOut.write(data);
+        sigGen.update(data);
+        literalGen.close();
+
+        sigGen.generate().encode(compressedOut);
+        compGen.close();
+        return out.toByteArray();
+    }
+
+    private static String randomText(int size) {
+        // mildly compressible text, as real messages are
+        final String alphabet = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ 0123456789.,";
+        java.util.Random rnd = new java.util.Random(size);
+        char[] chars = new char[size];
+        for (int i = 0; i < size; i++)
+            chars[i] = alphabet.charAt(rnd.nextInt(alphabet.length()));
+        return new String(chars);
+    }
+
+    private static int[] intList(String property, int[] defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null || value.length() == 0)
+            return defaultValue;
+
+        String[] parts = value.split(",");
+        int[] out = new int[parts.length];
+        for (int i = 0; i < parts.length; i++)
+            out[i] = Integer.parseInt(parts[i].trim());
+        Arrays.sort(out);
+        return out;
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+}
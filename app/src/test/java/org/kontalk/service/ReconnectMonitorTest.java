@@ -0,0 +1,80 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ReconnectMonitorTest {
+
+    private static final long BACKOFF = 5000;
+    private static final long SIGNAL_DELAY = 100;
+
+    @Before
+    public void setUp() {
+        ReconnectMonitor.reset();
+    }
+
+    private static void signalLater(final int networkType) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(SIGNAL_DELAY);
+                }
+                catch (InterruptedException ignored) {
+                }
+                ReconnectMonitor.networkConnected(networkType);
+            }
+        }).start();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        assertFalse(ReconnectMonitor.await(SIGNAL_DELAY));
+        assertTrue(System.currentTimeMillis() - start >= SIGNAL_DELAY);
+    }
+
+    @Test
+    public void testWakeup() throws Exception {
+        signalLater(1);
+        long start = System.currentTimeMillis();
+        assertTrue(ReconnectMonitor.await(BACKOFF));
+        assertTrue(System.currentTimeMillis() - start < BACKOFF);
+    }
+
+    @Test
+    public void testFlapping() throws Exception {
+        for (int i = 0; i < ReconnectMonitor.MAX_IMMEDIATE_RECONNECTS; i++) {
+            signalLater(i % 2);
+            assertTrue(ReconnectMonitor.await(BACKOFF));
+        }
+
+        // too many network changes: backoff must be honored
+        signalLater(0);
+        long start = System.currentTimeMillis();
+        assertFalse(ReconnectMonitor.await(SIGNAL_DELAY * 3));
+        assertTrue(System.currentTimeMillis() - start >= SIGNAL_DELAY * 3);
+    }
+
+}
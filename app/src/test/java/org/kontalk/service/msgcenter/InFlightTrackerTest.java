@@ -0,0 +1,110 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class InFlightTrackerTest {
+
+    private InFlightTracker mTracker;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mTracker = new InFlightTracker();
+        mNow = 1000000000L;
+    }
+
+    @Test
+    public void testAck() {
+        assertTrue(mTracker.add("stanza1", 1, false, mNow));
+        assertTrue(mTracker.add("stanza2", 2, true, mNow));
+        assertTrue(mTracker.isInFlight(1, mNow));
+        assertEquals(2, mTracker.getInFlightCount());
+
+        assertEquals(1, mTracker.acked("stanza1", mNow + 100));
+        assertFalse(mTracker.isInFlight(1, mNow));
+        assertEquals(0, mTracker.acked("stanza1", mNow + 100));
+        assertEquals(2, mTracker.remove("stanza2"));
+        assertEquals(0, mTracker.getInFlightCount());
+        assertEquals(1, mTracker.getAckedCount());
+    }
+
+    @Test
+    public void testTimeout() {
+        assertTrue(mTracker.add("stanza1", 1, false, mNow));
+        // already waiting
+        assertFalse(mTracker.add("stanza2", 1, false, mNow + 1000));
+
+        mNow += InFlightTracker.TIMEOUT;
+        assertEquals(1, mTracker.getTimedOutCount(mNow));
+
+        // still in the unacked queue: tracking is re-armed, not sent again
+        assertTrue(mTracker.isInFlight(1, mNow));
+        assertEquals(0, mTracker.getTimedOutCount(mNow));
+        assertFalse(mTracker.add("stanza2", 1, false, mNow));
+
+        assertEquals(1, mTracker.acked("stanza1", mNow));
+        assertEquals(0, mTracker.acked("stanza2", mNow));
+        assertEquals(0, mTracker.getInFlightCount());
+    }
+
+    @Test
+    public void testReconnection() {
+        mTracker.add("stanza1", 1, false, mNow);
+        mTracker.add("stanza2", 2, false, mNow);
+        mTracker.add("stanza3", 3, true, mNow);
+
+        // message 2 has been acked while disconnected
+        final Set<Long> waiting = new HashSet<>();
+        waiting.add(1L);
+        waiting.add(3L);
+        mTracker.newSession();
+        mTracker.prune(new InFlightTracker.StatusSource() {
+            @Override
+            public Set<Long> getWaiting(Set<Long> msgIds) {
+                return waiting;
+            }
+        });
+        assertEquals(2, mTracker.getInFlightCount());
+        assertFalse(mTracker.isInFlight(2, mNow));
+
+        // resumed stream: still waiting for acks
+        mTracker.authenticated(true);
+        assertEquals(2, mTracker.getInFlightCount());
+
+        mTracker.newSession();
+        mTracker.add("stanza4", 4, false, mNow);
+
+        // new stream: old stanzas are lost
+        mTracker.authenticated(false);
+        assertEquals(1, mTracker.getInFlightCount());
+        assertTrue(mTracker.isInFlight(4, mNow));
+        assertFalse(mTracker.isInFlight(1, mNow));
+        assertEquals(2, mTracker.getDroppedCount());
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class IqResponseCacheTest {
+
+    private static final String LAST = "last";
+    private static final String VERSION = "version";
+    private static final long TTL = 60000;
+
+    private final List<String> mSent = new ArrayList<>();
+    private final List<String> mAnswered = new ArrayList<>();
+    private boolean mConnected;
+    private long mNow;
+
+    private IqResponseCache<String> mCache;
+
+    @Before
+    public void setUp() {
+        mConnected = true;
+        mNow = 1000000000L;
+        mCache = new IqResponseCache<>(new IqResponseCache.Sender<String>() {
+            @Override
+            public boolean send(String type, String jid, String stanzaId) {
+                if (!mConnected)
+                    return false;
+                mSent.add(stanzaId);
+                return true;
+            }
+
+            @Override
+            public void answer(String type, String requestId, String response, long age) {
+                mAnswered.add(requestId + ":" + response);
+            }
+        });
+        mCache.setTtl(LAST, TTL);
+    }
+
+    @Test
+    public void testHit() {
+        mCache.request(LAST, "alice@example.com", "r1", mNow);
+        assertEquals(1, mSent.size());
+        assertEquals(Arrays.asList("r1"), mCache.completed(mSent.get(0), "idle", true, mNow));
+
+        mCache.request(LAST, "alice@example.com", "r2", mNow + 1000);
+        assertEquals(1, mSent.size());
+        assertEquals(Arrays.asList("r2:idle"), mAnswered);
+
+        // expired
+        mCache.request(LAST, "alice@example.com", "r3", mNow + TTL);
+        assertEquals(2, mSent.size());
+        assertEquals(1, mCache.getHitCount());
+        assertEquals(2, mCache.getMissCount());
+    }
+
+    @Test
+    public void testShared() {
+        mCache.request(LAST, "alice@example.com", "r1", mNow);
+        mCache.request(LAST, "alice@example.com", "r2", mNow);
+        mCache.request(LAST, "bob@example.com", "r3", mNow);
+        assertEquals(2, mSent.size());
+
+        // errors are not cached
+        assertEquals(Arrays.asList("r1", "r2"), mCache.completed(mSent.get(0), "error", false, mNow));
+        assertNull(mCache.completed(mSent.get(0), "error", false, mNow));
+        assertNull(mCache.completed("unknown", "idle", true, mNow));
+        mCache.request(LAST, "alice@example.com", "r4", mNow);
+        assertEquals(3, mSent.size());
+        assertEquals(1, mCache.getAvoidedCount());
+    }
+
+    @Test
+    public void testInvalidate() {
+        mCache.request(LAST, "alice@example.com", "r1", mNow);
+        mCache.completed(mSent.get(0), "idle", true, mNow);
+        assertEquals(1, mCache.getCachedCount());
+
+        mCache.invalidate("alice@example.com/phone");
+        assertEquals(0, mCache.getCachedCount());
+
+        // presence arrived while waiting for the response
+        mCache.request(LAST, "alice@example.com", "r2", mNow);
+        mCache.invalidate("alice@example.com/phone");
+        assertEquals(Arrays.asList("r2"), mCache.completed(mSent.get(1), "idle", true, mNow));
+        assertEquals(0, mCache.getCachedCount());
+    }
+
+    @Test
+    public void testUncachedType() {
+        mCache.request(VERSION, "alice@example.com/phone", "r1", mNow);
+        mCache.completed(mSent.get(0), "1.0", true, mNow);
+        mCache.request(VERSION, "alice@example.com/phone", "r2", mNow);
+        assertEquals(2, mSent.size());
+    }
+
+    @Test
+    public void testLostResponse() {
+        mConnected = false;
+        mCache.request(LAST, "alice@example.com", "r1", mNow);
+        mConnected = true;
+        mCache.request(LAST, "alice@example.com", "r2", mNow);
+        assertEquals(1, mSent.size());
+
+        // waiting for too long
+        mCache.request(LAST, "alice@example.com", "r3", mNow + IqResponseCache.REQUEST_TIMEOUT);
+        assertEquals(2, mSent.size());
+
+        mCache.newSession();
+        mCache.request(LAST, "alice@example.com", "r4", mNow + IqResponseCache.REQUEST_TIMEOUT);
+        assertEquals(3, mSent.size());
+    }
+
+}
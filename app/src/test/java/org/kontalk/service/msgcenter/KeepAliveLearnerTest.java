@@ -0,0 +1,90 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class KeepAliveLearnerTest {
+
+    /** Idle timeout of the simulated carrier NAT. */
+    private static final long NAT_TIMEOUT = TimeUnit.MINUTES.toMillis(12);
+
+    /** Pings at the learned interval until it stops changing. */
+    private static long converge(KeepAliveLearner learner, long timeout) {
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            long interval = learner.getInterval();
+            now += interval;
+            if (interval < timeout)
+                learner.success(interval, now);
+            else
+                learner.failure(interval, now);
+        }
+        return learner.getInterval();
+    }
+
+    @Test
+    public void testConvergence() {
+        long interval = converge(new KeepAliveLearner(), NAT_TIMEOUT);
+        assertTrue(interval < NAT_TIMEOUT);
+        assertTrue(NAT_TIMEOUT - interval <= 2 * KeepAliveLearner.RESOLUTION);
+    }
+
+    @Test
+    public void testBounds() {
+        assertEquals(KeepAliveLearner.MAX_INTERVAL, converge(new KeepAliveLearner(), Long.MAX_VALUE));
+        assertEquals(KeepAliveLearner.MIN_INTERVAL, converge(new KeepAliveLearner(), 0));
+    }
+
+    @Test
+    public void testShortIdle() {
+        KeepAliveLearner learner = new KeepAliveLearner();
+        long interval = learner.getInterval();
+        // traffic kept the connection busy: nothing learned
+        learner.success(TimeUnit.SECONDS.toMillis(10), 0);
+        assertEquals(interval, learner.getInterval());
+        learner.failure(TimeUnit.SECONDS.toMillis(10), 0);
+        assertEquals(interval, learner.getInterval());
+    }
+
+    @Test
+    public void testFailureExpiration() {
+        KeepAliveLearner learner = new KeepAliveLearner();
+        converge(learner, NAT_TIMEOUT);
+
+        // the network allows longer idle times now
+        KeepAliveLearner restored = KeepAliveLearner.parse(learner.toString());
+        assertEquals(learner.getInterval(), restored.getInterval());
+        long interval = restored.getInterval();
+        restored.success(interval, KeepAliveLearner.FAILURE_EXPIRATION * 2);
+        assertTrue(restored.getInterval() > interval);
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(KeepAliveLearner.DEFAULT_INTERVAL, KeepAliveLearner.parse(null).getInterval());
+        assertEquals(KeepAliveLearner.DEFAULT_INTERVAL, KeepAliveLearner.parse("garbage").getInterval());
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class OrderedTaskExecutorTest {
+
+    /** Runs tasks only when told to, in any order. */
+    private final List<Runnable> mQueued = new ArrayList<>();
+    private final List<String> mCompleted = new ArrayList<>();
+    private boolean mRejecting;
+
+    private OrderedTaskExecutor mExecutor;
+
+    private class RecordingTask extends OrderedTaskExecutor.Task {
+        private final String mName;
+        private final String mKey;
+
+        RecordingTask(String name, String key) {
+            mName = name;
+            mKey = key;
+        }
+
+        @Override
+        protected void process() {
+        }
+
+        @Override
+        protected String getKey() {
+            return mKey;
+        }
+
+        @Override
+        protected void complete() {
+            mCompleted.add(isFailed() ? "failed " + mName : mName);
+        }
+    }
+
+    private final class FailingTask extends RecordingTask {
+        FailingTask(String name, String key) {
+            super(name, key);
+        }
+
+        @Override
+        protected void process() {
+            throw new IllegalStateException("processing failed");
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mExecutor = new OrderedTaskExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (mRejecting)
+                    throw new RejectedExecutionException();
+                mQueued.add(command);
+            }
+        });
+    }
+
+    private void process(int index) {
+        mQueued.set(index, null).run();
+    }
+
+    @Test
+    public void testPerKeyOrdering() {
+        mExecutor.submit(new RecordingTask("a1", "a"));
+        mExecutor.submit(new RecordingTask("b1", "b"));
+        mExecutor.submit(new RecordingTask("a2", "a"));
+        mExecutor.submit(new RecordingTask("b2", "b"));
+
+        // processed in reverse order
+        process(3);
+        process(2);
+        assertTrue(mCompleted.isEmpty());
+        process(1);
+        // a1 might still turn out to have the same key
+        assertTrue(mCompleted.isEmpty());
+
+        process(0);
+        assertEquals(Arrays.asList("a1", "b1", "a2", "b2"), mCompleted);
+        assertEquals(0, mExecutor.getPendingCount());
+    }
+
+    @Test
+    public void testOtherKeysFirst() {
+        mExecutor.submit(new RecordingTask("a1", "a"));
+        mExecutor.submit(new RecordingTask("b1", "b"));
+        mExecutor.submit(new RecordingTask("c1", "c"));
+
+        process(0);
+        assertEquals(Arrays.asList("a1"), mCompleted);
+        process(2);
+        // b1 is not processed yet
+        assertEquals(Arrays.asList("a1"), mCompleted);
+        process(1);
+        assertEquals(Arrays.asList("a1", "b1", "c1"), mCompleted);
+    }
+
+    @Test
+    public void testGroupAfterCommand() {
+        // group creation from the owner, then a message from a member
+        mExecutor.submit(new RecordingTask("create", "group@example.com"));
+        mExecutor.submit(new RecordingTask("message", "group@example.com"));
+        mExecutor.submit(new RecordingTask("direct", "member@example.com"));
+
+        process(2);
+        process(1);
+        assertTrue(mCompleted.isEmpty());
+        process(0);
+        assertEquals(Arrays.asList("create", "message", "direct"), mCompleted);
+    }
+
+    @Test
+    public void testRejected() {
+        mExecutor.submit(new RecordingTask("a1", "a"));
+        mRejecting = true;
+        try {
+            mExecutor.submit(new RecordingTask("a2", "a"));
+            fail("task not rejected");
+        }
+        catch (RejectedExecutionException expected) {
+        }
+        mRejecting = false;
+        mExecutor.submit(new RecordingTask("a3", "a"));
+        assertEquals(2, mExecutor.getPendingCount());
+
+        // the rejected task doesn't hold the others
+        process(1);
+        process(0);
+        assertEquals(Arrays.asList("a1", "a3"), mCompleted);
+        assertEquals(0, mExecutor.getPendingCount());
+    }
+
+    @Test
+    public void testProcessFailed() {
+        mExecutor.submit(new RecordingTask("a1", "a"));
+        mExecutor.submit(new FailingTask("a2", "a"));
+        mExecutor.submit(new RecordingTask("a3", "a"));
+
+        process(2);
+        // the exception doesn't escape the worker
+        process(1);
+        process(0);
+        assertEquals(Arrays.asList("a1", "failed a2", "a3"), mCompleted);
+        assertEquals(0, mExecutor.getPendingCount());
+    }
+
+    @Test
+    public void testCallerRunsFailed() {
+        // the submitting thread processes the task itself
+        OrderedTaskExecutor executor = new OrderedTaskExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        executor.submit(new FailingTask("a1", "a"));
+        executor.submit(new RecordingTask("a2", "a"));
+        executor.submit(new RecordingTask("a3", "a") {
+            @Override
+            protected void complete() {
+                throw new IllegalStateException("completion failed");
+            }
+        });
+        executor.submit(new RecordingTask("a4", "a"));
+
+        assertEquals(Arrays.asList("failed a1", "a2", "a4"), mCompleted);
+        assertEquals(0, executor.getPendingCount());
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Time-to-drain benchmark for {@link PendingMessageResender}: 5000 queued
+ * messages are resent to a server stand-in acking them in stream
+ * management batches after a simulated round trip time. The legacy single
+ * pass resend is measured too, blocking on a full stream management queue
+ * like Smack does.<br>
+ * Besides drain times, the longest time the command thread was busy
+ * without giving way to other commands is reported.<br>
+ * Disabled by default, run it with:
+ * <pre>./gradlew :app:testBasicDebugUnitTest -Dkontalk.benchmark=true --tests '*PendingMessageResendBenchmark'</pre>
+ * Optional system properties:
+ * <ul>
+ * <li><code>kontalk.benchmark.rtt</code>: simulated round trip time in milliseconds</li>
+ * </ul>
+ * @author Daniele Ricci
+ */
+public class PendingMessageResendBenchmark {
+
+    private static final int MESSAGES = 5000;
+    private static final int PEERS = 50;
+    /** One message out of this is a media message. */
+    private static final int MEDIA_RATIO = 5;
+    private static final int DEFAULT_RTT = 100;
+
+    /** Stanzas sent before requesting an ack, like the default ack policy. */
+    private static final int ACK_BATCH = 20;
+    /** Stream management queue capacity of the legacy resend. */
+    private static final int SM_QUEUE_SIZE = 500;
+    /** Cost of preparing and sending a message on the command thread. */
+    private static final long SEND_COST = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private static final class Row extends PendingMessageResender.Pending {
+        Row(long id, String peer, boolean media) {
+            super(id, peer, media);
+        }
+    }
+
+    /** Server stand-in: acks stanzas in batches after a round trip. */
+    private final class StandInServer {
+        private int mUnacked;
+        private int mUnrequested;
+        private int mAcked;
+        private int mAckedText;
+
+        private long mDrainTime;
+        private long mTextDrainTime;
+
+        private final List<Boolean> mRequested = new ArrayList<>();
+
+        synchronized void sent(boolean media, boolean blocking) throws InterruptedException {
+            if (blocking) {
+                while (mUnacked >= SM_QUEUE_SIZE)
+                    wait();
+            }
+
+            mUnacked++;
+            mUnrequested++;
+            mRequested.add(media);
+            if (mUnrequested >= ACK_BATCH || mUnacked + mAcked == MESSAGES)
+                requestAck();
+        }
+
+        private void requestAck() {
+            final List<Boolean> batch = new ArrayList<>(mRequested);
+            mRequested.clear();
+            mUnrequested = 0;
+            mNetwork.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    answer(batch);
+                }
+            }, mRtt, TimeUnit.MILLISECONDS);
+        }
+
+        private void answer(List<Boolean> batch) {
+            synchronized (this) {
+                mUnacked -= batch.size();
+                mAcked += batch.size();
+                for (boolean media : batch) {
+                    if (!media)
+                        mAckedText++;
+                }
+                long now = System.nanoTime();
+                if (mAckedText == mTextCount && mTextDrainTime == 0)
+                    mTextDrainTime = now - mStart;
+                if (mAcked == MESSAGES) {
+                    mDrainTime = now - mStart;
+                    mDrained.countDown();
+                }
+                notifyAll();
+            }
+
+            // the legacy resend is not notified
+            if (mResender != null) {
+                for (int i = 0; i < batch.size(); i++)
+                    mResender.acked();
+            }
+        }
+
+        synchronized int getUnacked() {
+            return mUnacked;
+        }
+    }
+
+    private int mRtt;
+    private List<Row> mRows;
+    private int mTextCount;
+
+    private ScheduledExecutorService mCommandThread;
+    private ScheduledExecutorService mNetwork;
+    private StandInServer mServer;
+    private PendingMessageResender mResender;
+    private CountDownLatch mDrained;
+    private long mStart;
+    private long mMaxStep;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.getBoolean("kontalk.benchmark"));
+        mRtt = Integer.getInteger("kontalk.benchmark.rtt", DEFAULT_RTT);
+
+        mRows = new ArrayList<>(MESSAGES);
+        mTextCount = 0;
+        for (int i = 1; i <= MESSAGES; i++) {
+            boolean media = (i % MEDIA_RATIO) == 0;
+            if (!media)
+                mTextCount++;
+            mRows.add(new Row(i, "peer" + (i % PEERS), media));
+        }
+
+        mCommandThread = Executors.newSingleThreadScheduledExecutor();
+        mNetwork = Executors.newSingleThreadScheduledExecutor();
+        mServer = new StandInServer();
+        mDrained = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        if (mCommandThread != null) {
+            mCommandThread.shutdownNow();
+            mNetwork.shutdownNow();
+        }
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // simulating work
+        }
+    }
+
+    /** Runs a command on the command thread, measuring how long it was busy. */
+    private void post(final Runnable command, long delay) {
+        mCommandThread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                command.run();
+                mMaxStep = Math.max(mMaxStep, System.nanoTime() - start);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testResend() throws Exception {
+        mResender = new PendingMessageResender(new PendingMessageResender.Source() {
+            @Override
+            public List<Row> query(PendingMessageResender.Request request, long after, int count) {
+                // rows are sorted by id
+                List<Row> page = new ArrayList<>(count);
+                for (int i = (int) after; i < mRows.size() && page.size() < count; i++)
+                    page.add(mRows.get(i));
+                return page;
+            }
+        }, new PendingMessageResender.Sender() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void send(PendingMessageResender.Pending msg) {
+                spin(SEND_COST);
+                try {
+                    mServer.sent(((Row) msg).media, false);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public int getInFlightCount() {
+                return mServer.getUnacked();
+            }
+
+            @Override
+            public void post(Runnable step, long delay) {
+                PendingMessageResendBenchmark.this.post(step, delay);
+            }
+        });
+
+        mStart = System.nanoTime();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mResender.resend(new PendingMessageResender.Request(false, false, null));
+            }
+        }, 0);
+
+        assertTrue(mDrained.await(5, TimeUnit.MINUTES));
+        report("paged resend");
+    }
+
+    @Test
+    public void testLegacyResend() throws Exception {
+        mStart = System.nanoTime();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Row row : mRows) {
+                        spin(SEND_COST);
+                        mServer.sent(row.media, true);
+                    }
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, 0);
+
+        assertTrue(mDrained.await(5, TimeUnit.MINUTES));
+        report("single pass resend");
+    }
+
+    private void report(String name) throws Exception {
+        // wait for the last step to be measured
+        mCommandThread.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+
+        System.out.println(String.format("%s, %d messages, RTT %d ms: drained in %.2f ms, " +
+                "text messages in %.2f ms, command thread busy for %.2f ms at most",
+            name, MESSAGES, mRtt, mServer.mDrainTime / 1e6,
+            mServer.mTextDrainTime / 1e6, mMaxStep / 1e6));
+    }
+
+}
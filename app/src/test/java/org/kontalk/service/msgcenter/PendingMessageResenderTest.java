@@ -0,0 +1,175 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PendingMessageResenderTest {
+
+    private static final int PAGE_SIZE = 4;
+    private static final int MAX_IN_FLIGHT = 3;
+
+    /** A pending message in the stand-in database. */
+    private static final class Row extends PendingMessageResender.Pending {
+        Row(long id, String peer, boolean media) {
+            super(id, peer, media);
+        }
+    }
+
+    private final List<Row> mRows = new ArrayList<>();
+    private final List<Long> mSent = new ArrayList<>();
+    private final LinkedList<Runnable> mPosted = new LinkedList<>();
+    private int mInFlight;
+    private int mQueries;
+
+    private PendingMessageResender mResender;
+
+    @Before
+    public void setUp() {
+        mResender = new PendingMessageResender(new PendingMessageResender.Source() {
+            @Override
+            public List<Row> query(PendingMessageResender.Request request, long after, int count) {
+                mQueries++;
+                List<Row> page = new ArrayList<>();
+                for (Row row : mRows) {
+                    if (row.id > after && page.size() < count)
+                        page.add(row);
+                }
+                return page;
+            }
+        }, new PendingMessageResender.Sender() {
+            @Override
+            public boolean isConnected() {
+                return true;
+            }
+
+            @Override
+            public void send(PendingMessageResender.Pending msg) {
+                mSent.add(msg.id);
+                mInFlight++;
+            }
+
+            @Override
+            public int getInFlightCount() {
+                return mInFlight;
+            }
+
+            @Override
+            public void post(Runnable step, long delay) {
+                // ack timeouts are not tested here
+                if (delay == 0)
+                    mPosted.add(step);
+            }
+        }, PAGE_SIZE, MAX_IN_FLIGHT);
+    }
+
+    private void runPosted() {
+        while (!mPosted.isEmpty())
+            mPosted.poll().run();
+    }
+
+    private void ack(int count) {
+        mInFlight -= count;
+        for (int i = 0; i < count; i++)
+            mResender.acked();
+    }
+
+    @Test
+    public void testInterleave() {
+        List<Row> page = Arrays.asList(
+            new Row(1, "a", false),
+            new Row(2, "a", false),
+            new Row(3, "a", false),
+            new Row(4, "b", false),
+            new Row(5, "c", false),
+            new Row(6, "b", false));
+        ArrayDeque<PendingMessageResender.Pending> out = new ArrayDeque<>();
+        PendingMessageResender.interleave(page, out);
+
+        List<Long> ids = new ArrayList<>();
+        for (PendingMessageResender.Pending msg : out)
+            ids.add(msg.id);
+        assertEquals(Arrays.asList(1L, 4L, 5L, 2L, 6L, 3L), ids);
+    }
+
+    @Test
+    public void testInterleaveTextFirst() {
+        List<Row> page = Arrays.asList(
+            new Row(1, "a", true),
+            new Row(2, "a", false),
+            new Row(3, "b", false),
+            new Row(4, "c", true),
+            new Row(5, "b", true));
+        ArrayDeque<PendingMessageResender.Pending> out = new ArrayDeque<>();
+        PendingMessageResender.interleave(page, out);
+
+        List<Long> ids = new ArrayList<>();
+        for (PendingMessageResender.Pending msg : out)
+            ids.add(msg.id);
+        // text goes first in each round, but never overtakes media to the same peer
+        assertEquals(Arrays.asList(3L, 1L, 4L, 2L, 5L), ids);
+    }
+
+    @Test
+    public void testWindow() {
+        mRows.add(new Row(1, "a", true));
+        mRows.add(new Row(2, "a", false));
+        mRows.add(new Row(3, "b", false));
+        mRows.add(new Row(4, "b", true));
+        mRows.add(new Row(5, "c", false));
+        mRows.add(new Row(6, "c", false));
+
+        mResender.resend(new PendingMessageResender.Request(false, false, null));
+        runPosted();
+        // window is full
+        assertEquals(Arrays.asList(3L, 1L, 2L), mSent);
+        assertTrue(mResender.isRunning());
+
+        ack(MAX_IN_FLIGHT);
+        runPosted();
+        // each recipient in order
+        assertEquals(Arrays.asList(3L, 1L, 2L, 4L, 5L, 6L), mSent);
+        assertFalse(mResender.isRunning());
+    }
+
+    @Test
+    public void testCoalesce() {
+        for (int i = 1; i <= 2; i++)
+            mRows.add(new Row(i, "a", false));
+
+        PendingMessageResender.Request request = new PendingMessageResender.Request(false, false, null);
+        mResender.resend(request);
+        mResender.resend(new PendingMessageResender.Request(false, false, null));
+        runPosted();
+        assertEquals(2, mSent.size());
+        // a page and an empty page
+        assertEquals(2, mQueries);
+    }
+
+}
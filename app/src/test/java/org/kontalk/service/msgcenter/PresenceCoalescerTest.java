@@ -0,0 +1,102 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PresenceCoalescerTest {
+
+    private static final long WINDOW = 100;
+    private static final int MAX_BATCH = 3;
+
+    private final LinkedList<Runnable> mPosted = new LinkedList<>();
+    private final List<Long> mDelays = new ArrayList<>();
+    private final List<List<String>> mBatches = new ArrayList<>();
+
+    private PresenceCoalescer<String> mCoalescer;
+
+    @Before
+    public void setUp() {
+        mCoalescer = new PresenceCoalescer<>(new PresenceCoalescer.Sink<String>() {
+            @Override
+            public void post(Runnable flush, long delay) {
+                mPosted.add(flush);
+                mDelays.add(delay);
+            }
+
+            @Override
+            public void flush(List<String> presences) {
+                mBatches.add(presences);
+            }
+        }, WINDOW, MAX_BATCH);
+    }
+
+    private void runPosted() {
+        while (!mPosted.isEmpty())
+            mPosted.poll().run();
+    }
+
+    @Test
+    public void testCoalesce() {
+        mCoalescer.submit("a@example.com/1", "a1");
+        mCoalescer.submit("b@example.com/1", "b1");
+        mCoalescer.submit("a@example.com/1", "a2");
+        // a single flush is scheduled for the window
+        assertEquals(Arrays.asList(WINDOW), mDelays);
+
+        runPosted();
+        assertEquals(1, mBatches.size());
+        // latest presence for each sender, in the order they were last received
+        assertEquals(Arrays.asList("b1", "a2"), mBatches.get(0));
+        assertEquals(3, mCoalescer.getReceivedCount());
+        assertEquals(2, mCoalescer.getFlushedCount());
+
+        // a new window starts
+        mCoalescer.submit("a@example.com/1", "a3");
+        runPosted();
+        assertEquals(Arrays.asList("a3"), mBatches.get(1));
+    }
+
+    @Test
+    public void testMaxBatch() {
+        mCoalescer.submit("a@example.com/1", "a1");
+        mCoalescer.submit("b@example.com/1", "b1");
+        mCoalescer.submit("c@example.com/1", "c1");
+        // batch is full: flush immediately
+        assertEquals(Arrays.asList(WINDOW, 0L), mDelays);
+
+        mPosted.pollLast().run();
+        assertEquals(Arrays.asList("a1", "b1", "c1"), mBatches.get(0));
+
+        // the window flush has nothing left
+        runPosted();
+        assertEquals(1, mBatches.size());
+        assertEquals(1, mCoalescer.getBatchCount());
+    }
+
+}
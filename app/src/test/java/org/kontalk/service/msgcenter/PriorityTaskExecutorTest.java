@@ -0,0 +1,153 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PriorityTaskExecutorTest {
+
+    private static final int[] MAX_QUEUED = { 10, 10, 10, 10, 10 };
+
+    /** Occupies the only worker until released. */
+    private static CountDownLatch block(PriorityTaskExecutor executor) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(PriorityTaskExecutor.LANE_INCOMING, new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ignored) {
+                }
+            }
+        });
+        started.await();
+        return release;
+    }
+
+    private static Runnable record(final List<String> out, final String name, final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                out.add(name);
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        PriorityTaskExecutor executor = new PriorityTaskExecutor(1, MAX_QUEUED, "test");
+        CountDownLatch release = block(executor);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(5);
+        executor.execute(PriorityTaskExecutor.LANE_HOUSEKEEPING, record(order, "housekeeping", latch));
+        executor.execute(PriorityTaskExecutor.LANE_PRESENCE, record(order, "presence", latch));
+        executor.execute(PriorityTaskExecutor.LANE_INCOMING, record(order, "incoming", latch));
+        executor.execute(PriorityTaskExecutor.LANE_RECEIPTS, record(order, "receipts", latch));
+        executor.execute(PriorityTaskExecutor.LANE_OUTGOING, record(order, "outgoing", latch));
+        release.countDown();
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("outgoing", order.get(0));
+        assertEquals("receipts", order.get(1));
+        assertEquals("incoming", order.get(2));
+        assertEquals("presence", order.get(3));
+        assertEquals("housekeeping", order.get(4));
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        PriorityTaskExecutor executor = new PriorityTaskExecutor(1, MAX_QUEUED, "test");
+        CountDownLatch release = block(executor);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(2);
+        for (int i = 0; i < 5; i++)
+            executor.execute(PriorityTaskExecutor.LANE_PRESENCE, "alice@beta.kontalk.net/a",
+                record(order, "alice" + i, latch));
+        executor.execute(PriorityTaskExecutor.LANE_PRESENCE, "bob@beta.kontalk.net/b",
+            record(order, "bob", latch));
+        assertEquals(2, executor.getQueueDepth(PriorityTaskExecutor.LANE_PRESENCE));
+        release.countDown();
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("alice4", order.get(0));
+        assertEquals("bob", order.get(1));
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testLaneLimit() throws Exception {
+        PriorityTaskExecutor executor = new PriorityTaskExecutor(1, MAX_QUEUED, "test");
+        CountDownLatch release = block(executor);
+
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        };
+        for (int i = 0; i <= MAX_QUEUED[PriorityTaskExecutor.LANE_INCOMING]; i++)
+            executor.execute(PriorityTaskExecutor.LANE_INCOMING, task);
+
+        // the last one was run by us
+        assertEquals(1, threads.size());
+        assertSame(Thread.currentThread(), threads.get(0));
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReceiptsDuringIncomingBacklog() throws Exception {
+        PriorityTaskExecutor executor = new PriorityTaskExecutor(1, MAX_QUEUED, "test");
+        CountDownLatch release = block(executor);
+
+        // incoming lane full, more messages are processed by the connection thread
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        int incoming = MAX_QUEUED[PriorityTaskExecutor.LANE_INCOMING];
+        CountDownLatch latch = new CountDownLatch(incoming + 1);
+        for (int i = 0; i < incoming; i++)
+            executor.execute(PriorityTaskExecutor.LANE_INCOMING, record(order, "incoming" + i, latch));
+        assertEquals(incoming, executor.getQueueDepth(PriorityTaskExecutor.LANE_INCOMING));
+
+        executor.execute(PriorityTaskExecutor.LANE_RECEIPTS, record(order, "receipts", latch));
+        release.countDown();
+
+        // receipts don't wait for the incoming backlog
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("receipts", order.get(0));
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class PublicKeyRefresherTest {
+
+    private static final int MAX_IN_FLIGHT = 2;
+
+    private final Map<String, String> mStored = new HashMap<>();
+    private final Map<String, Long> mChecked = new HashMap<>();
+    /** Sent requests, stanza id to JID. */
+    private final Map<String, String> mSent = new LinkedHashMap<>();
+    private final List<String> mSkipped = new ArrayList<>();
+    private final LinkedList<Runnable> mPosted = new LinkedList<>();
+    private boolean mConnected = true;
+
+    private PublicKeyRefresher mRefresher;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mRefresher = new PublicKeyRefresher(new PublicKeyRefresher.Source() {
+            @Override
+            public Map<String, String> getFingerprints(Collection<String> jids) {
+                return mStored;
+            }
+
+            @Override
+            public Map<String, Long> getCheckedTimes(Collection<String> jids) {
+                return mChecked;
+            }
+
+            @Override
+            public void setChecked(Collection<String> jids, long time) {
+                for (String jid : jids)
+                    mChecked.put(jid, time);
+            }
+        }, new PublicKeyRefresher.Sender() {
+            @Override
+            public boolean send(String jid, String stanzaId) {
+                if (!mConnected)
+                    return false;
+                mSent.put(stanzaId, jid);
+                return true;
+            }
+
+            @Override
+            public void skipped(String jid, String requestId) {
+                mSkipped.add(jid);
+            }
+
+            @Override
+            public void post(Runnable command, long delay) {
+                mPosted.add(command);
+            }
+        }, MAX_IN_FLIGHT);
+        mNow = 1000000000L;
+    }
+
+    @Test
+    public void testConditional() {
+        mStored.put("a@example.com", "AAAA");
+        mStored.put("b@example.com", "BBBB");
+        mRefresher.advertised("b@example.com", "CCCC");
+
+        mRefresher.refresh(Arrays.asList("a@example.com", "b@example.com", "c@example.com"),
+            "sync", false, mNow);
+        // unchanged key is skipped, changed and missing keys are requested
+        assertEquals(Arrays.asList("a@example.com"), mSkipped);
+        assertEquals(Arrays.asList("b@example.com", "c@example.com"),
+            new ArrayList<>(mSent.values()));
+
+        for (String id : mSent.keySet())
+            mRefresher.completed(id, mNow);
+
+        assertEquals(Long.valueOf(mNow), mChecked.get("a@example.com"));
+        assertEquals(Long.valueOf(mNow), mChecked.get("b@example.com"));
+
+        // key is too old now, even for a new instance
+        setUp();
+        mSent.clear();
+        mSkipped.clear();
+        mRefresher.refresh(Arrays.asList("a@example.com"), null, false,
+            mNow + PublicKeyRefresher.KEY_TTL);
+        assertTrue(mSkipped.isEmpty());
+        assertEquals(Arrays.asList("a@example.com"), new ArrayList<>(mSent.values()));
+    }
+
+    @Test
+    public void testPacing() {
+        mRefresher.refresh(Arrays.asList("a@example.com", "b@example.com", "c@example.com"),
+            "sync", true, mNow);
+        assertEquals(MAX_IN_FLIGHT, mSent.size());
+        assertEquals(1, mRefresher.getQueuedCount());
+
+        // each response is matched to its own request
+        List<String> ids = new ArrayList<>(mSent.keySet());
+        PublicKeyRefresher.Request request = mRefresher.completed(ids.get(1), mNow);
+        assertEquals("b@example.com", request.jid);
+        assertEquals("sync", request.requestId);
+        assertNull(mRefresher.completed(ids.get(1), mNow));
+        assertNull(mRefresher.completed("unknown", mNow));
+
+        // next request sent
+        assertEquals(3, mSent.size());
+        assertEquals(0, mRefresher.getQueuedCount());
+    }
+
+    @Test
+    public void testTimeout() {
+        mRefresher.refresh(Arrays.asList("a@example.com", "b@example.com", "c@example.com"),
+            null, true, mNow);
+        assertEquals(MAX_IN_FLIGHT, mSent.size());
+
+        mPosted.poll().run();
+        // first request gave up, window slot is free
+        assertEquals(3, mSent.size());
+        assertEquals(MAX_IN_FLIGHT, mRefresher.getInFlightCount());
+        assertNull(mRefresher.completed(mSent.keySet().iterator().next(), mNow));
+    }
+
+    @Test
+    public void testReconnection() {
+        mRefresher.refresh(Arrays.asList("a@example.com", "b@example.com", "c@example.com"),
+            null, true, mNow);
+        assertEquals(MAX_IN_FLIGHT, mSent.size());
+        List<String> ids = new ArrayList<>(mSent.keySet());
+
+        // connection lost: requests are kept
+        mConnected = false;
+        mRefresher.newSession();
+        assertEquals(0, mRefresher.getInFlightCount());
+        mRefresher.refresh(Arrays.asList("d@example.com"), null, true, mNow);
+        assertEquals(2, mRefresher.getQueuedCount());
+        // late response from the old connection
+        assertNull(mRefresher.completed(ids.get(0), mNow));
+
+        mConnected = true;
+        mSent.clear();
+        mRefresher.resume();
+        assertEquals(Arrays.asList("c@example.com", "d@example.com"),
+            new ArrayList<>(mSent.values()));
+        assertEquals(0, mRefresher.getQueuedCount());
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.service.msgcenter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class ReceiptBatcherTest {
+
+    private static final int MAX_BATCH = 4;
+
+    private final List<Long> mSent = new ArrayList<>();
+    private final List<List<Long>> mConfirmed = new ArrayList<>();
+    private final LinkedList<Runnable> mPosted = new LinkedList<>();
+    private final LinkedList<Runnable> mFlushTimers = new LinkedList<>();
+    private int mHolds;
+
+    private ReceiptBatcher mBatcher;
+
+    @Before
+    public void setUp() {
+        mBatcher = new ReceiptBatcher(new ReceiptBatcher.Sender() {
+            @Override
+            public void send(ReceiptBatcher.Receipt receipt) {
+                mSent.add(receipt.id);
+            }
+
+            @Override
+            public void confirmed(List<Long> ids) {
+                mConfirmed.add(ids);
+            }
+
+            @Override
+            public void hold() {
+                mHolds++;
+            }
+
+            @Override
+            public void release() {
+                mHolds--;
+            }
+
+            @Override
+            public void post(Runnable command, long delay) {
+                if (delay == ReceiptBatcher.MAX_DELAY)
+                    mFlushTimers.add(command);
+                else
+                    mPosted.add(command);
+            }
+
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, MAX_BATCH);
+    }
+
+    @Test
+    public void testBurst() {
+        mBatcher.queue(new ReceiptBatcher.Receipt(1, "m1", "a@example.com"));
+        mBatcher.queue(new ReceiptBatcher.Receipt(2, "m2", "b@example.com"));
+        mBatcher.queue(new ReceiptBatcher.Receipt(3, "m3", "a@example.com"));
+        assertTrue(mSent.isEmpty());
+
+        mBatcher.flush();
+        // grouped by peer
+        assertEquals(Arrays.asList(1L, 3L, 2L), mSent);
+        assertEquals(1, mHolds);
+
+        mBatcher.acked(1);
+        mBatcher.acked(3);
+        assertTrue(mConfirmed.isEmpty());
+        mBatcher.acked(2);
+        // single update for the whole burst
+        assertEquals(Arrays.asList(Arrays.asList(1L, 3L, 2L)), mConfirmed);
+        assertEquals(0, mHolds);
+        assertFalse(mBatcher.isHeld());
+
+        // stale timeout
+        mPosted.poll().run();
+        assertEquals(0, mHolds);
+
+        // stale flush timer
+        mFlushTimers.poll().run();
+        assertEquals(3, mSent.size());
+    }
+
+    @Test
+    public void testMaxDelay() {
+        mBatcher.queue(new ReceiptBatcher.Receipt(1, "m1", "a@example.com"));
+        mBatcher.queue(new ReceiptBatcher.Receipt(2, "m2", "a@example.com"));
+        // a single timer for the batch
+        assertEquals(1, mFlushTimers.size());
+        assertTrue(mSent.isEmpty());
+
+        // backlog not drained yet, but receipts can't wait anymore
+        mFlushTimers.poll().run();
+        assertEquals(Arrays.asList(1L, 2L), mSent);
+        assertEquals(1, mHolds);
+
+        mBatcher.queue(new ReceiptBatcher.Receipt(3, "m3", "a@example.com"));
+        assertEquals(1, mFlushTimers.size());
+    }
+
+    @Test
+    public void testMaxBatch() {
+        for (int i = 1; i <= MAX_BATCH; i++)
+            mBatcher.queue(new ReceiptBatcher.Receipt(i, "m" + i, "a@example.com"));
+        // sent without waiting for flush
+        assertEquals(MAX_BATCH, mSent.size());
+
+        mBatcher.queue(new ReceiptBatcher.Receipt(5, "m5", "a@example.com"));
+        mBatcher.flush();
+        // still a single hold
+        assertEquals(1, mHolds);
+    }
+
+    @Test
+    public void testTimeout() {
+        mBatcher.queue(new ReceiptBatcher.Receipt(1, "m1", "a@example.com"));
+        mBatcher.queue(new ReceiptBatcher.Receipt(2, "m2", "a@example.com"));
+        mBatcher.flush();
+        mBatcher.acked(1);
+
+        mPosted.poll().run();
+        assertEquals(Arrays.asList(Arrays.asList(1L)), mConfirmed);
+        assertEquals(0, mHolds);
+
+        // late ack
+        mBatcher.acked(2);
+        assertEquals(Arrays.asList(2L), mConfirmed.get(1));
+        assertEquals(0, mHolds);
+    }
+
+}
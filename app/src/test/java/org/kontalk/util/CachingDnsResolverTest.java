@@ -0,0 +1,313 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.util.dns.SRVRecord;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+import static org.junit.Assert.*;
+
+
+public class CachingDnsResolverTest {
+
+    private static final String NAME = "_xmpp-client._tcp.beta.kontalk.net";
+    private static final long TTL = TimeUnit.MINUTES.toMillis(10);
+
+    /** DNS server stand-in counting the queries. */
+    private static final class StandInSource implements CachingDnsResolver.Source {
+        int queries;
+        boolean nxdomain;
+        boolean down;
+
+        @Override
+        public CachingDnsResolver.Answer query(String name) {
+            queries++;
+            if (down)
+                return null;
+
+            List<SRVRecord> records = new ArrayList<>();
+            if (!nxdomain)
+                records.add(new SRVRecord("beta.kontalk.net", 5222, 0, 0));
+            return new CachingDnsResolver.Answer(records, TTL);
+        }
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private StandInSource mSource;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mSource = new StandInSource();
+        mNow = 1000000000L;
+    }
+
+    private CachingDnsResolver createResolver() {
+        return new CachingDnsResolver(mSource, DIRECT) {
+            @Override
+            long currentTimeMillis() {
+                return mNow;
+            }
+        };
+    }
+
+    @Test
+    public void testTtl() {
+        CachingDnsResolver resolver = createResolver();
+        assertEquals(1, resolver.lookupSRVRecords(NAME).size());
+        assertEquals(1, resolver.lookupSRVRecords(NAME).size());
+        assertEquals(1, mSource.queries);
+
+        // expired: stale answer returned and refreshed in the background
+        mNow += TTL + 1;
+        assertEquals(1, resolver.lookupSRVRecords(NAME).size());
+        assertEquals(2, mSource.queries);
+        assertEquals(1, resolver.lookupSRVRecords(NAME).size());
+        assertEquals(2, mSource.queries);
+    }
+
+    @Test
+    public void testNegative() {
+        mSource.nxdomain = true;
+        CachingDnsResolver resolver = createResolver();
+        assertTrue(resolver.lookupSRVRecords(NAME).isEmpty());
+        assertTrue(resolver.lookupSRVRecords(NAME).isEmpty());
+        assertEquals(1, mSource.queries);
+
+        mNow += CachingDnsResolver.NEGATIVE_TTL + 1;
+        assertTrue(resolver.lookupSRVRecords(NAME).isEmpty());
+        assertEquals(2, mSource.queries);
+    }
+
+    @Test
+    public void testServerDown() {
+        CachingDnsResolver resolver = createResolver();
+        resolver.lookupSRVRecords(NAME);
+
+        // stale records are better than nothing
+        mSource.down = true;
+        mNow += TTL + 1;
+        assertEquals(1, resolver.lookupSRVRecords(NAME).size());
+
+        // too old
+        mNow += CachingDnsResolver.STALE_TTL + 1;
+        assertTrue(resolver.lookupSRVRecords(NAME).isEmpty());
+        assertEquals(3, mSource.queries);
+    }
+
+    @Test
+    public void testFlush() {
+        CachingDnsResolver resolver = createResolver();
+        resolver.lookupSRVRecords(NAME);
+        resolver.flush();
+        assertEquals(1, resolver.lookupSRVRecords(NAME).size());
+        assertEquals(2, mSource.queries);
+    }
+
+    @Test
+    public void testPersistence() {
+        MemoryPreferences prefs = new MemoryPreferences();
+        CachingDnsResolver resolver = createResolver();
+        resolver.load(prefs);
+        resolver.lookupSRVRecords(NAME);
+
+        // process restart
+        resolver = createResolver();
+        resolver.load(prefs);
+        List<SRVRecord> records = resolver.lookupSRVRecords(NAME);
+        assertEquals(1, mSource.queries);
+        assertEquals(1, records.size());
+        assertEquals("beta.kontalk.net", records.get(0).getFQDN());
+        assertEquals(5222, records.get(0).getPort());
+    }
+
+    @Test
+    public void testFlushBeforeLoad() {
+        MemoryPreferences prefs = new MemoryPreferences();
+        CachingDnsResolver resolver = createResolver();
+        resolver.load(prefs);
+        resolver.lookupSRVRecords(NAME);
+
+        // network change right after a restart, before the first lookup
+        resolver = createResolver();
+        resolver.init(new MemoryContext(prefs));
+        resolver.flush();
+
+        // persisted records are used, but refreshed
+        assertEquals(1, resolver.lookupSRVRecords(NAME).size());
+        assertEquals(2, mSource.queries);
+    }
+
+    private static final class MemoryContext extends ContextWrapper {
+        final SharedPreferences mPrefs;
+
+        MemoryContext(SharedPreferences prefs) {
+            super(null);
+            mPrefs = prefs;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return mPrefs;
+        }
+    }
+
+    private static final class MemoryPreferences implements SharedPreferences {
+        final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return Collections.unmodifiableMap(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                final Map<String, Object> mChanges = new HashMap<>();
+
+                @Override
+                public Editor putString(String key, String value) {
+                    mChanges.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    mChanges.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public boolean commit() {
+                    for (Map.Entry<String, Object> e : mChanges.entrySet()) {
+                        if (e.getValue() != null)
+                            mValues.put(e.getKey(), e.getValue());
+                        else
+                            mValues.remove(e.getKey());
+                    }
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    commit();
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+
+}
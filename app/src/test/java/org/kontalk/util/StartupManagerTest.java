@@ -0,0 +1,90 @@
+/*
+ * Kontalk Android client
+ * Copyright (C) 2016 Kontalk Devteam <devteam@kontalk.org>
+
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class StartupManagerTest {
+
+    private static Runnable record(final List<String> order, final String name, final long sleep) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(sleep);
+                }
+                catch (InterruptedException ignored) {
+                }
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testDependencies() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        StartupManager startup = new StartupManager()
+            .add("first", record(order, "first", 0))
+            .addBackground("slow", record(order, "slow", 100), "first")
+            .add("second", record(order, "second", 0))
+            .add("after-slow", record(order, "after-slow", 0), "slow");
+
+        startup.start();
+
+        // foreground initializers are done when start() returns
+        assertEquals(4, order.size());
+        assertEquals("first", order.get(0));
+        assertEquals("second", order.get(1));
+        assertTrue(order.indexOf("slow") < order.indexOf("after-slow"));
+        assertTrue(startup.getElapsedTime() >= 0);
+        assertEquals(4, startup.getTrace().size());
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        StartupManager startup = new StartupManager()
+            .addBackground("a", record(order, "a", 200))
+            .addBackground("b", record(order, "b", 200))
+            .add("main", record(order, "main", 200));
+
+        long start = System.currentTimeMillis();
+        startup.start();
+        startup.await("a");
+        startup.await("b");
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(3, order.size());
+        // all three ran concurrently
+        assertTrue(elapsed < 500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownDependency() {
+        new StartupManager().add("a", record(new ArrayList<String>(), "a", 0), "b");
+    }
+
+}